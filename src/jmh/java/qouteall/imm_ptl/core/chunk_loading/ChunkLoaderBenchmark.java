@@ -0,0 +1,53 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import net.minecraft.world.level.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkLoaderBenchmark {
+    // the usual view distances and a large portal loading radius
+    @Param({"8", "16", "32"})
+    public int radius;
+    
+    private ChunkLoader chunkLoader;
+    
+    @Setup
+    public void setup() {
+        chunkLoader = new ChunkLoader(Level.OVERWORLD, 100, -50, radius);
+    }
+    
+    @Benchmark
+    public long foreachChunkPos() {
+        long[] sum = new long[1];
+        chunkLoader.foreachChunkPos((dimension, x, z, distance) -> {
+            sum[0] += x * 31L + z + distance;
+        });
+        return sum[0];
+    }
+    
+    @Benchmark
+    public long foreachChunkPosFromInnerToOuter() {
+        long[] sum = new long[1];
+        chunkLoader.foreachChunkPosFromInnerToOuter((dimension, x, z, distance) -> {
+            sum[0] += x * 31L + z + distance;
+        });
+        return sum[0];
+    }
+}
@@ -0,0 +1,155 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One watch and purge cycle of many players, with the {@link WatchRecordStore}
+ * and with the per-chunk map of record objects that {@link ImmPtlChunkTracking} used before it.
+ * Every player watches a line of chunks, and a quarter of them change on each cycle.
+ * Run it with the gc profiler to see the allocation per cycle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WatchRecordStoreBenchmark {
+    private static final int PLAYER_NUM = 100;
+    private static final int CHUNKS_PER_PLAYER = 3000;
+    
+    // the fields of the old PlayerWatchRecord
+    private static final class BaselineWatchRecord {
+        final Object player;
+        final ResourceKey<Level> dimension;
+        final long chunkPos;
+        int lastWatchGeneration;
+        int distanceToSource;
+        boolean isLoadedToPlayer;
+        boolean isValid = true;
+        boolean isBoundary = false;
+        int watchingLoaderNum = 0;
+        
+        BaselineWatchRecord(
+            Object player, ResourceKey<Level> dimension,
+            long chunkPos, int lastWatchGeneration,
+            int distanceToSource, boolean isLoadedToPlayer,
+            boolean isBoundary
+        ) {
+            this.player = player;
+            this.dimension = dimension;
+            this.chunkPos = chunkPos;
+            this.lastWatchGeneration = lastWatchGeneration;
+            this.distanceToSource = distanceToSource;
+            this.isLoadedToPlayer = isLoadedToPlayer;
+            this.isBoundary = isBoundary;
+        }
+    }
+    
+    // the players are only map keys. ServerPlayer uses the identity hash code
+    private Object[] players;
+    
+    private Long2ObjectOpenHashMap<Object2ObjectOpenHashMap<Object, BaselineWatchRecord>> baselineRecords;
+    private int baselineGeneration;
+    
+    private WatchRecordStore store;
+    private int storeGeneration;
+    
+    @Setup
+    public void setup() {
+        players = new Object[PLAYER_NUM];
+        for (int i = 0; i < PLAYER_NUM; i++) {
+            players[i] = new Object();
+        }
+        
+        baselineRecords = new Long2ObjectOpenHashMap<>();
+        baselineGeneration = 0;
+        store = new WatchRecordStore(0);
+        storeGeneration = 0;
+        
+        // start from the steady state
+        baselineCycle();
+        storeCycle();
+    }
+    
+    private static long getChunkPos(int player, int generation, int i) {
+        return player * 1000000000L + (long) generation * CHUNKS_PER_PLAYER / 4 + i;
+    }
+    
+    @Benchmark
+    public int baselineCycle() {
+        int generation = ++baselineGeneration;
+        for (int player = 0; player < PLAYER_NUM; player++) {
+            Object playerObj = players[player];
+            for (int i = 0; i < CHUNKS_PER_PLAYER; i++) {
+                long chunkPos = getChunkPos(player, generation, i);
+                Object2ObjectOpenHashMap<Object, BaselineWatchRecord> records =
+                    baselineRecords.computeIfAbsent(chunkPos, k -> new Object2ObjectOpenHashMap<>());
+                BaselineWatchRecord record = records.get(playerObj);
+                if (record == null) {
+                    records.put(playerObj, new BaselineWatchRecord(
+                        playerObj, Level.OVERWORLD, chunkPos, generation, 1, false, false
+                    ));
+                }
+                else {
+                    record.lastWatchGeneration = generation;
+                }
+            }
+        }
+        
+        baselineRecords.long2ObjectEntrySet().removeIf(entry -> {
+            Object2ObjectOpenHashMap<Object, BaselineWatchRecord> records = entry.getValue();
+            records.entrySet().removeIf(e -> {
+                BaselineWatchRecord record = e.getValue();
+                boolean shouldRemove = record.watchingLoaderNum == 0 &&
+                    generation - record.lastWatchGeneration > 0;
+                if (shouldRemove) {
+                    record.isValid = false;
+                }
+                return shouldRemove;
+            });
+            return records.isEmpty();
+        });
+        
+        return baselineRecords.size();
+    }
+    
+    @Benchmark
+    public int storeCycle() {
+        int generation = ++storeGeneration;
+        for (int player = 0; player < PLAYER_NUM; player++) {
+            for (int i = 0; i < CHUNKS_PER_PLAYER; i++) {
+                long chunkPos = getChunkPos(player, generation, i);
+                int slot = store.findSlot(chunkPos, player);
+                if (slot == -1) {
+                    store.addRecord(chunkPos, player, generation, 1, false);
+                }
+                else {
+                    store.setLastWatchGeneration(slot, generation);
+                }
+            }
+        }
+        
+        store.removeIf(slot -> store.getWatchingLoaderNum(slot) == 0 &&
+            generation - store.getLastWatchGeneration(slot) > 0
+        );
+        store.clearChangedChunks();
+        
+        return store.getRecordNum();
+    }
+}
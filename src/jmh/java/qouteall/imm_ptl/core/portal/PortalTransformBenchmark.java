@@ -0,0 +1,153 @@
+package qouteall.imm_ptl.core.portal;
+
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.Vec3;
+import org.apache.commons.lang3.Validate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import qouteall.imm_ptl.core.portal.animation.UnilateralPortalState;
+import qouteall.imm_ptl.core.portal.shape.RectangularPortalShape;
+import qouteall.q_misc_util.my_util.DQuaternion;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The portal math on plain vectors, without a portal entity, so that it doesn't need the registries.
+ * The named portal methods are not called directly, these stand in for them:
+ * <ul>
+ *     <li>{@link #transformPointByQuaternion} is a copy of how {@link Portal#transformPoint(Vec3)}
+ *     worked before the cached transformation (rotate, scale, then translate).</li>
+ *     <li>{@link #transformPoint} and {@link #transformPoints} use a {@link PortalTransformation}
+ *     built by {@link #createTransformation}, not by {@link PortalTransformation#fromPortal(Portal)}.</li>
+ *     <li>{@link #isMovedThroughPortal} calls {@link RectangularPortalShape#raytracePortalShape}
+ *     on a this-side state, which is what {@link Portal#isMovedThroughPortal(Vec3, Vec3)}
+ *     does for a rectangular portal after getting the shape and the state.</li>
+ * </ul>
+ * It's a rotated and scaled portal, so all parts of the transformation are used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PortalTransformBenchmark {
+    private static final int NUM = 256;
+    
+    private Vec3 origin;
+    private Vec3 dest;
+    private DQuaternion rotation;
+    private double scale;
+    
+    private PortalTransformation transformation;
+    private UnilateralPortalState thisSideState;
+    
+    private Vec3[] points;
+    // x, y, z of the points
+    private double[] coords;
+    private double[] result;
+    // half of the moves go through the portal
+    private Vec3[] moveStarts;
+    private Vec3[] moveEnds;
+    
+    @Setup
+    public void setup() {
+        origin = new Vec3(10, 70, 10);
+        dest = new Vec3(-200, 80, 300);
+        rotation = DQuaternion.rotationByDegrees(new Vec3(0, 1, 0), 30);
+        scale = 2;
+        
+        transformation = createTransformation(origin, dest, rotation, scale);
+        thisSideState = new UnilateralPortalState(
+            Level.OVERWORLD, origin,
+            DQuaternion.fromFacingVecs(new Vec3(1, 0, 0), new Vec3(0, 1, 0)),
+            4, 6
+        );
+        
+        Random random = new Random(42);
+        points = new Vec3[NUM];
+        coords = new double[NUM * 3];
+        result = new double[NUM * 3];
+        moveStarts = new Vec3[NUM];
+        moveEnds = new Vec3[NUM];
+        for (int i = 0; i < NUM; i++) {
+            points[i] = new Vec3(
+                random.nextDouble(0, 20), random.nextDouble(60, 80), random.nextDouble(0, 20)
+            );
+            coords[i * 3] = points[i].x;
+            coords[i * 3 + 1] = points[i].y;
+            coords[i * 3 + 2] = points[i].z;
+            
+            // the portal area is x in [8, 12] and y in [67, 73] on the plane z = 10
+            double x = i % 2 == 0 ? random.nextDouble(8.5, 11.5) : random.nextDouble(13, 20);
+            double y = random.nextDouble(67.5, 72.5);
+            moveStarts[i] = new Vec3(x, y, 10.3);
+            moveEnds[i] = new Vec3(x, y - 0.1, 9.7);
+        }
+    }
+    
+    /**
+     * The same transformation as {@link PortalTransformation#fromPortal(Portal)} gives for a portal
+     * with this rotation and scale. It doesn't cover mirrors.
+     */
+    private static PortalTransformation createTransformation(
+        Vec3 origin, Vec3 dest, DQuaternion rotation, double scale
+    ) {
+        Validate.isTrue(scale > 0);
+        DQuaternion inverseRotation = rotation.getConjugated();
+        return new PortalTransformation(
+            origin, dest,
+            rotation.rotate(new Vec3(1, 0, 0)).scale(scale),
+            rotation.rotate(new Vec3(0, 1, 0)).scale(scale),
+            rotation.rotate(new Vec3(0, 0, 1)).scale(scale),
+            inverseRotation.rotate(new Vec3(1, 0, 0)).scale(1 / scale),
+            inverseRotation.rotate(new Vec3(0, 1, 0)).scale(1 / scale),
+            inverseRotation.rotate(new Vec3(0, 0, 1)).scale(1 / scale),
+            scale
+        );
+    }
+    
+    // a copy of how Portal.transformPoint worked before the cached transformation
+    @Benchmark
+    public void transformPointByQuaternion(Blackhole blackhole) {
+        for (int i = 0; i < NUM; i++) {
+            blackhole.consume(rotation.rotate(points[i].subtract(origin)).scale(scale).add(dest));
+        }
+    }
+    
+    @Benchmark
+    public void transformPoint(Blackhole blackhole) {
+        for (int i = 0; i < NUM; i++) {
+            blackhole.consume(transformation.transformPoint(points[i]));
+        }
+    }
+    
+    @Benchmark
+    public double[] transformPoints() {
+        transformation.transformPoints(coords, 0, result, 0, NUM);
+        return result;
+    }
+    
+    @Benchmark
+    public int isMovedThroughPortal() {
+        int count = 0;
+        for (int i = 0; i < NUM; i++) {
+            if (RectangularPortalShape.INSTANCE.raytracePortalShape(
+                thisSideState, moveStarts[i], moveEnds[i], 0.001
+            ) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,74 @@
+package qouteall.imm_ptl.core.render;
+
+import net.minecraft.world.phys.Vec3;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the section boxes around the camera against one plane, like culling the sections behind a portal.
+ * Only the static methods are used, so it doesn't need the client.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrustumCullerBenchmark {
+    private static final int BOX_NUM = 4096;
+    
+    // min and max of each box, relative to the camera
+    private double[] boxes;
+    
+    private Vec3 planeNormal;
+    private Vec3 planePos;
+    
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        boxes = new double[BOX_NUM * 6];
+        for (int i = 0; i < BOX_NUM; i++) {
+            double x = random.nextInt(-16, 16) * 16 + 0.5;
+            double y = random.nextInt(-8, 8) * 16 + 0.5;
+            double z = random.nextInt(-16, 16) * 16 + 0.5;
+            boxes[i * 6] = x;
+            boxes[i * 6 + 1] = y;
+            boxes[i * 6 + 2] = z;
+            boxes[i * 6 + 3] = x + 16;
+            boxes[i * 6 + 4] = y + 16;
+            boxes[i * 6 + 5] = z + 16;
+        }
+        
+        planeNormal = new Vec3(0.6, 0.1, -0.8).normalize();
+        planePos = new Vec3(3, 0, -5);
+    }
+    
+    @SuppressWarnings("deprecation")
+    @Benchmark
+    public int testBoxTwoVertices() {
+        int visibleNum = 0;
+        for (int i = 0; i < BOX_NUM; i++) {
+            FrustumCuller.BatchTestResult result = FrustumCuller.testBoxTwoVertices(
+                boxes[i * 6], boxes[i * 6 + 1], boxes[i * 6 + 2],
+                boxes[i * 6 + 3], boxes[i * 6 + 4], boxes[i * 6 + 5],
+                planeNormal.x, planeNormal.y, planeNormal.z,
+                planePos.x, planePos.y, planePos.z
+            );
+            if (result != FrustumCuller.BatchTestResult.all_false) {
+                visibleNum++;
+            }
+        }
+        return visibleNum;
+    }
+}
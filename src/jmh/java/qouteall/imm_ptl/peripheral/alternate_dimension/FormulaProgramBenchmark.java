@@ -0,0 +1,108 @@
+package qouteall.imm_ptl.peripheral.alternate_dimension;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates the error terrain formulas for one 16x16x16 section per formula,
+ * with the lambda tree, with the program point by point and with the batch evaluation.
+ * The formulas are generated in the same way as {@link RegionErrorTerrainGenerator}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormulaProgramBenchmark {
+    private static final int FORMULA_NUM = 16;
+    private static final int SIZE = 16 * 16 * 16;
+    
+    private FormulaGenerator.Formula[] formulas;
+    
+    private double[] inputXs;
+    private double[] inputYs;
+    private double[] inputZs;
+    
+    // evalBatch overwrites the inputs
+    private double[] xs;
+    private double[] ys;
+    private double[] zs;
+    private double[] result;
+    
+    @Setup
+    public void setup() {
+        FormulaGenerator.init();
+        
+        Random random = new Random(1);
+        formulas = new FormulaGenerator.Formula[FORMULA_NUM];
+        for (int i = 0; i < FORMULA_NUM; i++) {
+            formulas[i] = FormulaGenerator.newRandomFormula(random, 3);
+        }
+        
+        inputXs = new double[SIZE];
+        inputYs = new double[SIZE];
+        inputZs = new double[SIZE];
+        // in the order of RegionErrorTerrainGenerator.getIndexInSection
+        for (int i = 0; i < SIZE; i++) {
+            inputXs[i] = (i & 15) / 64.0;
+            inputYs[i] = (i >> 8) / 128.0;
+            inputZs[i] = ((i >> 4) & 15) / 64.0;
+        }
+        
+        xs = new double[SIZE];
+        ys = new double[SIZE];
+        zs = new double[SIZE];
+        result = new double[SIZE];
+    }
+    
+    @Benchmark
+    public double tree() {
+        double sum = 0;
+        for (FormulaGenerator.Formula formula : formulas) {
+            FormulaGenerator.TriNumFunction tree = formula.tree();
+            for (int i = 0; i < SIZE; i++) {
+                sum += tree.eval(inputXs[i], inputYs[i], inputZs[i]);
+            }
+        }
+        return sum;
+    }
+    
+    @Benchmark
+    public double program() {
+        double sum = 0;
+        for (FormulaGenerator.Formula formula : formulas) {
+            FormulaProgram program = formula.program();
+            for (int i = 0; i < SIZE; i++) {
+                sum += program.eval(inputXs[i], inputYs[i], inputZs[i]);
+            }
+        }
+        return sum;
+    }
+    
+    @Benchmark
+    public double evalBatch() {
+        double sum = 0;
+        for (FormulaGenerator.Formula formula : formulas) {
+            System.arraycopy(inputXs, 0, xs, 0, SIZE);
+            System.arraycopy(inputYs, 0, ys, 0, SIZE);
+            System.arraycopy(inputZs, 0, zs, 0, SIZE);
+            formula.program().evalBatch(xs, ys, zs, result, SIZE);
+            for (int i = 0; i < SIZE; i++) {
+                sum += result[i];
+            }
+        }
+        return sum;
+    }
+}
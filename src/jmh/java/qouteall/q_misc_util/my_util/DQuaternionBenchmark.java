@@ -0,0 +1,63 @@
+package qouteall.q_misc_util.my_util;
+
+import net.minecraft.world.phys.Vec3;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DQuaternionBenchmark {
+    private static final int NUM = 256;
+    
+    private DQuaternion[] rotations;
+    private Vec3[] vecs;
+    
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        rotations = new DQuaternion[NUM];
+        vecs = new Vec3[NUM];
+        for (int i = 0; i < NUM; i++) {
+            Vec3 axis = new Vec3(
+                random.nextDouble(-1, 1), random.nextDouble(-1, 1), random.nextDouble(-1, 1)
+            ).normalize();
+            rotations[i] = DQuaternion.rotationByDegrees(axis, random.nextDouble(-180, 180));
+            vecs[i] = new Vec3(
+                random.nextDouble(-100, 100), random.nextDouble(-100, 100), random.nextDouble(-100, 100)
+            );
+        }
+    }
+    
+    // like the animated portals, which interpolate between the rotations of two ticks
+    @Benchmark
+    public void interpolate(Blackhole blackhole) {
+        for (int i = 0; i < NUM; i++) {
+            blackhole.consume(DQuaternion.interpolate(
+                rotations[i], rotations[(i + 1) % NUM], (i + 0.5) / NUM
+            ));
+        }
+    }
+    
+    @Benchmark
+    public void rotate(Blackhole blackhole) {
+        for (int i = 0; i < NUM; i++) {
+            blackhole.consume(rotations[i].rotate(vecs[i]));
+        }
+    }
+}
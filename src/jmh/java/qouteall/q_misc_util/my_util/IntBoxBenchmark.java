@@ -0,0 +1,37 @@
+package qouteall.q_misc_util.my_util;
+
+import net.minecraft.core.BlockPos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterates a 16 * 16 * 16 box, like when scanning the blocks of a portal frame area.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntBoxBenchmark {
+    private final IntBox box = new IntBox(new BlockPos(-8, 60, -8), new BlockPos(7, 75, 7));
+    
+    @Benchmark
+    public long stream() {
+        return box.stream().mapToLong(BlockPos::asLong).sum();
+    }
+    
+    @Benchmark
+    public long fastStream() {
+        return box.fastStream().mapToLong(BlockPos::asLong).sum();
+    }
+}
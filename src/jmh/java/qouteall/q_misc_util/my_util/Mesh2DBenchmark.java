@@ -0,0 +1,101 @@
+package qouteall.q_misc_util.my_util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The portal's visible area starts as a full quad and the occluded parts are subtracted from it.
+ * Simplifying and intersection fixing change the mesh, so they run on a copy. See {@link #copy()} for the copying cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Mesh2DBenchmark {
+    private static final int SUBTRACTED_TRIANGLE_NUM = 64;
+    private static final int INTERSECTING_TRIANGLE_NUM = 16;
+    
+    // 6 coordinates per triangle, counter-clockwise
+    private double[] subtractedTriangles;
+    
+    private Mesh2D subtractedMesh;
+    private Mesh2D intersectingMesh;
+    
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        
+        subtractedTriangles = new double[SUBTRACTED_TRIANGLE_NUM * 6];
+        for (int i = 0; i < SUBTRACTED_TRIANGLE_NUM; i++) {
+            double x = random.nextDouble(-0.9, 0.7);
+            double y = random.nextDouble(-0.9, 0.7);
+            double size = random.nextDouble(0.05, 0.2);
+            subtractedTriangles[i * 6] = x;
+            subtractedTriangles[i * 6 + 1] = y;
+            subtractedTriangles[i * 6 + 2] = x + size;
+            subtractedTriangles[i * 6 + 3] = y;
+            subtractedTriangles[i * 6 + 4] = x;
+            subtractedTriangles[i * 6 + 5] = y + size;
+        }
+        
+        subtractedMesh = createSubtractedMesh();
+        
+        intersectingMesh = new Mesh2D();
+        for (int i = 0; i < INTERSECTING_TRIANGLE_NUM; i++) {
+            intersectingMesh.addTriangle(
+                random.nextDouble(-1, 1), random.nextDouble(-1, 1),
+                random.nextDouble(-1, 1), random.nextDouble(-1, 1),
+                random.nextDouble(-1, 1), random.nextDouble(-1, 1)
+            );
+        }
+    }
+    
+    private Mesh2D createSubtractedMesh() {
+        Mesh2D mesh = Mesh2D.createNewFullQuadMesh();
+        for (int i = 0; i < SUBTRACTED_TRIANGLE_NUM; i++) {
+            mesh.subtractTriangleFromMesh(
+                subtractedTriangles[i * 6], subtractedTriangles[i * 6 + 1],
+                subtractedTriangles[i * 6 + 2], subtractedTriangles[i * 6 + 3],
+                subtractedTriangles[i * 6 + 4], subtractedTriangles[i * 6 + 5]
+            );
+        }
+        return mesh;
+    }
+    
+    @Benchmark
+    public Mesh2D subtract() {
+        return createSubtractedMesh();
+    }
+    
+    @Benchmark
+    public Mesh2D copy() {
+        return subtractedMesh.copy();
+    }
+    
+    @Benchmark
+    public Mesh2D simplify() {
+        Mesh2D mesh = subtractedMesh.copy();
+        mesh.simplify();
+        return mesh;
+    }
+    
+    @Benchmark
+    public Mesh2D fixIntersectedTriangle() {
+        Mesh2D mesh = intersectingMesh.copy();
+        mesh.fixIntersectedTriangle();
+        return mesh;
+    }
+}
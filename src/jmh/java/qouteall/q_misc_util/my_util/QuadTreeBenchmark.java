@@ -0,0 +1,87 @@
+package qouteall.q_misc_util.my_util;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The quad tree is used as in {@link Mesh2D}: the elements are the lists of the triangles in each node.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuadTreeBenchmark {
+    private static final int BOX_NUM = 1024;
+    
+    // minX, minY, maxX, maxY of each box, inside the root node [-1, 1]
+    private double[] boxes;
+    private double[] queryBoxes;
+    
+    private QuadTree<IntArrayList> tree;
+    
+    private static double[] createBoxes(Random random, double maxSize) {
+        double[] result = new double[BOX_NUM * 4];
+        for (int i = 0; i < BOX_NUM; i++) {
+            double size = random.nextDouble(0.001, maxSize);
+            double x = random.nextDouble(-1, 1 - size);
+            double y = random.nextDouble(-1, 1 - size);
+            result[i * 4] = x;
+            result[i * 4 + 1] = y;
+            result[i * 4 + 2] = x + size;
+            result[i * 4 + 3] = y + size;
+        }
+        return result;
+    }
+    
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        boxes = createBoxes(random, 0.1);
+        queryBoxes = createBoxes(random, 0.2);
+        tree = insertAll();
+    }
+    
+    private QuadTree<IntArrayList> insertAll() {
+        QuadTree<IntArrayList> result = new QuadTree<>(IntArrayList::new);
+        for (int i = 0; i < BOX_NUM; i++) {
+            result.acquireElementForBoundingBox(
+                boxes[i * 4], boxes[i * 4 + 1], boxes[i * 4 + 2], boxes[i * 4 + 3]
+            ).add(i);
+        }
+        return result;
+    }
+    
+    @Benchmark
+    public QuadTree<IntArrayList> insert() {
+        return insertAll();
+    }
+    
+    @Benchmark
+    public int traverse() {
+        int[] count = new int[1];
+        for (int i = 0; i < BOX_NUM; i++) {
+            tree.traverse(
+                queryBoxes[i * 4], queryBoxes[i * 4 + 1], queryBoxes[i * 4 + 2], queryBoxes[i * 4 + 3],
+                list -> {
+                    count[0] += list.size();
+                    return null;
+                }
+            );
+        }
+        return count[0];
+    }
+}
@@ -133,6 +133,45 @@ public class IPGlobal {
     
     public static boolean chunkPacketDebug = false;
     
+    // only re-walk the chunks of the chunk loaders that entered or left since the last update
+    public static boolean incrementalChunkTracking = true;
+    
+    // only send the changed portal data when re-syncing a portal
+    public static boolean portalDeltaSync = true;
+    
+    // compute the players' chunk loaders in worker threads, then apply them on server thread
+    public static boolean parallelChunkLoaderCollecting = true;
+    
+    // send the chunks that the player is looking at (including through portals) earlier
+    public static boolean viewAwareChunkSending = false;
+    
+    // search the nether portal frame sections of one distance ring in worker threads
+    public static boolean parallelFrameSearching = true;
+    
+    // adjust how many ImmPtl chunk tickets can load at the same time by the loading latency and tick time
+    public static boolean adaptiveChunkTicketThrottling = true;
+    
+    // only update the entity tracking in the chunks whose watch records changed, with a periodic full sweep
+    public static boolean dirtyChunkEntityTracking = true;
+    
+    // don't compute the change packets of the entities that no player tracks
+    public static boolean skipUnwatchedEntityChanges = true;
+    
+    // send the entity change packets of a dimension to each player in bundles
+    public static boolean bundleEntityChangePackets = false;
+    
+    // cull the sections that are occluded in the section discovery of portal rendering
+    public static boolean visibleSectionOcclusionCulling = true;
+    
+    // reuse the discovered sections of the last frame when the view is unchanged
+    public static boolean reuseVisibleSections = true;
+    
+    // cache the clipped and excluded block collision shapes of each portal
+    public static boolean collisionShapeCaching = true;
+    
+    // keep the portals near the other side of a colliding portal until the entity moves away
+    public static boolean cacheIndirectCollidingPortals = true;
+    
     public static boolean entityUntrackDebug = false;
     public static boolean entityTrackDebug = false;
     public static boolean clientPortalLoadDebug = false;
@@ -20,6 +20,7 @@ import net.minecraft.world.phys.HitResult;
 import net.minecraft.world.phys.Vec3;
 import qouteall.imm_ptl.core.ducks.IERayTraceContext;
 import qouteall.imm_ptl.core.portal.Portal;
+import qouteall.imm_ptl.core.portal.PortalSpatialIndex;
 import qouteall.imm_ptl.core.portal.global_portals.GlobalPortalStorage;
 import qouteall.imm_ptl.core.render.CrossPortalEntityRenderer;
 import qouteall.q_misc_util.my_util.LimitedLogger;
@@ -46,8 +47,11 @@ public class IPMcHelper {
             }
         }
         
-        McHelper.foreachEntitiesByPointAndRoughRadius(
-            Portal.class, world, pos, range, func
+        PortalSpatialIndex.get(world).traversePortalsByPointAndRoughRadius(
+            pos, range, portal -> {
+                func.accept(portal);
+                return null;
+            }
         );
     }
     
@@ -92,8 +96,8 @@ public class IPMcHelper {
             }
         }
         
-        McHelper.traverseEntitiesByPointAndRoughRadius(
-            Portal.class, world, pos, range, portal -> {
+        PortalSpatialIndex.get(world).traversePortalsByPointAndRoughRadius(
+            pos, range, portal -> {
                 func.accept(portal);
                 return null;
             }
@@ -44,6 +44,17 @@ public final record ChunkLoader(
         return getLoadedChunkNum(server) >= getChunkNum();
     }
 
+    /**
+     * @return the chessboard distance from the center, or -1 if the chunk is not in this loader
+     */
+    public int getDistanceToSource(ResourceKey<Level> chunkDimension, int chunkX, int chunkZ) {
+        if (chunkDimension != dimension) {
+            return -1;
+        }
+        int distance = Math.max(Math.abs(chunkX - x), Math.abs(chunkZ - z));
+        return distance <= radius ? distance : -1;
+    }
+
     public void foreachChunkPos(ChunkPosConsumer func) {
         for (int dx = -radius; dx <= radius; dx++) {
             for (int dz = -radius; dz <= radius; dz++) {
@@ -0,0 +1,90 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Remembers the chunk loader set of one player between chunk tracking updates.
+ * Only the chunk loaders that entered or left need per-chunk work.
+ * The unchanged chunk loaders keep their watch records untouched.
+ */
+public class ChunkLoaderDelta {
+    private ObjectOpenHashSet<ChunkLoader> currentLoaders = new ObjectOpenHashSet<>();
+    
+    /**
+     * The entering loaders are handled before the leaving loaders,
+     * so a chunk covered by both an old and a new loader never temporarily loses all its loaders.
+     * When the callbacks run, {@link #getCurrentLoaders()} is already the new set.
+     */
+    public void update(
+        ObjectOpenHashSet<ChunkLoader> newLoaders,
+        Consumer<ChunkLoader> onEnter,
+        Consumer<ChunkLoader> onLeave
+    ) {
+        ObjectOpenHashSet<ChunkLoader> oldLoaders = currentLoaders;
+        currentLoaders = newLoaders;
+        
+        for (ChunkLoader loader : newLoaders) {
+            if (!oldLoaders.contains(loader)) {
+                onEnter.accept(loader);
+            }
+        }
+        
+        for (ChunkLoader loader : oldLoaders) {
+            if (!newLoaders.contains(loader)) {
+                onLeave.accept(loader);
+            }
+        }
+    }
+    
+    public Set<ChunkLoader> getCurrentLoaders() {
+        return Collections.unmodifiableSet(currentLoaders);
+    }
+    
+    public boolean isEmpty() {
+        return currentLoaders.isEmpty();
+    }
+    
+    /**
+     * Forget the loaders without invoking the leave callback.
+     * Used when the corresponding watch records are already removed.
+     */
+    public void removeIf(Predicate<ChunkLoader> predicate) {
+        currentLoaders.removeIf(predicate);
+    }
+    
+    /**
+     * @return the minimum distance to source among the current loaders that cover the chunk,
+     * or -1 if no current loader covers it
+     */
+    public int getMinDistanceToSource(ResourceKey<Level> dimension, int chunkX, int chunkZ) {
+        int result = -1;
+        for (ChunkLoader loader : currentLoaders) {
+            int distance = loader.getDistanceToSource(dimension, chunkX, chunkZ);
+            if (distance != -1 && (result == -1 || distance < result)) {
+                result = distance;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * The light data is only sent on the boundary.
+     * A chunk is on boundary only if it's on the boundary of every loader that covers it.
+     */
+    public boolean isOnBoundaryOfAllLoaders(ResourceKey<Level> dimension, int chunkX, int chunkZ) {
+        for (ChunkLoader loader : currentLoaders) {
+            int distance = loader.getDistanceToSource(dimension, chunkX, chunkZ);
+            if (distance != -1 && distance != loader.radius()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
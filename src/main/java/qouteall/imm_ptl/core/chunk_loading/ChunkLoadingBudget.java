@@ -0,0 +1,208 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import java.util.List;
+
+/**
+ * A feedback controller of how far the players' portals load.
+ * It keeps a global budget of the chunks loaded through portals, adjusted by the server tick time,
+ * and divides it among players by weight.
+ * Each player's loading scale in [0, 1] then moves towards using its share,
+ * and the loading radii are derived from the scale continuously.
+ * The scale 1 gives the same radii as {@link PerformanceLevel#good}
+ * and the scale 0 gives the same radii as {@link PerformanceLevel#bad}.
+ */
+public final class ChunkLoadingBudget {
+    // the budget does not go below this, so every player can see through the nearest portal
+    public static final double MIN_BUDGET_PER_PLAYER = 64;
+    // avoid the budget growing unboundedly while the players don't use it
+    public static final double MAX_BUDGET_TO_USAGE_RATIO = 1.5;
+    // the scale changes at most this much per update, so the view doesn't jump
+    public static final double MAX_SCALE_STEP = 0.1;
+    // the scale of a new player, see {@link #seedNewEntries(List)}
+    public static final double NEW_ENTRY_SCALE = -1;
+    
+    public static final class Entry {
+        // the inputs
+        public final double weight;
+        public final double scaleCap;
+        // the chunks loaded through portals by the player
+        public final double usage;
+        
+        // the input and output. it's NEW_ENTRY_SCALE for a new player
+        public double scale;
+        
+        // the output
+        public double allocation;
+        
+        public Entry(double weight, double scaleCap, double usage, double scale) {
+            this.weight = weight;
+            this.scaleCap = scaleCap;
+            this.usage = usage;
+            this.scale = scale;
+        }
+    }
+    
+    private double budget;
+    private double tickTimeRatio = 0;
+    private double usage = 0;
+    
+    public ChunkLoadingBudget(double initialBudget) {
+        this.budget = initialBudget;
+    }
+    
+    public double getBudget() {
+        return budget;
+    }
+    
+    public double getTickTimeRatio() {
+        return tickTimeRatio;
+    }
+    
+    public double getUsage() {
+        return usage;
+    }
+    
+    /**
+     * Updates the budget, then the allocation and the scale of each entry.
+     *
+     * @param limited if false, the budget is not limited and each scale is set to its cap
+     */
+    public void update(
+        ChunkLoadingBudgetPolicy policy, double tickTimeRatio, boolean limited, List<Entry> entries
+    ) {
+        this.tickTimeRatio = tickTimeRatio;
+        
+        double totalUsage = 0;
+        for (Entry entry : entries) {
+            totalUsage += entry.usage;
+        }
+        this.usage = totalUsage;
+        
+        if (!limited) {
+            budget = Double.POSITIVE_INFINITY;
+            for (Entry entry : entries) {
+                entry.allocation = Double.POSITIVE_INFINITY;
+                entry.scale = entry.scaleCap;
+            }
+            return;
+        }
+        
+        seedNewEntries(entries);
+        
+        double minBudget = MIN_BUDGET_PER_PLAYER * Math.max(1, entries.size());
+        // the budget may be infinite after the limit is turned on
+        double currentBudget = Double.isFinite(budget) ? budget : totalUsage;
+        double newBudget = policy.updateBudget(currentBudget, tickTimeRatio, totalUsage, entries.size());
+        double maxBudget = Math.max(minBudget, totalUsage * MAX_BUDGET_TO_USAGE_RATIO);
+        budget = Math.max(minBudget, Math.min(maxBudget, newBudget));
+        
+        allocate(budget, entries);
+        
+        for (Entry entry : entries) {
+            entry.scale = getUpdatedScale(entry.scale, entry.scaleCap, entry.allocation, entry.usage);
+        }
+    }
+    
+    /**
+     * A new player starts at the average scale of the other players, or at its cap if there are none,
+     * instead of growing from the smallest range.
+     */
+    static void seedNewEntries(List<Entry> entries) {
+        boolean hasNewEntry = false;
+        double scaleSum = 0;
+        int scaleNum = 0;
+        for (Entry entry : entries) {
+            if (entry.scale == NEW_ENTRY_SCALE) {
+                hasNewEntry = true;
+            }
+            else {
+                scaleSum += entry.scale;
+                scaleNum++;
+            }
+        }
+        
+        if (!hasNewEntry) {
+            return;
+        }
+        
+        for (Entry entry : entries) {
+            if (entry.scale == NEW_ENTRY_SCALE) {
+                entry.scale = scaleNum > 0 ?
+                    Math.min(entry.scaleCap, scaleSum / scaleNum) : entry.scaleCap;
+            }
+        }
+    }
+    
+    /**
+     * Divides the budget by weight.
+     * A player that is at its scale cap and uses less than its share only gets what it uses,
+     * and the rest is divided among the others.
+     */
+    static void allocate(double budget, List<Entry> entries) {
+        for (Entry entry : entries) {
+            entry.allocation = -1;
+        }
+        
+        double remainingBudget = budget;
+        double remainingWeight = 0;
+        for (Entry entry : entries) {
+            remainingWeight += entry.weight;
+        }
+        
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Entry entry : entries) {
+                if (entry.allocation != -1) {
+                    continue;
+                }
+                double share = remainingWeight > 0 ?
+                    remainingBudget * entry.weight / remainingWeight : 0;
+                boolean saturated = entry.scale >= entry.scaleCap;
+                if (saturated && entry.usage < share) {
+                    entry.allocation = entry.usage;
+                    remainingBudget -= entry.usage;
+                    remainingWeight -= entry.weight;
+                    changed = true;
+                }
+            }
+        }
+        
+        for (Entry entry : entries) {
+            if (entry.allocation == -1) {
+                entry.allocation = remainingWeight > 0 ?
+                    remainingBudget * entry.weight / remainingWeight : 0;
+            }
+        }
+    }
+    
+    /**
+     * The loaded area grows roughly with the square of the radius,
+     * so the scale moves by the square root of the allocation-to-usage ratio.
+     */
+    static double getUpdatedScale(double scale, double scaleCap, double allocation, double usage) {
+        double delta;
+        if (usage < 1) {
+            // not loading through portals, nothing to measure
+            delta = MAX_SCALE_STEP;
+        }
+        else {
+            double ratio = allocation / usage;
+            delta = (Math.sqrt(ratio) - 1) * Math.max(scale, MAX_SCALE_STEP);
+        }
+        delta = Math.max(-MAX_SCALE_STEP, Math.min(MAX_SCALE_STEP, delta));
+        return Math.max(0, Math.min(scaleCap, scale + delta));
+    }
+    
+    public static int getVisiblePortalRangeChunks(double scale) {
+        return 1 + (int) Math.round(7 * scale);
+    }
+    
+    public static int getIndirectVisiblePortalRangeChunks(double scale) {
+        return (int) Math.round(2 * scale);
+    }
+    
+    public static int getIndirectLoadingRadiusCap(double scale) {
+        return 2 + (int) Math.round(30 * scale);
+    }
+}
@@ -0,0 +1,25 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+/**
+ * Decides the global budget of the chunks loaded through portals, and how it's divided among players.
+ * See {@link ServerPerformanceMonitor#setBudgetPolicy(ChunkLoadingBudgetPolicy)}
+ */
+public interface ChunkLoadingBudgetPolicy {
+    /**
+     * Called once per update interval when the server performance adjustment is enabled.
+     * The result is clamped by {@link ChunkLoadingBudget}.
+     *
+     * @param budget        the current budget, in chunks loaded through portals by all players
+     * @param tickTimeRatio the average tick time divided by the target tick time
+     * @param usage         the chunks currently loaded through portals by all players
+     * @return the new budget
+     */
+    double updateBudget(double budget, double tickTimeRatio, double usage, int playerNum);
+    
+    /**
+     * The player's share of the budget is proportional to its weight.
+     *
+     * @param ticksSincePortalUse the game ticks since the player last teleported through a portal
+     */
+    double getPlayerWeight(PerformanceLevel clientLevel, long ticksSincePortalUse);
+}
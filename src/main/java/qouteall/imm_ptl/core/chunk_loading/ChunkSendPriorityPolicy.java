@@ -0,0 +1,33 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides the order of sending the pending chunks to a player.
+ * See {@link PlayerChunkLoading#setSendPriorityPolicy(ChunkSendPriorityPolicy)}
+ */
+public interface ChunkSendPriorityPolicy {
+    /**
+     * Sends the nearer chunks first. The chunks with the same distance are sent in the marking order.
+     */
+    public static final ChunkSendPriorityPolicy DISTANCE =
+        (view, dimensionId, chunkPos, distanceToSource, isBoundary) -> distanceToSource;
+    
+    /**
+     * @param view       null if the policy does not use view
+     * @param isBoundary only accurate if the policy uses view
+     * @return the lower one is sent earlier
+     */
+    double getPriority(
+        @Nullable ChunkSendView view,
+        int dimensionId, long chunkPos, int distanceToSource, boolean isBoundary
+    );
+    
+    /**
+     * If true, the pending chunks will be re-scored when the player's view is refreshed,
+     * and the boundary status is looked up for each chunk.
+     */
+    default boolean usesView() {
+        return false;
+    }
+}
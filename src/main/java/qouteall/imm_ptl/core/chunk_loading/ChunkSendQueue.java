@@ -0,0 +1,187 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import java.util.Arrays;
+
+/**
+ * The pending chunks of a player, as a struct-of-arrays binary min-heap.
+ * The entries are ordered by priority (lower is sent earlier), then by insertion order,
+ * so the distance policy sends in the same order as the old per-distance lists.
+ * <p>
+ * One chunk may be added multiple times. The entries are validated against
+ * {@link WatchRecordStore} when sending.
+ */
+public final class ChunkSendQueue {
+    public static interface PriorityFunction {
+        double getPriority(int dimensionId, long chunkPos, int distanceToSource);
+    }
+    
+    private int size = 0;
+    private double[] priorities = new double[16];
+    private long[] sequences = new long[16];
+    private int[] dimensionIds = new int[16];
+    private long[] chunkPositions = new long[16];
+    private int[] distances = new int[16];
+    
+    private long sequenceCounter = 0;
+    
+    // the entries taken out by skipTop(), restored by restoreSkipped()
+    private final ChunkSendQueue skipped;
+    
+    public ChunkSendQueue() {
+        this(true);
+    }
+    
+    private ChunkSendQueue(boolean hasSkippedBuffer) {
+        skipped = hasSkippedBuffer ? new ChunkSendQueue(false) : null;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public void clear() {
+        size = 0;
+    }
+    
+    public void add(int dimensionId, long chunkPos, int distanceToSource, double priority) {
+        addWithSequence(dimensionId, chunkPos, distanceToSource, priority, sequenceCounter++);
+    }
+    
+    private void addWithSequence(
+        int dimensionId, long chunkPos, int distanceToSource, double priority, long sequence
+    ) {
+        if (size == priorities.length) {
+            int newCapacity = size * 2;
+            priorities = Arrays.copyOf(priorities, newCapacity);
+            sequences = Arrays.copyOf(sequences, newCapacity);
+            dimensionIds = Arrays.copyOf(dimensionIds, newCapacity);
+            chunkPositions = Arrays.copyOf(chunkPositions, newCapacity);
+            distances = Arrays.copyOf(distances, newCapacity);
+        }
+        
+        int i = size;
+        size++;
+        set(i, priority, sequence, dimensionId, chunkPos, distanceToSource);
+        siftUp(i);
+    }
+    
+    public int getTopDimensionId() {
+        return dimensionIds[0];
+    }
+    
+    public long getTopChunkPos() {
+        return chunkPositions[0];
+    }
+    
+    public int getTopDistanceToSource() {
+        return distances[0];
+    }
+    
+    public double getTopPriority() {
+        return priorities[0];
+    }
+    
+    public void removeTop() {
+        size--;
+        if (size > 0) {
+            moveEntry(size, 0);
+            siftDown(0);
+        }
+    }
+    
+    /**
+     * Takes the top entry out. It will be put back by {@link #restoreSkipped()},
+     * with the same priority and insertion order.
+     */
+    public void skipTop() {
+        skipped.addWithSequence(
+            dimensionIds[0], chunkPositions[0], distances[0], priorities[0], sequences[0]
+        );
+        removeTop();
+    }
+    
+    public void restoreSkipped() {
+        for (int i = 0; i < skipped.size; i++) {
+            addWithSequence(
+                skipped.dimensionIds[i], skipped.chunkPositions[i], skipped.distances[i],
+                skipped.priorities[i], skipped.sequences[i]
+            );
+        }
+        skipped.clear();
+    }
+    
+    /**
+     * Re-calculates the priority of every entry, keeping the insertion order for ties.
+     */
+    public void rescore(PriorityFunction function) {
+        for (int i = 0; i < size; i++) {
+            priorities[i] = function.getPriority(dimensionIds[i], chunkPositions[i], distances[i]);
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+    
+    private boolean isBefore(int a, int b) {
+        if (priorities[a] != priorities[b]) {
+            return priorities[a] < priorities[b];
+        }
+        return sequences[a] < sequences[b];
+    }
+    
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!isBefore(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+    
+    private void siftDown(int i) {
+        while (true) {
+            int left = i * 2 + 1;
+            if (left >= size) {
+                break;
+            }
+            int smallest = left;
+            int right = left + 1;
+            if (right < size && isBefore(right, left)) {
+                smallest = right;
+            }
+            if (!isBefore(smallest, i)) {
+                break;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+    
+    private void set(int i, double priority, long sequence, int dimensionId, long chunkPos, int distance) {
+        priorities[i] = priority;
+        sequences[i] = sequence;
+        dimensionIds[i] = dimensionId;
+        chunkPositions[i] = chunkPos;
+        distances[i] = distance;
+    }
+    
+    private void moveEntry(int from, int to) {
+        set(to, priorities[from], sequences[from], dimensionIds[from], chunkPositions[from], distances[from]);
+    }
+    
+    private void swap(int a, int b) {
+        double priority = priorities[a];
+        long sequence = sequences[a];
+        int dimensionId = dimensionIds[a];
+        long chunkPos = chunkPositions[a];
+        int distance = distances[a];
+        moveEntry(b, a);
+        set(b, priority, sequence, dimensionId, chunkPos, distance);
+    }
+}
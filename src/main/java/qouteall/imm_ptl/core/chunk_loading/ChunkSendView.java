@@ -0,0 +1,27 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import java.util.List;
+
+/**
+ * The player's view that affects the chunk sending priority.
+ *
+ * @param dimensionId the player's dimension id in {@link ImmPtlChunkTracking#getDimensionId}
+ * @param lookX       the normalized look direction
+ * @param portals     the nearby portals that the player can see through
+ */
+public record ChunkSendView(
+    int dimensionId,
+    double eyeX, double eyeY, double eyeZ,
+    double lookX, double lookY, double lookZ,
+    List<PortalTarget> portals
+) {
+    /**
+     * @param destChunkX the chunk x of the center of the portal's chunk loader
+     * @param alignment  the cosine between the look direction and the direction to the portal
+     * @param distance   the distance from the player to the portal, in blocks
+     */
+    public static record PortalTarget(
+        int destDimensionId, int destChunkX, int destChunkZ,
+        double alignment, double distance
+    ) {}
+}
@@ -0,0 +1,141 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import java.util.Arrays;
+
+/**
+ * Decides how many ImmPtl chunk tickets of one dimension can wait for loading at the same time.
+ * It uses additive increase and multiplicative decrease (AIMD), like TCP congestion control:
+ * when the window is full and the chunks reach entity-ticking within the latency target,
+ * the limit grows by about one per window,
+ * and when the latency or the server tick time goes beyond the target, the limit halves.
+ * So it issues more tickets when the worldgen and IO executors keep up, and backs off when they don't.
+ */
+public final class ChunkTicketThrottle {
+    // the old fixed limit, used when the adaptive throttling is disabled
+    public static final int FIXED_LIMIT = 4;
+    public static final int MIN_LIMIT = 2;
+    public static final int MAX_LIMIT = 256;
+    public static final double DECREASE_FACTOR = 0.5;
+    
+    public static final long DEFAULT_LATENCY_TARGET_NANOS = 3_000_000_000L;
+    public static final double DEFAULT_TICK_TIME_RATIO_TARGET = 0.9;
+    
+    // a ticket that doesn't load in this time is no longer waited for
+    public static final long TIMEOUT_NANOS = 60_000_000_000L;
+    
+    private static final int LATENCY_SAMPLE_NUM = 256;
+    
+    private final long latencyTargetNanos;
+    private final double tickTimeRatioTarget;
+    
+    private double limit = FIXED_LIMIT;
+    private long lastDecreaseNanos;
+    private boolean hasDecreased = false;
+    
+    private long issuedNum = 0;
+    private long completedNum = 0;
+    private long timedOutNum = 0;
+    
+    // a ring buffer of the recent latencies
+    private final long[] latencySamples = new long[LATENCY_SAMPLE_NUM];
+    private int latencySampleNum = 0;
+    private int latencySampleCursor = 0;
+    
+    public ChunkTicketThrottle() {
+        this(DEFAULT_LATENCY_TARGET_NANOS, DEFAULT_TICK_TIME_RATIO_TARGET);
+    }
+    
+    public ChunkTicketThrottle(long latencyTargetNanos, double tickTimeRatioTarget) {
+        this.latencyTargetNanos = latencyTargetNanos;
+        this.tickTimeRatioTarget = tickTimeRatioTarget;
+    }
+    
+    public int getLimit(boolean adaptive) {
+        return adaptive ? (int) limit : FIXED_LIMIT;
+    }
+    
+    public void onIssued() {
+        issuedNum++;
+    }
+    
+    /**
+     * @param windowFull whether the waiting tickets reached the limit while more were queued.
+     *                   The limit only grows when it's the bottleneck.
+     */
+    public void onCompleted(long latencyNanos, long nanoTime, boolean windowFull) {
+        completedNum++;
+        
+        latencySamples[latencySampleCursor] = latencyNanos;
+        latencySampleCursor = (latencySampleCursor + 1) % LATENCY_SAMPLE_NUM;
+        latencySampleNum = Math.min(latencySampleNum + 1, LATENCY_SAMPLE_NUM);
+        
+        if (latencyNanos > latencyTargetNanos) {
+            decrease(nanoTime);
+        }
+        else if (windowFull) {
+            limit = Math.min(MAX_LIMIT, limit + 1.0 / limit);
+        }
+    }
+    
+    public void onTimedOut(long nanoTime) {
+        timedOutNum++;
+        decrease(nanoTime);
+    }
+    
+    public void onTick(double tickTimeRatio, long nanoTime) {
+        if (tickTimeRatio > tickTimeRatioTarget) {
+            decrease(nanoTime);
+        }
+    }
+    
+    private void decrease(long nanoTime) {
+        // the tickets issued before the last decrease are still loading,
+        // so one congestion should only halve the limit once
+        if (hasDecreased && nanoTime - lastDecreaseNanos < latencyTargetNanos) {
+            return;
+        }
+        hasDecreased = true;
+        lastDecreaseNanos = nanoTime;
+        limit = Math.max(MIN_LIMIT, limit * DECREASE_FACTOR);
+    }
+    
+    public long getIssuedNum() {
+        return issuedNum;
+    }
+    
+    public long getCompletedNum() {
+        return completedNum;
+    }
+    
+    public long getTimedOutNum() {
+        return timedOutNum;
+    }
+    
+    /**
+     * @param percentile in [0, 100]
+     * @return the latency percentile of the recent completed tickets, or -1 if there is none
+     */
+    public long getLatencyPercentileNanos(double percentile) {
+        if (latencySampleNum == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencySamples, latencySampleNum);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+    
+    public String getStatsString(boolean adaptive, int waitingNum, int queuedNum) {
+        return "limit %d waiting %d queued %d issued %d completed %d timed out %d latency p50 %dms p90 %dms p99 %dms".formatted(
+            getLimit(adaptive), waitingNum, queuedNum,
+            issuedNum, completedNum, timedOutNum,
+            toMillis(getLatencyPercentileNanos(50)),
+            toMillis(getLatencyPercentileNanos(90)),
+            toMillis(getLatencyPercentileNanos(99))
+        );
+    }
+    
+    private static long toMillis(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1_000_000;
+    }
+}
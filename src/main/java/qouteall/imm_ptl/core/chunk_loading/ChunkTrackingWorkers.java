@@ -0,0 +1,88 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * The worker threads for the compute phase of chunk tracking.
+ * The compute function must only read the game state.
+ * The caller thread waits for all results, so the game state does not change during computing.
+ * The results are in the input order, so applying them in order gives the same result as the serial path.
+ */
+public final class ChunkTrackingWorkers {
+    // not worth dispatching for fewer inputs
+    public static final int MIN_PARALLEL_INPUT_NUM = 2;
+    
+    private static final int THREAD_NUM = Math.max(
+        1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)
+    );
+    
+    @Nullable
+    private static ExecutorService executor;
+    
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger counter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(THREAD_NUM, runnable -> {
+                Thread thread = new Thread(
+                    runnable, "ImmPtl Chunk Tracking Worker " + counter.incrementAndGet()
+                );
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+    
+    /**
+     * Computes the results in parallel if enabled, otherwise serially.
+     * The exception thrown by the compute function is re-thrown.
+     */
+    public static <T, R> List<R> computeInOrder(
+        List<T> inputs, Function<T, R> func, boolean parallel
+    ) {
+        if (!parallel || inputs.size() < MIN_PARALLEL_INPUT_NUM) {
+            List<R> results = new ArrayList<>(inputs.size());
+            for (T input : inputs) {
+                results.add(func.apply(input));
+            }
+            return results;
+        }
+        
+        ExecutorService executor = getExecutor();
+        
+        List<CompletableFuture<R>> futures = new ArrayList<>(inputs.size());
+        for (T input : inputs) {
+            futures.add(CompletableFuture.supplyAsync(() -> func.apply(input), executor));
+        }
+        
+        List<R> results = new ArrayList<>(inputs.size());
+        for (CompletableFuture<R> future : futures) {
+            try {
+                results.add(future.join());
+            }
+            catch (CompletionException e) {
+                // wait for the other tasks, so they don't read the game state while it's being changed
+                CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+                    .exceptionally(t -> null).join();
+                
+                if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                if (e.getCause() instanceof Error error) {
+                    throw error;
+                }
+                throw e;
+            }
+        }
+        return results;
+    }
+}
@@ -1,14 +1,18 @@
 package qouteall.imm_ptl.core.chunk_loading;
 
 import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.util.Mth;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.phys.Vec3;
 import qouteall.imm_ptl.core.IPGlobal;
 import qouteall.imm_ptl.core.McHelper;
 import qouteall.imm_ptl.core.portal.Portal;
+import qouteall.imm_ptl.core.portal.PortalSpatialIndex;
+import qouteall.imm_ptl.core.portal.PortalTransformation;
 import qouteall.imm_ptl.core.portal.global_portals.GlobalPortalStorage;
 import qouteall.q_misc_util.my_util.LimitedLogger;
 
@@ -43,10 +47,9 @@ public class ChunkVisibility {
         }
     }
 
-    private static int getCappedLoadingDistance(Portal portal, ServerPlayer player, int targetLoadingDistance) {
-        PerformanceLevel performanceLevel = ImmPtlChunkTracking.getPlayerInfo(player).performanceLevel;
+    private static int getCappedLoadingDistance(Portal portal, double loadingScale, int targetLoadingDistance) {
         int cap = Math.min(
-            PerformanceLevel.getIndirectLoadingRadiusCap(performanceLevel),
+            ChunkLoadingBudget.getIndirectLoadingRadiusCap(loadingScale),
             IPGlobal.indirectLoadingRadiusCap
         );
 
@@ -60,8 +63,8 @@ public class ChunkVisibility {
     public static List<Portal> getNearbyPortals(
         ServerLevel world, Vec3 pos, Predicate<Portal> predicate, int radiusChunks, int radiusChunksForGlobalPortals
     ) {
-        List<Portal> result = McHelper.findEntitiesRough(
-            Portal.class, world, pos, radiusChunks, predicate
+        List<Portal> result = PortalSpatialIndex.get(world).findPortalsRough(
+            pos, radiusChunks, predicate
         );
 
         GlobalPortalStorage.getGlobalPortals(world).stream()
@@ -75,7 +78,7 @@ public class ChunkVisibility {
         return result;
     }
 
-    private static ChunkLoader getGeneralDirectPortalLoader(ServerPlayer player, Portal portal) {
+    private static ChunkLoader getGeneralDirectPortalLoader(ServerPlayer player, double loadingScale, Portal portal) {
         int loadDistance = McHelper.getPlayerLoadDistance(player);
         double distance = portal.getDistanceToNearestPointInPortal(player.position());
 
@@ -84,8 +87,15 @@ public class ChunkVisibility {
                 IPGlobal.indirectLoadingRadiusCap * 2,
                 Math.max(2, loadDistance - (int) Math.floor(distance / 16))
             );
+            // only the chunk coordinates are needed, so transform without allocating
+            PortalTransformation transformation = portal.getTransformation();
+            Vec3 playerPos = player.position();
+            double transformedX = transformation.transformPointX(playerPos.x, playerPos.y, playerPos.z);
+            double transformedZ = transformation.transformPointZ(playerPos.x, playerPos.y, playerPos.z);
             return new ChunkLoader(
-                new DimensionalChunkPos(portal.getDestDim(), new ChunkPos(BlockPos.containing(portal.transformPoint(player.position())))),
+                portal.getDestDim(),
+                SectionPos.blockToSectionCoord(Mth.floor(transformedX)),
+                SectionPos.blockToSectionCoord(Mth.floor(transformedZ)),
                 renderDistance
             );
         } else {
@@ -94,12 +104,12 @@ public class ChunkVisibility {
             }
             return new ChunkLoader(
                 new DimensionalChunkPos(portal.getDestDim(), new ChunkPos(BlockPos.containing(portal.getDestPos()))),
-                getCappedLoadingDistance(portal, player, getDirectLoadingDistance(loadDistance, distance))
+                getCappedLoadingDistance(portal, loadingScale, getDirectLoadingDistance(loadDistance, distance))
             );
         }
     }
 
-    private static ChunkLoader getGeneralPortalIndirectLoader(ServerPlayer player, Vec3 transformedPos, Portal portal) {
+    private static ChunkLoader getGeneralPortalIndirectLoader(ServerPlayer player, double loadingScale, Vec3 transformedPos, Portal portal) {
         int loadDistance = McHelper.getPlayerLoadDistance(player);
 
         if (portal.getIsGlobal()) {
@@ -110,15 +120,24 @@ public class ChunkVisibility {
         } else {
             return new ChunkLoader(
                 new DimensionalChunkPos(portal.getDestDim(), new ChunkPos(BlockPos.containing(portal.getDestPos()))),
-                getCappedLoadingDistance(portal, player, loadDistance / 4)
+                getCappedLoadingDistance(portal, loadingScale, loadDistance / 4)
             );
         }
     }
 
     public static void foreachBaseChunkLoaders(ServerPlayer player, Consumer<ChunkLoader> func) {
-        PerformanceLevel perfLevel = ImmPtlChunkTracking.getPlayerInfo(player).performanceLevel;
-        int visiblePortalRangeChunks = PerformanceLevel.getVisiblePortalRangeChunks(perfLevel);
-        int indirectVisiblePortalRangeChunks = PerformanceLevel.getIndirectVisiblePortalRangeChunks(perfLevel);
+        foreachBaseChunkLoaders(player, ImmPtlChunkTracking.getPlayerInfo(player).loadingScale, func);
+    }
+
+    /**
+     * It only reads the world state, so it can run in the chunk tracking worker threads
+     * while the server thread is waiting.
+     * The per-level states must be initialized before, see ImmPtlChunkTracking.updatePlayers.
+     * The portals' lazy caches may be filled concurrently, which is benign, see the comment in {@link Portal}.
+     */
+    public static void foreachBaseChunkLoaders(ServerPlayer player, double loadingScale, Consumer<ChunkLoader> func) {
+        int visiblePortalRangeChunks = ChunkLoadingBudget.getVisiblePortalRangeChunks(loadingScale);
+        int indirectVisiblePortalRangeChunks = ChunkLoadingBudget.getIndirectVisiblePortalRangeChunks(loadingScale);
 
         func.accept(playerDirectLoader(player));
 
@@ -134,9 +153,9 @@ public class ChunkVisibility {
             if (destinationWorld == null) continue;
 
             Vec3 transformedPlayerPos = portal.transformPoint(player.position());
-            func.accept(getGeneralDirectPortalLoader(player, portal));
+            func.accept(getGeneralDirectPortalLoader(player, loadingScale, portal));
 
-            if (!isShrinkLoading()) {
+            if (indirectVisiblePortalRangeChunks > 0) {
                 List<Portal> indirectNearbyPortals = getNearbyPortals(
                     (ServerLevel) destinationWorld,
                     transformedPlayerPos,
@@ -145,13 +164,9 @@ public class ChunkVisibility {
                 );
 
                 for (Portal innerPortal : indirectNearbyPortals) {
-                    func.accept(getGeneralPortalIndirectLoader(player, transformedPlayerPos, innerPortal));
+                    func.accept(getGeneralPortalIndirectLoader(player, loadingScale, transformedPlayerPos, innerPortal));
                 }
             }
         }
     }
-
-    public static boolean isShrinkLoading() {
-        return ServerPerformanceMonitor.getLevel() != PerformanceLevel.good;
-    }
 }
\ No newline at end of file
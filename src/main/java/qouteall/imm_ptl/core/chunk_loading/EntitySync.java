@@ -1,25 +1,53 @@
 package qouteall.imm_ptl.core.chunk_loading;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.SectionPos;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ChunkMap;
 import net.minecraft.server.level.DistanceManager;
 import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.Nullable;
 import qouteall.dimlib.api.DimensionAPI;
+import qouteall.imm_ptl.core.IPGlobal;
 import qouteall.imm_ptl.core.ducks.IEChunkMap;
 import qouteall.imm_ptl.core.ducks.IETrackedEntity;
 import qouteall.imm_ptl.core.network.PacketRedirection;
 
 public class EntitySync {
     
+    // the full sweep still runs periodically as a consistency check,
+    // for the changes that are not tracked, such as the entity's tracking range changing
+    public static final int FULL_SWEEP_INTERVAL_TICKS = 100;
+    
+    private static int lastFullSweepTick = -FULL_SWEEP_INTERVAL_TICKS;
+    
     public static void init() {
         DimensionAPI.SERVER_PRE_REMOVE_DIMENSION_EVENT.register(EntitySync::forceRemoveDimension);
     }
     
+    /**
+     * Re-evaluates which players track which entities.
+     * Normally, only the entities in the chunks whose watch records changed since the last update
+     * ({@link WatchRecordStore#getChangedChunks()}) and the entities that moved to another chunk are updated.
+     */
     public static void update(MinecraftServer server) {
         server.getProfiler().push("ip_entity_tracking_update");
         
+        int tickCount = server.getTickCount();
+        boolean fullSweep = !IPGlobal.dirtyChunkEntityTracking ||
+            tickCount - lastFullSweepTick >= FULL_SWEEP_INTERVAL_TICKS ||
+            // a new server
+            tickCount < lastFullSweepTick;
+        if (fullSweep) {
+            lastFullSweepTick = tickCount;
+        }
+        
         for (ServerLevel world : server.getAllLevels()) {
+            WatchRecordStore store = ImmPtlChunkTracking.getWatchRecordStore(world.dimension());
+            
             PacketRedirection.withForceRedirect(
                 world,
                 () -> {
@@ -27,17 +55,49 @@ public class EntitySync {
                     Int2ObjectMap<ChunkMap.TrackedEntity> entityTrackerMap =
                         ((IEChunkMap) chunkMap).ip_getEntityTrackerMap();
                     
+                    @Nullable LongOpenHashSet changedChunks = store == null ? null : store.getChangedChunks();
+                    
                     for (ChunkMap.TrackedEntity trackedEntity : entityTrackerMap.values()) {
                         IETrackedEntity ieTrackedEntity = (IETrackedEntity) trackedEntity;
-                        ieTrackedEntity.ip_updateEntityTrackingStatus();
+                        
+                        boolean movedChunk = updateLastChunk(ieTrackedEntity);
+                        
+                        if (fullSweep || movedChunk || (changedChunks != null &&
+                            changedChunks.contains(ieTrackedEntity.ip_getEntity().chunkPosition().toLong()))
+                        ) {
+                            ieTrackedEntity.ip_updateEntityTrackingStatus();
+                        }
                     }
                 }
             );
+            
+            if (store != null) {
+                store.clearChangedChunks();
+            }
         }
         
         server.getProfiler().pop();
     }
     
+    /**
+     * The vanilla {@link ChunkMap#tick()} that uses the last section pos is cancelled,
+     * so it's reused here to detect the entities that moved to another chunk.
+     *
+     * @return whether the entity is in a different chunk than last time
+     */
+    private static boolean updateLastChunk(IETrackedEntity trackedEntity) {
+        Entity entity = trackedEntity.ip_getEntity();
+        ChunkPos chunkPos = entity.chunkPosition();
+        SectionPos lastSectionPos = trackedEntity.ip_getLastSectionPos();
+        if (lastSectionPos != null &&
+            lastSectionPos.x() == chunkPos.x && lastSectionPos.z() == chunkPos.z
+        ) {
+            return false;
+        }
+        trackedEntity.ip_setLastSectionPos(SectionPos.of(entity));
+        return true;
+    }
+    
     public static void tick(MinecraftServer server) {
         server.getProfiler().push("ip_entity_tracking_tick");
         
@@ -45,18 +105,15 @@ public class EntitySync {
             PacketRedirection.withForceRedirect(
                 world,
                 () -> {
-                    ChunkMap chunkMap = world.getChunkSource().chunkMap;
-                    Int2ObjectMap<ChunkMap.TrackedEntity> entityTrackerMap =
-                        ((IEChunkMap) chunkMap).ip_getEntityTrackerMap();
-                    DistanceManager distanceManager = chunkMap.getDistanceManager();
-                    
-                    for (ChunkMap.TrackedEntity trackedEntity : entityTrackerMap.values()) {
-                        IETrackedEntity ieTrackedEntity = (IETrackedEntity) trackedEntity;
-                        
-                        long chunkPos = ieTrackedEntity.ip_getEntity().chunkPosition().toLong();
-                        if (distanceManager.inEntityTickingRange(chunkPos)) {
-                            ieTrackedEntity.ip_sendChanges();
-                        }
+                    if (IPGlobal.bundleEntityChangePackets) {
+                        // each connection gets one bundle of the dimension's entity changes
+                        PacketRedirection.withForceBundle(() -> {
+                            sendChanges(world);
+                            return null;
+                        });
+                    }
+                    else {
+                        sendChanges(world);
                     }
                 }
             );
@@ -65,6 +122,22 @@ public class EntitySync {
         server.getProfiler().pop();
     }
     
+    private static void sendChanges(ServerLevel world) {
+        ChunkMap chunkMap = world.getChunkSource().chunkMap;
+        Int2ObjectMap<ChunkMap.TrackedEntity> entityTrackerMap =
+            ((IEChunkMap) chunkMap).ip_getEntityTrackerMap();
+        DistanceManager distanceManager = chunkMap.getDistanceManager();
+        
+        for (ChunkMap.TrackedEntity trackedEntity : entityTrackerMap.values()) {
+            IETrackedEntity ieTrackedEntity = (IETrackedEntity) trackedEntity;
+            
+            long chunkPos = ieTrackedEntity.ip_getEntity().chunkPosition().toLong();
+            if (distanceManager.inEntityTickingRange(chunkPos)) {
+                ieTrackedEntity.ip_sendChanges();
+            }
+        }
+    }
+    
     private static void forceRemoveDimension(ServerLevel world) {
         ChunkMap chunkMap = world.getChunkSource().chunkMap;
         Int2ObjectMap<ChunkMap.TrackedEntity> entityTrackerMap =
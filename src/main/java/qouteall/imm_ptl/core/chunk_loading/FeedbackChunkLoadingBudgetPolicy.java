@@ -0,0 +1,60 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+/**
+ * Grows the budget when the tick time is below the target and shrinks it when above,
+ * proportionally to the difference, so it settles instead of jumping between levels.
+ * The players that recently used a portal get more share.
+ */
+public final class FeedbackChunkLoadingBudgetPolicy implements ChunkLoadingBudgetPolicy {
+    public static final double DEFAULT_TARGET_TICK_TIME_RATIO = 0.8;
+    public static final double DEFAULT_GAIN = 0.5;
+    public static final double DEFAULT_PORTAL_USE_BOOST = 1;
+    // 2 minutes
+    public static final long DEFAULT_PORTAL_USE_DECAY_TICKS = 20 * 60 * 2;
+    
+    public static final FeedbackChunkLoadingBudgetPolicy INSTANCE = new FeedbackChunkLoadingBudgetPolicy();
+    
+    public final double targetTickTimeRatio;
+    public final double gain;
+    public final double portalUseBoost;
+    public final long portalUseDecayTicks;
+    
+    public FeedbackChunkLoadingBudgetPolicy() {
+        this(
+            DEFAULT_TARGET_TICK_TIME_RATIO, DEFAULT_GAIN,
+            DEFAULT_PORTAL_USE_BOOST, DEFAULT_PORTAL_USE_DECAY_TICKS
+        );
+    }
+    
+    public FeedbackChunkLoadingBudgetPolicy(
+        double targetTickTimeRatio, double gain, double portalUseBoost, long portalUseDecayTicks
+    ) {
+        this.targetTickTimeRatio = targetTickTimeRatio;
+        this.gain = gain;
+        this.portalUseBoost = portalUseBoost;
+        this.portalUseDecayTicks = portalUseDecayTicks;
+    }
+    
+    @Override
+    public double updateBudget(double budget, double tickTimeRatio, double usage, int playerNum) {
+        // the error is relative to the target, and limited, so one lag spike doesn't collapse the budget
+        double error = (targetTickTimeRatio - tickTimeRatio) / targetTickTimeRatio;
+        error = Math.max(-1, Math.min(1, error));
+        return budget * Math.exp(gain * error);
+    }
+    
+    @Override
+    public double getPlayerWeight(PerformanceLevel clientLevel, long ticksSincePortalUse) {
+        double levelWeight = switch (clientLevel) {
+            case good -> 1;
+            case medium -> 0.6;
+            case bad -> 0.3;
+        };
+        
+        double portalUseWeight = 1 + portalUseBoost * Math.exp(
+            -(double) Math.max(0, ticksSincePortalUse) / portalUseDecayTicks
+        );
+        
+        return levelWeight * portalUseWeight;
+    }
+}
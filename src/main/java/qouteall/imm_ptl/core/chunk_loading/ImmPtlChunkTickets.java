@@ -1,13 +1,14 @@
 package qouteall.imm_ptl.core.chunk_loading;
 
 import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
-import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongPredicate;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ChunkHolder;
 import net.minecraft.server.level.ChunkMap;
+import net.minecraft.server.level.ChunkResult;
 import net.minecraft.server.level.DistanceManager;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.Ticket;
@@ -27,6 +28,7 @@ import qouteall.q_misc_util.Helper;
 import qouteall.q_misc_util.my_util.RateStat;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.WeakHashMap;
 import java.util.concurrent.Executor;
@@ -57,9 +59,12 @@ public class ImmPtlChunkTickets {
     
     private final Long2ObjectOpenHashMap<ChunkTicketInfo> chunkPosToTicketInfo = new Long2ObjectOpenHashMap<>();
     private final ArrayList<LongLinkedOpenHashSet> chunksToAddTicketByDistance = new ArrayList<>();
-    private final LongOpenHashSet waitingForLoading = new LongOpenHashSet();
+    // chunk pos -> the System.nanoTime() when the ticket was added
+    private final Long2LongOpenHashMap waitingForLoading = new Long2LongOpenHashMap();
     private boolean isValid = true;
-    public final int throttlingLimit = 4;
+    private final ChunkTicketThrottle throttle = new ChunkTicketThrottle();
+    // whether the waiting tickets reached the limit while more were queued in the last flush
+    private boolean lastFlushLimited = false;
 
     private ImmPtlChunkTickets() {}
     
@@ -114,28 +119,67 @@ public class ImmPtlChunkTickets {
         
         DistanceManager distanceManager = getDistanceManager(world);
         
-        waitingForLoading.removeIf((long chunkPos) -> {
+        long nanoTime = System.nanoTime();
+        boolean windowFull = lastFlushLimited;
+        
+        waitingForLoading.long2LongEntrySet().removeIf(e -> {
+            long chunkPos = e.getLongKey();
+            long latency = nanoTime - e.getLongValue();
+            // the chunk holder may not exist yet before the distance manager processes the ticket
             ChunkHolder chunkHolder = getChunkHolder(world, chunkPos);
-            if (chunkHolder == null) {
+            if (chunkHolder != null) {
+                ChunkResult<LevelChunk> resultNow = chunkHolder.getEntityTickingChunkFuture().getNow(null);
+                if (resultNow != null && resultNow.isSuccess()) {
+                    throttle.onCompleted(latency, nanoTime, windowFull);
+                    return true;
+                }
+            }
+            if (latency > ChunkTicketThrottle.TIMEOUT_NANOS) {
+                throttle.onTimedOut(nanoTime);
                 return true;
             }
-            ChunkResult<LevelChunk> resultNow = chunkHolder.getEntityTickingChunkFuture().getNow(null);
-            return resultNow == null || !resultNow.isSuccess();
+            return false;
         });
         
+        throttle.onTick(ServerPerformanceMonitor.getLoadingBudget().getTickTimeRatio(), nanoTime);
+        
+        int limit = getThrottlingLimit();
         for (LongLinkedOpenHashSet queue : chunksToAddTicketByDistance) {
             if (queue != null) {
-                while (!queue.isEmpty() && waitingForLoading.size() < throttlingLimit) {
+                while (!queue.isEmpty() && waitingForLoading.size() < limit) {
                     long chunkPos = queue.removeFirstLong();
                     if (chunkPosToTicketInfo.containsKey(chunkPos)) {
                         addTicket(distanceManager, chunkPos);
-                        waitingForLoading.add(chunkPos);
+                        waitingForLoading.put(chunkPos, nanoTime);
+                        throttle.onIssued();
                     } else {
                         LOGGER.warn("Chunk {} is not in the queue", new ChunkPos(chunkPos));
                     }
                 }
             }
         }
+        
+        lastFlushLimited = waitingForLoading.size() >= limit && getQueuedNum() > 0;
+    }
+    
+    public int getThrottlingLimit() {
+        return throttle.getLimit(IPGlobal.adaptiveChunkTicketThrottling);
+    }
+    
+    private int getQueuedNum() {
+        int result = 0;
+        for (LongLinkedOpenHashSet queue : chunksToAddTicketByDistance) {
+            if (queue != null) {
+                result += queue.size();
+            }
+        }
+        return result;
+    }
+    
+    public String getThrottlingStats() {
+        return throttle.getStatsString(
+            IPGlobal.adaptiveChunkTicketThrottling, waitingForLoading.size(), getQueuedNum()
+        );
     }
     
     private static void addTicket(DistanceManager distanceManager, long chunkPos) {
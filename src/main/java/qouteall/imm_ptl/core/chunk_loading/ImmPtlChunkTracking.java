@@ -1,9 +1,11 @@
 package qouteall.imm_ptl.core.chunk_loading;
 
 import com.mojang.logging.LogUtils;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.minecraft.network.protocol.game.ClientboundForgetLevelChunkPacket;
@@ -23,13 +25,14 @@ import qouteall.imm_ptl.core.IPGlobal;
 import qouteall.imm_ptl.core.ducks.IEChunkMap;
 import qouteall.imm_ptl.core.mixin.common.chunk_sync.IEServerCommonPacketListenerImpl;
 import qouteall.imm_ptl.core.network.PacketRedirection;
+import qouteall.imm_ptl.core.portal.PortalSpatialIndex;
+import qouteall.imm_ptl.core.portal.global_portals.GlobalPortalStorage;
 import qouteall.q_misc_util.my_util.IntBox;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
@@ -75,15 +78,18 @@ public class ImmPtlChunkTracking {
         forceRemoveDimension(world);
     }
     
+    /**
+     * A snapshot of a chunk watch record.
+     * The records are stored in {@link WatchRecordStore}, this is only created for API users.
+     */
     public static class PlayerWatchRecord {
         public final ServerPlayer player;
         public final ResourceKey<Level> dimension;
         public final long chunkPos;
-        public int lastWatchGeneration;
-        public int distanceToSource;
-        public boolean isLoadedToPlayer;
-        public boolean isValid = true;
-        public boolean isBoundary = false;
+        public final int lastWatchGeneration;
+        public final int distanceToSource;
+        public final boolean isLoadedToPlayer;
+        public final boolean isBoundary;
         // the light data is only sent on visibility boundary
         // as the client can calculate light from block data
         
@@ -102,27 +108,43 @@ public class ImmPtlChunkTracking {
             this.isBoundary = isBoundary;
         }
         
+        private static PlayerWatchRecord fromStore(WatchRecordStore store, int slot) {
+            return new PlayerWatchRecord(
+                getPlayerByIndex(store.getPlayerIndex(slot)),
+                getDimensionById(store.dimensionId),
+                store.getChunkPos(slot),
+                store.getLastWatchGeneration(slot),
+                store.getDistanceToSource(slot),
+                store.isLoadedToPlayer(slot),
+                store.isBoundary(slot)
+            );
+        }
+        
         @Override
         public String toString() {
             return String.format(
-                "%s (%d,%d) distance:%d valid:%s loaded:%s",
+                "%s (%d,%d) distance:%d loaded:%s",
                 dimension.location(),
                 ChunkPos.getX(chunkPos),
                 ChunkPos.getZ(chunkPos),
                 distanceToSource,
-                isValid,
                 isLoadedToPlayer
             );
         }
     }
     
-    // Every chunk has a list of watching records
-    private static final Map<
-        ResourceKey<Level>,
-        Long2ObjectOpenHashMap<
-            Object2ObjectOpenHashMap<ServerPlayer, PlayerWatchRecord>>> chunkWatchRecords =
+    // Every dimension has a store of chunk watch records
+    private static final Object2ObjectOpenHashMap<ResourceKey<Level>, WatchRecordStore> chunkWatchRecords =
         new Object2ObjectOpenHashMap<>();
     
+    // the dimension ids are not released until server closes
+    private static final Object2IntOpenHashMap<ResourceKey<Level>> dimensionToId = new Object2IntOpenHashMap<>();
+    private static final ObjectArrayList<ResourceKey<Level>> idToDimension = new ObjectArrayList<>();
+    
+    // the player indexes are reused after the player's records are all removed
+    private static final ObjectArrayList<ServerPlayer> indexToPlayer = new ObjectArrayList<>();
+    private static final IntArrayList freePlayerIndexes = new IntArrayList();
+    
     private static final ArrayList<ChunkLoader> additionalChunkLoaders = new ArrayList<>();
     
     private static final Object2ObjectOpenHashMap<ServerPlayer, PlayerChunkLoading> playerInfoMap =
@@ -130,15 +152,61 @@ public class ImmPtlChunkTracking {
     
     private static int generationCounter = 0;
     
-    private static Long2ObjectOpenHashMap<Object2ObjectOpenHashMap<ServerPlayer, PlayerWatchRecord>>
-    getDimChunkWatchRecords(ResourceKey<Level> dimension) {
-        return chunkWatchRecords.computeIfAbsent(dimension, k -> new Long2ObjectOpenHashMap<>());
+    private static WatchRecordStore getOrCreateWatchRecordStore(ResourceKey<Level> dimension) {
+        return chunkWatchRecords.computeIfAbsent(
+            dimension, k -> new WatchRecordStore(getDimensionId(dimension))
+        );
+    }
+    
+    @Nullable
+    public static WatchRecordStore getWatchRecordStore(ResourceKey<Level> dimension) {
+        return chunkWatchRecords.get(dimension);
+    }
+    
+    @Nullable
+    public static WatchRecordStore getWatchRecordStore(int dimensionId) {
+        return chunkWatchRecords.get(getDimensionById(dimensionId));
+    }
+    
+    public static int getDimensionId(ResourceKey<Level> dimension) {
+        int id = dimensionToId.getOrDefault(dimension, -1);
+        if (id == -1) {
+            id = idToDimension.size();
+            idToDimension.add(dimension);
+            dimensionToId.put(dimension, id);
+        }
+        return id;
+    }
+    
+    public static ResourceKey<Level> getDimensionById(int id) {
+        return idToDimension.get(id);
+    }
+    
+    public static ServerPlayer getPlayerByIndex(int index) {
+        return indexToPlayer.get(index);
+    }
+    
+    private static int allocatePlayerIndex(ServerPlayer player) {
+        if (!freePlayerIndexes.isEmpty()) {
+            int index = freePlayerIndexes.popInt();
+            indexToPlayer.set(index, player);
+            return index;
+        }
+        indexToPlayer.add(player);
+        return indexToPlayer.size() - 1;
+    }
+    
+    // should be called after all records of the player are removed
+    private static void releasePlayerIndex(PlayerChunkLoading playerInfo) {
+        indexToPlayer.set(playerInfo.playerIndex, null);
+        freePlayerIndexes.add(playerInfo.playerIndex);
     }
     
     public static PlayerChunkLoading getPlayerInfo(ServerPlayer player) {
         return playerInfoMap.computeIfAbsent(
             player,
             (ServerPlayer p) -> new PlayerChunkLoading(
+                allocatePlayerIndex(p),
                 ((IEServerCommonPacketListenerImpl) p.connection)
                     .ip_getConnection().isMemoryConnection()
             )
@@ -159,143 +227,309 @@ public class ImmPtlChunkTracking {
     
     public static void updateForPlayer(ServerPlayer player) {
         PlayerChunkLoading playerInfo = getPlayerInfo(player);
-        playerInfo.visibleDimensions.clear();
-        int lastLoadedChunks = playerInfo.loadedChunks;
-        playerInfo.loadedChunks = 0;
+        
+        applyChunkLoaders(player, playerInfo, collectChunkLoaders(player, playerInfo));
+    }
+    
+    /**
+     * The compute phase of the update. It only reads the game state,
+     * so it can run in {@link ChunkTrackingWorkers} while the server thread is waiting.
+     * The additional chunk loader list is copied before it's called.
+     */
+    private static ObjectOpenHashSet<ChunkLoader> collectChunkLoaders(
+        ServerPlayer player, PlayerChunkLoading playerInfo
+    ) {
+        MinecraftServer server = player.server;
         
         ObjectOpenHashSet<ChunkLoader> chunkLoaders = new ObjectOpenHashSet<>();
         
         ChunkVisibility.foreachBaseChunkLoaders(
             player,
+            playerInfo.loadingScale,
             chunkLoaders::add
         );
         
         chunkLoaders.addAll(playerInfo.additionalChunkLoaders);
         
+        chunkLoaders.removeIf(chunkLoader -> {
+            if (server.getLevel(chunkLoader.dimension()) == null) {
+                LOGGER.warn("Dimension not loaded {} in chunk loader {}", chunkLoader.dimension(), chunkLoader);
+                return true;
+            }
+            return false;
+        });
+        
+        return chunkLoaders;
+    }
+    
+    /**
+     * The apply phase of the update. It changes the watch records and the tickets,
+     * so it must run on server thread.
+     */
+    private static void applyChunkLoaders(
+        ServerPlayer player, PlayerChunkLoading playerInfo, ObjectOpenHashSet<ChunkLoader> chunkLoaders
+    ) {
+        playerInfo.visibleDimensions.clear();
+        for (ChunkLoader chunkLoader : chunkLoaders) {
+            playerInfo.visibleDimensions.add(chunkLoader.dimension());
+        }
+        
+        if (IPGlobal.incrementalChunkTracking) {
+            updateForPlayerIncrementally(player, playerInfo, chunkLoaders);
+        }
+        else {
+            updateForPlayerFully(player, playerInfo, chunkLoaders);
+        }
+    }
+    
+    private static void updateForPlayerFully(
+        ServerPlayer player, PlayerChunkLoading playerInfo, ObjectOpenHashSet<ChunkLoader> chunkLoaders
+    ) {
+        if (!playerInfo.chunkLoaderDelta.isEmpty()) {
+            // switched from incremental mode. release the loader references held by the records
+            playerInfo.chunkLoaderDelta.update(
+                new ObjectOpenHashSet<>(),
+                chunkLoader -> {},
+                chunkLoader -> onChunkLoaderLeave(playerInfo, chunkLoader)
+            );
+        }
+        
+        playerInfo.loadedChunks = 0;
+        int playerIndex = playerInfo.playerIndex;
+        
         MinecraftServer server = player.server;
         
         for (ChunkLoader chunkLoader : chunkLoaders) {
             ResourceKey<Level> dimension = chunkLoader.dimension();
-            var chunkRecordMap = getDimChunkWatchRecords(dimension);
+            WatchRecordStore store = getOrCreateWatchRecordStore(dimension);
             
             ServerLevel world = server.getLevel(dimension);
-            if (world == null) {
-                LOGGER.warn("Dimension not loaded {} in chunk loader {}", dimension, chunkLoader);
-                return;
-            }
-            
-            playerInfo.visibleDimensions.add(dimension);
+            assert world != null;
             
             ImmPtlChunkTickets ticketInfo = ImmPtlChunkTickets.get(world);
             
             chunkLoader.foreachChunkPos((dim, x, z, distanceToSource) -> {
                 long chunkPos = ChunkPos.asLong(x, z);
-                var records =
-                    chunkRecordMap.computeIfAbsent(chunkPos, k -> new Object2ObjectOpenHashMap<>());
                 
                 ticketInfo.markForLoading(chunkPos, distanceToSource, generationCounter);
                 
-                records.compute(player, (k, record) -> {
-                    boolean isBoundary = distanceToSource == chunkLoader.radius();
-                    if (record == null) {
-                        PlayerWatchRecord newRecord = new PlayerWatchRecord(
-                            player, dimension, chunkPos, generationCounter, distanceToSource,
-                            false, isBoundary
-                        );
-                        playerInfo.markPendingLoading(newRecord);
-                        playerInfo.loadedChunks++;
-                        return newRecord;
+                boolean isBoundary = distanceToSource == chunkLoader.radius();
+                int slot = store.findSlot(chunkPos, playerIndex);
+                if (slot == -1) {
+                    store.addRecord(chunkPos, playerIndex, generationCounter, distanceToSource, isBoundary);
+                    playerInfo.markPendingLoading(store.dimensionId, chunkPos, distanceToSource);
+                    playerInfo.loadedChunks++;
+                }
+                else {
+                    int oldDistance = store.getDistanceToSource(slot);
+                    if (store.getLastWatchGeneration(slot) == generationCounter) {
+                        // being updated again in the same turn
+                        if (distanceToSource < oldDistance) {
+                            store.setDistanceToSource(slot, distanceToSource);
+                            playerInfo.markPendingLoading(store.dimensionId, chunkPos, distanceToSource);
+                        }
+                        
+                        store.setBoundary(slot, store.isBoundary(slot) && isBoundary);
                     }
                     else {
-                        int oldDistance = record.distanceToSource;
-                        if (record.lastWatchGeneration == generationCounter) {
-                            // being updated again in the same turn
-                            if (distanceToSource < oldDistance) {
-                                record.distanceToSource = distanceToSource;
-                                playerInfo.markPendingLoading(record);
-                            }
-                            
-                            record.isBoundary = (record.isBoundary && isBoundary);
-                        }
-                        else {
-                            // being updated at the first time in this turn
-                            playerInfo.loadedChunks++;
-                            if (distanceToSource < oldDistance) {
-                                playerInfo.markPendingLoading(record);
-                            }
-                            
-                            record.distanceToSource = distanceToSource;
-                            record.lastWatchGeneration = generationCounter;
-                            record.isBoundary = isBoundary;
+                        // being updated at the first time in this turn
+                        playerInfo.loadedChunks++;
+                        if (distanceToSource < oldDistance) {
+                            playerInfo.markPendingLoading(store.dimensionId, chunkPos, distanceToSource);
                         }
+                        
+                        store.setDistanceToSource(slot, distanceToSource);
+                        store.setLastWatchGeneration(slot, generationCounter);
+                        store.setBoundary(slot, isBoundary);
                     }
-                    
-                    return record;
-                });
+                }
             });
         }
     }
     
+    /**
+     * Only walks the chunks of the chunk loaders that entered or left since the last update.
+     * Each record counts the current loaders that cover it in {@link WatchRecordStore#getWatchingLoaderNum(int)}.
+     * When it drops to zero, the record starts the delayed unloading countdown in {@link #purge}.
+     */
+    private static void updateForPlayerIncrementally(
+        ServerPlayer player, PlayerChunkLoading playerInfo, ObjectOpenHashSet<ChunkLoader> chunkLoaders
+    ) {
+        playerInfo.chunkLoaderDelta.update(
+            chunkLoaders,
+            chunkLoader -> onChunkLoaderEnter(player, playerInfo, chunkLoader),
+            chunkLoader -> onChunkLoaderLeave(playerInfo, chunkLoader)
+        );
+    }
+    
+    private static void onChunkLoaderEnter(
+        ServerPlayer player, PlayerChunkLoading playerInfo, ChunkLoader chunkLoader
+    ) {
+        ResourceKey<Level> dimension = chunkLoader.dimension();
+        
+        ServerLevel world = player.server.getLevel(dimension);
+        assert world != null;
+        
+        ImmPtlChunkTickets ticketInfo = ImmPtlChunkTickets.get(world);
+        
+        chunkLoader.foreachChunkPos(
+            (dim, x, z, distanceToSource) ->
+                ticketInfo.markForLoading(ChunkPos.asLong(x, z), distanceToSource, generationCounter)
+        );
+        
+        onChunkLoaderEnter(
+            getOrCreateWatchRecordStore(dimension), playerInfo, chunkLoader, generationCounter
+        );
+    }
+    
+    /**
+     * Updates the player's watch records in the chunk loader's dimension.
+     */
+    static void onChunkLoaderEnter(
+        WatchRecordStore store, PlayerChunkLoading playerInfo, ChunkLoader chunkLoader, int generation
+    ) {
+        int playerIndex = playerInfo.playerIndex;
+        
+        chunkLoader.foreachChunkPos((dim, x, z, distanceToSource) -> {
+            long chunkPos = ChunkPos.asLong(x, z);
+            
+            boolean isBoundary = distanceToSource == chunkLoader.radius();
+            int slot = store.findSlot(chunkPos, playerIndex);
+            if (slot == -1) {
+                slot = store.addRecord(chunkPos, playerIndex, generation, distanceToSource, isBoundary);
+                playerInfo.markPendingLoading(store.dimensionId, chunkPos, distanceToSource);
+            }
+            else if (store.getWatchingLoaderNum(slot) == 0) {
+                // no other loader covers it. it may be in the delayed unloading countdown
+                int oldDistance = store.getDistanceToSource(slot);
+                store.setDistanceToSource(slot, distanceToSource);
+                store.setBoundary(slot, isBoundary);
+                if (distanceToSource < oldDistance) {
+                    playerInfo.markPendingLoading(store.dimensionId, chunkPos, distanceToSource);
+                }
+            }
+            else {
+                if (distanceToSource < store.getDistanceToSource(slot)) {
+                    store.setDistanceToSource(slot, distanceToSource);
+                    playerInfo.markPendingLoading(store.dimensionId, chunkPos, distanceToSource);
+                }
+                store.setBoundary(slot, store.isBoundary(slot) && isBoundary);
+            }
+            
+            int watchingLoaderNum = store.getWatchingLoaderNum(slot);
+            if (watchingLoaderNum == 0) {
+                playerInfo.loadedChunks++;
+            }
+            store.setWatchingLoaderNum(slot, watchingLoaderNum + 1);
+            store.setLastWatchGeneration(slot, generation);
+        });
+    }
+    
+    private static void onChunkLoaderLeave(
+        PlayerChunkLoading playerInfo, ChunkLoader chunkLoader
+    ) {
+        WatchRecordStore store = chunkWatchRecords.get(chunkLoader.dimension());
+        if (store == null) {
+            return;
+        }
+        
+        onChunkLoaderLeave(store, playerInfo, chunkLoader, generationCounter);
+    }
+    
+    static void onChunkLoaderLeave(
+        WatchRecordStore store, PlayerChunkLoading playerInfo, ChunkLoader chunkLoader, int generation
+    ) {
+        ResourceKey<Level> dimension = chunkLoader.dimension();
+        int playerIndex = playerInfo.playerIndex;
+        ChunkLoaderDelta delta = playerInfo.chunkLoaderDelta;
+        
+        chunkLoader.foreachChunkPos((dim, x, z, distanceToSource) -> {
+            int slot = store.findSlot(ChunkPos.asLong(x, z), playerIndex);
+            if (slot == -1) {
+                return;
+            }
+            
+            int watchingLoaderNum = store.getWatchingLoaderNum(slot);
+            if (watchingLoaderNum == 0) {
+                return;
+            }
+            
+            watchingLoaderNum--;
+            store.setWatchingLoaderNum(slot, watchingLoaderNum);
+            
+            if (watchingLoaderNum == 0) {
+                playerInfo.loadedChunks--;
+                // start the delayed unloading countdown
+                store.setLastWatchGeneration(slot, generation);
+            }
+            else {
+                // the leaving loader may have decided the distance or the boundary status
+                boolean wasBoundary = distanceToSource == chunkLoader.radius();
+                if (distanceToSource <= store.getDistanceToSource(slot) || !wasBoundary) {
+                    int newDistance = delta.getMinDistanceToSource(dimension, x, z);
+                    if (newDistance != -1) {
+                        store.setDistanceToSource(slot, newDistance);
+                    }
+                    store.setBoundary(slot, delta.isOnBoundaryOfAllLoaders(dimension, x, z));
+                }
+            }
+        });
+    }
+    
     private static void purge(
         MinecraftServer server,
         Object2ObjectOpenHashMap<ResourceKey<Level>, LongOpenHashSet> additionalLoadedChunks
     ) {
         // purge chunk watch records
-        chunkWatchRecords.forEach((dimension, chunkRecords) -> {
-            chunkRecords.long2ObjectEntrySet().removeIf(entry -> {
-                long chunkPosLong = entry.getLongKey();
+        chunkWatchRecords.forEach((dimension, store) -> {
+            store.removeIf(slot -> {
+                ServerPlayer player = getPlayerByIndex(store.getPlayerIndex(slot));
                 
-                var dimChunkWatchRecords = entry.getValue();
+                if (player.isRemoved()) {
+                    return true;
+                }
                 
-                dimChunkWatchRecords.entrySet().removeIf(e -> {
-                    ServerPlayer player = e.getKey();
-                    
-                    if (player.isRemoved()) {
-                        return true;
-                    }
-                    
-                    PlayerWatchRecord record = e.getValue();
-                    int delayUnloadGenerations = getDelayUnloadGenerationForPlayer(player);
-                    boolean shouldRemove = generationCounter - record.lastWatchGeneration > delayUnloadGenerations;
-                    
-                    if (shouldRemove) {
-                        if (record.isLoadedToPlayer) {
-                            player.connection.send(
-                                PacketRedirection.createRedirectedMessage(
-                                    player.getServer(),
-                                    record.dimension,
-                                    new ClientboundForgetLevelChunkPacket(
-                                        new ChunkPos(record.chunkPos)
-                                    )
-                                )
-                            );
-                        }
-                        record.isValid = false;
-                    }
-                    
-                    return shouldRemove;
-                });
+                int delayUnloadGenerations = getDelayUnloadGenerationForPlayer(player);
+                boolean shouldRemove = store.getWatchingLoaderNum(slot) == 0 &&
+                    generationCounter - store.getLastWatchGeneration(slot) > delayUnloadGenerations;
                 
-                return dimChunkWatchRecords.isEmpty();
+                if (shouldRemove && store.isLoadedToPlayer(slot)) {
+                    player.connection.send(
+                        PacketRedirection.createRedirectedMessage(
+                            player.getServer(),
+                            dimension,
+                            new ClientboundForgetLevelChunkPacket(
+                                new ChunkPos(store.getChunkPos(slot))
+                            )
+                        )
+                    );
+                }
+                
+                return shouldRemove;
             });
         });
         
-        // purge player info map
-        playerInfoMap.entrySet().removeIf(e -> e.getKey().isRemoved());
+        // purge player info map. the records of removed players are already removed
+        playerInfoMap.entrySet().removeIf(e -> {
+            if (e.getKey().isRemoved()) {
+                releasePlayerIndex(e.getValue());
+                return true;
+            }
+            return false;
+        });
         
         for (ServerLevel world : server.getAllLevels()) {
             ResourceKey<Level> dimension = world.dimension();
             
             @Nullable LongOpenHashSet additional = additionalLoadedChunks.get(dimension);
-            @Nullable var watchRecs =
-                chunkWatchRecords.get(dimension);
+            @Nullable WatchRecordStore watchRecs = chunkWatchRecords.get(dimension);
             
             ImmPtlChunkTickets dimTicketManager = ImmPtlChunkTickets.get(world);
             
             dimTicketManager.purge(
                 world,
                 chunkPos -> {
-                    if (watchRecs != null && watchRecs.containsKey(chunkPos)) {
+                    if (watchRecs != null && watchRecs.containsChunk(chunkPos)) {
                         return true;
                     }
                     if (additional != null && additional.contains(chunkPos)) {
@@ -364,6 +598,7 @@ public class ImmPtlChunkTracking {
         
         boolean updates = false;
         long gameTime = server.overworld().getGameTime();
+        List<ServerPlayer> playersToUpdate = new ArrayList<>();
         for (ServerPlayer player : server.getPlayerList().getPlayers()) {
             PlayerChunkLoading playerInfo = getPlayerInfo(player);
             
@@ -372,10 +607,15 @@ public class ImmPtlChunkTracking {
                 ((player.getId() % updateInterval) == (gameTime % updateInterval))
             ) {
                 playerInfo.shouldUpdateImmediately = false;
-                updateForPlayer(player);
+                playersToUpdate.add(player);
                 updates = true;
             }
         }
+        
+        if (!playersToUpdate.isEmpty()) {
+            updatePlayers(server, playersToUpdate);
+        }
+        
         if (gameTime % updateInterval == 0) {
             var additionalLoadedChunks = refreshAdditionalChunkLoaders(server);
             purge(server, additionalLoadedChunks);
@@ -398,30 +638,84 @@ public class ImmPtlChunkTracking {
         EntitySync.tick(server);
     }
     
+    /**
+     * Computes the chunk loaders of the players in parallel, then applies them in the player order.
+     * Computing a player's chunk loaders does not read the state changed by applying,
+     * so the result is the same as updating the players one by one.
+     */
+    private static void updatePlayers(MinecraftServer server, List<ServerPlayer> players) {
+        boolean parallel = IPGlobal.parallelChunkLoaderCollecting &&
+            players.size() >= ChunkTrackingWorkers.MIN_PARALLEL_INPUT_NUM;
+        
+        if (parallel) {
+            // the lazily-initialized states should not be initialized in worker threads
+            // the portals' own caches are fine, see the comment in Portal
+            for (ServerLevel world : server.getAllLevels()) {
+                PortalSpatialIndex.get(world);
+                GlobalPortalStorage.get(world);
+            }
+        }
+        
+        List<PlayerUpdate> updates = new ArrayList<>(players.size());
+        for (ServerPlayer player : players) {
+            updates.add(new PlayerUpdate(player, getPlayerInfo(player)));
+        }
+        
+        server.getProfiler().push("collect_chunk_loaders");
+        List<ObjectOpenHashSet<ChunkLoader>> results = ChunkTrackingWorkers.computeInOrder(
+            updates,
+            update -> collectChunkLoaders(update.player(), update.playerInfo()),
+            parallel
+        );
+        server.getProfiler().pop();
+        
+        server.getProfiler().push("apply_chunk_loaders");
+        for (int i = 0; i < updates.size(); i++) {
+            PlayerUpdate update = updates.get(i);
+            applyChunkLoaders(update.player(), update.playerInfo(), results.get(i));
+        }
+        server.getProfiler().pop();
+    }
+    
+    private static record PlayerUpdate(ServerPlayer player, PlayerChunkLoading playerInfo) {}
+    
+    /**
+     * @return the slot of the loaded watch record in the dimension's {@link WatchRecordStore}, or -1
+     */
+    public static int getLoadedWatchRecordSlot(
+        @Nullable WatchRecordStore store, ServerPlayer player, long chunkPos
+    ) {
+        if (store == null) {
+            return -1;
+        }
+        
+        PlayerChunkLoading playerInfo = playerInfoMap.get(player);
+        if (playerInfo == null) {
+            return -1;
+        }
+        
+        int slot = store.findSlot(chunkPos, playerInfo.playerIndex);
+        if (slot == -1 || !store.isLoadedToPlayer(slot)) {
+            return -1;
+        }
+        
+        return slot;
+    }
+    
     public static boolean isPlayerWatchingChunk(
         ServerPlayer player,
         ResourceKey<Level> dimension,
         int x, int z,
         Predicate<PlayerWatchRecord> predicate
     ) {
-        long chunkPos = ChunkPos.asLong(x, z);
-        
-        var recordMap = getDimChunkWatchRecords(dimension).get(chunkPos);
-        if (recordMap == null) {
-            return false;
-        }
-        
-        PlayerWatchRecord record = recordMap.get(player);
+        WatchRecordStore store = chunkWatchRecords.get(dimension);
+        int slot = getLoadedWatchRecordSlot(store, player, ChunkPos.asLong(x, z));
         
-        if (record == null) {
+        if (slot == -1) {
             return false;
         }
         
-        if (!record.isLoadedToPlayer) {
-            return false;
-        }
-        
-        return predicate.test(record);
+        return predicate.test(PlayerWatchRecord.fromStore(store, slot));
     }
     
     public static boolean isPlayerWatchingChunk(
@@ -429,7 +723,8 @@ public class ImmPtlChunkTracking {
         ResourceKey<Level> dimension,
         int x, int z
     ) {
-        return isPlayerWatchingChunk(player, dimension, x, z, r -> true);
+        WatchRecordStore store = chunkWatchRecords.get(dimension);
+        return getLoadedWatchRecordSlot(store, player, ChunkPos.asLong(x, z)) != -1;
     }
     
     public static boolean isPlayerWatchingChunkWithinRadius(
@@ -438,14 +733,22 @@ public class ImmPtlChunkTracking {
         int x, int z,
         int radiusBlocks
     ) {
-        return isPlayerWatchingChunk(
-            player, dimension, x, z,
-            r -> r.distanceToSource * 16 <= radiusBlocks
-        );
+        WatchRecordStore store = chunkWatchRecords.get(dimension);
+        int slot = getLoadedWatchRecordSlot(store, player, ChunkPos.asLong(x, z));
+        
+        if (slot == -1) {
+            return false;
+        }
+        
+        return store.getDistanceToSource(slot) * 16 <= radiusBlocks;
     }
     
     private static void cleanup(MinecraftServer server) {
         chunkWatchRecords.clear();
+        dimensionToId.clear();
+        idToDimension.clear();
+        indexToPlayer.clear();
+        freePlayerIndexes.clear();
         additionalChunkLoaders.clear();
         playerInfoMap.clear();
     }
@@ -457,11 +760,7 @@ public class ImmPtlChunkTracking {
         ResourceKey<Level> dimension,
         int x, int z
     ) {
-        var records = getWatchRecordForChunk(dimension, x, z);
-        if (records == null) {
-            return Stream.empty();
-        }
-        return records.values().stream().filter(e -> e.isLoadedToPlayer).map(e -> e.player);
+        return getPlayersViewingChunk(dimension, x, z, false).stream();
     }
     
     public static List<ServerPlayer> getPlayersViewingChunk(
@@ -469,10 +768,14 @@ public class ImmPtlChunkTracking {
         int x, int z,
         boolean boundaryOnly
     ) {
-        var recs =
-            ImmPtlChunkTracking.getWatchRecordForChunk(dimension, x, z);
+        WatchRecordStore store = chunkWatchRecords.get(dimension);
         
-        if (recs == null) {
+        if (store == null) {
+            return Collections.emptyList();
+        }
+        
+        int firstSlot = store.getFirstSlot(ChunkPos.asLong(x, z));
+        if (firstSlot == -1) {
             return Collections.emptyList();
         }
         
@@ -480,64 +783,88 @@ public class ImmPtlChunkTracking {
         // the client can calculate the light by the block data, but not accurate on loading boundary
         
         ArrayList<ServerPlayer> result = new ArrayList<>();
-        for (ImmPtlChunkTracking.PlayerWatchRecord rec : recs.values()) {
-            if (rec.isLoadedToPlayer && (!boundaryOnly || rec.isBoundary)) {
-                result.add(rec.player);
+        for (int slot = firstSlot; slot != -1; slot = store.getNextSlot(slot)) {
+            if (store.isLoadedToPlayer(slot) && (!boundaryOnly || store.isBoundary(slot))) {
+                result.add(getPlayerByIndex(store.getPlayerIndex(slot)));
             }
         }
         
         return result;
     }
     
-    // Note all PlayerWatchRecord taken from it are valid
+    /**
+     * Creates snapshots of the watch records.
+     * The hot paths should iterate the {@link WatchRecordStore} directly.
+     */
     @Nullable
     public static Object2ObjectOpenHashMap<ServerPlayer, PlayerWatchRecord> getWatchRecordForChunk(
         ResourceKey<Level> dimension, int x, int z
     ) {
-        return getDimChunkWatchRecords(dimension).get(ChunkPos.asLong(x, z));
+        WatchRecordStore store = chunkWatchRecords.get(dimension);
+        if (store == null) {
+            return null;
+        }
+        
+        int firstSlot = store.getFirstSlot(ChunkPos.asLong(x, z));
+        if (firstSlot == -1) {
+            return null;
+        }
+        
+        Object2ObjectOpenHashMap<ServerPlayer, PlayerWatchRecord> result = new Object2ObjectOpenHashMap<>();
+        for (int slot = firstSlot; slot != -1; slot = store.getNextSlot(slot)) {
+            PlayerWatchRecord record = PlayerWatchRecord.fromStore(store, slot);
+            result.put(record.player, record);
+        }
+        return result;
     }
     
     public static void forceRemovePlayer(ServerPlayer oldPlayer) {
-        playerInfoMap.remove(oldPlayer);
-        
-        chunkWatchRecords.forEach((dim, dimMap) -> {
-            dimMap.long2ObjectEntrySet().removeIf(e -> {
-                long chunkPos = e.getLongKey();
-                Object2ObjectOpenHashMap<ServerPlayer, PlayerWatchRecord> records = e.getValue();
-                PlayerWatchRecord rec = records.remove(oldPlayer);
-                if (rec != null) {
+        PlayerChunkLoading playerInfo = playerInfoMap.remove(oldPlayer);
+        if (playerInfo == null) {
+            return;
+        }
+        
+        int playerIndex = playerInfo.playerIndex;
+        
+        chunkWatchRecords.forEach((dim, store) -> {
+            store.removeIf(slot -> {
+                if (store.getPlayerIndex(slot) != playerIndex) {
+                    return false;
+                }
+                
+                if (store.isLoadedToPlayer(slot)) {
                     PacketRedirection.sendRedirectedMessage(
-                        oldPlayer, dim, new ClientboundForgetLevelChunkPacket(new ChunkPos(chunkPos))
+                        oldPlayer, dim,
+                        new ClientboundForgetLevelChunkPacket(new ChunkPos(store.getChunkPos(slot)))
                     );
                 }
-                
-                return records.isEmpty();
+                return true;
             });
         });
+        
+        releasePlayerIndex(playerInfo);
     }
     
     public static void forceRemoveDimension(ServerLevel world) {
         ResourceKey<Level> dim = world.dimension();
         MinecraftServer server = world.getServer();
         
-        var map =
-            chunkWatchRecords.get(dim);
+        WatchRecordStore store = chunkWatchRecords.get(dim);
         
-        if (map == null) {
+        if (store == null) {
             return;
         }
         
-        map.forEach((chunkPos, records) -> {
-            var unloadPacket = PacketRedirection.createRedirectedMessage(
-                server,
-                dim, new ClientboundForgetLevelChunkPacket(new ChunkPos(chunkPos))
-            );
-            for (PlayerWatchRecord record : records.values()) {
-                if (record.isValid && record.isLoadedToPlayer) {
-                    record.player.connection.send(unloadPacket);
-                }
-                record.isValid = false;
+        store.removeIf(slot -> {
+            if (store.isLoadedToPlayer(slot)) {
+                getPlayerByIndex(store.getPlayerIndex(slot)).connection.send(
+                    PacketRedirection.createRedirectedMessage(
+                        server,
+                        dim, new ClientboundForgetLevelChunkPacket(new ChunkPos(store.getChunkPos(slot)))
+                    )
+                );
             }
+            return true;
         });
         
         chunkWatchRecords.remove(dim);
@@ -548,16 +875,17 @@ public class ImmPtlChunkTracking {
         
         for (PlayerChunkLoading playerInfo : playerInfoMap.values()) {
             playerInfo.additionalChunkLoaders.removeIf(l -> l.dimension() == dim);
+            // the records are already removed
+            playerInfo.chunkLoaderDelta.removeIf(l -> l.dimension() == dim);
         }
     }
     
     public static boolean shouldLoadDimension(ResourceKey<Level> dimension) {
-        if (!chunkWatchRecords.containsKey(dimension)) {
+        WatchRecordStore store = chunkWatchRecords.get(dimension);
+        if (store == null) {
             return false;
         }
-        var map =
-            chunkWatchRecords.get(dimension);
-        return !map.isEmpty();
+        return !store.isEmpty();
     }
     
     public static void addGlobalAdditionalChunkLoader(
@@ -591,7 +919,8 @@ public class ImmPtlChunkTracking {
     }
     
     public static int getLoadedChunkNum(ResourceKey<Level> dimension) {
-        return getDimChunkWatchRecords(dimension).size();
+        WatchRecordStore store = chunkWatchRecords.get(dimension);
+        return store == null ? 0 : store.getChunkNum();
     }
     
     public static void addPerPlayerAdditionalChunkLoader(
@@ -623,14 +952,14 @@ public class ImmPtlChunkTracking {
         // flush pending-sending chunks
         Set<ServerPlayer> playersViewingRegion = new HashSet<>();
         ResourceKey<Level> dimension = world.dimension();
-        for (int x = lowPos.x; x <= highPos.x; x++) {
-            for (int z = lowPos.z; z <= highPos.z; z++) {
-                Object2ObjectOpenHashMap<ServerPlayer, PlayerWatchRecord> rec =
-                    getWatchRecordForChunk(dimension, x, z);
-                if (rec != null) {
-                    for (PlayerWatchRecord r : rec.values()) {
-                        if (r.isValid && !r.isLoadedToPlayer) {
-                            playersViewingRegion.add(r.player);
+        WatchRecordStore store = chunkWatchRecords.get(dimension);
+        if (store != null) {
+            for (int x = lowPos.x; x <= highPos.x; x++) {
+                for (int z = lowPos.z; z <= highPos.z; z++) {
+                    long chunkPos = ChunkPos.asLong(x, z);
+                    for (int slot = store.getFirstSlot(chunkPos); slot != -1; slot = store.getNextSlot(slot)) {
+                        if (!store.isLoadedToPlayer(slot)) {
+                            playersViewingRegion.add(getPlayerByIndex(store.getPlayerIndex(slot)));
                         }
                     }
                 }
@@ -27,16 +27,18 @@ import qouteall.imm_ptl.core.ducks.IEMinecraftClient;
 import qouteall.imm_ptl.core.miscellaneous.IPVanillaCopy;
 import qouteall.imm_ptl.core.platform_specific.O_O;
 import qouteall.q_misc_util.my_util.SignalArged;
+import qouteall.q_misc_util.my_util.SingleWriterLong2ObjectMap;
 
 import java.util.Arrays;
 import java.util.List;
 import java.util.function.Consumer;
-import java.util.function.Function;
 
 /**
  * Vanilla use a 2D array to store the chunk references on client and cannot store the chunks that are far from player.
  * This use map to store the chunk references, to eliminate such limitation.
- * (Two maps, one for main thread and one for other threads)
+ * (Two maps, one for main thread and one for other threads.
+ * The chunk meshing workers and the light updates of Sodium read from other threads,
+ * so the map for other threads is read without locking.)
  */
 @Environment(EnvType.CLIENT)
 @IPVanillaCopy
@@ -48,9 +50,9 @@ public class ImmPtlClientChunkMap extends ClientChunkCache {
     // the main thread accesses this map, without synchronization
     protected final Long2ObjectOpenHashMap<LevelChunk> chunkMapForMainThread =
         new Long2ObjectOpenHashMap<>();
-    // other threads read this map, with synchronization
-    protected final Long2ObjectOpenHashMap<LevelChunk> chunkMapForOtherThreads =
-        new Long2ObjectOpenHashMap<>();
+    // other threads read this map without locking. only the main thread writes it
+    protected final SingleWriterLong2ObjectMap<LevelChunk> chunkMapForOtherThreads =
+        new SingleWriterLong2ObjectMap<>();
     
     public final Thread mainThread;
     
@@ -72,9 +74,7 @@ public class ImmPtlClientChunkMap extends ClientChunkCache {
         
         LevelChunk chunk = chunkMapForMainThread.get(chunkPos.toLong());
         if (chunk != null) {
-            modifyChunkMap(chunkMap -> {
-                chunkMap.remove(chunkPos.toLong());
-            });
+            removeChunk(chunkPos.toLong());
             
             O_O.postClientChunkUnloadEvent(chunk);
             this.level.unload(chunk);
@@ -83,41 +83,39 @@ public class ImmPtlClientChunkMap extends ClientChunkCache {
         }
     }
     
-    public <T> T readChunkMap(Function<Long2ObjectOpenHashMap<LevelChunk>, T> func) {
-        if (Thread.currentThread() == mainThread) {
-            return func.apply(chunkMapForMainThread);
-        }
-        else {
-            synchronized (chunkMapForOtherThreads) {
-                return func.apply(chunkMapForOtherThreads);
-            }
-        }
+    private void putChunk(long chunkPos, LevelChunk chunk) {
+        Validate.isTrue(Thread.currentThread() == mainThread);
+        chunkMapForMainThread.put(chunkPos, chunk);
+        chunkMapForOtherThreads.put(chunkPos, chunk);
     }
     
-    public void modifyChunkMap(Consumer<Long2ObjectOpenHashMap<LevelChunk>> func) {
+    private void removeChunk(long chunkPos) {
         Validate.isTrue(Thread.currentThread() == mainThread);
-        func.accept(chunkMapForMainThread);
-        synchronized (chunkMapForOtherThreads) {
-            func.accept(chunkMapForOtherThreads);
+        chunkMapForMainThread.remove(chunkPos);
+        chunkMapForOtherThreads.remove(chunkPos);
+    }
+    
+    private LevelChunk getChunkOrNull(long chunkPos) {
+        if (Thread.currentThread() == mainThread) {
+            return chunkMapForMainThread.get(chunkPos);
+        }
+        else {
+            return chunkMapForOtherThreads.get(chunkPos);
         }
     }
     
     @Override
     public LevelChunk getChunk(int x, int z, ChunkStatus chunkStatus, boolean create) {
-        return readChunkMap(chunkMap -> {
-            LevelChunk chunk = chunkMap.get(ChunkPos.asLong(x, z));
-            if (chunk != null) {
-                return chunk;
-            }
-            
-            return create ? this.emptyChunk : null;
-        });
+        LevelChunk chunk = getChunkOrNull(ChunkPos.asLong(x, z));
+        if (chunk != null) {
+            return chunk;
+        }
+        
+        return create ? this.emptyChunk : null;
     }
     
     public boolean isChunkLoaded(int x, int z) {
-        return readChunkMap(chunkMap -> {
-            return chunkMap.containsKey(ChunkPos.asLong(x, z));
-        });
+        return getChunkOrNull(ChunkPos.asLong(x, z)) != null;
     }
     
     @Override
@@ -150,10 +148,7 @@ public class ImmPtlClientChunkMap extends ClientChunkCache {
             worldChunk = new LevelChunk(this.level, new ChunkPos(x, z));
             loadChunkDataFromPacket(buf, nbt, worldChunk, consumer);
             
-            LevelChunk worldChunkToPut = worldChunk; // lambda can only capture effectively final variables
-            modifyChunkMap(chunkMap -> {
-                chunkMap.put(chunkPosLong, worldChunkToPut);
-            });
+            putChunk(chunkPosLong, worldChunk);
         }
         else {
             loadChunkDataFromPacket(buf, nbt, worldChunk, consumer);
@@ -205,9 +200,12 @@ public class ImmPtlClientChunkMap extends ClientChunkCache {
     }
     
     public List<LevelChunk> getCopiedChunkList() {
-        return readChunkMap((chunkMap) -> {
-            return Arrays.asList(chunkMap.values().toArray(new LevelChunk[0]));
-        });
+        if (Thread.currentThread() == mainThread) {
+            return Arrays.asList(chunkMapForMainThread.values().toArray(new LevelChunk[0]));
+        }
+        else {
+            return chunkMapForOtherThreads.getValueList();
+        }
     }
     
     @Override
@@ -227,9 +225,12 @@ public class ImmPtlClientChunkMap extends ClientChunkCache {
     
     @Override
     public int getLoadedChunksCount() {
-        return readChunkMap(chunkMap -> {
-            return chunkMap.size();
-        });
+        if (Thread.currentThread() == mainThread) {
+            return chunkMapForMainThread.size();
+        }
+        else {
+            return chunkMapForOtherThreads.size();
+        }
     }
     
     @Override
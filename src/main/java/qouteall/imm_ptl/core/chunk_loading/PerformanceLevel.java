@@ -77,6 +77,22 @@ public enum PerformanceLevel {
         }
     }
     
+    /**
+     * The max loading scale of {@link ChunkLoadingBudget} for the client performance.
+     * It gives the same portal range as the level.
+     */
+    public static double getLoadingScaleCap(PerformanceLevel level) {
+        if (level == good) {
+            return 1;
+        }
+        else if (level == medium) {
+            return 2.0 / 7;
+        }
+        else {
+            return 0;
+        }
+    }
+    
     public static int getPortalRenderingDistance(
         PerformanceLevel level, int originalDistance
     ) {
@@ -1,8 +1,9 @@
 package qouteall.imm_ptl.core.chunk_loading;
 
 import com.mojang.logging.LogUtils;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
 import net.minecraft.network.protocol.game.ClientboundChunkBatchFinishedPacket;
 import net.minecraft.network.protocol.game.ClientboundChunkBatchStartPacket;
 import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
@@ -17,15 +18,18 @@ import net.minecraft.server.network.ServerGamePacketListenerImpl;
 import net.minecraft.util.Mth;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.phys.Vec3;
 import org.apache.commons.lang3.Validate;
-import org.apache.commons.lang3.mutable.MutableInt;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
+import qouteall.imm_ptl.core.IPGlobal;
 import qouteall.imm_ptl.core.ducks.IEChunkMap;
 import qouteall.imm_ptl.core.miscellaneous.IPVanillaCopy;
 import qouteall.imm_ptl.core.network.PacketRedirection;
-import qouteall.q_misc_util.Helper;
+import qouteall.imm_ptl.core.portal.Portal;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -46,8 +50,21 @@ public class PlayerChunkLoading {
      */
     public final ArrayList<ChunkLoader> additionalChunkLoaders = new ArrayList<>();
     
-    public final ArrayList<ObjectArrayList<ImmPtlChunkTracking.PlayerWatchRecord>> distanceToPendingChunks =
-        new ArrayList<>();
+    /**
+     * The chunk loaders applied in the last incremental update.
+     */
+    public final ChunkLoaderDelta chunkLoaderDelta = new ChunkLoaderDelta();
+    
+    /**
+     * The pending chunks, ordered by the send priority policy.
+     * The entries are validated against {@link WatchRecordStore} when sending.
+     */
+    public final ChunkSendQueue pendingChunks = new ChunkSendQueue();
+    
+    /**
+     * The index of the player in {@link WatchRecordStore}
+     */
+    public final int playerIndex;
     
     public int loadedChunks = 0;
     
@@ -57,6 +74,18 @@ public class PlayerChunkLoading {
     
     public PerformanceLevel performanceLevel = PerformanceLevel.bad;
     
+    /**
+     * How far the portals load, in [0, 1]. Updated by {@link ChunkLoadingBudget}.
+     */
+    public double loadingScale = 0;
+    // false until the loading scale is seeded from the client's performance level
+    public boolean loadingScaleSeeded = false;
+    
+    // the last state of the loading budget, for debugging
+    public double loadingBudgetWeight = 0;
+    public double loadingBudgetAllocation = 0;
+    public double loadingBudgetUsage = 0;
+    
     /**
      * Do similar functionality as {@link PlayerChunkSender},
      * but for multi-dim and non-near-loading-only
@@ -67,19 +96,126 @@ public class PlayerChunkLoading {
     private int unacknowledgedBatches;
     private int maxUnacknowledgedBatches = 1;
     
-    public PlayerChunkLoading(boolean isMemoryConnection) {
+    // null means using the default by config
+    @Nullable
+    private static ChunkSendPriorityPolicy customSendPriorityPolicy = null;
+    
+    private static final int VIEW_REFRESH_INTERVAL_TICKS = 5;
+    
+    @Nullable
+    private ChunkSendPriorityPolicy lastSendPriorityPolicy = null;
+    @Nullable
+    private ChunkSendView sendView = null;
+    private int viewRefreshCountdown = 0;
+    
+    public PlayerChunkLoading(int playerIndex, boolean isMemoryConnection) {
+        this.playerIndex = playerIndex;
         this.isMemoryConnection = isMemoryConnection;
     }
     
+    /**
+     * Set the policy of chunk sending order for all players. Null means the default.
+     */
+    public static void setSendPriorityPolicy(@Nullable ChunkSendPriorityPolicy policy) {
+        customSendPriorityPolicy = policy;
+    }
+    
+    public static ChunkSendPriorityPolicy getSendPriorityPolicy() {
+        if (customSendPriorityPolicy != null) {
+            return customSendPriorityPolicy;
+        }
+        return IPGlobal.viewAwareChunkSending ?
+            ViewAwareChunkSendPolicy.INSTANCE : ChunkSendPriorityPolicy.DISTANCE;
+    }
+    
     /**
      * one chunk may mark pending loading multiple times with different distanceToSource
      */
-    public void markPendingLoading(ImmPtlChunkTracking.PlayerWatchRecord record) {
-        Helper.arrayListComputeIfAbsent(
-            distanceToPendingChunks,
-            record.distanceToSource,
-            ObjectArrayList::new
-        ).add(record);
+    public void markPendingLoading(int dimensionId, long chunkPos, int distanceToSource) {
+        ChunkSendPriorityPolicy policy = lastSendPriorityPolicy != null ?
+            lastSendPriorityPolicy : ChunkSendPriorityPolicy.DISTANCE;
+        pendingChunks.add(
+            dimensionId, chunkPos, distanceToSource,
+            getSendPriority(policy, dimensionId, chunkPos, distanceToSource)
+        );
+    }
+    
+    private double getSendPriority(
+        ChunkSendPriorityPolicy policy, int dimensionId, long chunkPos, int distanceToSource
+    ) {
+        if (!policy.usesView()) {
+            return policy.getPriority(null, dimensionId, chunkPos, distanceToSource, false);
+        }
+        
+        boolean isBoundary = false;
+        WatchRecordStore store = ImmPtlChunkTracking.getWatchRecordStore(dimensionId);
+        if (store != null) {
+            int slot = store.findSlot(chunkPos, playerIndex);
+            if (slot != -1) {
+                isBoundary = store.isBoundary(slot);
+            }
+        }
+        return policy.getPriority(sendView, dimensionId, chunkPos, distanceToSource, isBoundary);
+    }
+    
+    /**
+     * Re-scores the pending chunks if the policy changed or the view should be refreshed.
+     */
+    private void updateSendPriority(ServerPlayer player) {
+        ChunkSendPriorityPolicy policy = getSendPriorityPolicy();
+        boolean policyChanged = policy != lastSendPriorityPolicy;
+        lastSendPriorityPolicy = policy;
+        
+        if (policy.usesView()) {
+            viewRefreshCountdown--;
+            if (policyChanged || viewRefreshCountdown <= 0) {
+                viewRefreshCountdown = VIEW_REFRESH_INTERVAL_TICKS;
+                sendView = createSendView(player);
+                pendingChunks.rescore((dimensionId, chunkPos, distanceToSource) ->
+                    getSendPriority(policy, dimensionId, chunkPos, distanceToSource)
+                );
+            }
+        }
+        else if (policyChanged) {
+            sendView = null;
+            pendingChunks.rescore((dimensionId, chunkPos, distanceToSource) ->
+                getSendPriority(policy, dimensionId, chunkPos, distanceToSource)
+            );
+        }
+    }
+    
+    private ChunkSendView createSendView(ServerPlayer player) {
+        Vec3 eyePos = player.getEyePosition();
+        Vec3 look = player.getViewVector(1);
+        
+        List<ChunkSendView.PortalTarget> portals = new ArrayList<>();
+        List<Portal> nearbyPortals = ChunkVisibility.getNearbyPortals(
+            (ServerLevel) player.level(), player.position(),
+            portal -> portal.broadcastToPlayer(player),
+            ChunkLoadingBudget.getVisiblePortalRangeChunks(loadingScale), 256
+        );
+        for (Portal portal : nearbyPortals) {
+            Vec3 toPortal = portal.getOriginPos().subtract(eyePos);
+            double distance = portal.getDistanceToNearestPointInPortal(eyePos);
+            double alignment = toPortal.lengthSqr() < 1.0E-6 ?
+                1 : toPortal.normalize().dot(look);
+            BlockPos destPos = BlockPos.containing(
+                portal.getIsGlobal() ? portal.transformPoint(player.position()) : portal.getDestPos()
+            );
+            portals.add(new ChunkSendView.PortalTarget(
+                ImmPtlChunkTracking.getDimensionId(portal.getDestDim()),
+                SectionPos.blockToSectionCoord(destPos.getX()),
+                SectionPos.blockToSectionCoord(destPos.getZ()),
+                alignment, distance
+            ));
+        }
+        
+        return new ChunkSendView(
+            ImmPtlChunkTracking.getDimensionId(player.level().dimension()),
+            eyePos.x, eyePos.y, eyePos.z,
+            look.x, look.y, look.z,
+            portals
+        );
     }
     
     /**
@@ -111,75 +247,85 @@ public class PlayerChunkLoading {
         int maxSendNum = (int) Math.floor(batchQuota);
         Validate.isTrue(maxSendNum != 0);
         
-        MutableInt sentNum = new MutableInt(0);
-        for (var recs : distanceToPendingChunks) {
-            if (recs == null || recs.isEmpty()) {
+        updateSendPriority(serverPlayer);
+        
+        int sentNum = 0;
+        while (sentNum < maxSendNum && !pendingChunks.isEmpty()) {
+            int dimensionId = pendingChunks.getTopDimensionId();
+            long chunkPos = pendingChunks.getTopChunkPos();
+            
+            WatchRecordStore store = ImmPtlChunkTracking.getWatchRecordStore(dimensionId);
+            
+            // dimension removed, remove
+            if (store == null) {
+                pendingChunks.removeTop();
+                continue;
+            }
+            
+            int slot = store.findSlot(chunkPos, playerIndex);
+            
+            // chunk unloaded, remove
+            if (slot == -1) {
+                pendingChunks.removeTop();
                 continue;
             }
             
-            if (sentNum.getValue() >= maxSendNum) {
-                break;
+            // already loaded to player, remove
+            if (store.isLoadedToPlayer(slot)) {
+                pendingChunks.removeTop();
+                continue;
             }
             
-            Helper.removeIfWithEarlyExit(recs, (record, shouldStop) -> {
-                // chunk unloaded, remove
-                if (!record.isValid) {
-                    return true;
-                }
-                
-                // already loaded to player, remove
-                if (record.isLoadedToPlayer) {
-                    return true;
-                }
-                
-                ServerLevel world = server.getLevel(record.dimension);
-                if (world == null) {
-                    LOGGER.error(
-                        "Missing dimension when flushing pending loading {}",
-                        record.dimension.location()
-                    );
-                    return true;
-                }
-                
-                ChunkMap chunkMap = world.getChunkSource().chunkMap;
-                ChunkHolder chunkHolder = ((IEChunkMap) chunkMap).ip_getChunkHolder(record.chunkPos);
-                
-                if (chunkHolder == null) {
-                    return false; // skip
-                }
-                
-                LevelChunk tickingChunk = chunkHolder.getTickingChunk();
-                
-                // skip that chunk if not yet loaded
-                if (tickingChunk == null) {
-                    return false;
-                }
-                
-                record.isLoadedToPlayer = true;
-                
-                if (sentNum.getValue() == 0) {
-                    ++this.unacknowledgedBatches;
-                    connection.send(ClientboundChunkBatchStartPacket.INSTANCE);
-                }
-                sentNum.increment();
-                
-                sendChunkPacket(
-                    connection, world, tickingChunk
+            ResourceKey<Level> dimension = ImmPtlChunkTracking.getDimensionById(dimensionId);
+            ServerLevel world = server.getLevel(dimension);
+            if (world == null) {
+                LOGGER.error(
+                    "Missing dimension when flushing pending loading {}",
+                    dimension.location()
                 );
-                
-                if (sentNum.getValue() >= maxSendNum) {
-                    shouldStop.setValue(true);
-                }
-                
-                return true; // remove from list
-            });
+                pendingChunks.removeTop();
+                continue;
+            }
+            
+            ChunkMap chunkMap = world.getChunkSource().chunkMap;
+            ChunkHolder chunkHolder = ((IEChunkMap) chunkMap).ip_getChunkHolder(chunkPos);
+            
+            if (chunkHolder == null) {
+                pendingChunks.skipTop();
+                continue;
+            }
+            
+            LevelChunk tickingChunk = chunkHolder.getTickingChunk();
+            
+            // skip that chunk if not yet loaded
+            if (tickingChunk == null) {
+                pendingChunks.skipTop();
+                continue;
+            }
+            
+            pendingChunks.removeTop();
+            
+            store.setLoadedToPlayer(slot, true);
+            
+            if (sentNum == 0) {
+                ++this.unacknowledgedBatches;
+                connection.send(ClientboundChunkBatchStartPacket.INSTANCE);
+            }
+            sentNum++;
+            
+            sendChunkPacket(
+                connection, world, tickingChunk
+            );
         }
         
-        if (sentNum.getValue() != 0) {
-            connection.send(new ClientboundChunkBatchFinishedPacket(sentNum.getValue()));
+        // the skipped chunks are kept with their priority
+        pendingChunks.restoreSkipped();
+        
+        if (sentNum != 0) {
+            connection.send(new ClientboundChunkBatchFinishedPacket(sentNum));
         }
         
-        this.batchQuota -= (float) sentNum.getValue();
+        this.batchQuota -= (float) sentNum;
     }
     
     /**
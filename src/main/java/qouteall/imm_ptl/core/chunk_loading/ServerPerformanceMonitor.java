@@ -2,53 +2,122 @@ package qouteall.imm_ptl.core.chunk_loading;
 
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+import org.jetbrains.annotations.Nullable;
 import qouteall.imm_ptl.core.IPGlobal;
-import qouteall.q_misc_util.Helper;
+import qouteall.imm_ptl.core.teleportation.ServerTeleportationManager;
 import qouteall.q_misc_util.my_util.LimitedLogger;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class ServerPerformanceMonitor {
     
-    private static final int sampleNum = 20;
+    // update every second
+    private static final int BUDGET_UPDATE_INTERVAL_TICKS = 20;
     
     private static PerformanceLevel level = PerformanceLevel.bad;
     
     private static final LimitedLogger limitedLogger = new LimitedLogger(50);
     
+    private static final ChunkLoadingBudget loadingBudget =
+        new ChunkLoadingBudget(ChunkLoadingBudget.MIN_BUDGET_PER_PLAYER);
+    
+    // null means the default
+    @Nullable
+    private static ChunkLoadingBudgetPolicy customBudgetPolicy = null;
+    
     public static void init() {
         ServerTickEvents.END_SERVER_TICK.register(ServerPerformanceMonitor::tick);
     }
     
-    private static long lastUpdateTime = 0;
-    
     private static void tick(MinecraftServer server) {
-        if (!IPGlobal.enableServerPerformanceAdjustment) {
-            level = PerformanceLevel.good;
-            return;
-        }
-        
         if (!server.isRunning()) {
             return;
         }
         
-        long currTime = System.nanoTime();
-        
-        // update every 20 seconds
-        if (currTime - lastUpdateTime < Helper.secondToNano(20)) {
+        if (server.getTickCount() % BUDGET_UPDATE_INTERVAL_TICKS != 0) {
             return;
         }
-        else {
-            lastUpdateTime = currTime;
-        }
         
-        PerformanceLevel newLevel = PerformanceLevel.getServerPerformanceLevel(server);
+        double tickTimeRatio = (double) server.getAverageTickTimeNanos() /
+            server.tickRateManager().nanosecondsPerTick();
+        
+        PerformanceLevel newLevel = IPGlobal.enableServerPerformanceAdjustment ?
+            PerformanceLevel.getServerPerformanceLevel(server) : PerformanceLevel.good;
         if (newLevel != level) {
             level = newLevel;
             limitedLogger.log("Server performance level: " + newLevel);
         }
+        
+        updateLoadingBudget(server, tickTimeRatio);
+    }
+    
+    private static void updateLoadingBudget(MinecraftServer server, double tickTimeRatio) {
+        ChunkLoadingBudgetPolicy policy = getBudgetPolicy();
+        ServerTeleportationManager teleportationManager = ServerTeleportationManager.of(server);
+        
+        List<ServerPlayer> players = server.getPlayerList().getPlayers();
+        List<PlayerChunkLoading> playerInfos = new ArrayList<>(players.size());
+        List<ChunkLoadingBudget.Entry> entries = new ArrayList<>(players.size());
+        for (ServerPlayer player : players) {
+            PlayerChunkLoading playerInfo = ImmPtlChunkTracking.getPlayerInfo(player);
+            
+            int directChunkNum = ChunkVisibility.playerDirectLoader(player).getChunkNum();
+            double usage = Math.max(0, playerInfo.loadedChunks - directChunkNum);
+            
+            double weight = policy.getPlayerWeight(
+                playerInfo.performanceLevel,
+                teleportationManager.getTicksSinceLastTeleport(player)
+            );
+            
+            playerInfos.add(playerInfo);
+            entries.add(new ChunkLoadingBudget.Entry(
+                weight,
+                PerformanceLevel.getLoadingScaleCap(playerInfo.performanceLevel),
+                usage,
+                playerInfo.loadingScaleSeeded ? playerInfo.loadingScale : ChunkLoadingBudget.NEW_ENTRY_SCALE
+            ));
+        }
+        
+        loadingBudget.update(
+            policy, tickTimeRatio, IPGlobal.enableServerPerformanceAdjustment, entries
+        );
+        
+        for (int i = 0; i < playerInfos.size(); i++) {
+            PlayerChunkLoading playerInfo = playerInfos.get(i);
+            ChunkLoadingBudget.Entry entry = entries.get(i);
+            playerInfo.loadingScale = entry.scale;
+            // the cap is 0 until the client tells its performance level
+            if (entry.scaleCap > 0) {
+                playerInfo.loadingScaleSeeded = true;
+            }
+            playerInfo.loadingBudgetWeight = entry.weight;
+            playerInfo.loadingBudgetAllocation = entry.allocation;
+            playerInfo.loadingBudgetUsage = entry.usage;
+        }
     }
     
     public static PerformanceLevel getLevel() {
         return level;
     }
     
+    public static ChunkLoadingBudget getLoadingBudget() {
+        return loadingBudget;
+    }
+    
+    /**
+     * Set the policy of the chunk loading budget. Null means the default.
+     */
+    public static void setBudgetPolicy(@Nullable ChunkLoadingBudgetPolicy policy) {
+        customBudgetPolicy = policy;
+    }
+    
+    public static ChunkLoadingBudgetPolicy getBudgetPolicy() {
+        if (customBudgetPolicy != null) {
+            return customBudgetPolicy;
+        }
+        return FeedbackChunkLoadingBudgetPolicy.INSTANCE;
+    }
+    
 }
@@ -0,0 +1,111 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Prioritizes the chunks that the player is looking at.
+ * A chunk is attributed to the nearest view source in its dimension:
+ * the player itself, or a nearby portal whose chunk loader center is nearest to the chunk.
+ * <ul>
+ *     <li>The chunks seen through a portal in the view direction are sent earlier.</li>
+ *     <li>The chunks seen through a nearer portal are sent earlier.</li>
+ *     <li>The boundary chunks are sent later.</li>
+ * </ul>
+ * The priority is in the unit of chunk distance.
+ */
+public final class ViewAwareChunkSendPolicy implements ChunkSendPriorityPolicy {
+    public static final double DEFAULT_ALIGNMENT_WEIGHT = 6;
+    public static final double DEFAULT_PROXIMITY_WEIGHT = 0.5;
+    public static final double DEFAULT_BOUNDARY_PENALTY = 2;
+    
+    public static final ViewAwareChunkSendPolicy INSTANCE = new ViewAwareChunkSendPolicy();
+    
+    // the portals farther than it are treated as equally far
+    private static final double MAX_PROXIMITY_CHUNKS = 16;
+    
+    private final double alignmentWeight;
+    private final double proximityWeight;
+    private final double boundaryPenalty;
+    
+    public ViewAwareChunkSendPolicy() {
+        this(DEFAULT_ALIGNMENT_WEIGHT, DEFAULT_PROXIMITY_WEIGHT, DEFAULT_BOUNDARY_PENALTY);
+    }
+    
+    public ViewAwareChunkSendPolicy(
+        double alignmentWeight, double proximityWeight, double boundaryPenalty
+    ) {
+        this.alignmentWeight = alignmentWeight;
+        this.proximityWeight = proximityWeight;
+        this.boundaryPenalty = boundaryPenalty;
+    }
+    
+    @Override
+    public double getPriority(
+        @Nullable ChunkSendView view,
+        int dimensionId, long chunkPos, int distanceToSource, boolean isBoundary
+    ) {
+        double priority = distanceToSource;
+        if (isBoundary) {
+            priority += boundaryPenalty;
+        }
+        
+        if (view == null) {
+            return priority;
+        }
+        
+        int chunkX = ChunkPos.getX(chunkPos);
+        int chunkZ = ChunkPos.getZ(chunkPos);
+        
+        // the player itself
+        int nearestSourceDistance = Integer.MAX_VALUE;
+        double alignment = 0;
+        double proximityChunks = 0;
+        if (dimensionId == view.dimensionId()) {
+            int playerChunkX = ((int) Math.floor(view.eyeX())) >> 4;
+            int playerChunkZ = ((int) Math.floor(view.eyeZ())) >> 4;
+            nearestSourceDistance = Math.max(
+                Math.abs(chunkX - playerChunkX), Math.abs(chunkZ - playerChunkZ)
+            );
+            alignment = getHorizontalAlignment(view, chunkX, chunkZ);
+        }
+        
+        for (ChunkSendView.PortalTarget portal : view.portals()) {
+            if (portal.destDimensionId() != dimensionId) {
+                continue;
+            }
+            int sourceDistance = Math.max(
+                Math.abs(chunkX - portal.destChunkX()), Math.abs(chunkZ - portal.destChunkZ())
+            );
+            if (sourceDistance < nearestSourceDistance) {
+                nearestSourceDistance = sourceDistance;
+                alignment = portal.alignment();
+                proximityChunks = Math.min(portal.distance() / 16, MAX_PROXIMITY_CHUNKS);
+            }
+        }
+        
+        if (nearestSourceDistance == Integer.MAX_VALUE) {
+            // not related to any view source (per-player additional chunk loader, etc.)
+            return priority;
+        }
+        
+        return priority - alignmentWeight * Math.max(0, alignment) + proximityWeight * proximityChunks;
+    }
+    
+    private static double getHorizontalAlignment(ChunkSendView view, int chunkX, int chunkZ) {
+        double dx = chunkX * 16 + 8 - view.eyeX();
+        double dz = chunkZ * 16 + 8 - view.eyeZ();
+        double len = Math.sqrt(dx * dx + dz * dz);
+        double lookLen = Math.sqrt(view.lookX() * view.lookX() + view.lookZ() * view.lookZ());
+        if (len < 16 || lookLen < 1.0E-4) {
+            // the chunks around the player are always in view
+            return 1;
+        }
+        return (dx * view.lookX() + dz * view.lookZ()) / (len * lookLen);
+    }
+    
+    @Override
+    public boolean usesView() {
+        return true;
+    }
+}
@@ -0,0 +1,281 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays storage of the chunk watch records of one dimension.
+ * A record is identified by (chunk pos, player index) and is referred to by its slot.
+ * The records of the same chunk form a singly linked list through {@link #nextSlotArr}.
+ * It avoids allocating one object and one map entry per watched chunk per player,
+ * which churned the young generation on every purge.
+ * <p>
+ * A slot is only valid until the record is removed. Don't hold slots across ticks.
+ * <p>
+ * The chunks whose loaded records changed are collected in {@link #getChangedChunks()},
+ * so that {@link EntitySync} only re-evaluates the entities in them.
+ */
+public final class WatchRecordStore {
+    private static final int INITIAL_CAPACITY = 256;
+    
+    private static final int DISTANCE_MASK = 0xFFFF;
+    private static final int FLAG_LOADED_TO_PLAYER = 1 << 16;
+    private static final int FLAG_BOUNDARY = 1 << 17;
+    
+    public final int dimensionId;
+    
+    private long[] chunkPosArr = new long[INITIAL_CAPACITY];
+    private int[] playerIndexArr = new int[INITIAL_CAPACITY];
+    private int[] lastWatchGenerationArr = new int[INITIAL_CAPACITY];
+    private int[] watchingLoaderNumArr = new int[INITIAL_CAPACITY];
+    // the distance to source in the lower 16 bits, and the flags
+    private int[] stateArr = new int[INITIAL_CAPACITY];
+    // the next record of the same chunk, or the next free slot for free slots
+    private int[] nextSlotArr = new int[INITIAL_CAPACITY];
+    
+    private int usedSlotNum = 0;
+    private int freeSlotHead = -1;
+    private int recordNum = 0;
+    
+    private final Long2IntOpenHashMap chunkToFirstSlot = new Long2IntOpenHashMap();
+    
+    // the records that are not loaded to player don't affect entity tracking, so they are not counted
+    private final LongOpenHashSet changedChunks = new LongOpenHashSet();
+    
+    public WatchRecordStore(int dimensionId) {
+        this.dimensionId = dimensionId;
+        chunkToFirstSlot.defaultReturnValue(-1);
+    }
+    
+    public int getFirstSlot(long chunkPos) {
+        return chunkToFirstSlot.get(chunkPos);
+    }
+    
+    /**
+     * @return the next record of the same chunk, or -1
+     */
+    public int getNextSlot(int slot) {
+        return nextSlotArr[slot];
+    }
+    
+    /**
+     * @return the slot of the record, or -1 if not found
+     */
+    public int findSlot(long chunkPos, int playerIndex) {
+        for (int slot = getFirstSlot(chunkPos); slot != -1; slot = nextSlotArr[slot]) {
+            if (playerIndexArr[slot] == playerIndex) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * The caller should ensure that the record does not exist.
+     */
+    public int addRecord(
+        long chunkPos, int playerIndex, int lastWatchGeneration,
+        int distanceToSource, boolean isBoundary
+    ) {
+        int slot = allocateSlot();
+        
+        chunkPosArr[slot] = chunkPos;
+        playerIndexArr[slot] = playerIndex;
+        lastWatchGenerationArr[slot] = lastWatchGeneration;
+        watchingLoaderNumArr[slot] = 0;
+        stateArr[slot] = 0;
+        setDistanceToSource(slot, distanceToSource);
+        setBoundary(slot, isBoundary);
+        
+        nextSlotArr[slot] = chunkToFirstSlot.put(chunkPos, slot);
+        recordNum++;
+        
+        return slot;
+    }
+    
+    private int allocateSlot() {
+        if (freeSlotHead != -1) {
+            int slot = freeSlotHead;
+            freeSlotHead = nextSlotArr[slot];
+            return slot;
+        }
+        
+        if (usedSlotNum == chunkPosArr.length) {
+            int newCapacity = chunkPosArr.length * 2;
+            chunkPosArr = Arrays.copyOf(chunkPosArr, newCapacity);
+            playerIndexArr = Arrays.copyOf(playerIndexArr, newCapacity);
+            lastWatchGenerationArr = Arrays.copyOf(lastWatchGenerationArr, newCapacity);
+            watchingLoaderNumArr = Arrays.copyOf(watchingLoaderNumArr, newCapacity);
+            stateArr = Arrays.copyOf(stateArr, newCapacity);
+            nextSlotArr = Arrays.copyOf(nextSlotArr, newCapacity);
+        }
+        
+        return usedSlotNum++;
+    }
+    
+    private void freeSlot(int slot) {
+        playerIndexArr[slot] = -1;
+        nextSlotArr[slot] = freeSlotHead;
+        freeSlotHead = slot;
+        recordNum--;
+    }
+    
+    public static interface SlotPredicate {
+        boolean test(int slot);
+    }
+    
+    /**
+     * Remove the records that match the predicate.
+     * The chunks that no longer have any record are removed.
+     * The predicate should not add or remove records.
+     */
+    public void removeIf(SlotPredicate predicate) {
+        ObjectIterator<Long2IntMap.Entry> iterator = chunkToFirstSlot.long2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Long2IntMap.Entry entry = iterator.next();
+            
+            int newFirst = removeIfInList(entry.getIntValue(), predicate);
+            
+            if (newFirst == -1) {
+                iterator.remove();
+            }
+            else if (newFirst != entry.getIntValue()) {
+                entry.setValue(newFirst);
+            }
+        }
+    }
+    
+    /**
+     * @return the new first slot of the list
+     */
+    private int removeIfInList(int first, SlotPredicate predicate) {
+        int newFirst = first;
+        int prev = -1;
+        int slot = first;
+        while (slot != -1) {
+            int next = nextSlotArr[slot];
+            if (predicate.test(slot)) {
+                if (isLoadedToPlayer(slot)) {
+                    changedChunks.add(chunkPosArr[slot]);
+                }
+                if (prev == -1) {
+                    newFirst = next;
+                }
+                else {
+                    nextSlotArr[prev] = next;
+                }
+                freeSlot(slot);
+            }
+            else {
+                prev = slot;
+            }
+            slot = next;
+        }
+        return newFirst;
+    }
+    
+    public boolean containsChunk(long chunkPos) {
+        return chunkToFirstSlot.containsKey(chunkPos);
+    }
+    
+    public int getChunkNum() {
+        return chunkToFirstSlot.size();
+    }
+    
+    public int getRecordNum() {
+        return recordNum;
+    }
+    
+    public boolean isEmpty() {
+        return recordNum == 0;
+    }
+    
+    /**
+     * The chunks that a loaded record was added to, removed from, or changed distance in,
+     * since the last {@link #clearChangedChunks()}.
+     */
+    public LongOpenHashSet getChangedChunks() {
+        return changedChunks;
+    }
+    
+    public void clearChangedChunks() {
+        changedChunks.clear();
+    }
+    
+    public long getChunkPos(int slot) {
+        return chunkPosArr[slot];
+    }
+    
+    public int getPlayerIndex(int slot) {
+        return playerIndexArr[slot];
+    }
+    
+    public int getLastWatchGeneration(int slot) {
+        return lastWatchGenerationArr[slot];
+    }
+    
+    public void setLastWatchGeneration(int slot, int generation) {
+        lastWatchGenerationArr[slot] = generation;
+    }
+    
+    /**
+     * The number of current chunk loaders covering this chunk, used in incremental mode.
+     * The record is not purged when it's non-zero.
+     */
+    public int getWatchingLoaderNum(int slot) {
+        return watchingLoaderNumArr[slot];
+    }
+    
+    public void setWatchingLoaderNum(int slot, int num) {
+        watchingLoaderNumArr[slot] = num;
+    }
+    
+    public int getDistanceToSource(int slot) {
+        return stateArr[slot] & DISTANCE_MASK;
+    }
+    
+    public void setDistanceToSource(int slot, int distanceToSource) {
+        int clamped = Math.min(Math.max(distanceToSource, 0), DISTANCE_MASK);
+        int oldState = stateArr[slot];
+        stateArr[slot] = (oldState & ~DISTANCE_MASK) | clamped;
+        if ((oldState & FLAG_LOADED_TO_PLAYER) != 0 && (oldState & DISTANCE_MASK) != clamped) {
+            changedChunks.add(chunkPosArr[slot]);
+        }
+    }
+    
+    public boolean isLoadedToPlayer(int slot) {
+        return (stateArr[slot] & FLAG_LOADED_TO_PLAYER) != 0;
+    }
+    
+    public void setLoadedToPlayer(int slot, boolean value) {
+        if (isLoadedToPlayer(slot) != value) {
+            changedChunks.add(chunkPosArr[slot]);
+        }
+        setFlag(slot, FLAG_LOADED_TO_PLAYER, value);
+    }
+    
+    /**
+     * The light data is only sent on visibility boundary
+     * as the client can calculate light from block data
+     */
+    public boolean isBoundary(int slot) {
+        return (stateArr[slot] & FLAG_BOUNDARY) != 0;
+    }
+    
+    public void setBoundary(int slot, boolean value) {
+        setFlag(slot, FLAG_BOUNDARY, value);
+    }
+    
+    private void setFlag(int slot, int flag, boolean value) {
+        if (value) {
+            stateArr[slot] |= flag;
+        }
+        else {
+            stateArr[slot] &= ~flag;
+        }
+    }
+}
@@ -6,16 +6,19 @@ import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.multiplayer.ClientLevel;
+import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.network.chat.Component;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.entity.Entity;
+import net.minecraft.world.level.BlockCollisions;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.border.WorldBorder;
 import net.minecraft.world.phys.AABB;
 import net.minecraft.world.phys.Vec3;
 import net.minecraft.world.phys.shapes.BooleanOp;
+import net.minecraft.world.phys.shapes.CollisionContext;
 import net.minecraft.world.phys.shapes.Shapes;
 import net.minecraft.world.phys.shapes.VoxelShape;
 import org.jetbrains.annotations.Nullable;
@@ -28,7 +31,9 @@ import qouteall.imm_ptl.core.ducks.IEEntity;
 import qouteall.imm_ptl.core.miscellaneous.IPVanillaCopy;
 import qouteall.imm_ptl.core.mixin.common.collision.IEEntity_Collision;
 import qouteall.imm_ptl.core.portal.Portal;
+import qouteall.imm_ptl.core.portal.PortalSpatialIndex;
 import qouteall.imm_ptl.core.portal.global_portals.GlobalPortalStorage;
+import qouteall.imm_ptl.core.teleportation.ServerTeleportationManager;
 import qouteall.q_misc_util.Helper;
 import qouteall.q_misc_util.MiscHelper;
 import qouteall.q_misc_util.my_util.LimitedLogger;
@@ -41,6 +46,28 @@ public class CollisionHelper {
     
     private static final LimitedLogger limitedLogger = new LimitedLogger(20);
     
+    /**
+     * Processes the collision shapes near a portal. A null result means that the shape is removed.
+     */
+    @FunctionalInterface
+    public interface ShapeProcessor {
+        @Nullable
+        VoxelShape process(VoxelShape shape);
+        
+        /**
+         * The result can be cached by the block position and the source shape.
+         *
+         * @param sourceShape the block's collision shape before moving to the block position
+         * @param shape       the collision shape at the block position
+         */
+        @Nullable
+        default VoxelShape processBlockShape(
+            Level level, BlockPos blockPos, VoxelShape sourceShape, VoxelShape shape
+        ) {
+            return process(shape);
+        }
+    }
+    
     /**
      * cut a box with a plane.
      * the facing that normal points to will be remained.
@@ -192,7 +219,7 @@ public class CollisionHelper {
         
         // introduce a helper func to reduce argument count
         BiFunction<Vec3, AABB, Vec3> collisionFunc = (attempt, bb) ->
-            collideBoundingBox(entity, attempt, bb, entity.level(), entityCollisions, filter);
+            collideBoundingBox(entity, attempt, bb, entity.level(), entityCollisions, filter::apply);
         
         // firstly do a normal collision regardless of stepping
         Vec3 collidedMovement = attemptedMove.lengthSqr() == 0.0D ? attemptedMove :
@@ -250,7 +277,7 @@ public class CollisionHelper {
     public static Vec3 handleCollisionWithShapeProcessor(
         Entity entity,
         AABB boundingBox, Level world,
-        Vec3 attemptedMove, Function<VoxelShape, VoxelShape> filter,
+        Vec3 attemptedMove, ShapeProcessor filter,
         Direction gravity, double steppingScale
     ) {
         Direction jumpDirection = gravity.getOpposite();
@@ -341,13 +368,13 @@ public class CollisionHelper {
         Entity entity, Vec3 vec,
         AABB collisionBox, Level level,
         List<VoxelShape> potentialHits,
-        Function<VoxelShape, VoxelShape> shapeProcessor
+        ShapeProcessor shapeProcessor
     ) {
         ImmutableList.Builder<VoxelShape> builder =
             ImmutableList.builderWithExpectedSize(potentialHits.size() + 1);
         
         for (VoxelShape potentialHit : potentialHits) {
-            VoxelShape processed = shapeProcessor.apply(potentialHit);
+            VoxelShape processed = shapeProcessor.process(potentialHit);
             if (processed != null) {
                 builder.add(processed);
             }
@@ -364,13 +391,36 @@ public class CollisionHelper {
             builder.add(worldBorder.getCollisionShape());
         }
         
-        // the entity is only used for collision context. the context does not use entity position
-        Iterable<VoxelShape> blockCollisions = level.getBlockCollisions(entity, collisionBox.expandTowards(vec));
-        
-        for (VoxelShape blockCollision : blockCollisions) {
-            VoxelShape processed = shapeProcessor.apply(blockCollision);
-            if (processed != null) {
-                builder.add(processed);
+        if (IPGlobal.collisionShapeCaching) {
+            // get the block's unmoved shape again, so that the processor can cache by it
+            // the block collision shapes are shared by the block states, so getting them is cheap
+            CollisionContext collisionContext = CollisionContext.of(entity);
+            BlockCollisions<VoxelShape> blockCollisions = new BlockCollisions<>(
+                level, entity, collisionBox.expandTowards(vec), false,
+                (pos, shape) -> shapeProcessor.processBlockShape(
+                    level, pos,
+                    level.getBlockState(pos).getCollisionShape(level, pos, collisionContext),
+                    shape
+                )
+            );
+            
+            while (blockCollisions.hasNext()) {
+                // null if the processor removed the shape
+                VoxelShape processed = blockCollisions.next();
+                if (processed != null) {
+                    builder.add(processed);
+                }
+            }
+        }
+        else {
+            // the entity is only used for collision context. the context does not use entity position
+            Iterable<VoxelShape> blockCollisions = level.getBlockCollisions(entity, collisionBox.expandTowards(vec));
+            
+            for (VoxelShape blockCollision : blockCollisions) {
+                VoxelShape processed = shapeProcessor.process(blockCollision);
+                if (processed != null) {
+                    builder.add(processed);
+                }
             }
         }
         
@@ -403,22 +453,54 @@ public class CollisionHelper {
     public static void updateCollidingPortalForWorld(Level world, float partialTick) {
         world.getProfiler().push("update_colliding_portal");
         
+        // the colliding portal update must happen after all entities finishes ticking,
+        // because the entity moves during ticking.
+        PortalSpatialIndex.get(world).foreachPortal(
+            portal -> CollisionHelper.notifyCollidingPortals(portal, partialTick)
+        );
+        
         List<Portal> globalPortals = GlobalPortalStorage.getGlobalPortals(world);
+        
+        if (globalPortals.isEmpty()) {
+            world.getProfiler().pop();
+            return;
+        }
+        
         Iterable<Entity> worldEntityList = McHelper.getWorldEntityList(world);
         
+        ServerTeleportationManager serverTeleportationManager = world instanceof ServerLevel serverLevel ?
+            ServerTeleportationManager.of(serverLevel.getServer()) : null;
+        
+        // with few global portals, testing each of them is faster
+        GlobalPortalBroadPhase broadPhase = globalPortals.size() >= GlobalPortalBroadPhase.MIN_BOX_NUM ?
+            GlobalPortalStorage.getBroadPhase(world, globalPortals) : null;
+        int[] candidates = broadPhase != null ? new int[globalPortals.size()] : null;
+        double[] entityBox = new double[6];
+        
         for (Entity entity : worldEntityList) {
-            if (entity instanceof Portal portal) {
-                // the colliding portal update must happen after all entities finishes ticking,
-                // because the entity moves during ticking.
-                CollisionHelper.notifyCollidingPortals(portal, partialTick);
-            }
-            else {
-                AABB entityBoundingBoxStretched = getStretchedBoundingBox(entity);
-                for (Portal globalPortal : globalPortals) {
-                    AABB globalPortalBoundingBox = globalPortal.getBoundingBox();
-                    if (entityBoundingBoxStretched.intersects(globalPortalBoundingBox)) {
-                        if (canCollideWithPortal(entity, globalPortal, partialTick)) {
-                            ((IEEntity) entity).ip_notifyCollidingWithPortal(globalPortal);
+            if (!(entity instanceof Portal)) {
+                getStretchedBoundingBox(entity, entityBox);
+                if (broadPhase != null) {
+                    int candidateNum = broadPhase.query(
+                        entityBox[0], entityBox[1], entityBox[2],
+                        entityBox[3], entityBox[4], entityBox[5],
+                        candidates
+                    );
+                    for (int i = 0; i < candidateNum; i++) {
+                        notifyCollidingWithGlobalPortal(
+                            entity, globalPortals.get(candidates[i]), partialTick, serverTeleportationManager
+                        );
+                    }
+                }
+                else {
+                    for (Portal globalPortal : globalPortals) {
+                        if (globalPortal.getBoundingBox().intersects(
+                            entityBox[0], entityBox[1], entityBox[2],
+                            entityBox[3], entityBox[4], entityBox[5]
+                        )) {
+                            notifyCollidingWithGlobalPortal(
+                                entity, globalPortal, partialTick, serverTeleportationManager
+                            );
                         }
                     }
                 }
@@ -428,6 +510,18 @@ public class CollisionHelper {
         world.getProfiler().pop();
     }
     
+    private static void notifyCollidingWithGlobalPortal(
+        Entity entity, Portal globalPortal, float partialTick,
+        @Nullable ServerTeleportationManager serverTeleportationManager
+    ) {
+        if (canCollideWithPortal(entity, globalPortal, partialTick)) {
+            ((IEEntity) entity).ip_notifyCollidingWithPortal(globalPortal);
+            if (serverTeleportationManager != null) {
+                serverTeleportationManager.onEntityCollidingWithGlobalPortal(entity);
+            }
+        }
+    }
+    
     public static void init() {
         ServerTickEvents.END_SERVER_TICK.register((server) -> {
             for (ServerLevel world : server.getAllLevels()) {
@@ -469,6 +563,7 @@ public class CollisionHelper {
         }
         
         AABB portalBoundingBox = portal.getBoundingBox();
+        double[] entityBox = new double[6];
         
         McHelper.foreachEntitiesByBoxApproximateRegions(
             Entity.class, portal.level(),
@@ -477,8 +572,11 @@ public class CollisionHelper {
                 if (entity instanceof Portal) {
                     return;
                 }
-                AABB entityBoxStretched = getStretchedBoundingBox(entity);
-                if (!entityBoxStretched.intersects(portalBoundingBox)) {
+                getStretchedBoundingBox(entity, entityBox);
+                if (!portalBoundingBox.intersects(
+                    entityBox[0], entityBox[1], entityBox[2],
+                    entityBox[3], entityBox[4], entityBox[5]
+                )) {
                     return;
                 }
                 boolean canCollideWithPortal = canCollideWithPortal(entity, portal, partialTick);
@@ -511,6 +609,60 @@ public class CollisionHelper {
         return box;
     }
     
+    /**
+     * The same as {@link #getStretchedBoundingBox(Entity)}, without allocating.
+     *
+     * @param dest minX, minY, minZ, maxX, maxY, maxZ are written into it
+     */
+    public static void getStretchedBoundingBox(Entity entity, double[] dest) {
+        AABB box = entity.getBoundingBox();
+        double minX = box.minX;
+        double minY = box.minY;
+        double minZ = box.minZ;
+        double maxX = box.maxX;
+        double maxY = box.maxY;
+        double maxZ = box.maxZ;
+        
+        Vec3 velocity = McHelper.getWorldVelocity(entity);
+        double forwardX = velocity.x * 1.2;
+        double forwardY = velocity.y * 1.2;
+        double forwardZ = velocity.z * 1.2;
+        // the same as AABB.expandTowards
+        minX += Math.min(forwardX, 0);
+        maxX += Math.max(forwardX, 0);
+        minY += Math.min(forwardY, 0);
+        maxY += Math.max(forwardY, 0);
+        minZ += Math.min(forwardZ, 0);
+        maxZ += Math.max(forwardZ, 0);
+        
+        double backwardX = entity.xo - entity.getX();
+        double backwardY = entity.yo - entity.getY();
+        double backwardZ = entity.zo - entity.getZ();
+        minX += Math.min(backwardX, 0);
+        maxX += Math.max(backwardX, 0);
+        minY += Math.min(backwardY, 0);
+        maxY += Math.max(backwardY, 0);
+        minZ += Math.min(backwardZ, 0);
+        maxZ += Math.max(backwardZ, 0);
+        
+        double scale = ScaleUtils.getScale(entity);
+        if (scale > 4) {
+            minX -= scale;
+            minY -= scale;
+            minZ -= scale;
+            maxX += scale;
+            maxY += scale;
+            maxZ += scale;
+        }
+        
+        dest[0] = minX;
+        dest[1] = minY;
+        dest[2] = minZ;
+        dest[3] = maxX;
+        dest[4] = maxY;
+        dest[5] = maxZ;
+    }
+    
     private static boolean thisTickStagnate = false;
     private static boolean lastTickStagnate = false;
     
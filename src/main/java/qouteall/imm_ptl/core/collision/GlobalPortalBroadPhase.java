@@ -0,0 +1,185 @@
+package qouteall.imm_ptl.core.collision;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+/**
+ * Broad phase of the collision between entities and global portals.
+ * The global portals (world wrapping, vertical connecting) are huge but thin,
+ * so each box is put into the group of its thinnest axis and sorted along that axis.
+ * A query binary-searches each group on its thin axis, then checks the whole box.
+ * The query does not allocate.
+ * <p>
+ * The box intersection test is the same as {@link net.minecraft.world.phys.AABB#intersects(double, double, double, double, double, double)}.
+ */
+public final class GlobalPortalBroadPhase {
+    /**
+     * Below this, testing every box is about as fast, see GlobalPortalBroadPhaseTest.
+     */
+    public static final int MIN_BOX_NUM = 8;
+    
+    private final int boxNum;
+    
+    // minX, minY, minZ, maxX, maxY, maxZ of each box
+    private final double[] boxes;
+    
+    // for each axis, the indices of the boxes whose thinnest axis is it, sorted by min on that axis
+    private final int[][] sortedIndices = new int[3][];
+    private final double[][] sortedMins = new double[3][];
+    // the prefix maximum of max on that axis, for stopping the backward scan early
+    private final double[][] prefixMaxes = new double[3][];
+    
+    /**
+     * @param boxes minX, minY, minZ, maxX, maxY, maxZ of each box. It's not copied.
+     */
+    public GlobalPortalBroadPhase(double[] boxes) {
+        if (boxes.length % 6 != 0) {
+            throw new IllegalArgumentException("Invalid box array length " + boxes.length);
+        }
+        this.boxes = boxes;
+        this.boxNum = boxes.length / 6;
+        
+        int[] groupSizes = new int[3];
+        int[] boxAxis = new int[boxNum];
+        for (int i = 0; i < boxNum; i++) {
+            int axis = getThinnestAxis(i);
+            boxAxis[i] = axis;
+            groupSizes[axis]++;
+        }
+        
+        for (int axis = 0; axis < 3; axis++) {
+            int[] indices = new int[groupSizes[axis]];
+            int n = 0;
+            for (int i = 0; i < boxNum; i++) {
+                if (boxAxis[i] == axis) {
+                    indices[n++] = i;
+                }
+            }
+            
+            int finalAxis = axis;
+            IntArrays.quickSort(
+                indices, (a, b) -> Double.compare(getMin(a, finalAxis), getMin(b, finalAxis))
+            );
+            
+            double[] mins = new double[indices.length];
+            double[] maxes = new double[indices.length];
+            double runningMax = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < indices.length; j++) {
+                mins[j] = getMin(indices[j], axis);
+                runningMax = Math.max(runningMax, getMax(indices[j], axis));
+                maxes[j] = runningMax;
+            }
+            
+            sortedIndices[axis] = indices;
+            sortedMins[axis] = mins;
+            prefixMaxes[axis] = maxes;
+        }
+    }
+    
+    private int getThinnestAxis(int box) {
+        int result = 0;
+        double minLen = Double.POSITIVE_INFINITY;
+        for (int axis = 0; axis < 3; axis++) {
+            double len = getMax(box, axis) - getMin(box, axis);
+            if (len < minLen) {
+                minLen = len;
+                result = axis;
+            }
+        }
+        return result;
+    }
+    
+    private double getMin(int box, int axis) {
+        return boxes[box * 6 + axis];
+    }
+    
+    private double getMax(int box, int axis) {
+        return boxes[box * 6 + 3 + axis];
+    }
+    
+    public int getBoxNum() {
+        return boxNum;
+    }
+    
+    /**
+     * Finds the boxes that intersect the query box.
+     *
+     * @param result the indices of the intersecting boxes are written into it.
+     *               Its length should be at least {@link #getBoxNum()}.
+     * @return the number of intersecting boxes. The indices are in ascending order.
+     */
+    public int query(
+        double minX, double minY, double minZ,
+        double maxX, double maxY, double maxZ,
+        int[] result
+    ) {
+        int resultNum = 0;
+        resultNum = queryGroup(0, minX, maxX, minX, minY, minZ, maxX, maxY, maxZ, result, resultNum);
+        resultNum = queryGroup(1, minY, maxY, minX, minY, minZ, maxX, maxY, maxZ, result, resultNum);
+        resultNum = queryGroup(2, minZ, maxZ, minX, minY, minZ, maxX, maxY, maxZ, result, resultNum);
+        
+        // keep the order of the boxes, as the first colliding portal is the main one
+        for (int i = 1; i < resultNum; i++) {
+            int value = result[i];
+            int j = i - 1;
+            while (j >= 0 && result[j] > value) {
+                result[j + 1] = result[j];
+                j--;
+            }
+            result[j + 1] = value;
+        }
+        
+        return resultNum;
+    }
+    
+    private int queryGroup(
+        int axis, double queryMin, double queryMax,
+        double minX, double minY, double minZ,
+        double maxX, double maxY, double maxZ,
+        int[] result, int resultNum
+    ) {
+        int[] indices = sortedIndices[axis];
+        if (indices.length == 0) {
+            return resultNum;
+        }
+        
+        // the boxes at and after it have min >= queryMax so they cannot intersect
+        int end = lowerBound(sortedMins[axis], queryMax);
+        
+        double[] maxes = prefixMaxes[axis];
+        for (int j = end - 1; j >= 0 && maxes[j] > queryMin; j--) {
+            int offset = indices[j] * 6;
+            if (minX < boxes[offset + 3] && maxX > boxes[offset] &&
+                minY < boxes[offset + 4] && maxY > boxes[offset + 1] &&
+                minZ < boxes[offset + 5] && maxZ > boxes[offset + 2]
+            ) {
+                result[resultNum++] = indices[j];
+            }
+        }
+        return resultNum;
+    }
+    
+    // the first index whose value is >= the key
+    private static int lowerBound(double[] arr, double key) {
+        // linear search is faster for the usual few portals
+        if (arr.length <= 8) {
+            int i = 0;
+            while (i < arr.length && arr[i] < key) {
+                i++;
+            }
+            return i;
+        }
+        
+        int low = 0;
+        int high = arr.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (arr[mid] < key) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
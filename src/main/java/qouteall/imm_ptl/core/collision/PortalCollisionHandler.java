@@ -1,5 +1,6 @@
 package qouteall.imm_ptl.core.collision;
 
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.world.entity.Entity;
@@ -17,6 +18,7 @@ import qouteall.imm_ptl.core.McHelper;
 import qouteall.imm_ptl.core.compat.GravityChangerInterface;
 import qouteall.imm_ptl.core.ducks.IEEntity;
 import qouteall.imm_ptl.core.portal.Portal;
+import qouteall.imm_ptl.core.portal.PortalSpatialIndex;
 import qouteall.q_misc_util.Helper;
 import qouteall.q_misc_util.my_util.Plane;
 import qouteall.q_misc_util.my_util.Range;
@@ -25,13 +27,34 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.function.Predicate;
 
 public class PortalCollisionHandler {
     private static final int maxCollidingPortals = 6;
     
+    // how much the box can move before the indirect colliding portal candidates are searched again
+    private static final double indirectPortalEnvelopeMargin = 2;
+    
     public long lastActiveTime;
     public final List<PortalCollisionEntry> portalCollisions = new ArrayList<>();
     
+    /**
+     * The portals in the section range of the envelope box around the other side box of a colliding portal.
+     * Their bounding boxes are not tested, because a portal can move or resize within its section
+     * without changing the modification count.
+     */
+    private static final class IndirectPortalCandidates {
+        Level world;
+        AABB envelope;
+        List<Portal> candidates;
+        int modificationCount;
+        long lastUseTime;
+    }
+    
+    // colliding portal (including the nested ones) -> candidates
+    private final Reference2ObjectOpenHashMap<Portal, IndirectPortalCandidates> indirectPortalCandidates =
+        new Reference2ObjectOpenHashMap<>();
+    
     public boolean isRecentlyCollidingWithPortal(Entity entity) {
         return getTiming(entity) - lastActiveTime < 20;
     }
@@ -63,6 +86,11 @@ public class PortalCollisionHandler {
             
             return false;
         });
+        
+        if (!indirectPortalCandidates.isEmpty()) {
+            long timing = getTiming(entity);
+            indirectPortalCandidates.values().removeIf(c -> Math.abs(timing - c.lastUseTime) >= 20);
+        }
     }
     
     private static int getTiming(Entity entity) {
@@ -89,7 +117,7 @@ public class PortalCollisionHandler {
         return result;
     }
     
-    private static Vec3 doHandleCollision(
+    private Vec3 doHandleCollision(
         Entity entity, Vec3 attemptedMove, int portalLayer,
         List<PortalCollisionEntry> portalCollisions, AABB originalBoundingBox
     ) {
@@ -142,7 +170,7 @@ public class PortalCollisionHandler {
     }
     
     @SuppressWarnings({"UnnecessaryLocalVariable", "deprecation"})
-    private static Vec3 handleOtherSideMove(
+    private Vec3 handleOtherSideMove(
         Entity entity,
         Vec3 attemptedMove,
         Portal collidingPortal,
@@ -159,7 +187,7 @@ public class PortalCollisionHandler {
             return attemptedMove;
         }
         
-        Vec3 transformedAttemptedMove = collidingPortal.transformLocalVec(attemptedMove);
+        Vec3 transformedAttemptedMove = collidingPortal.getTransformation().transformLocalVec(attemptedMove);
         
         AABB boxOtherSide = CollisionHelper.transformBox(collidingPortal, originalBoundingBox);
         if (boxOtherSide == null) {
@@ -183,11 +211,9 @@ public class PortalCollisionHandler {
             return attemptedMove;
         }
         
-        List<Portal> indirectCollidingPortals = McHelper.findEntitiesByBox(
-            Portal.class,
-            collidingPortal.getDestinationWorld(),
+        List<Portal> indirectCollidingPortals = findIndirectCollidingPortals(
+            entity, collidingPortal, destinationWorld,
             boxOtherSide.expandTowards(transformedAttemptedMove),
-            IPGlobal.maxNormalPortalRadius,
             p -> CollisionHelper.mayEntityCollideWithPortal(
                 entity, p, transformedEyePos, boxOtherSide
             ) && collidingPortal.isOnDestinationSide(p.getOriginPos(), 0.1)
@@ -201,24 +227,7 @@ public class PortalCollisionHandler {
         collided = CollisionHelper.handleCollisionWithShapeProcessor(
             entity, boxOtherSide, destinationWorld,
             collided,
-            shape -> {
-                VoxelShape current = innerClipping == null ? shape :
-                    CollisionHelper.clipVoxelShape(
-                        shape, innerClipping.pos(), innerClipping.normal()
-                    );
-                
-                if (current == null) {
-                    return null;
-                }
-                
-                if (!indirectCollidingPortals.isEmpty()) {
-                    current = processThisSideCollisionShape(
-                        current, indirectCollidingPortals
-                    );
-                }
-                
-                return current;
-            },
+            new OtherSideShapeProcessor(collidingPortal, innerClipping, indirectCollidingPortals),
             transformedGravityDirection, collidingPortal.getScale());
         
         if (!indirectCollidingPortals.isEmpty()) {
@@ -238,11 +247,54 @@ public class PortalCollisionHandler {
             CollisionHelper.fixCoordinateFloatingPointError(transformedAttemptedMove.z, collided.z)
         );
         
-        Vec3 result = collidingPortal.inverseTransformLocalVec(collided);
+        Vec3 result = collidingPortal.getTransformation().inverseTransformLocalVec(collided);
         
         return result;
     }
     
+    /**
+     * The same as finding the portals by the box in the destination world.
+     * The portals in the section range of an envelope box are kept,
+     * until the box goes out of the envelope or the portals in the world change.
+     */
+    private List<Portal> findIndirectCollidingPortals(
+        Entity entity, Portal collidingPortal, Level destinationWorld,
+        AABB box, Predicate<Portal> predicate
+    ) {
+        PortalSpatialIndex spatialIndex = PortalSpatialIndex.get(destinationWorld);
+        
+        if (!IPGlobal.cacheIndirectCollidingPortals) {
+            return spatialIndex.findPortalsByBox(box, IPGlobal.maxNormalPortalRadius, predicate);
+        }
+        
+        IndirectPortalCandidates c = indirectPortalCandidates.get(collidingPortal);
+        if (c == null) {
+            c = new IndirectPortalCandidates();
+            indirectPortalCandidates.put(collidingPortal, c);
+        }
+        
+        if (c.world != destinationWorld ||
+            c.modificationCount != spatialIndex.getModificationCount() ||
+            !Helper.boxContains(c.envelope, box)
+        ) {
+            c.world = destinationWorld;
+            c.envelope = box.inflate(indirectPortalEnvelopeMargin);
+            c.candidates = spatialIndex.findPortalsInSectionRangeOfBox(
+                c.envelope, IPGlobal.maxNormalPortalRadius
+            );
+            c.modificationCount = spatialIndex.getModificationCount();
+        }
+        c.lastUseTime = getTiming(entity);
+        
+        if (c.candidates.isEmpty()) {
+            return c.candidates;
+        }
+        
+        return spatialIndex.filterPortalsByBox(
+            c.candidates, box, IPGlobal.maxNormalPortalRadius, predicate
+        );
+    }
+    
     private static Vec3 handleOtherSideChunkNotLoaded(Entity entity, Vec3 attemptedMove, Portal collidingPortal, AABB originalBoundingBox) {
         if (entity instanceof Player && entity.level().isClientSide()) {
             CollisionHelper.informClientStagnant();
@@ -272,67 +324,179 @@ public class PortalCollisionHandler {
         return CollisionHelper.handleCollisionWithShapeProcessor(
             entity, entity.getBoundingBox(), entity.level(),
             attemptedMove,
-            shape -> processThisSideCollisionShape(
-                shape, Helper.mappedListView(portalCollisions, e -> e.portal)
-            ),
+            new ThisSideShapeProcessor(Helper.mappedListView(portalCollisions, e -> e.portal)),
             gravity, 1);
     }
     
+    private record OtherSideShapeProcessor(
+        Portal collidingPortal, @Nullable Plane innerClipping, List<Portal> indirectCollidingPortals
+    ) implements CollisionHelper.ShapeProcessor {
+        @Override
+        public @Nullable VoxelShape process(VoxelShape shape) {
+            VoxelShape current = clipByInnerClipping(shape);
+            
+            if (current == null) {
+                return null;
+            }
+            
+            if (!indirectCollidingPortals.isEmpty()) {
+                current = processThisSideCollisionShape(
+                    current, indirectCollidingPortals
+                );
+            }
+            
+            return current;
+        }
+        
+        @Override
+        public @Nullable VoxelShape processBlockShape(
+            Level level, BlockPos blockPos, VoxelShape sourceShape, VoxelShape shape
+        ) {
+            VoxelShape current = innerClipping == null ? shape :
+                collidingPortal.getClippedShapeCache().getOrCompute(
+                    PortalCollisionShapeCache.LevelIndex.get(level), blockPos, sourceShape, shape, this::clipByInnerClipping
+                );
+            
+            if (current == null) {
+                return null;
+            }
+            
+            if (!indirectCollidingPortals.isEmpty()) {
+                current = processThisSideBlockShape(
+                    level, blockPos, sourceShape, shape, current, indirectCollidingPortals
+                );
+            }
+            
+            return current;
+        }
+        
+        private @Nullable VoxelShape clipByInnerClipping(VoxelShape shape) {
+            if (innerClipping == null) {
+                return shape;
+            }
+            
+            return CollisionHelper.clipVoxelShape(
+                shape, innerClipping.pos(), innerClipping.normal()
+            );
+        }
+    }
+    
+    private record ThisSideShapeProcessor(
+        List<Portal> portals
+    ) implements CollisionHelper.ShapeProcessor {
+        @Override
+        public @Nullable VoxelShape process(VoxelShape shape) {
+            return processThisSideCollisionShape(shape, portals);
+        }
+        
+        @Override
+        public @Nullable VoxelShape processBlockShape(
+            Level level, BlockPos blockPos, VoxelShape sourceShape, VoxelShape shape
+        ) {
+            return processThisSideBlockShape(level, blockPos, sourceShape, shape, shape, portals);
+        }
+    }
+    
     @Nullable
     private static VoxelShape processThisSideCollisionShape(
         VoxelShape originalShape, List<Portal> portalCollisions
     ) {
         VoxelShape shape = originalShape;
         
-        if (shape.isEmpty()) {
-            return shape;
+        for (int i = 0; i < portalCollisions.size(); i++) {
+            if (shape.isEmpty()) {
+                return shape;
+            }
+            
+            shape = excludeThisSideCollision(shape, portalCollisions.get(i));
+            
+            if (shape == null) {
+                return null;
+            }
         }
         
-        AABB shapeBounds = shape.bounds();
-        
+        return shape;
+    }
+    
+    /**
+     * The same as {@link #processThisSideCollisionShape(VoxelShape, List)},
+     * but caches the exclusion of each portal in {@link Portal#getExcludedShapeCache()}.
+     *
+     * @param originalShape the block's shape before any processing
+     * @param shape         the block's shape after the previous processing
+     */
+    @Nullable
+    private static VoxelShape processThisSideBlockShape(
+        Level level, BlockPos blockPos, VoxelShape sourceShape,
+        VoxelShape originalShape, VoxelShape shape, List<Portal> portalCollisions
+    ) {
         for (int i = 0; i < portalCollisions.size(); i++) {
-            Portal portal = portalCollisions.get(i);
+            if (shape.isEmpty()) {
+                return shape;
+            }
             
-            Plane clipping = portal.getPortalShape().getOuterClipping(portal.getThisSideState());
+            Portal portal = portalCollisions.get(i);
             
-            if (clipping != null) {
-                boolean boxFullyBehindPlane = CollisionHelper.isBoxFullyBehindPlane(
-                    clipping.pos(), clipping.normal(), shapeBounds
+            if (shape == originalShape) {
+                shape = portal.getExcludedShapeCache().getOrCompute(
+                    PortalCollisionShapeCache.LevelIndex.get(level), blockPos, sourceShape, shape,
+                    s -> excludeThisSideCollision(s, portal)
                 );
-                
-                // it's a workaround for diagonal portals
-                // MC does not support not axis-aligned shape collision
-                // if the box is not fully behind the plane, keep it
-                if (!boxFullyBehindPlane) {
-                    continue;
-                }
             }
-            
-            VoxelShape exclusion = portal.getThisSideCollisionExclusion();
-            
-            if (exclusion == null || exclusion.isEmpty()) {
-                continue;
+            else {
+                // the cache is keyed by the source shape,
+                // so it does not apply to a shape already changed by another portal
+                shape = excludeThisSideCollision(shape, portal);
             }
             
-            if (Helper.boxContains(exclusion.bounds(), shapeBounds)) {
-                // fully excluded
+            if (shape == null) {
                 return null;
             }
-            
-            shape = Shapes.joinUnoptimized(
-                shape,
-                exclusion,
-                BooleanOp.ONLY_FIRST
+        }
+        
+        return shape;
+    }
+    
+    /**
+     * The result only depends on the shape and the portal.
+     *
+     * @return null if the shape is fully excluded
+     */
+    @Nullable
+    private static VoxelShape excludeThisSideCollision(VoxelShape shape, Portal portal) {
+        AABB shapeBounds = shape.bounds();
+        
+        Plane clipping = portal.getPortalShape().getOuterClipping(portal.getThisSideState());
+        
+        if (clipping != null) {
+            boolean boxFullyBehindPlane = CollisionHelper.isBoxFullyBehindPlane(
+                clipping.pos(), clipping.normal(), shapeBounds
             );
             
-            if (shape.isEmpty()) {
+            // it's a workaround for diagonal portals
+            // MC does not support not axis-aligned shape collision
+            // if the box is not fully behind the plane, keep it
+            if (!boxFullyBehindPlane) {
                 return shape;
             }
-            
-            shapeBounds = shape.bounds();
         }
         
-        return shape;
+        VoxelShape exclusion = portal.getThisSideCollisionExclusion();
+        
+        if (exclusion == null || exclusion.isEmpty()) {
+            return shape;
+        }
+        
+        if (Helper.boxContains(exclusion.bounds(), shapeBounds)) {
+            // fully excluded
+            return null;
+        }
+        
+        return Shapes.joinUnoptimized(
+            shape,
+            exclusion,
+            BooleanOp.ONLY_FIRST
+        );
     }
     
     public @Nullable AABB getActiveCollisionBox(Entity entity, AABB rawBoundingBox) {
@@ -358,9 +522,7 @@ public class PortalCollisionHandler {
     ) {
         ((IEEntity) entity).ip_clearCollidingPortal();
         
-        McHelper.findEntitiesByBox(
-            Portal.class,
-            entity.level(),
+        PortalSpatialIndex.get(entity.level()).findPortalsByBox(
             CollisionHelper.getStretchedBoundingBox(entity),
             IPGlobal.maxNormalPortalRadius,
             p -> true
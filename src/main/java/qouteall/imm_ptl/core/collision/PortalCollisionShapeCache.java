@@ -0,0 +1,201 @@
+package qouteall.imm_ptl.core.collision;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.shapes.VoxelShape;
+import org.jetbrains.annotations.Nullable;
+import qouteall.imm_ptl.core.ducks.IEWorld;
+import qouteall.imm_ptl.core.portal.Portal;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * Caches the results of clipping or excluding the block collision shapes for one portal.
+ * The key is the block position and the identity of the block's collision shape before moving to the block position.
+ * The block states share their collision shapes and the shapes are immutable,
+ * so the same key always gets the same result until the portal changes.
+ * <br>
+ * The entries of a section are dropped when a block in it changes, so that the shapes of the removed blocks are not kept.
+ * The whole cache is cleared in {@link Portal#updateCache()}.
+ * It's only accessed in the thread of the level.
+ */
+public final class PortalCollisionShapeCache {
+    private static final int MAX_ENTRY_NUM = 4096;
+    
+    // a block's shape may depend on the colliding entity, but it rarely has many shapes
+    private static final int MAX_SHAPES_PER_BLOCK = 4;
+    
+    private static final LongAdder hitNum = new LongAdder();
+    private static final LongAdder missNum = new LongAdder();
+    
+    private static final class Entry {
+        final VoxelShape sourceShape;
+        // null if the shape is fully removed
+        final @Nullable VoxelShape result;
+        // the result is the same as the input shape. the input shape is not kept as it's moved for each query
+        final boolean unchanged;
+        final @Nullable Entry next;
+        
+        Entry(VoxelShape sourceShape, @Nullable VoxelShape result, boolean unchanged, @Nullable Entry next) {
+            this.sourceShape = sourceShape;
+            this.result = result;
+            this.unchanged = unchanged;
+            this.next = next;
+        }
+    }
+    
+    /**
+     * The caches that have entries in each section of a level.
+     */
+    public static final class LevelIndex {
+        private final Long2ObjectOpenHashMap<ReferenceOpenHashSet<PortalCollisionShapeCache>> sectionToCaches =
+            new Long2ObjectOpenHashMap<>();
+        
+        public static LevelIndex get(Level level) {
+            return ((IEWorld) level).ip_getCollisionShapeCacheIndex();
+        }
+        
+        public void onBlockChanged(BlockPos blockPos) {
+            if (sectionToCaches.isEmpty()) {
+                return;
+            }
+            
+            long sectionPos = SectionPos.asLong(blockPos);
+            ReferenceOpenHashSet<PortalCollisionShapeCache> caches = sectionToCaches.remove(sectionPos);
+            if (caches != null) {
+                for (PortalCollisionShapeCache cache : caches) {
+                    cache.removeSection(sectionPos);
+                }
+            }
+        }
+        
+        private void add(long sectionPos, PortalCollisionShapeCache cache) {
+            sectionToCaches.computeIfAbsent(sectionPos, k -> new ReferenceOpenHashSet<>()).add(cache);
+        }
+        
+        private void remove(long sectionPos, PortalCollisionShapeCache cache) {
+            ReferenceOpenHashSet<PortalCollisionShapeCache> caches = sectionToCaches.get(sectionPos);
+            if (caches != null) {
+                caches.remove(cache);
+                if (caches.isEmpty()) {
+                    sectionToCaches.remove(sectionPos);
+                }
+            }
+        }
+    }
+    
+    // the index of the level of the blocks
+    private @Nullable LevelIndex levelIndex;
+    
+    // section pos -> block pos -> entries
+    private final Long2ObjectOpenHashMap<Long2ObjectOpenHashMap<Entry>> sectionToEntries =
+        new Long2ObjectOpenHashMap<>();
+    private int entryNum = 0;
+    
+    /**
+     * @param sourceShape the block's collision shape, not moved to the block position
+     * @param shape       the collision shape moved to the block position
+     * @param func        computes the result from the moved shape. its result should only depend on the shape and the portal
+     */
+    public @Nullable VoxelShape getOrCompute(
+        LevelIndex levelIndex, BlockPos blockPos, VoxelShape sourceShape, VoxelShape shape,
+        UnaryOperator<VoxelShape> func
+    ) {
+        if (levelIndex != this.levelIndex) {
+            clear();
+            this.levelIndex = levelIndex;
+        }
+        
+        long sectionPos = SectionPos.asLong(blockPos);
+        long blockPosLong = blockPos.asLong();
+        
+        Long2ObjectOpenHashMap<Entry> entries = sectionToEntries.get(sectionPos);
+        Entry head = null;
+        int shapeNum = 0;
+        if (entries != null) {
+            head = entries.get(blockPosLong);
+            for (Entry entry = head; entry != null; entry = entry.next) {
+                if (entry.sourceShape == sourceShape) {
+                    hitNum.increment();
+                    return entry.unchanged ? shape : entry.result;
+                }
+                shapeNum++;
+            }
+        }
+        
+        missNum.increment();
+        VoxelShape result = func.apply(shape);
+        
+        if (entryNum >= MAX_ENTRY_NUM) {
+            clear();
+            this.levelIndex = levelIndex;
+            entries = null;
+            head = null;
+        }
+        else if (shapeNum >= MAX_SHAPES_PER_BLOCK) {
+            // the block's shape keeps changing. drop the old ones
+            entryNum -= shapeNum;
+            head = null;
+        }
+        
+        if (entries == null) {
+            entries = new Long2ObjectOpenHashMap<>();
+            sectionToEntries.put(sectionPos, entries);
+            levelIndex.add(sectionPos, this);
+        }
+        
+        boolean unchanged = result == shape;
+        entries.put(blockPosLong, new Entry(sourceShape, unchanged ? null : result, unchanged, head));
+        entryNum++;
+        
+        return result;
+    }
+    
+    private void removeSection(long sectionPos) {
+        Long2ObjectOpenHashMap<Entry> entries = sectionToEntries.remove(sectionPos);
+        if (entries != null) {
+            for (Entry head : entries.values()) {
+                for (Entry entry = head; entry != null; entry = entry.next) {
+                    entryNum--;
+                }
+            }
+        }
+    }
+    
+    public void clear() {
+        if (levelIndex != null) {
+            for (LongIterator iterator = sectionToEntries.keySet().iterator(); iterator.hasNext(); ) {
+                levelIndex.remove(iterator.nextLong(), this);
+            }
+        }
+        
+        sectionToEntries.clear();
+        entryNum = 0;
+        levelIndex = null;
+    }
+    
+    public int getEntryNum() {
+        return entryNum;
+    }
+    
+    public static long getHitNum() {
+        return hitNum.sum();
+    }
+    
+    public static long getMissNum() {
+        return missNum.sum();
+    }
+    
+    public static String getStatText() {
+        long hit = getHitNum();
+        long miss = getMissNum();
+        return "Collision shape cache: %d hits, %d misses, hit rate %.1f%%".formatted(
+            hit, miss, hit + miss == 0 ? 0.0 : hit * 100.0 / (hit + miss)
+        );
+    }
+}
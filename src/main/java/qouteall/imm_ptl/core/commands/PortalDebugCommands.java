@@ -45,10 +45,13 @@ import org.slf4j.Logger;
 import qouteall.imm_ptl.core.CHelper;
 import qouteall.imm_ptl.core.McHelper;
 import qouteall.imm_ptl.core.api.example.ExampleGuiPortalRendering;
+import qouteall.imm_ptl.core.chunk_loading.ChunkLoadingBudget;
 import qouteall.imm_ptl.core.chunk_loading.ChunkVisibility;
 import qouteall.imm_ptl.core.chunk_loading.ImmPtlChunkTickets;
 import qouteall.imm_ptl.core.chunk_loading.ImmPtlChunkTracking;
 import qouteall.imm_ptl.core.chunk_loading.PlayerChunkLoading;
+import qouteall.imm_ptl.core.chunk_loading.ServerPerformanceMonitor;
+import qouteall.imm_ptl.core.collision.PortalCollisionShapeCache;
 import qouteall.imm_ptl.core.ducks.IEDistanceManager;
 import qouteall.imm_ptl.core.ducks.IEServerChunkCache;
 import qouteall.imm_ptl.core.ducks.IEServerWorld;
@@ -60,6 +63,7 @@ import qouteall.imm_ptl.core.portal.Portal;
 import qouteall.imm_ptl.core.portal.shape.PortalShape;
 import qouteall.imm_ptl.core.portal.shape.SpecialFlatPortalShape;
 import qouteall.imm_ptl.core.render.TransformationManager;
+import qouteall.imm_ptl.core.teleportation.ServerTeleportationManager;
 import qouteall.q_misc_util.MiscHelper;
 import qouteall.q_misc_util.api.McRemoteProcedureCall;
 import qouteall.q_misc_util.my_util.MyTaskList;
@@ -496,6 +500,75 @@ public class PortalDebugCommands {
             })
         );
         
+        builder.then(Commands.literal("report_chunk_loading_budget")
+            .requires(serverCommandSource -> serverCommandSource.hasPermission(2))
+            .executes(context -> {
+                ChunkLoadingBudget loadingBudget = ServerPerformanceMonitor.getLoadingBudget();
+                String summary = "Policy %s, tick time ratio %.2f, budget %.0f, used %.0f chunks".formatted(
+                    ServerPerformanceMonitor.getBudgetPolicy().getClass().getSimpleName(),
+                    loadingBudget.getTickTimeRatio(),
+                    loadingBudget.getBudget(),
+                    loadingBudget.getUsage()
+                );
+                context.getSource().sendSuccess(() -> Component.literal(summary), false);
+                
+                List<ServerPlayer> players = context.getSource().getServer().getPlayerList().getPlayers();
+                for (ServerPlayer player : players) {
+                    PlayerChunkLoading playerInfo = ImmPtlChunkTracking.getPlayerInfo(player);
+                    String text = "%s client %s weight %.2f scale %.2f allocated %.0f used %.0f portal range %d".formatted(
+                        player.getName().getString(),
+                        playerInfo.performanceLevel,
+                        playerInfo.loadingBudgetWeight,
+                        playerInfo.loadingScale,
+                        playerInfo.loadingBudgetAllocation,
+                        playerInfo.loadingBudgetUsage,
+                        ChunkLoadingBudget.getVisiblePortalRangeChunks(playerInfo.loadingScale)
+                    );
+                    context.getSource().sendSuccess(() -> Component.literal(text), false);
+                }
+                return 0;
+            })
+        );
+        
+        builder.then(Commands.literal("report_chunk_ticket_throttling")
+            .requires(serverCommandSource -> serverCommandSource.hasPermission(2))
+            .executes(context -> {
+                for (ServerLevel world : context.getSource().getServer().getAllLevels()) {
+                    String text = "%s %s".formatted(
+                        world.dimension().location(),
+                        ImmPtlChunkTickets.get(world).getThrottlingStats()
+                    );
+                    context.getSource().sendSuccess(() -> Component.literal(text), false);
+                }
+                return 0;
+            })
+        );
+        
+        builder.then(Commands.literal("report_global_portal_teleportation_stat")
+            .requires(serverCommandSource -> serverCommandSource.hasPermission(2))
+            .executes(context -> {
+                int checkedEntityNum = ServerTeleportationManager.of(context.getSource().getServer())
+                    .getGlobalPortalCheckedEntityNum();
+                context.getSource().sendSuccess(
+                    () -> Component.literal(
+                        "Entities checked for global portal teleportation last tick: %d"
+                            .formatted(checkedEntityNum)
+                    ),
+                    false
+                );
+                return 0;
+            })
+        );
+        
+        builder.then(Commands.literal("report_collision_shape_cache")
+            .requires(serverCommandSource -> serverCommandSource.hasPermission(2))
+            .executes(context -> {
+                String text = PortalCollisionShapeCache.getStatText();
+                context.getSource().sendSuccess(() -> Component.literal(text), false);
+                return 0;
+            })
+        );
+        
         builder.then(Commands.literal("save_all_chunks")
             .requires(serverCommandSource -> serverCommandSource.hasPermission(2))
             .executes(context -> {
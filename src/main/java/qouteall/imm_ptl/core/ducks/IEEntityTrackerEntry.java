@@ -2,4 +2,10 @@ package qouteall.imm_ptl.core.ducks;
 
 public interface IEEntityTrackerEntry {
     void ip_updateTrackedEntityPosition();
+    
+    /**
+     * Called instead of sendChanges() when no player tracks the entity.
+     * @return false if the entity's changes must still be sent, as they have effects beyond the trackers
+     */
+    boolean ip_trySkipSendChanges();
 }
@@ -1,6 +1,7 @@
 package qouteall.imm_ptl.core.ducks;
 
 import net.minecraft.world.phys.Vec3;
+import org.joml.Matrix4f;
 
 public interface IEFrustum {
     boolean ip_canDetermineInvisibleWithCamCoord(
@@ -8,4 +9,6 @@ public interface IEFrustum {
     );
     
     Vec3 ip_getViewVec3();
+    
+    Matrix4f ip_getMatrix();
 }
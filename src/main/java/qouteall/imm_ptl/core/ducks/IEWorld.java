@@ -3,6 +3,8 @@ package qouteall.imm_ptl.core.ducks;
 import net.minecraft.world.entity.Entity;
 import net.minecraft.world.level.entity.LevelEntityGetter;
 import net.minecraft.world.level.storage.WritableLevelData;
+import qouteall.imm_ptl.core.collision.PortalCollisionShapeCache;
+import qouteall.imm_ptl.core.portal.PortalSpatialIndex;
 
 public interface IEWorld {
     
@@ -13,4 +15,8 @@ public interface IEWorld {
     LevelEntityGetter<Entity> portal_getEntityLookup();
     
     Thread portal_getThread();
+    
+    PortalSpatialIndex ip_getPortalSpatialIndex();
+    
+    PortalCollisionShapeCache.LevelIndex ip_getCollisionShapeCacheIndex();
 }
@@ -4,6 +4,7 @@ import net.minecraft.client.renderer.culling.Frustum;
 import net.minecraft.world.phys.Vec3;
 import org.joml.Matrix4f;
 import org.joml.Vector4f;
+import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
 import org.spongepowered.asm.mixin.injection.At;
@@ -26,6 +27,10 @@ public class MixinFrustum implements IEFrustum {
     @Shadow
     private Vector4f viewVector;
     
+    @Shadow
+    @Final
+    private Matrix4f matrix;
+    
     /**
      * In {@link Frustum#offsetToFullyIncludeCameraCube(int)}
      * the camX, camY, camZ may get changed.
@@ -122,4 +127,9 @@ public class MixinFrustum implements IEFrustum {
             viewVector.z()
         );
     }
+    
+    @Override
+    public Matrix4f ip_getMatrix() {
+        return matrix;
+    }
 }
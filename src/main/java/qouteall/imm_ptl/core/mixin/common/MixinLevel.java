@@ -1,17 +1,23 @@
 package qouteall.imm_ptl.core.mixin.common;
 
+import net.minecraft.core.BlockPos;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.world.entity.Entity;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.entity.LevelEntityGetter;
 import net.minecraft.world.level.storage.WritableLevelData;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+import qouteall.imm_ptl.core.collision.PortalCollisionShapeCache;
 import qouteall.imm_ptl.core.ducks.IEWorld;
+import qouteall.imm_ptl.core.portal.PortalSpatialIndex;
 
 @Mixin(Level.class)
 public abstract class MixinLevel implements IEWorld {
@@ -42,6 +48,12 @@ public abstract class MixinLevel implements IEWorld {
     @Final
     private Thread thread;
     
+    @Unique
+    private PortalSpatialIndex ip_portalSpatialIndex;
+    
+    @Unique
+    private PortalCollisionShapeCache.LevelIndex ip_collisionShapeCacheIndex;
+    
     // Fix overworld rain cause nether fog change
     @Inject(method = "Lnet/minecraft/world/level/Level;prepareWeather()V", at = @At("TAIL"))
     private void onInitWeatherGradients(CallbackInfo ci) {
@@ -53,6 +65,19 @@ public abstract class MixinLevel implements IEWorld {
         }
     }
     
+    @Inject(
+        method = "setBlock(Lnet/minecraft/core/BlockPos;Lnet/minecraft/world/level/block/state/BlockState;II)Z",
+        at = @At("RETURN")
+    )
+    private void onSetBlock(
+        BlockPos pos, BlockState state, int flags, int recursionLeft,
+        CallbackInfoReturnable<Boolean> cir
+    ) {
+        if (cir.getReturnValueZ() && ip_collisionShapeCacheIndex != null) {
+            ip_collisionShapeCacheIndex.onBlockChanged(pos);
+        }
+    }
+    
     @Override
     public WritableLevelData ip_getLevelData() {
         return levelData;
@@ -75,4 +100,22 @@ public abstract class MixinLevel implements IEWorld {
     public Thread portal_getThread() {
         return thread;
     }
+    
+    @Override
+    public PortalSpatialIndex ip_getPortalSpatialIndex() {
+        if (ip_portalSpatialIndex == null) {
+            ip_portalSpatialIndex = new PortalSpatialIndex(
+                PortalSpatialIndex.getSectionAccessibility((Level) (Object) this)
+            );
+        }
+        return ip_portalSpatialIndex;
+    }
+    
+    @Override
+    public PortalCollisionShapeCache.LevelIndex ip_getCollisionShapeCacheIndex() {
+        if (ip_collisionShapeCacheIndex == null) {
+            ip_collisionShapeCacheIndex = new PortalCollisionShapeCache.LevelIndex();
+        }
+        return ip_collisionShapeCacheIndex;
+    }
 }
@@ -3,12 +3,17 @@ package qouteall.imm_ptl.core.mixin.common.entity_sync;
 import net.minecraft.network.protocol.Packet;
 import net.minecraft.network.protocol.game.VecDeltaCodec;
 import net.minecraft.server.level.ServerEntity;
+import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.server.network.ServerGamePacketListenerImpl;
+import net.minecraft.util.Mth;
 import net.minecraft.world.entity.Entity;
+import net.minecraft.world.entity.decoration.ItemFrame;
+import net.minecraft.world.phys.Vec3;
 import org.slf4j.Logger;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.Redirect;
@@ -18,6 +23,8 @@ import qouteall.imm_ptl.core.ducks.IEEntityTrackerEntry;
 import qouteall.imm_ptl.core.network.PacketRedirection;
 import qouteall.imm_ptl.core.portal.Portal;
 
+import java.util.List;
+
 @Mixin(value = ServerEntity.class, priority = 1200)
 public abstract class MixinServerEntity implements IEEntityTrackerEntry {
     @Shadow
@@ -32,6 +39,25 @@ public abstract class MixinServerEntity implements IEEntityTrackerEntry {
     @Final
     private static Logger LOGGER;
     
+    @Shadow
+    private byte lastSentYRot;
+    
+    @Shadow
+    private byte lastSentXRot;
+    
+    @Shadow
+    private byte lastSentYHeadRot;
+    
+    @Shadow
+    private Vec3 lastSentMovement;
+    
+    @Shadow
+    private List<Entity> lastPassengers;
+    
+    // the last sent state is stale because sendChanges() was skipped
+    @Unique
+    private boolean ip_skippedChanges = false;
+    
     // make sure that the packet is being redirected
     @Inject(
         method = "Lnet/minecraft/server/level/ServerEntity;sendChanges()V",
@@ -108,4 +134,44 @@ public abstract class MixinServerEntity implements IEEntityTrackerEntry {
     public void ip_updateTrackedEntityPosition() {
         positionCodec.setBase(entity.trackingPosition());
     }
+    
+    @Override
+    public boolean ip_trySkipSendChanges() {
+        // the item frame sends map data to all players in the dimension, not only its trackers.
+        // the passenger change may teleport the dismounted player.
+        // the player's motion is sent to itself.
+        if (entity instanceof ServerPlayer || entity instanceof ItemFrame ||
+            entity.isVehicle() || !lastPassengers.isEmpty()
+        ) {
+            return false;
+        }
+        
+        // vanilla clears them after broadcasting to the trackers
+        entity.hurtMarked = false;
+        entity.hasImpulse = false;
+        
+        ip_skippedChanges = true;
+        return true;
+    }
+    
+    /**
+     * The add entity packet uses the last sent position and rotation,
+     * and the later move packets are deltas of them.
+     * Bring them up to date if the changes were skipped while no player tracked it.
+     * The dirty entity data and attributes are kept, so they are sent again later, which is harmless.
+     */
+    @Inject(
+        method = "addPairing",
+        at = @At("HEAD")
+    )
+    private void onAddPairing(ServerPlayer player, CallbackInfo ci) {
+        if (ip_skippedChanges) {
+            ip_skippedChanges = false;
+            positionCodec.setBase(entity.trackingPosition());
+            lastSentYRot = Mth.packDegrees(entity.getYRot());
+            lastSentXRot = Mth.packDegrees(entity.getXRot());
+            lastSentYHeadRot = Mth.packDegrees(entity.getYHeadRot());
+            lastSentMovement = entity.getDeltaMovement();
+        }
+    }
 }
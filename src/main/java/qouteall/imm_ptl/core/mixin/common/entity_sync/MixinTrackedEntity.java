@@ -22,7 +22,9 @@ import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Redirect;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import qouteall.imm_ptl.core.IPGlobal;
 import qouteall.imm_ptl.core.chunk_loading.ImmPtlChunkTracking;
+import qouteall.imm_ptl.core.chunk_loading.WatchRecordStore;
 import qouteall.imm_ptl.core.ducks.IEChunkMap;
 import qouteall.imm_ptl.core.ducks.IEEntityTrackerEntry;
 import qouteall.imm_ptl.core.ducks.IETrackedEntity;
@@ -31,7 +33,6 @@ import qouteall.imm_ptl.core.mixin.common.other_sync.MixinPlayerList;
 import qouteall.imm_ptl.core.network.PacketRedirection;
 
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 //NOTE must redirect all packets about entities
@@ -149,17 +150,15 @@ public abstract class MixinTrackedEntity implements IETrackedEntity {
         IEChunkMap chunkMap = (IEChunkMap)
             ((ServerLevel) entity.level()).getChunkSource().chunkMap;
         
-        var watchRecMap = ImmPtlChunkTracking.getWatchRecordForChunk(
-            entity.level().dimension(),
-            entity.chunkPosition().x, entity.chunkPosition().z
-        );
+        WatchRecordStore store = ImmPtlChunkTracking.getWatchRecordStore(entity.level().dimension());
+        long chunkPos = entity.chunkPosition().toLong();
         
         // no need to clamp it with render distance, as we check chunk watch records now
         int effectiveRange = getEffectiveRange();
         
         seenBy.removeIf(connection -> {
             ServerPlayer player = connection.getPlayer();
-            boolean shouldRemove = !watches(entity, watchRecMap, effectiveRange, player);
+            boolean shouldRemove = !watches(entity, store, chunkPos, effectiveRange, player);
             if (shouldRemove) {
                 PacketRedirection.withForceRedirect(
                     ((ServerLevel) entity.level()),
@@ -171,12 +170,11 @@ public abstract class MixinTrackedEntity implements IETrackedEntity {
             return shouldRemove;
         });
         
-        if (watchRecMap != null) {
-            for (var e : watchRecMap.entrySet()) {
-                ServerPlayer player = e.getKey();
-                ImmPtlChunkTracking.PlayerWatchRecord rec = e.getValue();
+        if (store != null) {
+            for (int slot = store.getFirstSlot(chunkPos); slot != -1; slot = store.getNextSlot(slot)) {
+                ServerPlayer player = ImmPtlChunkTracking.getPlayerByIndex(store.getPlayerIndex(slot));
                 
-                if (recWatches(entity, effectiveRange, rec, player)) {
+                if (recWatches(entity, effectiveRange, store, slot, player)) {
                     if (seenBy.add(player.connection)) {
                         PacketRedirection.withForceRedirect(
                             ((ServerLevel) entity.level()),
@@ -193,11 +191,12 @@ public abstract class MixinTrackedEntity implements IETrackedEntity {
     @Unique
     private static boolean watches(
         Entity entity,
-        @Nullable Map<ServerPlayer, ImmPtlChunkTracking.PlayerWatchRecord> watchRec,
+        @Nullable WatchRecordStore store,
+        long chunkPos,
         int effectiveRange,
         ServerPlayer player
     ) {
-        if (watchRec == null) {
+        if (store == null) {
             return false;
         }
         
@@ -205,21 +204,21 @@ public abstract class MixinTrackedEntity implements IETrackedEntity {
             return false;
         }
         
-        ImmPtlChunkTracking.PlayerWatchRecord rec = watchRec.get(player);
+        int slot = ImmPtlChunkTracking.getLoadedWatchRecordSlot(store, player, chunkPos);
         
-        return recWatches(entity, effectiveRange, rec, player);
+        return recWatches(entity, effectiveRange, store, slot, player);
     }
     
     @Unique
     private static boolean recWatches(
         Entity entity, int effectiveRange,
-        ImmPtlChunkTracking.PlayerWatchRecord rec, ServerPlayer player
+        WatchRecordStore store, int slot, ServerPlayer player
     ) {
-        if (rec == null) {
+        if (slot == -1) {
             return false;
         }
         
-        if (!rec.isLoadedToPlayer) {
+        if (!store.isLoadedToPlayer(slot)) {
             // when player logging in standing on cross portal collision
             // we need to send add entity packet early,
             // otherwise cross portal collision will not work early enough
@@ -233,7 +232,7 @@ public abstract class MixinTrackedEntity implements IETrackedEntity {
             return false;
         }
         
-        return rec.distanceToSource * 16 + 8 <= effectiveRange;
+        return store.getDistanceToSource(slot) * 16 + 8 <= effectiveRange;
     }
     
     @Override
@@ -266,6 +265,11 @@ public abstract class MixinTrackedEntity implements IETrackedEntity {
     
     @Override
     public void ip_sendChanges() {
+        if (IPGlobal.skipUnwatchedEntityChanges && seenBy.isEmpty() &&
+            ((IEEntityTrackerEntry) serverEntity).ip_trySkipSendChanges()
+        ) {
+            return;
+        }
         serverEntity.sendChanges();
     }
     
@@ -24,6 +24,7 @@ import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.Redirect;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import qouteall.imm_ptl.core.chunk_loading.ImmPtlChunkTracking;
+import qouteall.imm_ptl.core.chunk_loading.WatchRecordStore;
 import qouteall.imm_ptl.core.network.PacketRedirection;
 import qouteall.imm_ptl.core.portal.global_portals.GlobalPortalStorage;
 import qouteall.imm_ptl.core.teleportation.ServerTeleportationManager;
@@ -112,21 +113,19 @@ public class MixinPlayerList {
     ) {
         ChunkPos chunkPos = new ChunkPos(BlockPos.containing(new Vec3(x, y, z)));
         
-        var recs =
-            ImmPtlChunkTracking.getWatchRecordForChunk(dimension, chunkPos.x, chunkPos.z);
+        WatchRecordStore store = ImmPtlChunkTracking.getWatchRecordStore(dimension);
         
-        if (recs == null) {
+        if (store == null) {
             return;
         }
         
-        for (ImmPtlChunkTracking.PlayerWatchRecord rec : recs.values()) {
-            if (rec.isLoadedToPlayer && rec.player != excludingPlayer) {
-                if (ImmPtlChunkTracking.isPlayerWatchingChunkWithinRadius(
-                    rec.player, dimension, chunkPos.x, chunkPos.z, (int) distance + 16
-                )) {
-                    rec.player.connection.send(
+        for (int slot = store.getFirstSlot(chunkPos.toLong()); slot != -1; slot = store.getNextSlot(slot)) {
+            ServerPlayer player = ImmPtlChunkTracking.getPlayerByIndex(store.getPlayerIndex(slot));
+            if (store.isLoadedToPlayer(slot) && player != excludingPlayer) {
+                if (store.getDistanceToSource(slot) * 16 <= (int) distance + 16) {
+                    player.connection.send(
                         PacketRedirection.createRedirectedMessage(
-                            rec.player.getServer(),
+                            player.getServer(),
                             dimension, (Packet<ClientGamePacketListener>) packet
                         )
                     );
@@ -29,7 +29,9 @@ import qouteall.imm_ptl.core.McHelper;
 import qouteall.imm_ptl.core.mixin.common.other_sync.IEServerConfigurationPacketListenerImpl;
 import qouteall.imm_ptl.core.platform_specific.IPConfig;
 import qouteall.imm_ptl.core.platform_specific.O_O;
+import qouteall.q_misc_util.ImplRemoteProcedureCall;
 
+import java.util.List;
 import java.util.function.Consumer;
 
 public class ImmPtlNetworkConfig {
@@ -71,12 +73,22 @@ public class ImmPtlNetworkConfig {
     public static ModVersion immPtlVersion;
     
     public static record ImmPtlConfigurationTask(
+        boolean sendMethodTable
     ) implements ConfigurationTask {
         public static final ConfigurationTask.Type TYPE =
             new ConfigurationTask.Type("iportal:config");
         
         @Override
         public void start(Consumer<Packet<?>> consumer) {
+            // sent before the start packet, so the client has it before completing configuration
+            if (sendMethodTable) {
+                consumer.accept(
+                    ServerConfigurationNetworking.createS2CPacket(new S2CMethodTablePacket(
+                        ImplRemoteProcedureCall.freezeMethodTable().getMethodPaths()
+                    ))
+                );
+            }
+            
             consumer.accept(
                 ServerConfigurationNetworking.createS2CPacket(new S2CConfigStartPacket(
                     immPtlVersion
@@ -130,6 +142,48 @@ public class ImmPtlNetworkConfig {
         }
     }
     
+    /**
+     * The server's remote procedure call method table.
+     * Then the registered methods are called by id instead of the method path.
+     * See {@link ImplRemoteProcedureCall#registerMethodPath(String)}
+     */
+    public static record S2CMethodTablePacket(
+        List<String> methodPaths
+    ) implements CustomPacketPayload {
+        public static final CustomPacketPayload.Type<S2CMethodTablePacket> TYPE =
+            new CustomPacketPayload.Type<>(
+                McHelper.newResourceLocation("iportal:rpc_method_table")
+            );
+        
+        public static final StreamCodec<FriendlyByteBuf, S2CMethodTablePacket> CODEC = StreamCodec.of(
+            (b, p) -> p.write(b), S2CMethodTablePacket::read
+        );
+        
+        public static S2CMethodTablePacket read(FriendlyByteBuf buf) {
+            List<String> methodPaths = buf.readList(FriendlyByteBuf::readUtf);
+            return new S2CMethodTablePacket(methodPaths);
+        }
+        
+        public void write(FriendlyByteBuf buf) {
+            buf.writeCollection(methodPaths, FriendlyByteBuf::writeUtf);
+        }
+        
+        // handled on client side
+        @Environment(EnvType.CLIENT)
+        public void handle(ClientConfigurationNetworking.Context context) {
+            LOGGER.info("Client received remote procedure call method table. Size: {}", methodPaths.size());
+            
+            ImplRemoteProcedureCall.setServerMethodTable(
+                new ImplRemoteProcedureCall.MethodTable(methodPaths)
+            );
+        }
+        
+        @Override
+        public @NotNull Type<? extends CustomPacketPayload> type() {
+            return TYPE;
+        }
+    }
+    
     public record C2SConfigCompletePacket(
         ModVersion versionFromClient,
         boolean clientTolerantVersionMismatch
@@ -204,17 +258,35 @@ public class ImmPtlNetworkConfig {
         
         LOGGER.info("Immersive Portals Core version {}", immPtlVersion);
         
+        // the frequently called methods
+        ImplRemoteProcedureCall.registerMethodPath(
+            "qouteall.imm_ptl.core.chunk_loading.ImmPtlChunkTracking.RemoteCallables.acceptClientPerformanceInfo"
+        );
+        ImplRemoteProcedureCall.registerMethodPath(
+            "qouteall.imm_ptl.core.block_manipulation.BlockManipulationServer.RemoteCallables.processPlayerActionPacket"
+        );
+        ImplRemoteProcedureCall.registerMethodPath(
+            "qouteall.imm_ptl.core.block_manipulation.BlockManipulationServer.RemoteCallables.processUseItemOnPacket"
+        );
+        
         PayloadTypeRegistry.configurationS2C().register(
             S2CConfigStartPacket.TYPE, S2CConfigStartPacket.CODEC
         );
         
+        PayloadTypeRegistry.configurationS2C().register(
+            S2CMethodTablePacket.TYPE, S2CMethodTablePacket.CODEC
+        );
+        
         PayloadTypeRegistry.configurationC2S().register(
             C2SConfigCompletePacket.TYPE, C2SConfigCompletePacket.CODEC
         );
         
         ServerConfigurationConnectionEvents.CONFIGURE.register((handler, server) -> {
             if (ServerConfigurationNetworking.canSend(handler, S2CConfigStartPacket.TYPE)) {
-                handler.addTask(new ImmPtlConfigurationTask());
+                // the older versions do not accept the method table
+                handler.addTask(new ImmPtlConfigurationTask(
+                    ServerConfigurationNetworking.canSend(handler, S2CMethodTablePacket.TYPE)
+                ));
             }
             else {
                 if (server.isDedicatedServer()) {
@@ -261,6 +333,11 @@ public class ImmPtlNetworkConfig {
             S2CConfigStartPacket::handle
         );
         
+        ClientConfigurationNetworking.registerGlobalReceiver(
+            S2CMethodTablePacket.TYPE,
+            S2CMethodTablePacket::handle
+        );
+        
         ClientLoginConnectionEvents.INIT.register(
             (handler, client) -> {
                 LOGGER.info("Client login init");
@@ -268,6 +345,7 @@ public class ImmPtlNetworkConfig {
                 // serverProtocolInfo will always be nul
                 // it will become not null when receiving ImmPtl config packet
                 serverVersion = null;
+                ImplRemoteProcedureCall.setServerMethodTable(null);
             }
         );
         
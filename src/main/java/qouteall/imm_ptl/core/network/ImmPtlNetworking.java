@@ -1,6 +1,7 @@
 package qouteall.imm_ptl.core.network;
 
 import com.mojang.logging.LogUtils;
+import io.netty.buffer.Unpooled;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
@@ -126,6 +127,65 @@ public class ImmPtlNetworking {
         }
     }
     
+    /**
+     * Only contains the global portals that are added or changed since the last sync,
+     * and the UUIDs of all global portals of the dimension.
+     * The data is encoded once and shared by all receivers.
+     */
+    public static record GlobalPortalDeltaSyncPacket(
+        int dimensionId, byte[] encodedData
+    ) implements CustomPacketPayload {
+        public static final CustomPacketPayload.Type<GlobalPortalDeltaSyncPacket> TYPE =
+            new CustomPacketPayload.Type<>(
+                McHelper.newResourceLocation("imm_ptl:upd_glb_ptl_delta")
+            );
+        
+        public static final StreamCodec<FriendlyByteBuf, GlobalPortalDeltaSyncPacket> CODEC = StreamCodec.of(
+            (b, p) -> p.write(b), GlobalPortalDeltaSyncPacket::read
+        );
+        
+        public static GlobalPortalDeltaSyncPacket create(int dimensionId, CompoundTag data) {
+            FriendlyByteBuf buf = new FriendlyByteBuf(Unpooled.buffer());
+            try {
+                buf.writeNbt(data);
+                byte[] bytes = new byte[buf.readableBytes()];
+                buf.readBytes(bytes);
+                return new GlobalPortalDeltaSyncPacket(dimensionId, bytes);
+            }
+            finally {
+                buf.release();
+            }
+        }
+        
+        public static GlobalPortalDeltaSyncPacket read(FriendlyByteBuf buf) {
+            int dimId = buf.readVarInt();
+            byte[] encodedData = buf.readByteArray();
+            return new GlobalPortalDeltaSyncPacket(dimId, encodedData);
+        }
+        
+        public void write(FriendlyByteBuf buf) {
+            buf.writeVarInt(dimensionId);
+            buf.writeByteArray(encodedData);
+        }
+        
+        public CompoundTag decodeData() {
+            FriendlyByteBuf buf = new FriendlyByteBuf(Unpooled.wrappedBuffer(encodedData));
+            return Objects.requireNonNull(buf.readNbt());
+        }
+        
+        @Environment(EnvType.CLIENT)
+        public void handle() {
+            ResourceKey<Level> dim = PortalAPI.clientIntToDimKey(dimensionId);
+            
+            GlobalPortalStorage.receiveGlobalPortalDeltaSync(dim, decodeData());
+        }
+        
+        @Override
+        public @NotNull Type<? extends CustomPacketPayload> type() {
+            return TYPE;
+        }
+    }
+    
     /**
      * server to client
      * {@link ClientboundAddEntityPacket}
@@ -139,6 +199,7 @@ public class ImmPtlNetworking {
         double x,
         double y,
         double z,
+        int syncSequence,
         CompoundTag extraData
     ) implements CustomPacketPayload {
         public static final CustomPacketPayload.Type<PortalSyncPacket> TYPE =
@@ -158,6 +219,7 @@ public class ImmPtlNetworking {
             buf.writeDouble(x);
             buf.writeDouble(y);
             buf.writeDouble(z);
+            buf.writeVarInt(syncSequence);
             buf.writeNbt(extraData);
         }
         
@@ -169,8 +231,9 @@ public class ImmPtlNetworking {
             double x = buf.readDouble();
             double y = buf.readDouble();
             double z = buf.readDouble();
+            int syncSequence = buf.readVarInt();
             CompoundTag extraData = buf.readNbt();
-            return new PortalSyncPacket(id, uuid, type, dimensionId, x, y, z, extraData);
+            return new PortalSyncPacket(id, uuid, type, dimensionId, x, y, z, syncSequence, extraData);
         }
         
         /**
@@ -199,7 +262,7 @@ public class ImmPtlNetworking {
                     return;
                 }
                 
-                existingPortal.acceptDataSync(new Vec3(x, y, z), extraData);
+                existingPortal.acceptFullDataSync(syncSequence, new Vec3(x, y, z), extraData);
             }
             else {
                 // spawn new portal
@@ -217,6 +280,7 @@ public class ImmPtlNetworking {
                 entity.moveTo(x, y, z);
                 
                 portal.readPortalDataFromNbt(extraData);
+                portal.rememberSyncedData(syncSequence, new Vec3(x, y, z), extraData);
                 
                 world.addEntity(entity);
                 
@@ -235,6 +299,61 @@ public class ImmPtlNetworking {
         }
     }
     
+    /**
+     * Only contains the portal data that changed since the previous sync.
+     * The full data is sent by {@link PortalSyncPacket}.
+     */
+    public static record PortalDeltaSyncPacket(
+        int id,
+        int dimensionId,
+        int syncSequence,
+        PortalSyncDelta delta
+    ) implements CustomPacketPayload {
+        public static final CustomPacketPayload.Type<PortalDeltaSyncPacket> TYPE =
+            new CustomPacketPayload.Type<>(
+                McHelper.newResourceLocation("imm_ptl:portal_delta_sync")
+            );
+        
+        public static final StreamCodec<FriendlyByteBuf, PortalDeltaSyncPacket> CODEC = StreamCodec.of(
+            (b, p) -> p.write(b), PortalDeltaSyncPacket::read
+        );
+        
+        public void write(FriendlyByteBuf buf) {
+            buf.writeVarInt(id);
+            buf.writeVarInt(dimensionId);
+            buf.writeVarInt(syncSequence);
+            delta.write(buf);
+        }
+        
+        public static PortalDeltaSyncPacket read(FriendlyByteBuf buf) {
+            int id = buf.readVarInt();
+            int dimensionId = buf.readVarInt();
+            int syncSequence = buf.readVarInt();
+            PortalSyncDelta delta = PortalSyncDelta.read(buf);
+            return new PortalDeltaSyncPacket(id, dimensionId, syncSequence, delta);
+        }
+        
+        @Environment(EnvType.CLIENT)
+        public void handle() {
+            ResourceKey<Level> dimension = PortalAPI.clientIntToDimKey(dimensionId);
+            ClientLevel world = ClientWorldLoader.getWorld(dimension);
+            
+            Entity existing = world.getEntity(id);
+            
+            if (!(existing instanceof Portal portal)) {
+                LOGGER.error("Cannot find the portal to apply delta sync {} {} {}", dimension, id, delta);
+                return;
+            }
+            
+            portal.acceptDeltaSync(syncSequence, delta);
+        }
+        
+        @Override
+        public @NotNull Type<? extends CustomPacketPayload> type() {
+            return TYPE;
+        }
+    }
+    
     public static void init() {
         PayloadTypeRegistry.playC2S().register(
             TeleportPacket.TYPE, TeleportPacket.CODEC
@@ -244,10 +363,18 @@ public class ImmPtlNetworking {
             GlobalPortalSyncPacket.TYPE, GlobalPortalSyncPacket.CODEC
         );
         
+        PayloadTypeRegistry.playS2C().register(
+            GlobalPortalDeltaSyncPacket.TYPE, GlobalPortalDeltaSyncPacket.CODEC
+        );
+        
         PayloadTypeRegistry.playS2C().register(
             PortalSyncPacket.TYPE, PortalSyncPacket.CODEC
         );
         
+        PayloadTypeRegistry.playS2C().register(
+            PortalDeltaSyncPacket.TYPE, PortalDeltaSyncPacket.CODEC
+        );
+        
         ServerPlayNetworking.registerGlobalReceiver(
             TeleportPacket.TYPE,
             (packet, c) -> packet.handle(c.player())
@@ -260,10 +387,20 @@ public class ImmPtlNetworking {
             (packet, c) -> packet.handle()
         );
         
+        ClientPlayNetworking.registerGlobalReceiver(
+            GlobalPortalDeltaSyncPacket.TYPE,
+            (packet, c) -> packet.handle()
+        );
+        
         ClientPlayNetworking.registerGlobalReceiver(
             PortalSyncPacket.TYPE,
             (packet, c) -> packet.handle()
         );
+        
+        ClientPlayNetworking.registerGlobalReceiver(
+            PortalDeltaSyncPacket.TYPE,
+            (packet, c) -> packet.handle()
+        );
     }
     
 }
@@ -1,5 +1,6 @@
 package qouteall.imm_ptl.core.network;
 
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.networking.v1.PayloadTypeRegistry;
@@ -9,6 +10,7 @@ import net.minecraft.network.RegistryFriendlyByteBuf;
 import net.minecraft.network.codec.StreamCodec;
 import net.minecraft.network.protocol.BundleDelimiterPacket;
 import net.minecraft.network.protocol.BundlePacket;
+import net.minecraft.network.protocol.BundlerInfo;
 import net.minecraft.network.protocol.Packet;
 import net.minecraft.network.protocol.common.ClientboundCustomPayloadPacket;
 import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
@@ -60,6 +62,13 @@ public class PacketRedirection {
     private static final ThreadLocal<ForceBundleCallback> forceBundle =
         ThreadLocal.withInitial(() -> null);
     
+    // the payloads created in the current force-redirect scope, keyed by the packet instance
+    // a packet that is broadcast to many players is wrapped once and encoded once
+    private static final ThreadLocal<Reference2ObjectOpenHashMap<Packet<?>, Payload>> sharedPayloads =
+        ThreadLocal.withInitial(Reference2ObjectOpenHashMap::new);
+    
+    private static final int MAX_SHARED_PAYLOAD_NUM = 64;
+    
     public static void init() {
         PayloadTypeRegistry.playS2C().register(Payload.TYPE, Payload.CODEC);
     }
@@ -95,6 +104,11 @@ public class PacketRedirection {
             if (oldRedirection != redirectDim) {
                 serverPacketRedirection.set(oldRedirection);
             }
+            
+            if (oldRedirection == null) {
+                // don't keep the packets alive after the outermost scope
+                sharedPayloads.get().clear();
+            }
         }
     }
     
@@ -160,7 +174,7 @@ public class PacketRedirection {
         else {
             // will use the server argument in the future
             int intDimId = PortalAPI.serverDimKeyToInt(server, dimension);
-            Payload payload = new Payload(intDimId, packet);
+            Payload payload = getOrCreatePayload(intDimId, packet);
             
             // the custom payload packet should be able to be bundled
             // the bundle accepts Packet<ClientGamePacketListener>
@@ -173,6 +187,33 @@ public class PacketRedirection {
         }
     }
     
+    /**
+     * In force-redirect scope, the same packet instance sent to multiple connections
+     * (e.g. an entity tracker broadcasting a move packet) shares one payload,
+     * so it's only encoded once.
+     */
+    private static Payload getOrCreatePayload(
+        int intDimId, Packet<ClientGamePacketListener> packet
+    ) {
+        if (getForceRedirectDimension() == null) {
+            Payload payload = new Payload(intDimId, packet);
+            payload.sharedEncoding().retain();
+            return payload;
+        }
+        
+        Reference2ObjectOpenHashMap<Packet<?>, Payload> map = sharedPayloads.get();
+        Payload payload = map.get(packet);
+        if (payload == null || payload.dimensionIntId() != intDimId) {
+            if (map.size() >= MAX_SHARED_PAYLOAD_NUM) {
+                map.clear();
+            }
+            payload = new Payload(intDimId, packet);
+            map.put(packet, payload);
+        }
+        payload.sharedEncoding().retain();
+        return payload;
+    }
+    
     public static void sendRedirectedMessage(
         ServerPlayer player,
         ResourceKey<Level> dimension,
@@ -219,9 +260,15 @@ public class PacketRedirection {
             for (var e : map.entrySet()) {
                 ServerCommonPacketListenerImpl listener = e.getKey();
                 List<Packet<ClientGamePacketListener>> packets = e.getValue();
-                listener.send(new ClientboundBundlePacket(
-                    (List<Packet<? super ClientGamePacketListener>>) (List) packets
-                ));
+                // the client rejects the bundles that are too large
+                for (int start = 0; start < packets.size(); start += BundlerInfo.BUNDLE_SIZE_LIMIT) {
+                    List<Packet<ClientGamePacketListener>> subList = packets.subList(
+                        start, Math.min(packets.size(), start + BundlerInfo.BUNDLE_SIZE_LIMIT)
+                    );
+                    listener.send(new ClientboundBundlePacket(
+                        (List<Packet<? super ClientGamePacketListener>>) (List) subList
+                    ));
+                }
             }
         }
     }
@@ -242,10 +289,16 @@ public class PacketRedirection {
     
     /**
      * @param dimensionIntId use integer here because the mapping between dimension id and integer id is per-server the deserialization context does not give access to MinecraftServer object (going to handle the case of multiple servers per JVM)
+     * @param sharedEncoding the encoded bytes shared by the connections that send this payload
      */
     public record Payload(
-        int dimensionIntId, Packet<? extends ClientGamePacketListener> packet
+        int dimensionIntId, Packet<? extends ClientGamePacketListener> packet,
+        SharedPacketEncoding sharedEncoding
     ) implements CustomPacketPayload {
+        public Payload(int dimensionIntId, Packet<? extends ClientGamePacketListener> packet) {
+            this(dimensionIntId, packet, new SharedPacketEncoding());
+        }
+        
         public static final CustomPacketPayload.Type<Payload> TYPE =
             new CustomPacketPayload.Type<>(payloadId);
         
@@ -260,8 +313,10 @@ public class PacketRedirection {
             
             buf.writeVarInt(dimensionIntId);
             
-            PLACEHOLDER_PROTOCOL_INFO.codec()
-                .encode(buf, (Packet<? super ClientGamePacketListener>) packet);
+            sharedEncoding.writeTo(buf, target -> PLACEHOLDER_PROTOCOL_INFO.codec().encode(
+                target == buf ? buf : new RegistryFriendlyByteBuf(target, buf.registryAccess()),
+                (Packet<? super ClientGamePacketListener>) packet
+            ));
         }
         
         @SuppressWarnings("unchecked")
@@ -0,0 +1,203 @@
+package qouteall.imm_ptl.core.network;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.DoubleTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.world.phys.Vec3;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The difference between two versions of the portal data that is synced to client.
+ * The portal state fields (the doubles that change in portal animation) are encoded
+ * as raw doubles with a dirty bit mask, without the NBT key names.
+ * The other changed entries (portal shape, extension data, etc.) are sent as NBT.
+ * An unchanged portal shape mesh is not re-sent.
+ */
+public final class PortalSyncDelta {
+    public static final int FORMAT_VERSION = 1;
+    
+    // the order should not be changed without changing the format version
+    private static final String[] STATE_KEYS = {
+        "width", "height", "thickness",
+        "axisWX", "axisWY", "axisWZ",
+        "axisHX", "axisHY", "axisHZ",
+        "destinationX", "destinationY", "destinationZ",
+        "rotationA", "rotationB", "rotationC", "rotationD",
+        "scale"
+    };
+    
+    private final int stateMask;
+    private final double[] stateValues;
+    @Nullable
+    private final Vec3 pos;
+    // the changed or added entries that are not in the state mask
+    private final CompoundTag otherChanged;
+    private final List<String> removedKeys;
+    
+    private PortalSyncDelta(
+        int stateMask, double[] stateValues, @Nullable Vec3 pos,
+        CompoundTag otherChanged, List<String> removedKeys
+    ) {
+        this.stateMask = stateMask;
+        this.stateValues = stateValues;
+        this.pos = pos;
+        this.otherChanged = otherChanged;
+        this.removedKeys = removedKeys;
+    }
+    
+    public static PortalSyncDelta diff(
+        CompoundTag oldData, Vec3 oldPos, CompoundTag newData, Vec3 newPos
+    ) {
+        int stateMask = 0;
+        double[] stateValues = new double[STATE_KEYS.length];
+        CompoundTag otherChanged = new CompoundTag();
+        List<String> removedKeys = new ArrayList<>();
+        
+        for (String key : newData.getAllKeys()) {
+            Tag newTag = newData.get(key);
+            Tag oldTag = oldData.get(key);
+            if (Objects.equals(newTag, oldTag)) {
+                continue;
+            }
+            
+            int stateIndex = getStateIndex(key);
+            if (stateIndex != -1 && newTag instanceof DoubleTag doubleTag) {
+                stateMask |= 1 << stateIndex;
+                stateValues[stateIndex] = doubleTag.getAsDouble();
+            }
+            else {
+                otherChanged.put(key, newTag.copy());
+            }
+        }
+        
+        for (String key : oldData.getAllKeys()) {
+            if (!newData.contains(key)) {
+                removedKeys.add(key);
+            }
+        }
+        
+        return new PortalSyncDelta(
+            stateMask, stateValues,
+            oldPos.equals(newPos) ? null : newPos,
+            otherChanged, removedKeys
+        );
+    }
+    
+    private static int getStateIndex(String key) {
+        for (int i = 0; i < STATE_KEYS.length; i++) {
+            if (STATE_KEYS[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    public boolean isEmpty() {
+        return stateMask == 0 && pos == null && otherChanged.isEmpty() && removedKeys.isEmpty();
+    }
+    
+    /**
+     * @return the new portal data. The base is not modified.
+     */
+    public CompoundTag apply(CompoundTag base) {
+        CompoundTag result = base.copy();
+        
+        for (String key : removedKeys) {
+            result.remove(key);
+        }
+        
+        for (int i = 0; i < STATE_KEYS.length; i++) {
+            if ((stateMask & (1 << i)) != 0) {
+                result.putDouble(STATE_KEYS[i], stateValues[i]);
+            }
+        }
+        
+        for (String key : otherChanged.getAllKeys()) {
+            result.put(key, otherChanged.get(key).copy());
+        }
+        
+        return result;
+    }
+    
+    /**
+     * @return the new position, or the old position if the position is unchanged
+     */
+    public Vec3 applyPos(Vec3 oldPos) {
+        return pos == null ? oldPos : pos;
+    }
+    
+    public void write(FriendlyByteBuf buf) {
+        buf.writeByte(FORMAT_VERSION);
+        
+        buf.writeVarInt(stateMask);
+        for (int i = 0; i < STATE_KEYS.length; i++) {
+            if ((stateMask & (1 << i)) != 0) {
+                buf.writeDouble(stateValues[i]);
+            }
+        }
+        
+        buf.writeBoolean(pos != null);
+        if (pos != null) {
+            buf.writeDouble(pos.x);
+            buf.writeDouble(pos.y);
+            buf.writeDouble(pos.z);
+        }
+        
+        buf.writeBoolean(!otherChanged.isEmpty());
+        if (!otherChanged.isEmpty()) {
+            buf.writeNbt(otherChanged);
+        }
+        
+        buf.writeVarInt(removedKeys.size());
+        for (String key : removedKeys) {
+            buf.writeUtf(key);
+        }
+    }
+    
+    public static PortalSyncDelta read(FriendlyByteBuf buf) {
+        int version = buf.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException(
+                "Unsupported portal sync delta format %d. Expected %d".formatted(version, FORMAT_VERSION)
+            );
+        }
+        
+        int stateMask = buf.readVarInt();
+        double[] stateValues = new double[STATE_KEYS.length];
+        for (int i = 0; i < STATE_KEYS.length; i++) {
+            if ((stateMask & (1 << i)) != 0) {
+                stateValues[i] = buf.readDouble();
+            }
+        }
+        
+        Vec3 pos = null;
+        if (buf.readBoolean()) {
+            pos = new Vec3(buf.readDouble(), buf.readDouble(), buf.readDouble());
+        }
+        
+        CompoundTag otherChanged = new CompoundTag();
+        if (buf.readBoolean()) {
+            otherChanged = Objects.requireNonNull(buf.readNbt());
+        }
+        
+        int removedNum = buf.readVarInt();
+        List<String> removedKeys = new ArrayList<>(removedNum);
+        for (int i = 0; i < removedNum; i++) {
+            removedKeys.add(buf.readUtf());
+        }
+        
+        return new PortalSyncDelta(stateMask, stateValues, pos, otherChanged, removedKeys);
+    }
+    
+    @Override
+    public String toString() {
+        return "PortalSyncDelta{stateMask=%s, pos=%s, otherChanged=%s, removedKeys=%s}".formatted(
+            Integer.toBinaryString(stateMask), pos, otherChanged.getAllKeys(), removedKeys
+        );
+    }
+}
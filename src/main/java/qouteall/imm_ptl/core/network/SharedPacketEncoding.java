@@ -0,0 +1,82 @@
+package qouteall.imm_ptl.core.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.Consumer;
+
+/**
+ * The encoded bytes of a packet that is sent to multiple connections.
+ * The first connection that writes it encodes it into a retained buffer,
+ * and the other connections copy the bytes.
+ * Each connection that will write it holds a reference ({@link #retain()}),
+ * and the buffer is released after the last write.
+ * <p>
+ * If a connection never writes it (in-memory connection, disconnected, etc.),
+ * the buffer is not released, but it's an unpooled heap buffer so it's garbage collected.
+ * <p>
+ * The writes may happen in different netty threads.
+ */
+public final class SharedPacketEncoding {
+    private int referenceNum = 0;
+    @Nullable
+    private ByteBuf encoded = null;
+    private int encodeNum = 0;
+    
+    public synchronized void retain() {
+        referenceNum++;
+    }
+    
+    /**
+     * @param encoder writes the packet into the given buffer.
+     *                The given buffer is the target when there is no other reference.
+     */
+    public synchronized void writeTo(ByteBuf target, Consumer<ByteBuf> encoder) {
+        if (encoded == null) {
+            if (referenceNum <= 1) {
+                // the only writer. no need to copy
+                referenceNum = 0;
+                encodeNum++;
+                encoder.accept(target);
+                return;
+            }
+            
+            ByteBuf buf = Unpooled.buffer();
+            try {
+                encoder.accept(buf);
+            }
+            catch (Throwable e) {
+                buf.release();
+                throw e;
+            }
+            encoded = buf;
+            encodeNum++;
+        }
+        
+        target.writeBytes(encoded, encoded.readerIndex(), encoded.readableBytes());
+        
+        referenceNum--;
+        if (referenceNum <= 0) {
+            referenceNum = 0;
+            encoded.release();
+            encoded = null;
+        }
+    }
+    
+    public synchronized int getReferenceNum() {
+        return referenceNum;
+    }
+    
+    public synchronized boolean isEncodedBufferRetained() {
+        return encoded != null;
+    }
+    
+    /**
+     * How many times the packet is encoded.
+     * It's more than one if the buffer was released before a later connection retains it.
+     */
+    public synchronized int getEncodeNum() {
+        return encodeNum;
+    }
+}
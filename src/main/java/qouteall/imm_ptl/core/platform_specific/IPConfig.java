@@ -131,6 +131,32 @@ public class IPConfig implements ConfigData {
     @ConfigEntry.Gui.Excluded
     public boolean enableImmPtlChunkLoading = true;
     @ConfigEntry.Gui.Excluded
+    public boolean incrementalChunkTracking = true;
+    @ConfigEntry.Gui.Excluded
+    public boolean portalDeltaSync = true;
+    @ConfigEntry.Gui.Excluded
+    public boolean parallelChunkLoaderCollecting = true;
+    @ConfigEntry.Gui.Excluded
+    public boolean viewAwareChunkSending = false;
+    @ConfigEntry.Gui.Excluded
+    public boolean parallelFrameSearching = true;
+    @ConfigEntry.Gui.Excluded
+    public boolean adaptiveChunkTicketThrottling = true;
+    @ConfigEntry.Gui.Excluded
+    public boolean dirtyChunkEntityTracking = true;
+    @ConfigEntry.Gui.Excluded
+    public boolean skipUnwatchedEntityChanges = true;
+    @ConfigEntry.Gui.Excluded
+    public boolean bundleEntityChangePackets = false;
+    @ConfigEntry.Gui.Excluded
+    public boolean visibleSectionOcclusionCulling = true;
+    @ConfigEntry.Gui.Excluded
+    public boolean reuseVisibleSections = true;
+    @ConfigEntry.Gui.Excluded
+    public boolean collisionShapeCaching = true;
+    @ConfigEntry.Gui.Excluded
+    public boolean cacheIndirectCollidingPortals = true;
+    @ConfigEntry.Gui.Excluded
     public boolean serverTolerantVersionMismatchWithClient = false;
     @ConfigEntry.Gui.Excluded
     public boolean serverRejectClientWithoutImmPtl = true;
@@ -203,6 +229,19 @@ public class IPConfig implements ConfigData {
         BlockPortalShape.defaultLengthLimit = regularPortalLengthLimit;
         IPGlobal.maxNormalPortalRadius = Math.max(regularPortalLengthLimit / 2, 16);
         IPGlobal.chunkPacketDebug = chunkPacketDebug;
+        IPGlobal.incrementalChunkTracking = incrementalChunkTracking;
+        IPGlobal.portalDeltaSync = portalDeltaSync;
+        IPGlobal.parallelChunkLoaderCollecting = parallelChunkLoaderCollecting;
+        IPGlobal.viewAwareChunkSending = viewAwareChunkSending;
+        IPGlobal.parallelFrameSearching = parallelFrameSearching;
+        IPGlobal.adaptiveChunkTicketThrottling = adaptiveChunkTicketThrottling;
+        IPGlobal.dirtyChunkEntityTracking = dirtyChunkEntityTracking;
+        IPGlobal.skipUnwatchedEntityChanges = skipUnwatchedEntityChanges;
+        IPGlobal.bundleEntityChangePackets = bundleEntityChangePackets;
+        IPGlobal.visibleSectionOcclusionCulling = visibleSectionOcclusionCulling;
+        IPGlobal.reuseVisibleSections = reuseVisibleSections;
+        IPGlobal.collisionShapeCaching = collisionShapeCaching;
+        IPGlobal.cacheIndirectCollidingPortals = cacheIndirectCollidingPortals;
         IPGlobal.saveMemoryInBufferPack = saveMemoryInBufferPack;
         
         Helper.LOGGER.info("iPortal Config Applied");
@@ -30,6 +30,7 @@ import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.entity.vehicle.AbstractMinecart;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.entity.EntityInLevelCallback;
 import net.minecraft.world.phys.AABB;
 import net.minecraft.world.phys.Vec3;
 import net.minecraft.world.phys.shapes.VoxelShape;
@@ -45,12 +46,15 @@ import qouteall.imm_ptl.core.IPGlobal;
 import qouteall.imm_ptl.core.McHelper;
 import qouteall.imm_ptl.core.api.ImmPtlEntityExtension;
 import qouteall.imm_ptl.core.api.PortalAPI;
+import qouteall.imm_ptl.core.chunk_loading.ImmPtlChunkTracking;
+import qouteall.imm_ptl.core.collision.PortalCollisionShapeCache;
 import qouteall.imm_ptl.core.compat.iris_compatibility.IrisInterface;
 import qouteall.imm_ptl.core.mc_utils.IPEntityEventListenableEntity;
 import qouteall.imm_ptl.core.mc_utils.ServerTaskList;
 import qouteall.imm_ptl.core.mixin.common.entity_sync.MixinServerEntity;
 import qouteall.imm_ptl.core.mixin.common.mc_util.MixinEntity_U;
 import qouteall.imm_ptl.core.network.ImmPtlNetworking;
+import qouteall.imm_ptl.core.network.PortalSyncDelta;
 import qouteall.imm_ptl.core.platform_specific.IPConfig;
 import qouteall.imm_ptl.core.platform_specific.O_O;
 import qouteall.imm_ptl.core.portal.animation.AnimationView;
@@ -64,6 +68,7 @@ import qouteall.imm_ptl.core.portal.shape.RectangularPortalShape;
 import qouteall.imm_ptl.core.portal.shape.SpecialFlatPortalShape;
 import qouteall.imm_ptl.core.render.renderer.PortalRenderer;
 import qouteall.q_misc_util.Helper;
+import qouteall.q_misc_util.api.McRemoteProcedureCall;
 import qouteall.q_misc_util.my_util.DQuaternion;
 import qouteall.q_misc_util.my_util.Mesh2D;
 import qouteall.q_misc_util.my_util.MyTaskList;
@@ -195,7 +200,20 @@ public class Portal extends Entity implements
     
     protected boolean reloadAndSyncNextTick = false;
     
+    // the portal data of the last sync, used for delta sync
+    // on server side it's the data that the trackers have, on client side it's the received data
+    private @Nullable CompoundTag lastSyncedData;
+    private @Nullable Vec3 lastSyncedPos;
+    private int syncSequence = 0;
+    // a new tracker received newer data than the other trackers, so the next sync cannot be a delta
+    private boolean forceFullSyncNext = false;
+    // on client side, a delta was missed and the deltas are dropped until the full data arrives
+    private boolean fullSyncRequested = false;
+    
     // these are caches
+    // the chunk tracking worker threads may fill them at the same time. it's a benign race:
+    // they are only cleared on the server thread while the workers are not running,
+    // the cached objects are immutable, and the getters read the field once
     private @Nullable AABB thinBoundingBoxCache;
     private @Nullable AABB boundingBoxCache;
     private @Nullable Vec3 normalCache;
@@ -204,6 +222,12 @@ public class Portal extends Entity implements
     private @Nullable VoxelShape thisSideCollisionExclusion;
     private @Nullable UnilateralPortalState thisSideStateCache;
     private @Nullable UnilateralPortalState otherSideStateCache;
+    private @Nullable PortalTransformation transformationCache;
+    
+    // the block shapes on the other side clipped by the inner clipping
+    private @Nullable PortalCollisionShapeCache clippedShapeCache;
+    // the block shapes on this side with the collision exclusion
+    private @Nullable PortalCollisionShapeCache excludedShapeCache;
     
     public static final Event<Consumer<Portal>> CLIENT_PORTAL_TICK_SIGNAL =
         Helper.createConsumerEvent();
@@ -450,21 +474,38 @@ public class Portal extends Entity implements
     @Override
     public void ip_onEntityPositionUpdated() {
         updateCache();
+        PortalSpatialIndex.get(level()).onPortalMoved(this);
     }
     
     @Override
     public void ip_onRemoved(RemovalReason reason) {
+        PortalSpatialIndex.get(level()).remove(this);
         PORTAL_DISPOSE_SIGNAL.invoker().accept(this);
     }
     
+    /**
+     * The level callback is set when the portal is added into the level's entity manager
+     * and reset to {@link EntityInLevelCallback#NULL} when it's unloaded or removed.
+     */
+    @Override
+    public void setLevelCallback(EntityInLevelCallback levelCallback) {
+        super.setLevelCallback(levelCallback);
+        
+        if (levelCallback == EntityInLevelCallback.NULL) {
+            PortalSpatialIndex.get(level()).remove(this);
+            clearCollisionShapeCaches();
+        }
+        else {
+            PortalSpatialIndex.get(level()).add(this);
+        }
+    }
+    
     /**
      * @return use the portal's transformation to transform a point
      */
     @Override
     public Vec3 transformPoint(Vec3 pos) {
-        Vec3 localPos = pos.subtract(getOriginPos());
-        
-        return transformLocalVec(localPos).add(getDestPos());
+        return getTransformation().transformPoint(pos);
     }
     
     /**
@@ -480,10 +521,12 @@ public class Portal extends Entity implements
      * Note: the normal is no longer the plane normal for 3D portals.
      */
     public Vec3 getNormal() {
-        if (normalCache == null) {
-            normalCache = axisW.cross(axisH).normalize();
+        Vec3 normal = normalCache;
+        if (normal == null) {
+            normal = axisW.cross(axisH).normalize();
+            normalCache = normal;
         }
-        return normalCache;
+        return normal;
     }
     
     /**
@@ -491,10 +534,12 @@ public class Portal extends Entity implements
      * Note: it should not be used for 3D portals.
      */
     public Vec3 getContentDirection() {
-        if (contentDirectionCache == null) {
-            contentDirectionCache = transformLocalVecNonScale(getNormal().scale(-1));
+        Vec3 contentDirection = contentDirectionCache;
+        if (contentDirection == null) {
+            contentDirection = transformLocalVecNonScale(getNormal().scale(-1));
+            contentDirectionCache = contentDirection;
         }
-        return contentDirectionCache;
+        return contentDirection;
     }
     
     /**
@@ -523,7 +568,23 @@ public class Portal extends Entity implements
         Validate.isTrue(!level().isClientSide(), "must be used on server side");
         updateCache();
         
-        var packet = createSyncPacket();
+        CompoundTag data = writePortalDataToNbt();
+        Vec3 pos = position();
+        
+        syncSequence++;
+        
+        Packet<ClientGamePacketListener> packet;
+        if (IPGlobal.portalDeltaSync && lastSyncedData != null && !forceFullSyncNext) {
+            PortalSyncDelta delta = PortalSyncDelta.diff(lastSyncedData, lastSyncedPos, data, pos);
+            packet = createDeltaSyncPacket(delta);
+        }
+        else {
+            packet = createSyncPacket(data);
+        }
+        
+        lastSyncedData = data;
+        lastSyncedPos = pos;
+        forceFullSyncNext = false;
         
         McHelper.sendToTrackers(this, packet);
     }
@@ -550,6 +611,9 @@ public class Portal extends Entity implements
      * If the portal attributes get changed, these cache should be updated
      */
     public void updateCache() {
+        // the position can change before the orientation is initialized
+        transformationCache = null;
+        
         if (axisW == null || axisH == null) {
             return;
         }
@@ -563,6 +627,8 @@ public class Portal extends Entity implements
         thisSideStateCache = null;
         otherSideStateCache = null;
         
+        clearCollisionShapeCaches();
+        
         // after reload it will update cache, avoid infinite update
 //        if (!level().isClientSide()) {
 //            reloadAndSyncToClientNextTick();
@@ -571,10 +637,12 @@ public class Portal extends Entity implements
     
     @Override
     public @NotNull AABB getBoundingBox() {
-        if (boundingBoxCache == null) {
-            boundingBoxCache = makeBoundingBox();
+        AABB boundingBox = boundingBoxCache;
+        if (boundingBox == null) {
+            boundingBox = makeBoundingBox();
+            boundingBoxCache = boundingBox;
         }
-        return boundingBoxCache;
+        return boundingBox;
     }
     
     /**
@@ -864,6 +932,7 @@ public class Portal extends Entity implements
     
     public void setScaleTransformation(double newScale) {
         scaling = newScale;
+        updateCache();
     }
     
     
@@ -898,23 +967,52 @@ public class Portal extends Entity implements
     public @NotNull Packet<ClientGamePacketListener> getAddEntityPacket(
         ServerEntity serverEntity
     ) {
-        return createSyncPacket();
+        return createSyncPacketForNewTracker();
+    }
+    
+    /**
+     * The full data for one player, that the following deltas can be applied to.
+     */
+    private Packet<ClientGamePacketListener> createSyncPacketForNewTracker() {
+        CompoundTag data = writePortalDataToNbt();
+        
+        if (lastSyncedData == null) {
+            lastSyncedData = data;
+            lastSyncedPos = position();
+        }
+        else if (!data.equals(lastSyncedData) || !position().equals(lastSyncedPos)) {
+            // the portal changed without syncing. the other trackers have the old data
+            forceFullSyncNext = true;
+        }
+        
+        return createSyncPacket(data);
     }
     
     @SuppressWarnings({"unchecked", "rawtypes"})
-    private Packet<ClientGamePacketListener> createSyncPacket() {
+    private Packet<ClientGamePacketListener> createSyncPacket(CompoundTag data) {
         Validate.isTrue(!level().isClientSide());
         
-        CompoundTag compoundTag = new CompoundTag();
-        addAdditionalSaveData(compoundTag);
-        
         // the listener generic parameter is contravariant. this is fine
         return (Packet<ClientGamePacketListener>) (Packet)
             ServerPlayNetworking.createS2CPacket(new ImmPtlNetworking.PortalSyncPacket(
                 getId(), getUUID(), getType(),
                 PortalAPI.serverDimKeyToInt(getServer(), getOriginDim()),
                 getX(), getY(), getZ(),
-                compoundTag
+                syncSequence,
+                data
+            ));
+    }
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Packet<ClientGamePacketListener> createDeltaSyncPacket(PortalSyncDelta delta) {
+        Validate.isTrue(!level().isClientSide());
+        
+        return (Packet<ClientGamePacketListener>) (Packet)
+            ServerPlayNetworking.createS2CPacket(new ImmPtlNetworking.PortalDeltaSyncPacket(
+                getId(),
+                PortalAPI.serverDimKeyToInt(getServer(), getOriginDim()),
+                syncSequence,
+                delta
             ));
     }
     
@@ -964,15 +1062,17 @@ public class Portal extends Entity implements
             boundingBoxCache = null;
             return NULL_BOX;
         }
-        if (boundingBoxCache == null) {
+        AABB boundingBox = boundingBoxCache;
+        if (boundingBox == null) {
             // the bounding box should be limited for non-global portals
             // some ticking operations traverse all chunks in bounding box
             // having large bounding box will cause extreme lag
             // global portal doesn't tick, so it's ok
-            boundingBoxCache = getPortalShape()
+            boundingBox = getPortalShape()
                 .getBoundingBox(getThisSideState(), shouldLimitBoundingBox(), 0.2);
+            boundingBoxCache = boundingBox;
         }
-        return boundingBoxCache;
+        return boundingBox;
     }
     
     protected boolean shouldLimitBoundingBox() {
@@ -1068,7 +1168,7 @@ public class Portal extends Entity implements
         Vec3 originalVelocityRelativeToPortal, Entity entity,
         Vec3 oldEntityPos
     ) {
-        Vec3 result = transformLocalVec(originalVelocityRelativeToPortal);
+        Vec3 result = getTransformation().transformLocalVec(originalVelocityRelativeToPortal);
         
         final int maxVelocity = 15;
         if (originalVelocityRelativeToPortal.length() > maxVelocity) {
@@ -1222,7 +1322,19 @@ public class Portal extends Entity implements
     
     @Override
     public Vec3 inverseTransformPoint(Vec3 point) {
-        return getOriginPos().add(inverseTransformLocalVec(point.subtract(getDestPos())));
+        return getTransformation().inverseTransformPoint(point);
+    }
+    
+    /**
+     * @return the cached affine transformation, for transforming without allocation
+     */
+    public PortalTransformation getTransformation() {
+        PortalTransformation transformation = transformationCache;
+        if (transformation == null) {
+            transformation = PortalTransformation.fromPortal(this);
+            transformationCache = transformation;
+        }
+        return transformation;
     }
     
     /**
@@ -1365,13 +1477,15 @@ public class Portal extends Entity implements
     
     @Override
     public AABB getThinBoundingBox() {
-        if (thinBoundingBoxCache == null) {
-            thinBoundingBoxCache = getPortalShape().getBoundingBox(
+        AABB thinBoundingBox = thinBoundingBoxCache;
+        if (thinBoundingBox == null) {
+            thinBoundingBox = getPortalShape().getBoundingBox(
                 getThisSideState(), false, 0.001
             );
+            thinBoundingBoxCache = thinBoundingBox;
         }
         
-        return thinBoundingBoxCache;
+        return thinBoundingBox;
     }
     
     @Environment(EnvType.CLIENT)
@@ -1703,23 +1817,27 @@ public class Portal extends Entity implements
     }
     
     public UnilateralPortalState getThisSideState() {
-        if (thisSideStateCache == null) {
-            thisSideStateCache = new UnilateralPortalState(
+        UnilateralPortalState thisSideState = thisSideStateCache;
+        if (thisSideState == null) {
+            thisSideState = new UnilateralPortalState(
                 getOriginDim(), getOriginPos(),
                 getOrientationRotation(), width, height, thickness
             );
+            thisSideStateCache = thisSideState;
         }
         
-        return thisSideStateCache;
+        return thisSideState;
     }
     
     public UnilateralPortalState getOtherSideState() {
-        if (otherSideStateCache == null) {
+        UnilateralPortalState otherSideState = otherSideStateCache;
+        if (otherSideState == null) {
             PortalState portalState = getPortalState();
-            otherSideStateCache = UnilateralPortalState.extractOtherSide(portalState);
+            otherSideState = UnilateralPortalState.extractOtherSide(portalState);
+            otherSideStateCache = otherSideState;
         }
         
-        return otherSideStateCache;
+        return otherSideState;
     }
     
     public void setThisSideState(UnilateralPortalState ups) {
@@ -1748,6 +1866,67 @@ public class Portal extends Entity implements
         CLIENT_PORTAL_ACCEPT_SYNC_EVENT.invoker().accept(this);
     }
     
+    /**
+     * Called on client side when receiving the full portal data.
+     */
+    public void acceptFullDataSync(int syncSequence, Vec3 pos, CompoundTag data) {
+        acceptDataSync(pos, data);
+        rememberSyncedData(syncSequence, pos, data);
+    }
+    
+    /**
+     * Called on client side when receiving the full portal data of a newly spawned portal.
+     */
+    public void rememberSyncedData(int syncSequence, Vec3 pos, CompoundTag data) {
+        this.lastSyncedData = data;
+        this.lastSyncedPos = pos;
+        this.syncSequence = syncSequence;
+        this.fullSyncRequested = false;
+    }
+    
+    /**
+     * Called on client side when receiving the changed portal data.
+     * The delta is relative to the data of the previous sync.
+     * If a delta was missed, applying it gives wrong data,
+     * so it's dropped and the full data is requested from the server.
+     */
+    public void acceptDeltaSync(int syncSequence, PortalSyncDelta delta) {
+        if (lastSyncedData == null || lastSyncedPos == null) {
+            LOGGER.error("Received portal delta sync before full sync {} {}", this, delta);
+            requestFullSync();
+            return;
+        }
+        
+        if (syncSequence != this.syncSequence + 1) {
+            if (!fullSyncRequested) {
+                LOGGER.warn(
+                    "Portal sync sequence mismatch {}. Expected {} but got {}. Requesting full sync",
+                    this, this.syncSequence + 1, syncSequence
+                );
+            }
+            requestFullSync();
+            return;
+        }
+        
+        CompoundTag newData = delta.apply(lastSyncedData);
+        Vec3 newPos = delta.applyPos(lastSyncedPos);
+        
+        acceptFullDataSync(syncSequence, newPos, newData);
+    }
+    
+    @Environment(EnvType.CLIENT)
+    private void requestFullSync() {
+        if (fullSyncRequested) {
+            return;
+        }
+        fullSyncRequested = true;
+        
+        McRemoteProcedureCall.tellServerToInvoke(
+            "qouteall.imm_ptl.core.portal.Portal.RemoteCallables.requestFullSync",
+            level().dimension(), getId()
+        );
+    }
+    
     public CompoundTag writePortalDataToNbt() {
         CompoundTag nbtCompound = new CompoundTag();
         addAdditionalSaveData(nbtCompound);
@@ -1881,10 +2060,12 @@ public class Portal extends Entity implements
     // return null if the portal is not yet initialized
     @Nullable
     public PortalState getThisTickPortalState() {
-        if (portalStateCache == null) {
-            portalStateCache = getPortalState();
+        PortalState portalState = portalStateCache;
+        if (portalState == null) {
+            portalState = getPortalState();
+            portalStateCache = portalState;
         }
-        return portalStateCache;
+        return portalState;
     }
     
     public PortalState getAnimationEndingState() {
@@ -1960,4 +2141,61 @@ public class Portal extends Entity implements
         return thisSideCollisionExclusion;
     }
     
+    /**
+     * The block shapes on the destination side clipped by {@link #getInnerClipping()}.
+     */
+    public PortalCollisionShapeCache getClippedShapeCache() {
+        if (clippedShapeCache == null) {
+            clippedShapeCache = new PortalCollisionShapeCache();
+        }
+        return clippedShapeCache;
+    }
+    
+    /**
+     * The block shapes on this side with {@link #getThisSideCollisionExclusion()} removed.
+     */
+    public PortalCollisionShapeCache getExcludedShapeCache() {
+        if (excludedShapeCache == null) {
+            excludedShapeCache = new PortalCollisionShapeCache();
+        }
+        return excludedShapeCache;
+    }
+    
+    private void clearCollisionShapeCaches() {
+        if (clippedShapeCache != null) {
+            clippedShapeCache.clear();
+        }
+        if (excludedShapeCache != null) {
+            excludedShapeCache.clear();
+        }
+    }
+    
+    public static class RemoteCallables {
+        /**
+         * The client missed a delta sync of the portal.
+         */
+        public static void requestFullSync(
+            ServerPlayer player, ResourceKey<Level> dimension, int portalId
+        ) {
+            ServerLevel world = player.server.getLevel(dimension);
+            if (world == null) {
+                return;
+            }
+            
+            if (!(world.getEntity(portalId) instanceof Portal portal) || portal.getIsGlobal()) {
+                return;
+            }
+            
+            // don't send the portals that the player cannot see
+            if (!portal.broadcastToPlayer(player)) {
+                return;
+            }
+            ChunkPos chunkPos = portal.chunkPosition();
+            if (!ImmPtlChunkTracking.isPlayerWatchingChunk(player, dimension, chunkPos.x, chunkPos.z)) {
+                return;
+            }
+            
+            player.connection.send(portal.createSyncPacketForNewTracker());
+        }
+    }
 }
@@ -0,0 +1,447 @@
+package qouteall.imm_ptl.core.portal;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2LongMap;
+import it.unimi.dsi.fastutil.objects.Reference2LongOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.entity.EntitySection;
+import net.minecraft.world.level.entity.EntitySectionStorage;
+import net.minecraft.world.level.entity.LevelEntityGetter;
+import net.minecraft.world.phys.AABB;
+import net.minecraft.world.phys.Vec3;
+import org.apache.commons.lang3.Validate;
+import org.jetbrains.annotations.Nullable;
+import qouteall.imm_ptl.core.McHelper;
+import qouteall.imm_ptl.core.ducks.IEWorld;
+import qouteall.imm_ptl.core.mixin.common.mc_util.IELevelEntityGetterAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+/**
+ * The portal entities of one level, bucketed by the chunk column of the portal's section.
+ * It answers the nearby portal queries without walking the entity sections.
+ * The query semantics are the same as {@link McHelper#traverseEntities}:
+ * a portal is found if the section that contains its position is in the section box
+ * and that entity section is accessible.
+ * <p>
+ * Portals are added and removed in {@link Portal#setLevelCallback}
+ * and re-bucketed in {@link Portal#ip_onEntityPositionUpdated()}.
+ * Global portals are not in the level's entity manager so they are not indexed.
+ * The portals in the hidden entity sections (the loaded but non-ticking chunks) are indexed,
+ * but they are skipped by the queries, because the section visibility changes without notifying the portal.
+ * <p>
+ * The query functions should not add, remove or move portals.
+ */
+public final class PortalSpatialIndex {
+    private final Long2ObjectOpenHashMap<ObjectArrayList<Portal>> columnToPortals =
+        new Long2ObjectOpenHashMap<>();
+    
+    // the packed section pos of each indexed portal
+    private final Reference2LongOpenHashMap<Portal> portalToSection =
+        new Reference2LongOpenHashMap<>();
+    
+    // increased when a portal is added, removed or moved into another section
+    private int modificationCount = 0;
+    
+    // null means that all sections are accessible
+    @Nullable
+    private final LongPredicate isSectionAccessible;
+    
+    public PortalSpatialIndex() {
+        this(null);
+    }
+    
+    public PortalSpatialIndex(@Nullable LongPredicate isSectionAccessible) {
+        this.isSectionAccessible = isSectionAccessible;
+    }
+    
+    public static PortalSpatialIndex get(Level world) {
+        return ((IEWorld) world).ip_getPortalSpatialIndex();
+    }
+    
+    /**
+     * The same check as {@link McHelper#traverseEntities}.
+     * The entity manager is created after the level, so it's got lazily.
+     */
+    public static LongPredicate getSectionAccessibility(Level world) {
+        return sectionPos -> {
+            LevelEntityGetter<Entity> entityLookup = ((IEWorld) world).portal_getEntityLookup();
+            EntitySectionStorage<?> sectionStorage =
+                ((IELevelEntityGetterAdapter) entityLookup).getCache();
+            EntitySection<?> section = sectionStorage.getSection(sectionPos);
+            return section != null && section.getStatus().isAccessible();
+        };
+    }
+    
+    private boolean isAccessible(long sectionPos) {
+        return isSectionAccessible == null || isSectionAccessible.test(sectionPos);
+    }
+    
+    private static long getSectionPos(Portal portal) {
+        BlockPos blockPos = portal.blockPosition();
+        return SectionPos.asLong(
+            SectionPos.blockToSectionCoord(blockPos.getX()),
+            SectionPos.blockToSectionCoord(blockPos.getY()),
+            SectionPos.blockToSectionCoord(blockPos.getZ())
+        );
+    }
+    
+    private static long getColumn(long sectionPos) {
+        return ChunkPos.asLong(SectionPos.x(sectionPos), SectionPos.z(sectionPos));
+    }
+    
+    /**
+     * If the portal is already indexed, it updates its position.
+     */
+    public void add(Portal portal) {
+        if (portal.getIsGlobal()) {
+            return;
+        }
+        
+        long sectionPos = getSectionPos(portal);
+        
+        if (portalToSection.containsKey(portal)) {
+            updateSection(portal, sectionPos);
+            return;
+        }
+        
+        portalToSection.put(portal, sectionPos);
+        modificationCount++;
+        columnToPortals.computeIfAbsent(
+            getColumn(sectionPos), k -> new ObjectArrayList<>()
+        ).add(portal);
+    }
+    
+    public void remove(Portal portal) {
+        if (!portalToSection.containsKey(portal)) {
+            return;
+        }
+        
+        long sectionPos = portalToSection.removeLong(portal);
+        modificationCount++;
+        removeFromColumn(portal, getColumn(sectionPos));
+    }
+    
+    /**
+     * Does nothing if the portal is not indexed
+     * (the position is also updated before the portal is added into the level).
+     */
+    public void onPortalMoved(Portal portal) {
+        if (!portalToSection.containsKey(portal)) {
+            return;
+        }
+        
+        updateSection(portal, getSectionPos(portal));
+    }
+    
+    private void updateSection(Portal portal, long newSectionPos) {
+        long oldSectionPos = portalToSection.put(portal, newSectionPos);
+        if (oldSectionPos != newSectionPos) {
+            modificationCount++;
+        }
+        
+        long oldColumn = getColumn(oldSectionPos);
+        long newColumn = getColumn(newSectionPos);
+        if (oldColumn != newColumn) {
+            removeFromColumn(portal, oldColumn);
+            columnToPortals.computeIfAbsent(newColumn, k -> new ObjectArrayList<>()).add(portal);
+        }
+    }
+    
+    private void removeFromColumn(Portal portal, long column) {
+        ObjectArrayList<Portal> list = columnToPortals.get(column);
+        if (list == null) {
+            return;
+        }
+        
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == portal) {
+                // the order within a column doesn't matter
+                int last = list.size() - 1;
+                list.set(i, list.get(last));
+                list.remove(last);
+                break;
+            }
+        }
+        
+        if (list.isEmpty()) {
+            columnToPortals.remove(column);
+        }
+    }
+    
+    public boolean contains(Portal portal) {
+        return portalToSection.containsKey(portal);
+    }
+    
+    public int getPortalNum() {
+        return portalToSection.size();
+    }
+    
+    /**
+     * If it's unchanged, the results of the queries by section are unchanged,
+     * except that the portals may have moved within their sections.
+     */
+    public int getModificationCount() {
+        return modificationCount;
+    }
+    
+    public void foreachPortal(Consumer<Portal> consumer) {
+        for (ObjectArrayList<Portal> list : columnToPortals.values()) {
+            for (int i = 0; i < list.size(); i++) {
+                Portal portal = list.get(i);
+                if (isAccessible(portalToSection.getLong(portal))) {
+                    consumer.accept(portal);
+                }
+            }
+        }
+    }
+    
+    /**
+     * The range is inclusive on both ends, in section coordinates.
+     * It stops and returns the first non-null result of the function.
+     */
+    @Nullable
+    public <R> R traversePortalsInSectionBox(
+        int chunkXStart, int chunkXEnd,
+        int chunkYStart, int chunkYEnd,
+        int chunkZStart, int chunkZEnd,
+        Function<Portal, R> function
+    ) {
+        return traverseIndexedPortalsInSectionBox(
+            chunkXStart, chunkXEnd,
+            chunkYStart, chunkYEnd,
+            chunkZStart, chunkZEnd,
+            portal -> isAccessible(portalToSection.getLong(portal)) ? function.apply(portal) : null
+        );
+    }
+    
+    // including the portals in the hidden sections
+    @Nullable
+    private <R> R traverseIndexedPortalsInSectionBox(
+        int chunkXStart, int chunkXEnd,
+        int chunkYStart, int chunkYEnd,
+        int chunkZStart, int chunkZEnd,
+        Function<Portal, R> function
+    ) {
+        Validate.isTrue(chunkXEnd >= chunkXStart);
+        Validate.isTrue(chunkYEnd >= chunkYStart);
+        Validate.isTrue(chunkZEnd >= chunkZStart);
+        
+        long columnNum = ((long) (chunkXEnd - chunkXStart + 1)) * (chunkZEnd - chunkZStart + 1);
+        
+        // when there are fewer portals than columns, scanning the portals is cheaper
+        if (columnNum > portalToSection.size()) {
+            for (Reference2LongMap.Entry<Portal> entry : portalToSection.reference2LongEntrySet()) {
+                long sectionPos = entry.getLongValue();
+                int x = SectionPos.x(sectionPos);
+                int y = SectionPos.y(sectionPos);
+                int z = SectionPos.z(sectionPos);
+                if (x >= chunkXStart && x <= chunkXEnd &&
+                    y >= chunkYStart && y <= chunkYEnd &&
+                    z >= chunkZStart && z <= chunkZEnd
+                ) {
+                    R result = function.apply(entry.getKey());
+                    if (result != null) {
+                        return result;
+                    }
+                }
+            }
+            return null;
+        }
+        
+        for (int x = chunkXStart; x <= chunkXEnd; x++) {
+            for (int z = chunkZStart; z <= chunkZEnd; z++) {
+                ObjectArrayList<Portal> list = columnToPortals.get(ChunkPos.asLong(x, z));
+                if (list == null) {
+                    continue;
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    Portal portal = list.get(i);
+                    int y = SectionPos.y(portalToSection.getLong(portal));
+                    if (y >= chunkYStart && y <= chunkYEnd) {
+                        R result = function.apply(portal);
+                        if (result != null) {
+                            return result;
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+    
+    public void foreachPortalsInSectionBox(
+        int chunkXStart, int chunkXEnd,
+        int chunkYStart, int chunkYEnd,
+        int chunkZStart, int chunkZEnd,
+        Consumer<Portal> consumer
+    ) {
+        traversePortalsInSectionBox(
+            chunkXStart, chunkXEnd,
+            chunkYStart, chunkYEnd,
+            chunkZStart, chunkZEnd,
+            portal -> {
+                consumer.accept(portal);
+                return null;
+            }
+        );
+    }
+    
+    /**
+     * The same as {@link McHelper#findEntitiesRough(Class, Level, Vec3, int, Predicate)}
+     */
+    public List<Portal> findPortalsRough(
+        Vec3 center, int radiusChunks, Predicate<Portal> predicate
+    ) {
+        // the minimum is 1
+        if (radiusChunks <= 0) {
+            radiusChunks = 1;
+        }
+        
+        if (radiusChunks > 32) {
+            radiusChunks = 32;
+        }
+        
+        SectionPos sectionPos = SectionPos.of(center);
+        
+        ArrayList<Portal> result = new ArrayList<>();
+        foreachPortalsInSectionBox(
+            sectionPos.x() - radiusChunks,
+            sectionPos.x() + radiusChunks,
+            sectionPos.y() - radiusChunks,
+            sectionPos.y() + radiusChunks,
+            sectionPos.z() - radiusChunks,
+            sectionPos.z() + radiusChunks,
+            portal -> {
+                if (predicate.test(portal)) {
+                    result.add(portal);
+                }
+            }
+        );
+        return result;
+    }
+    
+    /**
+     * The same as {@link McHelper#traverseEntitiesByPointAndRoughRadius}
+     */
+    @Nullable
+    public <R> R traversePortalsByPointAndRoughRadius(
+        Vec3 point, int roughRadius, Function<Portal, R> function
+    ) {
+        SectionPos sectionPos = SectionPos.of(BlockPos.containing(point));
+        int roughRadiusChunks = (int) Math.ceil(roughRadius / 16.0);
+        if (roughRadiusChunks == 0) {
+            roughRadiusChunks = 1;
+        }
+        
+        return traversePortalsInSectionBox(
+            sectionPos.x() - roughRadiusChunks,
+            sectionPos.x() + roughRadiusChunks,
+            sectionPos.y() - roughRadiusChunks,
+            sectionPos.y() + roughRadiusChunks,
+            sectionPos.z() - roughRadiusChunks,
+            sectionPos.z() + roughRadiusChunks,
+            function
+        );
+    }
+    
+    /**
+     * The same as {@link McHelper#findEntitiesByBox(Class, Level, AABB, double, Predicate)}
+     */
+    public List<Portal> findPortalsByBox(
+        AABB box, double maxPortalRadius, Predicate<Portal> predicate
+    ) {
+        ArrayList<Portal> result = new ArrayList<>();
+        foreachPortalsInSectionRangeOfBox(
+            box, maxPortalRadius,
+            portal -> {
+                if (portal.getBoundingBox().intersects(box) &&
+                    isAccessible(portalToSection.getLong(portal)) && predicate.test(portal)
+                ) {
+                    result.add(portal);
+                }
+            }
+        );
+        return result;
+    }
+    
+    /**
+     * The portals that {@link #findPortalsByBox(AABB, double, Predicate)} tests,
+     * without testing their bounding boxes and the section accessibility.
+     * The result only changes when the modification count changes,
+     * so it can be kept as the candidates of {@link #filterPortalsByBox}.
+     */
+    public List<Portal> findPortalsInSectionRangeOfBox(AABB box, double maxPortalRadius) {
+        ArrayList<Portal> result = new ArrayList<>();
+        foreachPortalsInSectionRangeOfBox(box, maxPortalRadius, result::add);
+        return result;
+    }
+    
+    private void foreachPortalsInSectionRangeOfBox(
+        AABB box, double maxPortalRadius, Consumer<Portal> consumer
+    ) {
+        int xMin = (int) Math.floor(box.minX - maxPortalRadius);
+        int yMin = (int) Math.floor(box.minY - maxPortalRadius);
+        int zMin = (int) Math.floor(box.minZ - maxPortalRadius);
+        int xMax = (int) Math.ceil(box.maxX + maxPortalRadius);
+        int yMax = (int) Math.ceil(box.maxY + maxPortalRadius);
+        int zMax = (int) Math.ceil(box.maxZ + maxPortalRadius);
+        
+        traverseIndexedPortalsInSectionBox(
+            xMin >> 4, xMax >> 4,
+            yMin >> 4, yMax >> 4,
+            zMin >> 4, zMax >> 4,
+            portal -> {
+                consumer.accept(portal);
+                return null;
+            }
+        );
+    }
+    
+    /**
+     * The same as {@link #findPortalsByBox(AABB, double, Predicate)}, but only tests the candidates.
+     * The candidates should be the result of {@link #findPortalsInSectionRangeOfBox(AABB, double)}
+     * by a box that contains this box, and the modification count should be unchanged since then.
+     * The bounding boxes and the section accessibility are tested here,
+     * so the portals that moved or resized within their sections are handled.
+     */
+    public List<Portal> filterPortalsByBox(
+        List<Portal> candidates, AABB box, double maxPortalRadius, Predicate<Portal> predicate
+    ) {
+        int xMin = ((int) Math.floor(box.minX - maxPortalRadius)) >> 4;
+        int yMin = ((int) Math.floor(box.minY - maxPortalRadius)) >> 4;
+        int zMin = ((int) Math.floor(box.minZ - maxPortalRadius)) >> 4;
+        int xMax = ((int) Math.ceil(box.maxX + maxPortalRadius)) >> 4;
+        int yMax = ((int) Math.ceil(box.maxY + maxPortalRadius)) >> 4;
+        int zMax = ((int) Math.ceil(box.maxZ + maxPortalRadius)) >> 4;
+        
+        ArrayList<Portal> result = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            Portal portal = candidates.get(i);
+            if (!portalToSection.containsKey(portal)) {
+                continue;
+            }
+            long sectionPos = portalToSection.getLong(portal);
+            int x = SectionPos.x(sectionPos);
+            int y = SectionPos.y(sectionPos);
+            int z = SectionPos.z(sectionPos);
+            if (x >= xMin && x <= xMax && y >= yMin && y <= yMax && z >= zMin && z <= zMax &&
+                portal.getBoundingBox().intersects(box) && isAccessible(sectionPos) &&
+                predicate.test(portal)
+            ) {
+                result.add(portal);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,247 @@
+package qouteall.imm_ptl.core.portal;
+
+import net.minecraft.world.phys.Vec3;
+import org.joml.Vector3d;
+
+/**
+ * The portal's transformation as an affine matrix, with the rotation, the mirroring and the scaling in the linear part.
+ * It's immutable and cached in {@link Portal}, see {@link Portal#getTransformation()}.
+ * <br>
+ * The {@link Vec3} methods only allocate the result.
+ * The other methods don't allocate. They write into the caller's buffers or mutable vectors,
+ * or return one coordinate at a time.
+ * The points are transformed as dest + M * (point - origin), in the same order as transforming the local vector
+ * with {@link Portal#transformLocalVec(Vec3)}, so that the results keep the precision when the coordinates are large.
+ */
+public final class PortalTransformation {
+    private final double originX;
+    private final double originY;
+    private final double originZ;
+    private final double destX;
+    private final double destY;
+    private final double destZ;
+    
+    // the linear part, row-major
+    private final double m00, m01, m02;
+    private final double m10, m11, m12;
+    private final double m20, m21, m22;
+    
+    // the inverse of the linear part, row-major
+    private final double i00, i01, i02;
+    private final double i10, i11, i12;
+    private final double i20, i21, i22;
+    
+    private final double scale;
+    
+    // package-private for the benchmark
+    PortalTransformation(
+        Vec3 origin, Vec3 dest,
+        Vec3 column0, Vec3 column1, Vec3 column2,
+        Vec3 inverseColumn0, Vec3 inverseColumn1, Vec3 inverseColumn2,
+        double scale
+    ) {
+        this.originX = origin.x;
+        this.originY = origin.y;
+        this.originZ = origin.z;
+        this.destX = dest.x;
+        this.destY = dest.y;
+        this.destZ = dest.z;
+        
+        this.m00 = column0.x;
+        this.m10 = column0.y;
+        this.m20 = column0.z;
+        this.m01 = column1.x;
+        this.m11 = column1.y;
+        this.m21 = column1.z;
+        this.m02 = column2.x;
+        this.m12 = column2.y;
+        this.m22 = column2.z;
+        
+        this.i00 = inverseColumn0.x;
+        this.i10 = inverseColumn0.y;
+        this.i20 = inverseColumn0.z;
+        this.i01 = inverseColumn1.x;
+        this.i11 = inverseColumn1.y;
+        this.i21 = inverseColumn1.z;
+        this.i02 = inverseColumn2.x;
+        this.i12 = inverseColumn2.y;
+        this.i22 = inverseColumn2.z;
+        
+        this.scale = scale;
+    }
+    
+    /**
+     * The matrix columns are the transformed unit vectors,
+     * so that the subclasses that override the local vector transformation (like {@link Mirror}) are also covered.
+     * Their transformations must be linear.
+     */
+    public static PortalTransformation fromPortal(Portal portal) {
+        return new PortalTransformation(
+            portal.getOriginPos(), portal.getDestPos(),
+            portal.transformLocalVec(new Vec3(1, 0, 0)),
+            portal.transformLocalVec(new Vec3(0, 1, 0)),
+            portal.transformLocalVec(new Vec3(0, 0, 1)),
+            portal.inverseTransformLocalVec(new Vec3(1, 0, 0)),
+            portal.inverseTransformLocalVec(new Vec3(0, 1, 0)),
+            portal.inverseTransformLocalVec(new Vec3(0, 0, 1)),
+            portal.getScaling()
+        );
+    }
+    
+    public double getScale() {
+        return scale;
+    }
+    
+    public double transformPointX(double x, double y, double z) {
+        double lx = x - originX;
+        double ly = y - originY;
+        double lz = z - originZ;
+        return m00 * lx + m01 * ly + m02 * lz + destX;
+    }
+    
+    public double transformPointY(double x, double y, double z) {
+        double lx = x - originX;
+        double ly = y - originY;
+        double lz = z - originZ;
+        return m10 * lx + m11 * ly + m12 * lz + destY;
+    }
+    
+    public double transformPointZ(double x, double y, double z) {
+        double lx = x - originX;
+        double ly = y - originY;
+        double lz = z - originZ;
+        return m20 * lx + m21 * ly + m22 * lz + destZ;
+    }
+    
+    public Vec3 transformPoint(Vec3 pos) {
+        double lx = pos.x - originX;
+        double ly = pos.y - originY;
+        double lz = pos.z - originZ;
+        return new Vec3(
+            m00 * lx + m01 * ly + m02 * lz + destX,
+            m10 * lx + m11 * ly + m12 * lz + destY,
+            m20 * lx + m21 * ly + m22 * lz + destZ
+        );
+    }
+    
+    /**
+     * Writes the result to dest[destOffset], dest[destOffset + 1] and dest[destOffset + 2].
+     */
+    public void transformPoint(double x, double y, double z, double[] dest, int destOffset) {
+        double lx = x - originX;
+        double ly = y - originY;
+        double lz = z - originZ;
+        dest[destOffset] = m00 * lx + m01 * ly + m02 * lz + destX;
+        dest[destOffset + 1] = m10 * lx + m11 * ly + m12 * lz + destY;
+        dest[destOffset + 2] = m20 * lx + m21 * ly + m22 * lz + destZ;
+    }
+    
+    /**
+     * Transforms the vector in place.
+     *
+     * @return the vector
+     */
+    public Vector3d transformPoint(Vector3d vec) {
+        double lx = vec.x - originX;
+        double ly = vec.y - originY;
+        double lz = vec.z - originZ;
+        return vec.set(
+            m00 * lx + m01 * ly + m02 * lz + destX,
+            m10 * lx + m11 * ly + m12 * lz + destY,
+            m20 * lx + m21 * ly + m22 * lz + destZ
+        );
+    }
+    
+    /**
+     * The points are stored as x, y, z, x, y, z, ...
+     * The source and the destination can be the same array.
+     */
+    public void transformPoints(double[] src, int srcOffset, double[] dest, int destOffset, int pointNum) {
+        for (int i = 0; i < pointNum; i++) {
+            int s = srcOffset + i * 3;
+            transformPoint(src[s], src[s + 1], src[s + 2], dest, destOffset + i * 3);
+        }
+    }
+    
+    public Vec3 transformLocalVec(Vec3 localVec) {
+        return new Vec3(
+            m00 * localVec.x + m01 * localVec.y + m02 * localVec.z,
+            m10 * localVec.x + m11 * localVec.y + m12 * localVec.z,
+            m20 * localVec.x + m21 * localVec.y + m22 * localVec.z
+        );
+    }
+    
+    public void transformLocalVec(double x, double y, double z, double[] dest, int destOffset) {
+        dest[destOffset] = m00 * x + m01 * y + m02 * z;
+        dest[destOffset + 1] = m10 * x + m11 * y + m12 * z;
+        dest[destOffset + 2] = m20 * x + m21 * y + m22 * z;
+    }
+    
+    public Vector3d transformLocalVec(Vector3d vec) {
+        return vec.set(
+            m00 * vec.x + m01 * vec.y + m02 * vec.z,
+            m10 * vec.x + m11 * vec.y + m12 * vec.z,
+            m20 * vec.x + m21 * vec.y + m22 * vec.z
+        );
+    }
+    
+    public Vec3 inverseTransformPoint(Vec3 pos) {
+        double lx = pos.x - destX;
+        double ly = pos.y - destY;
+        double lz = pos.z - destZ;
+        return new Vec3(
+            i00 * lx + i01 * ly + i02 * lz + originX,
+            i10 * lx + i11 * ly + i12 * lz + originY,
+            i20 * lx + i21 * ly + i22 * lz + originZ
+        );
+    }
+    
+    public void inverseTransformPoint(double x, double y, double z, double[] dest, int destOffset) {
+        double lx = x - destX;
+        double ly = y - destY;
+        double lz = z - destZ;
+        dest[destOffset] = i00 * lx + i01 * ly + i02 * lz + originX;
+        dest[destOffset + 1] = i10 * lx + i11 * ly + i12 * lz + originY;
+        dest[destOffset + 2] = i20 * lx + i21 * ly + i22 * lz + originZ;
+    }
+    
+    public Vector3d inverseTransformPoint(Vector3d vec) {
+        double lx = vec.x - destX;
+        double ly = vec.y - destY;
+        double lz = vec.z - destZ;
+        return vec.set(
+            i00 * lx + i01 * ly + i02 * lz + originX,
+            i10 * lx + i11 * ly + i12 * lz + originY,
+            i20 * lx + i21 * ly + i22 * lz + originZ
+        );
+    }
+    
+    public void inverseTransformPoints(double[] src, int srcOffset, double[] dest, int destOffset, int pointNum) {
+        for (int i = 0; i < pointNum; i++) {
+            int s = srcOffset + i * 3;
+            inverseTransformPoint(src[s], src[s + 1], src[s + 2], dest, destOffset + i * 3);
+        }
+    }
+    
+    public Vec3 inverseTransformLocalVec(Vec3 localVec) {
+        return new Vec3(
+            i00 * localVec.x + i01 * localVec.y + i02 * localVec.z,
+            i10 * localVec.x + i11 * localVec.y + i12 * localVec.z,
+            i20 * localVec.x + i21 * localVec.y + i22 * localVec.z
+        );
+    }
+    
+    public void inverseTransformLocalVec(double x, double y, double z, double[] dest, int destOffset) {
+        dest[destOffset] = i00 * x + i01 * y + i02 * z;
+        dest[destOffset + 1] = i10 * x + i11 * y + i12 * z;
+        dest[destOffset + 2] = i20 * x + i21 * y + i22 * z;
+    }
+    
+    public Vector3d inverseTransformLocalVec(Vector3d vec) {
+        return vec.set(
+            i00 * vec.x + i01 * vec.y + i02 * vec.z,
+            i10 * vec.x + i11 * vec.y + i12 * vec.z,
+            i20 * vec.x + i21 * vec.y + i22 * vec.z
+        );
+    }
+}
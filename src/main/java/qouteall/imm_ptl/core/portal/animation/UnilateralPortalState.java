@@ -224,6 +224,60 @@ public record UnilateralPortalState(
         return transformGlobalToLocal(vec3.x, vec3.y, vec3.z);
     }
     
+    // the allocation-free versions of transformGlobalToLocal, returning one coordinate
+    
+    public double transformGlobalToLocalX(double x, double y, double z) {
+        Matrix3dc m = orientationMatrixReverse;
+        return m.m00() * (x - position.x) + m.m10() * (y - position.y) + m.m20() * (z - position.z);
+    }
+    
+    public double transformGlobalToLocalY(double x, double y, double z) {
+        Matrix3dc m = orientationMatrixReverse;
+        return m.m01() * (x - position.x) + m.m11() * (y - position.y) + m.m21() * (z - position.z);
+    }
+    
+    public double transformGlobalToLocalZ(double x, double y, double z) {
+        Matrix3dc m = orientationMatrixReverse;
+        return m.m02() * (x - position.x) + m.m12() * (y - position.y) + m.m22() * (z - position.z);
+    }
+    
+    /**
+     * Writes the local coordinate to dest[destOffset], dest[destOffset + 1] and dest[destOffset + 2].
+     */
+    public void transformGlobalToLocal(double x, double y, double z, double[] dest, int destOffset) {
+        dest[destOffset] = transformGlobalToLocalX(x, y, z);
+        dest[destOffset + 1] = transformGlobalToLocalY(x, y, z);
+        dest[destOffset + 2] = transformGlobalToLocalZ(x, y, z);
+    }
+    
+    /**
+     * Writes the global coordinate to dest[destOffset], dest[destOffset + 1] and dest[destOffset + 2].
+     */
+    public void transformLocalToGlobal(double x, double y, double z, double[] dest, int destOffset) {
+        Matrix3dc m = orientationMatrix;
+        dest[destOffset] = m.m00() * x + m.m10() * y + m.m20() * z + position.x;
+        dest[destOffset + 1] = m.m01() * x + m.m11() * y + m.m21() * z + position.y;
+        dest[destOffset + 2] = m.m02() * x + m.m12() * y + m.m22() * z + position.z;
+    }
+    
+    /**
+     * The points are stored as x, y, z, x, y, z, ...
+     * The source and the destination can be the same array.
+     */
+    public void transformGlobalToLocal(double[] src, int srcOffset, double[] dest, int destOffset, int pointNum) {
+        for (int i = 0; i < pointNum; i++) {
+            int s = srcOffset + i * 3;
+            transformGlobalToLocal(src[s], src[s + 1], src[s + 2], dest, destOffset + i * 3);
+        }
+    }
+    
+    public void transformLocalToGlobal(double[] src, int srcOffset, double[] dest, int destOffset, int pointNum) {
+        for (int i = 0; i < pointNum; i++) {
+            int s = srcOffset + i * 3;
+            transformLocalToGlobal(src[s], src[s + 1], src[s + 2], dest, destOffset + i * 3);
+        }
+    }
+    
     public Vec3 transformVecLocalToGlobal(Vec3 vec3) {
         Vector3d v = new Vector3d(vec3.x, vec3.y, vec3.z);
         orientationMatrix.transform(v);
@@ -1,28 +1,46 @@
 package qouteall.imm_ptl.core.portal.global_portals;
 
-import com.google.common.base.Supplier;
-import com.google.common.collect.Streams;
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
 import net.minecraft.network.chat.Component;
+import net.minecraft.server.level.ServerChunkCache;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.server.level.ThreadedLevelLightEngine;
+import net.minecraft.server.level.TicketType;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.block.Blocks;
-import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
 import net.minecraft.world.phys.Vec3;
+import org.slf4j.Logger;
 import qouteall.imm_ptl.core.McHelper;
+import qouteall.imm_ptl.core.mc_utils.ServerTaskList;
 import qouteall.q_misc_util.my_util.IntBox;
+import qouteall.q_misc_util.my_util.MyTaskList;
 
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.List;
 import java.util.WeakHashMap;
 import java.util.function.Consumer;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 public class BorderBarrierFiller {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
     private static final WeakHashMap<ServerPlayer, Object> warnedPlayers
         = new WeakHashMap<>();
     
+    private static final TicketType<ChunkPos> TICKET_TYPE =
+        TicketType.create("imm_ptl_border_clearing", Comparator.comparingLong(ChunkPos::toLong));
+    
+    private static final int MAX_LOADING_CHUNK_NUM = 16;
+    private static final long MAX_NANOS_PER_TICK = 10_000_000L;
+    
     public static void onCommandExecuted(
         ServerPlayer player
     ) {
@@ -108,59 +126,189 @@ public class BorderBarrierFiller {
         IntBox borderBox,
         Consumer<Component> informer
     ) {
-        Supplier<IntStream> xStream = () -> IntStream.range(
-            borderBox.l.getX(), borderBox.h.getX() + 1
-        );
-        Supplier<IntStream> zStream = () -> IntStream.range(
-            borderBox.l.getZ(), borderBox.h.getZ() + 1
-        );
-        BlockPos.MutableBlockPos temp = new BlockPos.MutableBlockPos();
-        BlockPos.MutableBlockPos temp1 = new BlockPos.MutableBlockPos();
-        Stream<BlockPos.MutableBlockPos> stream = Streams.concat(
-            xStream.get().mapToObj(x -> temp.set(x, 0, borderBox.l.getZ())),
-            xStream.get().mapToObj(x -> temp.set(x, 0, borderBox.h.getZ())),
-            zStream.get().mapToObj(z -> temp.set(borderBox.l.getX(), 0, z)),
-            zStream.get().mapToObj(z -> temp.set(borderBox.h.getX(), 0, z))
+        Long2ObjectLinkedOpenHashMap<BitSet> columnsByChunk = getColumnsByChunk(
+            borderBox.l.getX(), borderBox.l.getZ(), borderBox.h.getX(), borderBox.h.getZ()
         );
         
-        BlockPos size = borderBox.getSize();
-        int totalColumns = size.getX() * 2 + size.getZ() * 2;
+        ServerTaskList.of(world.getServer()).addTask(
+            new ClearingTask(world, columnsByChunk, informer)
+        );
+    }
+    
+    /**
+     * Groups the columns on the border ring by chunk, in the order along the ring.
+     * The columns of a chunk are indexed by {@code (localZ << 4) | localX}.
+     */
+    static Long2ObjectLinkedOpenHashMap<BitSet> getColumnsByChunk(
+        int minX, int minZ, int maxX, int maxZ
+    ) {
+        Long2ObjectLinkedOpenHashMap<BitSet> result = new Long2ObjectLinkedOpenHashMap<>();
+        for (int x = minX; x <= maxX; x++) {
+            addColumn(result, x, minZ);
+        }
+        for (int z = minZ; z <= maxZ; z++) {
+            addColumn(result, maxX, z);
+        }
+        for (int x = maxX; x >= minX; x--) {
+            addColumn(result, x, maxZ);
+        }
+        for (int z = maxZ; z >= minZ; z--) {
+            addColumn(result, minX, z);
+        }
+        return result;
+    }
+    
+    private static void addColumn(Long2ObjectLinkedOpenHashMap<BitSet> columnsByChunk, int x, int z) {
+        long chunkPos = ChunkPos.asLong(x >> 4, z >> 4);
+        BitSet columns = columnsByChunk.get(chunkPos);
+        if (columns == null) {
+            columns = new BitSet(256);
+            columnsByChunk.put(chunkPos, columns);
+        }
+        columns.set(((z & 15) << 4) | (x & 15));
+    }
     
-        int minY = McHelper.getMinY(world);
-        int maxYEx = McHelper.getMaxYExclusive(world);
-        
-        ThreadedLevelLightEngine lightingProvider = world.getChunkSource().getLightEngine();
-        
-        McHelper.performMultiThreadedFindingTaskOnServer(
-            world.getServer(),
-            stream,
-            columnPos -> {
-                ChunkAccess chunk = world.getChunk(columnPos);
-                for (int y = minY; y < maxYEx; y++) {
-                    temp1.set(columnPos.getX(), y, columnPos.getZ());
-                    chunk.setBlockState(temp1, Blocks.AIR.defaultBlockState(), false);
-                    lightingProvider.checkBlock(temp1);
+    /**
+     * Clears the border chunk by chunk on the server thread, within a time budget per tick.
+     * The chunks are loaded by tickets in advance, a few at a time, instead of being loaded synchronously.
+     */
+    private static class ClearingTask implements MyTaskList.MyTask {
+        private final ServerLevel world;
+        private final Long2ObjectLinkedOpenHashMap<BitSet> columnsByChunk;
+        private final LongArrayList chunks;
+        private final Consumer<Component> informer;
+        private final int minY;
+        private final int maxYExclusive;
+        
+        private int nextChunkIndex = 0;
+        private final LongArrayList loadingChunks = new LongArrayList();
+        private int clearedChunkNum = 0;
+        private long clearedBlockNum = 0;
+        
+        ClearingTask(
+            ServerLevel world, Long2ObjectLinkedOpenHashMap<BitSet> columnsByChunk,
+            Consumer<Component> informer
+        ) {
+            this.world = world;
+            this.columnsByChunk = columnsByChunk;
+            this.chunks = new LongArrayList(columnsByChunk.keySet());
+            this.informer = informer;
+            this.minY = McHelper.getMinY(world);
+            this.maxYExclusive = McHelper.getMaxYExclusive(world);
+        }
+        
+        @Override
+        public boolean runAndGetIsFinished() {
+            long startTime = System.nanoTime();
+            ServerChunkCache chunkSource = world.getChunkSource();
+            
+            while (loadingChunks.size() < MAX_LOADING_CHUNK_NUM && nextChunkIndex < chunks.size()) {
+                long chunkPos = chunks.getLong(nextChunkIndex);
+                nextChunkIndex++;
+                ChunkPos chunkPosObj = new ChunkPos(chunkPos);
+                chunkSource.addRegionTicket(TICKET_TYPE, chunkPosObj, 0, chunkPosObj);
+                loadingChunks.add(chunkPos);
+            }
+            
+            for (int i = 0; i < loadingChunks.size(); ) {
+                if (System.nanoTime() - startTime > MAX_NANOS_PER_TICK) {
+                    break;
                 }
                 
-                return false;
-            },
-            columns -> {
-                if (McHelper.getServerGameTime() % 20 == 0) {
-                    informer.accept(Component.literal(
-                        String.format("Progress: %d / %d", columns, totalColumns)
-                    ));
+                long chunkPos = loadingChunks.getLong(i);
+                LevelChunk chunk = chunkSource.getChunkNow(ChunkPos.getX(chunkPos), ChunkPos.getZ(chunkPos));
+                if (chunk == null) {
+                    i++;
+                    continue;
                 }
-                return true;
-            },
-            e -> {
-                //nothing
-            },
-            () -> {
+                
+                clearedBlockNum += clearColumns(world, chunk, columnsByChunk.get(chunkPos), minY, maxYExclusive);
+                clearedChunkNum++;
+                
+                ChunkPos chunkPosObj = new ChunkPos(chunkPos);
+                chunkSource.removeRegionTicket(TICKET_TYPE, chunkPosObj, 0, chunkPosObj);
+                loadingChunks.removeLong(i);
+            }
+            
+            if (clearedChunkNum == chunks.size()) {
+                LOGGER.info(
+                    "Cleared border in {}: {} chunks, {} blocks",
+                    world.dimension().location(), clearedChunkNum, clearedBlockNum
+                );
                 informer.accept(Component.translatable("imm_ptl.finished_clearing_border"));
-            },
-            () -> {
+                return true;
+            }
             
+            if (world.getGameTime() % 20 == 0) {
+                informer.accept(Component.literal(
+                    String.format("Progress: %d / %d chunks", clearedChunkNum, chunks.size())
+                ));
             }
-        );
+            
+            return false;
+        }
+        
+        @Override
+        public void onCancelled() {
+            ServerChunkCache chunkSource = world.getChunkSource();
+            for (int i = 0; i < loadingChunks.size(); i++) {
+                ChunkPos chunkPosObj = new ChunkPos(loadingChunks.getLong(i));
+                chunkSource.removeRegionTicket(TICKET_TYPE, chunkPosObj, 0, chunkPosObj);
+            }
+            loadingChunks.clear();
+        }
+    }
+    
+    /**
+     * The sections that only have air are skipped without reading their blocks.
+     * Above the terrain, that's most of the border.
+     * Only the blocks that are not air are changed, and synced to the clients that have the chunk.
+     * The light is checked after all changes in the chunk.
+     *
+     * @return the number of changed blocks
+     */
+    private static int clearColumns(
+        ServerLevel world, LevelChunk chunk, BitSet columns, int minY, int maxYExclusive
+    ) {
+        ServerChunkCache chunkSource = world.getChunkSource();
+        BlockState air = Blocks.AIR.defaultBlockState();
+        int baseX = chunk.getPos().getMinBlockX();
+        int baseZ = chunk.getPos().getMinBlockZ();
+        
+        LongArrayList changed = new LongArrayList();
+        BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+        
+        LevelChunkSection[] sections = chunk.getSections();
+        for (int sectionIndex = 0; sectionIndex < sections.length; sectionIndex++) {
+            LevelChunkSection section = sections[sectionIndex];
+            if (section.hasOnlyAir()) {
+                continue;
+            }
+            
+            int sectionMinY = SectionPos.sectionToBlockCoord(chunk.getSectionYFromSectionIndex(sectionIndex));
+            int fromY = Math.max(minY, sectionMinY);
+            int toY = Math.min(maxYExclusive, sectionMinY + 16);
+            
+            for (int column = columns.nextSetBit(0); column >= 0; column = columns.nextSetBit(column + 1)) {
+                int localX = column & 15;
+                int localZ = column >> 4;
+                for (int y = fromY; y < toY; y++) {
+                    if (section.getBlockState(localX, y - sectionMinY, localZ).isAir()) {
+                        continue;
+                    }
+                    pos.set(baseX + localX, y, baseZ + localZ);
+                    chunk.setBlockState(pos, air, false);
+                    chunkSource.blockChanged(pos);
+                    changed.add(pos.asLong());
+                }
+            }
+        }
+        
+        ThreadedLevelLightEngine lightEngine = chunkSource.getLightEngine();
+        for (int i = 0; i < changed.size(); i++) {
+            lightEngine.checkBlock(BlockPos.of(changed.getLong(i)));
+        }
+        
+        return changed.size();
     }
 }
@@ -1,6 +1,9 @@
 package qouteall.imm_ptl.core.portal.global_portals;
 
 import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
@@ -24,6 +27,7 @@ import net.minecraft.world.entity.EntityType;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.saveddata.SavedData;
+import net.minecraft.world.phys.AABB;
 import org.apache.commons.lang3.Validate;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -35,17 +39,20 @@ import qouteall.imm_ptl.core.IPCGlobal;
 import qouteall.imm_ptl.core.IPGlobal;
 import qouteall.imm_ptl.core.McHelper;
 import qouteall.imm_ptl.core.api.PortalAPI;
+import qouteall.imm_ptl.core.collision.GlobalPortalBroadPhase;
 import qouteall.imm_ptl.core.ducks.IEClientWorld;
 import qouteall.imm_ptl.core.network.ImmPtlNetworking;
 import qouteall.imm_ptl.core.platform_specific.O_O;
 import qouteall.imm_ptl.core.portal.Portal;
 import qouteall.q_misc_util.Helper;
 import qouteall.q_misc_util.MiscHelper;
+import qouteall.q_misc_util.api.McRemoteProcedureCall;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 import java.util.function.Predicate;
 
 /**
@@ -61,6 +68,24 @@ public class GlobalPortalStorage extends SavedData {
     private int version = 1;
     private boolean shouldReSync = false;
     
+    // the portal data that clients have, for the delta sync. null means not synced yet
+    @Nullable
+    private Object2ObjectOpenHashMap<UUID, CompoundTag> lastSyncedPortalTags = null;
+    // increased on each delta sync, the full data contains the current one
+    private int syncSequence = 0;
+    
+    // the client side sync sequence of each dimension
+    private static final Object2IntOpenHashMap<ResourceKey<Level>> clientSyncSequences =
+        new Object2IntOpenHashMap<>();
+    private static final ObjectOpenHashSet<ResourceKey<Level>> clientFullSyncRequested =
+        new ObjectOpenHashSet<>();
+    
+    @Nullable
+    private BroadPhaseCache broadPhaseCache;
+    // the client global portals are not in the storage
+    private static final Object2ObjectOpenHashMap<ResourceKey<Level>, BroadPhaseCache> clientBroadPhaseCaches =
+        new Object2ObjectOpenHashMap<>();
+    
     @Nullable
     public BlockState bedrockReplacement;
     
@@ -118,6 +143,10 @@ public class GlobalPortalStorage extends SavedData {
     
     @Environment(EnvType.CLIENT)
     private static void onClientCleanup() {
+        clientSyncSequences.clear();
+        clientFullSyncRequested.clear();
+        clientBroadPhaseCaches.clear();
+        
         if (ClientWorldLoader.getIsInitialized()) {
             for (ClientLevel clientWorld : ClientWorldLoader.getClientWorlds()) {
                 for (Portal globalPortal : getGlobalPortals(clientWorld)) {
@@ -148,10 +177,12 @@ public class GlobalPortalStorage extends SavedData {
     public static Packet<ClientCommonPacketListener> createSyncPacket(
         ServerLevel world, GlobalPortalStorage storage
     ) {
+        CompoundTag tag = storage.save(new CompoundTag(), world.registryAccess());
+        tag.putInt("syncSequence", storage.syncSequence);
         return ServerPlayNetworking.createS2CPacket(
             new ImmPtlNetworking.GlobalPortalSyncPacket(
                 PortalAPI.serverDimKeyToInt(world.getServer(), world.dimension()),
-                storage.save(new CompoundTag(), world.registryAccess())
+                tag
             )
         );
     }
@@ -197,6 +228,69 @@ public class GlobalPortalStorage extends SavedData {
         McHelper.getRawPlayerList().forEach(
             player -> player.connection.send(packet)
         );
+        
+        lastSyncedPortalTags = getPortalTags();
+    }
+    
+    /**
+     * Only sends the added and changed portals, keyed by UUID.
+     * The removed portals are the ones that are not in the UUID list.
+     * A player that logged in after the last sync got the full data,
+     * which is newer than the last synced data, so the delta still applies.
+     * The full data contains the current sync sequence, so the next delta follows it.
+     */
+    private void syncDeltaToAllPlayers() {
+        ServerLevel currWorld = world.get();
+        Validate.notNull(currWorld);
+        
+        if (lastSyncedPortalTags == null || !IPGlobal.portalDeltaSync) {
+            syncToAllPlayers();
+            return;
+        }
+        
+        Object2ObjectOpenHashMap<UUID, CompoundTag> currentTags = getPortalTags();
+        List<UUID> order = data.stream().map(Portal::getUUID).toList();
+        
+        GlobalPortalSyncDelta delta = GlobalPortalSyncDelta.diff(
+            syncSequence + 1, lastSyncedPortalTags, order, currentTags
+        );
+        
+        lastSyncedPortalTags = currentTags;
+        
+        if (delta == null) {
+            return;
+        }
+        
+        syncSequence = delta.syncSequence;
+        
+        // encoded once, the same bytes are sent to every player
+        Packet<ClientCommonPacketListener> packet = ServerPlayNetworking.createS2CPacket(
+            ImmPtlNetworking.GlobalPortalDeltaSyncPacket.create(
+                PortalAPI.serverDimKeyToInt(currWorld.getServer(), currWorld.dimension()),
+                delta.toTag()
+            )
+        );
+        McHelper.getRawPlayerList().forEach(
+            player -> player.connection.send(packet)
+        );
+    }
+    
+    private Object2ObjectOpenHashMap<UUID, CompoundTag> getPortalTags() {
+        Object2ObjectOpenHashMap<UUID, CompoundTag> result = new Object2ObjectOpenHashMap<>();
+        for (Portal portal : data) {
+            result.put(portal.getUUID(), writePortalTag(portal));
+        }
+        return result;
+    }
+    
+    private static CompoundTag writePortalTag(Portal portal) {
+        CompoundTag portalTag = new CompoundTag();
+        portal.saveWithoutId(portalTag);
+        portalTag.putString(
+            "entity_type",
+            EntityType.getKey(portal.getType()).toString()
+        );
+        return portalTag;
     }
     
     public void fromNbt(CompoundTag tag) {
@@ -274,13 +368,7 @@ public class GlobalPortalStorage extends SavedData {
         
         for (Portal portal : data) {
             Validate.isTrue(portal.level() == currWorld);
-            CompoundTag portalTag = new CompoundTag();
-            portal.saveWithoutId(portalTag);
-            portalTag.putString(
-                "entity_type",
-                EntityType.getKey(portal.getType()).toString()
-            );
-            listTag.add(portalTag);
+            listTag.add(writePortalTag(portal));
         }
         
         tag.put("data", listTag);
@@ -296,7 +384,7 @@ public class GlobalPortalStorage extends SavedData {
     
     public void tick() {
         if (shouldReSync) {
-            syncToAllPlayers();
+            syncDeltaToAllPlayers();
             shouldReSync = false;
         }
         
@@ -345,9 +433,84 @@ public class GlobalPortalStorage extends SavedData {
         
         ((IEClientWorld) world).ip_setGlobalPortals(newPortals);
         
+        clientSyncSequences.put(dimension, compoundTag.getInt("syncSequence"));
+        clientFullSyncRequested.remove(dimension);
+        
         LOGGER.info("Global Portals Updated {}", dimension.location());
     }
     
+    /**
+     * The unchanged portals keep their instances.
+     * A changed portal of the same type is reloaded in place.
+     * If a delta is missed or out of order, the delta is dropped and the full data is requested.
+     */
+    @Environment(EnvType.CLIENT)
+    public static void receiveGlobalPortalDeltaSync(ResourceKey<Level> dimension, CompoundTag deltaTag) {
+        ClientLevel world = ClientWorldLoader.getWorld(dimension);
+        
+        Object2ObjectOpenHashMap<UUID, Portal> oldPortals = new Object2ObjectOpenHashMap<>();
+        List<Portal> oldGlobalPortals = ((IEClientWorld) world).ip_getGlobalPortals();
+        if (oldGlobalPortals != null) {
+            for (Portal p : oldGlobalPortals) {
+                oldPortals.put(p.getUUID(), p);
+            }
+        }
+        
+        GlobalPortalSyncDelta delta = GlobalPortalSyncDelta.fromTag(deltaTag);
+        
+        if (!delta.canApplyOn(clientSyncSequences.getOrDefault(dimension, -1), oldPortals)) {
+            if (clientFullSyncRequested.add(dimension)) {
+                LOGGER.info(
+                    "Global portal delta sync {} cannot be applied in {}. Requesting full sync",
+                    delta.syncSequence, dimension.location()
+                );
+                McRemoteProcedureCall.tellServerToInvoke(
+                    "qouteall.imm_ptl.core.portal.global_portals.GlobalPortalStorage.RemoteCallables.requestFullSync",
+                    dimension
+                );
+            }
+            return;
+        }
+        
+        List<Portal> newPortals = delta.apply(oldPortals, (oldPortal, portalTag) -> {
+            Portal portal;
+            if (oldPortal != null &&
+                EntityType.getKey(oldPortal.getType()).toString().equals(portalTag.getString("entity_type"))
+            ) {
+                oldPortal.load(portalTag);
+                oldPortal.isGlobalPortal = true;
+                oldPortal.updateCache();
+                portal = oldPortal;
+            }
+            else {
+                if (oldPortal != null) {
+                    oldPortal.remove(Entity.RemovalReason.KILLED);
+                }
+                portal = readPortalFromTag(world, portalTag);
+                portal.myUnsetRemoved();
+            }
+            
+            Validate.isTrue(portal.isPortalValid());
+            
+            ClientWorldLoader.getWorld(portal.getDestDim());
+            
+            return portal;
+        });
+        
+        // the portals that are not in the list are removed
+        for (Portal p : oldPortals.values()) {
+            p.remove(Entity.RemovalReason.KILLED);
+        }
+        
+        ((IEClientWorld) world).ip_setGlobalPortals(newPortals);
+        
+        clientSyncSequences.put(dimension, delta.syncSequence);
+        
+        LOGGER.info(
+            "Global Portals Updated {} ({} changed)", dimension.location(), delta.upserts.size()
+        );
+    }
+    
     public static void convertNormalPortalIntoGlobalPortal(Portal portal) {
         Validate.isTrue(!portal.getIsGlobal());
         Validate.isTrue(!portal.level().isClientSide());
@@ -379,6 +542,73 @@ public class GlobalPortalStorage extends SavedData {
         }
     }
     
+    /**
+     * The broad phase of the collision between the entities and the global portals of the world.
+     * It's only rebuilt when the global portals or their bounding boxes change.
+     * The portal drops its cached bounding box when it changes,
+     * so comparing the bounding box instances finds the changes.
+     */
+    public static GlobalPortalBroadPhase getBroadPhase(Level world, List<Portal> globalPortals) {
+        BroadPhaseCache cache;
+        GlobalPortalStorage storage = null;
+        if (world instanceof ServerLevel serverLevel) {
+            storage = get(serverLevel);
+            cache = storage.broadPhaseCache;
+        }
+        else {
+            cache = clientBroadPhaseCaches.get(world.dimension());
+        }
+        
+        if (cache != null && cache.isUpToDate(globalPortals)) {
+            return cache.broadPhase;
+        }
+        
+        cache = new BroadPhaseCache(globalPortals);
+        if (storage != null) {
+            storage.broadPhaseCache = cache;
+        }
+        else {
+            clientBroadPhaseCaches.put(world.dimension(), cache);
+        }
+        return cache.broadPhase;
+    }
+    
+    private static final class BroadPhaseCache {
+        private final Portal[] portals;
+        private final AABB[] boundingBoxes;
+        private final GlobalPortalBroadPhase broadPhase;
+        
+        BroadPhaseCache(List<Portal> globalPortals) {
+            portals = globalPortals.toArray(new Portal[0]);
+            boundingBoxes = new AABB[portals.length];
+            double[] boxes = new double[portals.length * 6];
+            for (int i = 0; i < portals.length; i++) {
+                AABB box = portals[i].getBoundingBox();
+                boundingBoxes[i] = box;
+                boxes[i * 6] = box.minX;
+                boxes[i * 6 + 1] = box.minY;
+                boxes[i * 6 + 2] = box.minZ;
+                boxes[i * 6 + 3] = box.maxX;
+                boxes[i * 6 + 4] = box.maxY;
+                boxes[i * 6 + 5] = box.maxZ;
+            }
+            broadPhase = new GlobalPortalBroadPhase(boxes);
+        }
+        
+        boolean isUpToDate(List<Portal> globalPortals) {
+            if (globalPortals.size() != portals.length) {
+                return false;
+            }
+            for (int i = 0; i < portals.length; i++) {
+                Portal portal = globalPortals.get(i);
+                if (portal != portals[i] || portal.getBoundingBox() != boundingBoxes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
     @NotNull
     public static List<Portal> getGlobalPortals(Level world) {
         List<Portal> result;
@@ -393,4 +623,18 @@ public class GlobalPortalStorage extends SavedData {
         }
         return result != null ? result : Collections.emptyList();
     }
+    
+    public static class RemoteCallables {
+        /**
+         * The client missed a delta sync of the global portals.
+         */
+        public static void requestFullSync(ServerPlayer player, ResourceKey<Level> dimension) {
+            ServerLevel world = player.server.getLevel(dimension);
+            if (world == null) {
+                return;
+            }
+            
+            player.connection.send(createSyncPacket(world, get(world)));
+        }
+    }
 }
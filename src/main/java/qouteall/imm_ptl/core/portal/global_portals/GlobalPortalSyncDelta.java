@@ -0,0 +1,145 @@
+package qouteall.imm_ptl.core.portal.global_portals;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtUtils;
+import net.minecraft.nbt.Tag;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiFunction;
+
+/**
+ * The difference between two versions of the global portals of a dimension.
+ * It contains the UUIDs of all global portals in order and the tags of the added and changed portals.
+ * The removed portals are the ones that are not in the UUID list.
+ * <br>
+ * The deltas are numbered. A delta only applies on the data of the previous sync,
+ * otherwise the client should request the full data.
+ */
+public final class GlobalPortalSyncDelta {
+    public final int syncSequence;
+    public final List<UUID> order;
+    // the added and changed portal tags
+    public final Object2ObjectOpenHashMap<UUID, CompoundTag> upserts;
+    
+    private GlobalPortalSyncDelta(
+        int syncSequence, List<UUID> order, Object2ObjectOpenHashMap<UUID, CompoundTag> upserts
+    ) {
+        this.syncSequence = syncSequence;
+        this.order = order;
+        this.upserts = upserts;
+    }
+    
+    /**
+     * @return null if nothing changed
+     */
+    @Nullable
+    public static GlobalPortalSyncDelta diff(
+        int syncSequence,
+        Map<UUID, CompoundTag> lastTags,
+        List<UUID> order, Map<UUID, CompoundTag> currentTags
+    ) {
+        Object2ObjectOpenHashMap<UUID, CompoundTag> upserts = new Object2ObjectOpenHashMap<>();
+        for (UUID uuid : order) {
+            CompoundTag portalTag = currentTags.get(uuid);
+            if (!portalTag.equals(lastTags.get(uuid))) {
+                upserts.put(uuid, portalTag);
+            }
+        }
+        
+        boolean hasRemoval = false;
+        for (UUID uuid : lastTags.keySet()) {
+            if (!currentTags.containsKey(uuid)) {
+                hasRemoval = true;
+                break;
+            }
+        }
+        
+        if (upserts.isEmpty() && !hasRemoval) {
+            return null;
+        }
+        
+        return new GlobalPortalSyncDelta(syncSequence, new ArrayList<>(order), upserts);
+    }
+    
+    public CompoundTag toTag() {
+        ListTag orderTag = new ListTag();
+        ListTag upsertsTag = new ListTag();
+        for (UUID uuid : order) {
+            orderTag.add(NbtUtils.createUUID(uuid));
+            CompoundTag portalTag = upserts.get(uuid);
+            if (portalTag != null) {
+                upsertsTag.add(portalTag);
+            }
+        }
+        
+        CompoundTag tag = new CompoundTag();
+        tag.putInt("syncSequence", syncSequence);
+        tag.put("order", orderTag);
+        tag.put("upserts", upsertsTag);
+        return tag;
+    }
+    
+    public static GlobalPortalSyncDelta fromTag(CompoundTag tag) {
+        ListTag orderTag = tag.getList("order", Tag.TAG_INT_ARRAY);
+        List<UUID> order = new ArrayList<>(orderTag.size());
+        for (Tag uuidTag : orderTag) {
+            order.add(NbtUtils.loadUUID(uuidTag));
+        }
+        
+        Object2ObjectOpenHashMap<UUID, CompoundTag> upserts = new Object2ObjectOpenHashMap<>();
+        ListTag upsertsTag = tag.getList("upserts", Tag.TAG_COMPOUND);
+        for (int i = 0; i < upsertsTag.size(); i++) {
+            CompoundTag portalTag = upsertsTag.getCompound(i);
+            upserts.put(portalTag.getUUID("UUID"), portalTag);
+        }
+        
+        return new GlobalPortalSyncDelta(tag.getInt("syncSequence"), order, upserts);
+    }
+    
+    /**
+     * A delta that is missed or out of order doesn't follow the last sync sequence.
+     * The unchanged portals must also exist in the old portals.
+     */
+    public boolean canApplyOn(int lastSyncSequence, Map<UUID, ?> oldPortals) {
+        if (syncSequence != lastSyncSequence + 1) {
+            return false;
+        }
+        
+        for (UUID uuid : order) {
+            if (!upserts.containsKey(uuid) && !oldPortals.containsKey(uuid)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Builds the new portal list. The unchanged portals are taken from the old portals.
+     * The added and changed ones are created by the upsert function,
+     * which receives the old portal (null if added) and the new tag.
+     * The taken portals are removed from oldPortals, so the remaining ones are the removed portals.
+     */
+    public <T> List<T> apply(
+        Map<UUID, T> oldPortals, BiFunction<T, CompoundTag, T> upsertFunc
+    ) {
+        List<T> result = new ArrayList<>(order.size());
+        for (UUID uuid : order) {
+            T oldPortal = oldPortals.remove(uuid);
+            CompoundTag portalTag = upserts.get(uuid);
+            if (portalTag == null) {
+                result.add(oldPortal);
+            }
+            else {
+                result.add(upsertFunc.apply(oldPortal, portalTag));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,175 @@
+package qouteall.imm_ptl.core.portal.nether_portal;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Summed-volume tables of the non-air blocks and the solid blocks in a region,
+ * so that counting them in any box is O(1).
+ * The columns that were not available when building are unknown.
+ * A box that touches an unknown column or goes out of the region cannot be answered by the grid.
+ */
+public final class AirCubeGrid {
+    public static final int FLAG_NON_AIR = 1;
+    public static final int FLAG_SOLID = 2;
+    
+    @FunctionalInterface
+    public static interface BlockSampler {
+        // returns the flags of the block
+        int sample(int x, int y, int z);
+    }
+    
+    @FunctionalInterface
+    public static interface ColumnPredicate {
+        boolean test(int x, int z);
+    }
+    
+    private final int lowerX;
+    private final int lowerY;
+    private final int lowerZ;
+    private final int lX;
+    private final int lY;
+    private final int lZ;
+    
+    // [x + y * (lX + 1) + z * (lX + 1) * (lY + 1)] is the count in [lower, lower + (x, y, z))
+    private final int[] nonAirTable;
+    private final int[] solidTable;
+    
+    // [x + z * (lX + 1)] is the number of unknown columns in [lower, lower + (x, z))
+    private final int[] unknownColumnTable;
+    
+    private AirCubeGrid(
+        int lowerX, int lowerY, int lowerZ, int lX, int lY, int lZ,
+        int[] nonAirTable, int[] solidTable, int[] unknownColumnTable
+    ) {
+        this.lowerX = lowerX;
+        this.lowerY = lowerY;
+        this.lowerZ = lowerZ;
+        this.lX = lX;
+        this.lY = lY;
+        this.lZ = lZ;
+        this.nonAirTable = nonAirTable;
+        this.solidTable = solidTable;
+        this.unknownColumnTable = unknownColumnTable;
+    }
+    
+    public static long getCellNum(int lX, int lY, int lZ) {
+        return (long) (lX + 1) * (lY + 1) * (lZ + 1);
+    }
+    
+    /**
+     * Note: the upper coordinates are exclusive.
+     */
+    public static AirCubeGrid build(
+        int lowerX, int lowerY, int lowerZ,
+        int upperXExclusive, int upperYExclusive, int upperZExclusive,
+        ColumnPredicate isColumnKnown,
+        BlockSampler sampler
+    ) {
+        int lX = upperXExclusive - lowerX;
+        int lY = upperYExclusive - lowerY;
+        int lZ = upperZExclusive - lowerZ;
+        Validate.isTrue(lX >= 0 && lY >= 0 && lZ >= 0);
+        Validate.isTrue(getCellNum(lX, lY, lZ) <= Integer.MAX_VALUE, "Region too large");
+        
+        int sx = lX + 1;
+        int sxy = sx * (lY + 1);
+        
+        int[] nonAirTable = new int[sxy * (lZ + 1)];
+        int[] solidTable = new int[sxy * (lZ + 1)];
+        int[] unknownColumnTable = new int[sx * (lZ + 1)];
+        
+        for (int z = 0; z < lZ; z++) {
+            for (int x = 0; x < lX; x++) {
+                boolean known = isColumnKnown.test(x + lowerX, z + lowerZ);
+                int index = (x + 1) + (z + 1) * sx;
+                unknownColumnTable[index] = (known ? 0 : 1) +
+                    unknownColumnTable[index - 1] + unknownColumnTable[index - sx] -
+                    unknownColumnTable[index - 1 - sx];
+            }
+        }
+        
+        for (int z = 0; z < lZ; z++) {
+            for (int y = 0; y < lY; y++) {
+                for (int x = 0; x < lX; x++) {
+                    int flags = 0;
+                    if (isColumnKnownFromTable(unknownColumnTable, sx, x, z)) {
+                        flags = sampler.sample(x + lowerX, y + lowerY, z + lowerZ);
+                    }
+                    
+                    int index = (x + 1) + (y + 1) * sx + (z + 1) * sxy;
+                    accumulate(nonAirTable, index, sx, sxy, flags & FLAG_NON_AIR);
+                    accumulate(solidTable, index, sx, sxy, (flags & FLAG_SOLID) >> 1);
+                }
+            }
+        }
+        
+        return new AirCubeGrid(
+            lowerX, lowerY, lowerZ, lX, lY, lZ,
+            nonAirTable, solidTable, unknownColumnTable
+        );
+    }
+    
+    private static boolean isColumnKnownFromTable(int[] unknownColumnTable, int sx, int x, int z) {
+        int index = (x + 1) + (z + 1) * sx;
+        int value = unknownColumnTable[index] - unknownColumnTable[index - 1] -
+            unknownColumnTable[index - sx] + unknownColumnTable[index - 1 - sx];
+        return value == 0;
+    }
+    
+    private static void accumulate(int[] table, int index, int sx, int sxy, int value) {
+        table[index] = value +
+            table[index - 1] + table[index - sx] + table[index - sxy] -
+            table[index - 1 - sx] - table[index - 1 - sxy] - table[index - sx - sxy] +
+            table[index - 1 - sx - sxy];
+    }
+    
+    /**
+     * Whether the grid can answer the box. The coordinates are inclusive.
+     */
+    public boolean covers(int x0, int y0, int z0, int x1, int y1, int z1) {
+        if (x0 < lowerX || y0 < lowerY || z0 < lowerZ ||
+            x1 >= lowerX + lX || y1 >= lowerY + lY || z1 >= lowerZ + lZ ||
+            x0 > x1 || y0 > y1 || z0 > z1
+        ) {
+            return false;
+        }
+        
+        int sx = lX + 1;
+        int ax = x0 - lowerX;
+        int az = z0 - lowerZ;
+        int bx = x1 - lowerX + 1;
+        int bz = z1 - lowerZ + 1;
+        int unknownNum = unknownColumnTable[bx + bz * sx] - unknownColumnTable[ax + bz * sx] -
+            unknownColumnTable[bx + az * sx] + unknownColumnTable[ax + az * sx];
+        return unknownNum == 0;
+    }
+    
+    /**
+     * The box must be covered. The coordinates are inclusive.
+     */
+    public int countNonAir(int x0, int y0, int z0, int x1, int y1, int z1) {
+        return count(nonAirTable, x0, y0, z0, x1, y1, z1);
+    }
+    
+    /**
+     * The box must be covered. The coordinates are inclusive.
+     */
+    public int countSolid(int x0, int y0, int z0, int x1, int y1, int z1) {
+        return count(solidTable, x0, y0, z0, x1, y1, z1);
+    }
+    
+    private int count(int[] table, int x0, int y0, int z0, int x1, int y1, int z1) {
+        int sx = lX + 1;
+        int sxy = sx * (lY + 1);
+        
+        int ax = x0 - lowerX;
+        int ay = (y0 - lowerY) * sx;
+        int az = (z0 - lowerZ) * sxy;
+        int bx = x1 - lowerX + 1;
+        int by = (y1 - lowerY + 1) * sx;
+        int bz = (z1 - lowerZ + 1) * sxy;
+        
+        return table[bx + by + bz] - table[ax + by + bz] - table[bx + ay + bz] - table[bx + by + az] +
+            table[ax + ay + bz] + table[ax + by + az] + table[bx + ay + az] - table[ax + ay + az];
+    }
+}
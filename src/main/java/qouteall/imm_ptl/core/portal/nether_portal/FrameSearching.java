@@ -1,20 +1,22 @@
 package qouteall.imm_ptl.core.portal.nether_portal;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import net.minecraft.Util;
 import net.minecraft.core.BlockPos;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.chunk.LevelChunkSection;
 import org.jetbrains.annotations.Nullable;
+import qouteall.imm_ptl.core.IPGlobal;
 import qouteall.imm_ptl.core.McHelper;
 import qouteall.q_misc_util.MiscHelper;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 public class FrameSearching {
     
@@ -81,7 +83,7 @@ public class FrameSearching {
         return searchPortalFrameWithYRange(
             region,
             framePredicate, matchShape,
-            chunks, minSectionY,
+            chunks, centerPoint, minSectionY,
             McHelper.getMinY(region.world()), McHelper.getMaxYExclusive(region.world())
         );
     }
@@ -93,42 +95,92 @@ public class FrameSearching {
         Predicate<BlockState> framePredicate,
         FrameSearchingFunc<T> matchShape,
         List<ChunkPos> chunkPoses,
+        BlockPos centerPoint,
         int minSectionY,
         int yRangeStart, int yRangeEnd
     ) {
-        // avoid using stream api and maintain cache locality
+        // collect the sections that may contain the frame block, in the serial searching order.
+        // most sections don't have the frame block in the palette, skip them without scanning blocks
+        List<LevelChunkSection> candidateSections = new ArrayList<>();
+        IntArrayList candidateSectionPoses = new IntArrayList();
+        IntArrayList ringEnds = new IntArrayList();
+        int currentRing = -1;
         for (ChunkPos chunkPos : chunkPoses) {
+            int ring = getRing(chunkPos, centerPoint);
+            if (ring != currentRing) {
+                if (currentRing != -1) {
+                    ringEnds.add(candidateSections.size());
+                }
+                currentRing = ring;
+            }
+            
             for (
                 int cy = fastBlockAccess.minSectionY();
                 cy < fastBlockAccess.maxSectionYExclusive();
                 cy++
             ) {
+                if (cy * 16 + 16 <= yRangeStart || cy * 16 >= yRangeEnd) {
+                    continue;
+                }
+                
                 LevelChunkSection chunkSection = fastBlockAccess.getSection(
                     chunkPos.x, cy, chunkPos.z
                 );
-                if (chunkSection != null && !chunkSection.hasOnlyAir()) {
-                    int localYStart = Math.max(0, yRangeStart - cy * 16);
-                    int localYEnd = Math.min(16, yRangeEnd - cy * 16);
-                    
-                    for (int localY = localYStart; localY < localYEnd; localY++) {
-                        for (int localZ = 0; localZ < 16; localZ++) {
-                            for (int localX = 0; localX < 16; localX++) {
-                                BlockState blockState = chunkSection.getBlockState(
-                                    localX, localY, localZ
-                                );
-                                if (framePredicate.test(blockState)) {
-                                    int worldX = localX + chunkPos.getMinBlockX();
-                                    int worldY = localY + cy * 16;
-                                    int worldZ = localZ + chunkPos.getMinBlockZ();
-                                    
-                                    T result = matchShape.searchAt(
-                                        fastBlockAccess, worldX, worldY, worldZ
-                                    );
-                                    if (result != null) {
-                                        return result;
-                                    }
-                                }
-                            }
+                if (chunkSection != null && !chunkSection.hasOnlyAir() &&
+                    chunkSection.maybeHas(framePredicate)
+                ) {
+                    candidateSections.add(chunkSection);
+                    candidateSectionPoses.add(chunkPos.x);
+                    candidateSectionPoses.add(cy);
+                    candidateSectionPoses.add(chunkPos.z);
+                }
+            }
+        }
+        ringEnds.add(candidateSections.size());
+        
+        return FrameSearchingWorkers.searchInOrder(
+            ringEnds,
+            i -> searchInSection(
+                fastBlockAccess, framePredicate, matchShape,
+                candidateSections.get(i),
+                candidateSectionPoses.getInt(i * 3),
+                candidateSectionPoses.getInt(i * 3 + 1),
+                candidateSectionPoses.getInt(i * 3 + 2),
+                yRangeStart, yRangeEnd
+            ),
+            IPGlobal.parallelFrameSearching
+        );
+    }
+    
+    // avoid using stream api and maintain cache locality
+    @Nullable
+    private static <T> T searchInSection(
+        FastBlockAccess fastBlockAccess,
+        Predicate<BlockState> framePredicate,
+        FrameSearchingFunc<T> matchShape,
+        LevelChunkSection chunkSection,
+        int cx, int cy, int cz,
+        int yRangeStart, int yRangeEnd
+    ) {
+        int localYStart = Math.max(0, yRangeStart - cy * 16);
+        int localYEnd = Math.min(16, yRangeEnd - cy * 16);
+        
+        for (int localY = localYStart; localY < localYEnd; localY++) {
+            for (int localZ = 0; localZ < 16; localZ++) {
+                for (int localX = 0; localX < 16; localX++) {
+                    BlockState blockState = chunkSection.getBlockState(
+                        localX, localY, localZ
+                    );
+                    if (framePredicate.test(blockState)) {
+                        int worldX = localX + cx * 16;
+                        int worldY = localY + cy * 16;
+                        int worldZ = localZ + cz * 16;
+                        
+                        T result = matchShape.searchAt(
+                            fastBlockAccess, worldX, worldY, worldZ
+                        );
+                        if (result != null) {
+                            return result;
                         }
                     }
                 }
@@ -138,16 +190,37 @@ public class FrameSearching {
         return null;
     }
     
+    /**
+     * The chunks are searched in rings of 16 blocks horizontal distance.
+     * It uses the same distance as the chunk order, so a ring is a consecutive range of the chunks.
+     */
+    private static int getRing(ChunkPos chunkPos, BlockPos centerPoint) {
+        long dx = chunkPos.getMinBlockX() - centerPoint.getX();
+        long dz = chunkPos.getMinBlockZ() - centerPoint.getZ();
+        return (int) (Math.sqrt(dx * dx + dz * dz) / 16);
+    }
+    
     private static List<ChunkPos> getChunksFromNearToFar(
         FastBlockAccess region,
         BlockPos centerPoint,
         int regionRadius
     ) {
+        List<ChunkPos> result = new ArrayList<>(
+            (region.maxSectionXExclusive() - region.minSectionX()) *
+                (region.maxSectionZExclusive() - region.minSectionZ())
+        );
+        for (int cz = region.minSectionZ(); cz < region.maxSectionZExclusive(); cz++) {
+            for (int cx = region.minSectionX(); cx < region.maxSectionXExclusive(); cx++) {
+                result.add(new ChunkPos(cx, cz));
+            }
+        }
         
-        return region.chunkPoses()
-            .sorted(Comparator.comparingDouble(
-                chunk -> chunk.getWorldPosition().distSqr(centerPoint)
-            ))
-            .collect(Collectors.toList());
+        // the sort is stable, the order is the same as sorting the stream
+        result.sort(Comparator.comparingLong(chunk -> {
+            long dx = chunk.getMinBlockX() - centerPoint.getX();
+            long dz = chunk.getMinBlockZ() - centerPoint.getZ();
+            return dx * dx + dz * dz;
+        }));
+        return result;
     }
 }
@@ -0,0 +1,118 @@
+package qouteall.imm_ptl.core.portal.nether_portal;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Searches ordered candidates ring by ring. The candidates in one ring are searched in parallel.
+ * The result is always the first matching candidate in the order, the same as searching serially.
+ * The candidate search function must only read the game state.
+ */
+public final class FrameSearchingWorkers {
+    // not worth dispatching for fewer candidates in a ring
+    public static final int MIN_PARALLEL_CANDIDATE_NUM = 8;
+    
+    private static final int THREAD_NUM = Math.max(
+        1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)
+    );
+    
+    @Nullable
+    private static ForkJoinPool pool;
+    
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            AtomicInteger counter = new AtomicInteger();
+            pool = new ForkJoinPool(
+                THREAD_NUM,
+                p -> {
+                    ForkJoinWorkerThread thread =
+                        ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                    thread.setName("ImmPtl Frame Searching Worker " + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                null, false
+            );
+        }
+        return pool;
+    }
+    
+    /**
+     * @param ringEnds the exclusive end index of each ring, ascending.
+     *                 The last one is the candidate count.
+     * @param searchCandidate returns null if the candidate does not match
+     * @return the result of the first matching candidate, or null if none matches
+     */
+    @Nullable
+    public static <T> T searchInOrder(
+        IntList ringEnds, IntFunction<T> searchCandidate, boolean parallel
+    ) {
+        int ringStart = 0;
+        for (int ringIndex = 0; ringIndex < ringEnds.size(); ringIndex++) {
+            int ringEnd = ringEnds.getInt(ringIndex);
+            
+            T result;
+            if (!parallel || ringEnd - ringStart < MIN_PARALLEL_CANDIDATE_NUM) {
+                result = searchSerially(ringStart, ringEnd, searchCandidate);
+            }
+            else {
+                result = searchInParallel(ringStart, ringEnd, searchCandidate);
+            }
+            
+            if (result != null) {
+                return result;
+            }
+            
+            ringStart = ringEnd;
+        }
+        
+        return null;
+    }
+    
+    @Nullable
+    private static <T> T searchSerially(
+        int start, int end, IntFunction<T> searchCandidate
+    ) {
+        for (int i = start; i < end; i++) {
+            T result = searchCandidate.apply(i);
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private static <T> T searchInParallel(
+        int start, int end, IntFunction<T> searchCandidate
+    ) {
+        Object[] results = new Object[end - start];
+        // the candidates after a found one can be skipped, the ones before it cannot
+        AtomicInteger firstFoundIndex = new AtomicInteger(Integer.MAX_VALUE);
+        
+        getPool().submit(() -> IntStream.range(start, end).parallel().forEach(i -> {
+            if (i > firstFoundIndex.get()) {
+                return;
+            }
+            T result = searchCandidate.apply(i);
+            if (result != null) {
+                results[i - start] = result;
+                firstFoundIndex.accumulateAndGet(i, Math::min);
+            }
+        })).join();
+        
+        int found = firstFoundIndex.get();
+        if (found == Integer.MAX_VALUE) {
+            return null;
+        }
+        
+        return (T) results[found - start];
+    }
+}
@@ -4,8 +4,13 @@ import com.mojang.logging.LogUtils;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.core.Vec3i;
+import net.minecraft.world.level.Level;
 import net.minecraft.world.level.LevelAccessor;
 import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.ChunkSource;
+import net.minecraft.world.level.chunk.EmptyLevelChunk;
+import net.minecraft.world.level.chunk.LevelChunk;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import qouteall.imm_ptl.core.McHelper;
 import qouteall.q_misc_util.Helper;
@@ -18,8 +23,192 @@ import java.util.stream.IntStream;
 public class NetherPortalMatcher {
     private static final Logger LOGGER = LogUtils.getLogger();
     
-    private static boolean isAir(LevelAccessor world, BlockPos pos) {
-        return world.isEmptyBlock(pos);
+    // a larger search reads the world directly, to avoid allocating too much memory
+    private static final long MAX_SNAPSHOT_CELL_NUM = 1 << 22;
+    
+    /**
+     * Answers the block queries of placement searching.
+     * A box covered by the snapshot is answered in O(1) by {@link AirCubeGrid}.
+     * Other queries read the world like before, which may load the chunk.
+     */
+    public static final class SearchRegion {
+        private final LevelAccessor world;
+        @Nullable
+        private final AirCubeGrid grid;
+        
+        SearchRegion(LevelAccessor world, @Nullable AirCubeGrid grid) {
+            this.world = world;
+            this.grid = grid;
+        }
+        
+        public static SearchRegion direct(LevelAccessor world) {
+            return new SearchRegion(world, null);
+        }
+        
+        /**
+         * Snapshots the loaded chunks within the horizontal radius.
+         * Must be called on the server thread. The unloaded chunks are not loaded.
+         */
+        public static SearchRegion snapshot(
+            LevelAccessor world, int centerX, int centerZ, int horizontalRadius
+        ) {
+            if (!(world instanceof Level level)) {
+                return direct(world);
+            }
+            
+            int lowerX = centerX - horizontalRadius;
+            int lowerZ = centerZ - horizontalRadius;
+            int upperXExclusive = centerX + horizontalRadius + 1;
+            int upperZExclusive = centerZ + horizontalRadius + 1;
+            int lowerY = McHelper.getMinY(level);
+            // the air cube must be below the content height, the ground may be one block higher
+            int upperYExclusive = Math.min(
+                McHelper.getMaxContentYExclusive(level) + 1, McHelper.getMaxYExclusive(level)
+            );
+            
+            long cellNum = AirCubeGrid.getCellNum(
+                upperXExclusive - lowerX, upperYExclusive - lowerY, upperZExclusive - lowerZ
+            );
+            if (cellNum > MAX_SNAPSHOT_CELL_NUM) {
+                return direct(world);
+            }
+            
+            int lowerCX = lowerX >> 4;
+            int lowerCZ = lowerZ >> 4;
+            int upperCXExclusive = ((upperXExclusive - 1) >> 4) + 1;
+            int upperCZExclusive = ((upperZExclusive - 1) >> 4) + 1;
+            int lCX = upperCXExclusive - lowerCX;
+            
+            ChunkSource chunkSource = level.getChunkSource();
+            boolean[] loadedChunks = new boolean[lCX * (upperCZExclusive - lowerCZ)];
+            for (int cz = lowerCZ; cz < upperCZExclusive; cz++) {
+                for (int cx = lowerCX; cx < upperCXExclusive; cx++) {
+                    LevelChunk chunk = chunkSource.getChunk(cx, cz, false);
+                    loadedChunks[(cx - lowerCX) + (cz - lowerCZ) * lCX] =
+                        chunk != null && !(chunk instanceof EmptyLevelChunk);
+                }
+            }
+            
+            FastBlockAccess blockAccess = FastBlockAccess.from(
+                level,
+                lowerCX, upperCXExclusive,
+                level.getMinSection(), level.getMaxSection(),
+                lowerCZ, upperCZExclusive
+            );
+            
+            AirCubeGrid grid = AirCubeGrid.build(
+                lowerX, lowerY, lowerZ,
+                upperXExclusive, upperYExclusive, upperZExclusive,
+                (x, z) -> loadedChunks[((x >> 4) - lowerCX) + ((z >> 4) - lowerCZ) * lCX],
+                (x, y, z) -> {
+                    BlockState blockState = blockAccess.getBlockState(x, y, z);
+                    if (blockState.isAir()) {
+                        return 0;
+                    }
+                    return isSolidGroundBlock(blockState) ?
+                        AirCubeGrid.FLAG_NON_AIR | AirCubeGrid.FLAG_SOLID : AirCubeGrid.FLAG_NON_AIR;
+                }
+            );
+            
+            return new SearchRegion(world, grid);
+        }
+        
+        public LevelAccessor getWorld() {
+            return world;
+        }
+        
+        private boolean covers(IntBox box) {
+            return grid != null && grid.covers(
+                box.l.getX(), box.l.getY(), box.l.getZ(),
+                box.h.getX(), box.h.getY(), box.h.getZ()
+            );
+        }
+        
+        public boolean isAir(BlockPos pos) {
+            if (grid != null && grid.covers(
+                pos.getX(), pos.getY(), pos.getZ(), pos.getX(), pos.getY(), pos.getZ()
+            )) {
+                return grid.countNonAir(
+                    pos.getX(), pos.getY(), pos.getZ(), pos.getX(), pos.getY(), pos.getZ()
+                ) == 0;
+            }
+            return world.isEmptyBlock(pos);
+        }
+        
+        public boolean isSolidGround(BlockPos pos) {
+            if (grid != null && grid.covers(
+                pos.getX(), pos.getY(), pos.getZ(), pos.getX(), pos.getY(), pos.getZ()
+            )) {
+                return grid.countSolid(
+                    pos.getX(), pos.getY(), pos.getZ(), pos.getX(), pos.getY(), pos.getZ()
+                ) != 0;
+            }
+            return isSolidGroundBlock(world.getBlockState(pos));
+        }
+        
+        public boolean isGround(BlockPos pos) {
+            return !isAir(pos);
+        }
+        
+        public boolean isAllAir(IntBox box) {
+            if (covers(box)) {
+                return grid.countNonAir(
+                    box.l.getX(), box.l.getY(), box.l.getZ(),
+                    box.h.getX(), box.h.getY(), box.h.getZ()
+                ) == 0;
+            }
+            
+            boolean roughTest = Arrays.stream(box.getEightVertices()).allMatch(
+                blockPos -> world.isEmptyBlock(blockPos)
+            );
+            if (!roughTest) {
+                return false;
+            }
+            return box.stream().allMatch(
+                blockPos -> world.isEmptyBlock(blockPos)
+            );
+        }
+        
+        /**
+         * Whether every block in the layer is air on solid ground.
+         */
+        public boolean hasAirOnSolidGround(IntBox layer) {
+            IntBox below = layer.getMoved(new Vec3i(0, -1, 0));
+            if (covers(layer) && covers(below)) {
+                BlockPos size = below.getSize();
+                return isAllAir(layer) && grid.countSolid(
+                    below.l.getX(), below.l.getY(), below.l.getZ(),
+                    below.h.getX(), below.h.getY(), below.h.getZ()
+                ) == size.getX() * size.getY() * size.getZ();
+            }
+            
+            return BlockTraverse.boxAllMatch(layer, this::isAirOnSolidGround);
+        }
+        
+        public boolean isAirOnSolidGround(BlockPos blockPos) {
+            return isAir(blockPos) && isSolidGround(blockPos.below());
+        }
+        
+        public boolean isAirOnGround(BlockPos blockPos) {
+            return isAir(blockPos) && isGround(blockPos.below());
+        }
+        
+        public boolean isAirCubeMediumPlace(IntBox box) {
+            //the box out of height limit is not accepted
+            if (box.h.getY() + 1 >= McHelper.getMaxContentYExclusive(world)) {
+                return false;
+            }
+            if (box.l.getY() - 1 <= McHelper.getMinY(world)) {
+                return false;
+            }
+            
+            return isAllAir(box);
+        }
+    }
+    
+    // the horizontal range that the placement search may read
+    private static int getSnapshotRadius(BlockPos areaSize, int findingRadius, int spacing) {
+        return findingRadius + Math.max(areaSize.getX(), areaSize.getZ()) + spacing + 2;
     }
     
     static IntBox findVerticalPortalPlacement(
@@ -27,13 +216,17 @@ public class NetherPortalMatcher {
         LevelAccessor world,
         BlockPos searchingCenter
     ) {
+        SearchRegion region = SearchRegion.snapshot(
+            world, searchingCenter.getX(), searchingCenter.getZ(),
+            getSnapshotRadius(areaSize, 10, 6)
+        );
         
         int maxY = McHelper.getMaxContentYExclusive(world);
         int minY = McHelper.getMinY(world);
         
         // search for place on ground, with 6 spacing, range 8
         IntBox airCube = getAirCubeOnGround(
-            areaSize, new BlockPos(6, 0, 6), world, searchingCenter,
+            areaSize, new BlockPos(6, 0, 6), region, searchingCenter,
             8, true,
             64, maxY
         );
@@ -41,7 +234,7 @@ public class NetherPortalMatcher {
         if (airCube == null) {
             // search for place on ground, with 2 spacing, range 10
             airCube = getAirCubeOnGround(
-                areaSize, new BlockPos(2, 0, 2), world, searchingCenter,
+                areaSize, new BlockPos(2, 0, 2), region, searchingCenter,
                 10, true,
                 64, maxY
             );
@@ -50,7 +243,7 @@ public class NetherPortalMatcher {
         if (airCube == null) {
             // search for anywhere, which 2 spacing, range 10
             airCube = getAirCubeOnGround(
-                areaSize, new BlockPos(2, 0, 2), world, searchingCenter,
+                areaSize, new BlockPos(2, 0, 2), region, searchingCenter,
                 10, false,
                 minY, maxY
             );
@@ -61,15 +254,15 @@ public class NetherPortalMatcher {
             return null;
         }
         
-        if (world.getBlockState(airCube.l.below()).isSolid()) {
+        if (region.isSolidGround(airCube.l.below())) {
             LOGGER.info("Generated Portal On Ground");
             
-            return pushDownBox(world, airCube.getSubBoxInCenter(areaSize));
+            return pushDownBox(region, airCube.getSubBoxInCenter(areaSize));
         }
         else {
             LOGGER.info("Generated Portal On Non Solid Surface");
             
-            return levitateBox(world, airCube.getSubBoxInCenter(areaSize), 40);
+            return levitateBox(region, airCube.getSubBoxInCenter(areaSize), 40);
         }
         
     }
@@ -86,7 +279,7 @@ public class NetherPortalMatcher {
     private static IntBox getAirCubeOnGround(
         BlockPos areaSize,
         BlockPos ambientSpaceReserved,
-        LevelAccessor world,
+        SearchRegion region,
         BlockPos searchingCenter,
         int findingRadius,
         boolean solidGround,
@@ -94,8 +287,8 @@ public class NetherPortalMatcher {
         int endY
     ) {
         Predicate<BlockPos> isAirOnGroundPredicate =
-            blockPos -> solidGround ? isAirOnSolidGround(world, blockPos) :
-                isAirOnGround(world, blockPos);
+            blockPos -> solidGround ? region.isAirOnSolidGround(blockPos) :
+                region.isAirOnGround(blockPos);
         
         return BlockTraverse.searchColumned(
             searchingCenter.getX(), searchingCenter.getZ(), findingRadius,
@@ -105,9 +298,9 @@ public class NetherPortalMatcher {
                     IntBox box = IntBox.fromBasePointAndSize(mutable, areaSize);
                     
                     IntBox expanded = expandFromBottomCenter(box, ambientSpaceReserved);
-                    if (isAirCubeMediumPlace(world, expanded)) {
+                    if (region.isAirCubeMediumPlace(expanded)) {
                         if (solidGround) {
-                            if (BlockTraverse.boxAllMatch(box.getSurfaceLayer(Direction.DOWN), isAirOnGroundPredicate)) {
+                            if (region.hasAirOnSolidGround(box.getSurfaceLayer(Direction.DOWN))) {
                                 if (isAirOnGroundPredicate.test(expanded.l)) {
                                     return box;
                                 }
@@ -129,19 +322,24 @@ public class NetherPortalMatcher {
         LevelAccessor world,
         BlockPos searchingCenter
     ) {
+        SearchRegion region = SearchRegion.snapshot(
+            world, searchingCenter.getX(), searchingCenter.getZ(),
+            getSnapshotRadius(areaSize, 12, 0)
+        );
+        
         IntBox result = findHorizontalPortalPlacementWithVerticalSpaceReserved(
-            areaSize, world, searchingCenter,
+            areaSize, region, searchingCenter,
             30, 12
         );
         if (result == null) {
             result = findHorizontalPortalPlacementWithVerticalSpaceReserved(
-                areaSize, world, searchingCenter,
+                areaSize, region, searchingCenter,
                 10, 12
             );
         }
         if (result == null) {
             result = findHorizontalPortalPlacementWithVerticalSpaceReserved(
-                areaSize, world, searchingCenter,
+                areaSize, region, searchingCenter,
                 1, 12
             );
         }
@@ -150,7 +348,7 @@ public class NetherPortalMatcher {
     
     private static IntBox findHorizontalPortalPlacementWithVerticalSpaceReserved(
         BlockPos areaSize,
-        LevelAccessor world,
+        SearchRegion region,
         BlockPos searchingCenter,
         int verticalSpaceReserve,
         int findingRadius
@@ -161,7 +359,7 @@ public class NetherPortalMatcher {
             areaSize.getZ()
         );
         IntBox foundCubeArea = findCubeAirAreaAtAnywhere(
-            growVertically, world, searchingCenter, findingRadius
+            growVertically, region, searchingCenter, findingRadius
         );
         if (foundCubeArea == null) {
             return null;
@@ -179,22 +377,26 @@ public class NetherPortalMatcher {
         return !blockState.isAir();
     }
     
-    private static boolean isAirOnSolidGround(LevelAccessor world, BlockPos blockPos) {
-        return world.isEmptyBlock(blockPos) &&
-            isSolidGroundBlock(world.getBlockState(blockPos.offset(0, -1, 0)));
-    }
-    
-    private static boolean isAirOnGround(LevelAccessor world, BlockPos blockPos) {
-        return world.isEmptyBlock(blockPos) &&
-            isGroundBlock(world.getBlockState(blockPos.offset(0, -1, 0)));
+    public static IntBox findCubeAirAreaAtAnywhere(
+        BlockPos areaSize,
+        LevelAccessor world,
+        BlockPos searchingCenter,
+        int findingRadius
+    ) {
+        SearchRegion region = SearchRegion.snapshot(
+            world, searchingCenter.getX(), searchingCenter.getZ(),
+            getSnapshotRadius(areaSize, findingRadius, 0)
+        );
+        return findCubeAirAreaAtAnywhere(areaSize, region, searchingCenter, findingRadius);
     }
     
     public static IntBox findCubeAirAreaAtAnywhere(
         BlockPos areaSize,
-        LevelAccessor world,
+        SearchRegion region,
         BlockPos searchingCenter,
         int findingRadius
     ) {
+        LevelAccessor world = region.getWorld();
         return BlockTraverse.searchColumned(
             searchingCenter.getX() - (areaSize.getX() / 2),
             searchingCenter.getZ() - (areaSize.getZ() / 2),
@@ -202,7 +404,7 @@ public class NetherPortalMatcher {
             1 + McHelper.getMinY(world), McHelper.getMaxYExclusive(world) - 1,
             mutable -> {
                 IntBox box = IntBox.fromBasePointAndSize(mutable, areaSize);
-                if (isAirCubeMediumPlace(world, box)) {
+                if (region.isAirCubeMediumPlace(box)) {
                     return box;
                 }
                 else {
@@ -213,38 +415,27 @@ public class NetherPortalMatcher {
     }
     
     public static boolean isAirCubeMediumPlace(LevelAccessor world, IntBox box) {
-        //the box out of height limit is not accepted
-        if (box.h.getY() + 1 >= McHelper.getMaxContentYExclusive(world)) {
-            return false;
-        }
-        if (box.l.getY() - 1 <= McHelper.getMinY(world)) {
-            return false;
-        }
-        
-        return isAllAir(world, box);
+        return SearchRegion.direct(world).isAirCubeMediumPlace(box);
     }
     
     public static boolean isAllAir(LevelAccessor world, IntBox box) {
-        boolean roughTest = Arrays.stream(box.getEightVertices()).allMatch(
-            blockPos -> isAir(world, blockPos)
-        );
-        if (!roughTest) {
-            return false;
-        }
-        return box.stream().allMatch(
-            blockPos -> isAir(world, blockPos)
-        );
+        return SearchRegion.direct(world).isAllAir(box);
     }
     
     
     //move the box up
     public static IntBox levitateBox(
         LevelAccessor world, IntBox airCube, int maxOffset
+    ) {
+        return levitateBox(SearchRegion.direct(world), airCube, maxOffset);
+    }
+    
+    public static IntBox levitateBox(
+        SearchRegion region, IntBox airCube, int maxOffset
     ) {
         Integer maxUpShift = Helper.getLastSatisfying(
             IntStream.range(1, maxOffset * 3 / 2).boxed(),
-            upShift -> isAirCubeMediumPlace(
-                world,
+            upShift -> region.isAirCubeMediumPlace(
                 airCube.getMoved(new Vec3i(0, upShift, 0))
             )
         );
@@ -257,11 +448,16 @@ public class NetherPortalMatcher {
     
     public static IntBox pushDownBox(
         LevelAccessor world, IntBox airCube
+    ) {
+        return pushDownBox(SearchRegion.direct(world), airCube);
+    }
+    
+    public static IntBox pushDownBox(
+        SearchRegion region, IntBox airCube
     ) {
         Integer downShift = Helper.getLastSatisfying(
             IntStream.range(0, 40).boxed(),
-            i -> isAirCubeMediumPlace(
-                world,
+            i -> region.isAirCubeMediumPlace(
                 airCube.getMoved(new Vec3i(0, -i, 0))
             )
         );
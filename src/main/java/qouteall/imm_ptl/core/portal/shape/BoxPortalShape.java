@@ -93,16 +93,17 @@ public final class BoxPortalShape implements PortalShape {
     
     @Override
     public double roughDistanceToPortalShape(UnilateralPortalState portalState, Vec3 pos) {
-        Vec3 localPos = portalState.transformGlobalToLocal(pos);
-        
         double dx = Helper.getDistanceToRange(
-            -portalState.width() / 2, portalState.width() / 2, localPos.x()
+            -portalState.width() / 2, portalState.width() / 2,
+            portalState.transformGlobalToLocalX(pos.x, pos.y, pos.z)
         );
         double dy = Helper.getDistanceToRange(
-            -portalState.height() / 2, portalState.height() / 2, localPos.y()
+            -portalState.height() / 2, portalState.height() / 2,
+            portalState.transformGlobalToLocalY(pos.x, pos.y, pos.z)
         );
         double dz = Helper.getDistanceToRange(
-            -portalState.thickness() / 2, portalState.thickness() / 2, localPos.z()
+            -portalState.thickness() / 2, portalState.thickness() / 2,
+            portalState.transformGlobalToLocalZ(pos.x, pos.y, pos.z)
         );
         
         return Math.sqrt(dx * dx + dy * dy + dz * dz);
@@ -68,15 +68,18 @@ public final class RectangularPortalShape implements PortalShape {
     
     @Override
     public double roughDistanceToPortalShape(UnilateralPortalState portalState, Vec3 pos) {
-        Vec3 localPos = portalState.transformGlobalToLocal(pos);
+        // it's called per entity per tick, so avoid allocating the local position
+        double localX = portalState.transformGlobalToLocalX(pos.x, pos.y, pos.z);
+        double localY = portalState.transformGlobalToLocalY(pos.x, pos.y, pos.z);
+        double localZ = portalState.transformGlobalToLocalZ(pos.x, pos.y, pos.z);
         
         double distToRec = Helper.getDistanceToRectangle(
-            localPos.x(), localPos.y(),
+            localX, localY,
             -portalState.width() / 2, -portalState.height() / 2,
             portalState.width() / 2, portalState.height() / 2
         );
         
-        return Math.sqrt(distToRec * distToRec + localPos.z() * localPos.z());
+        return Math.sqrt(distToRec * distToRec + localZ * localZ);
     }
     
     public @Nullable RayTraceResult raytracePortalShapeByLocalPos(
@@ -4,75 +4,206 @@ import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.minecraft.client.Camera;
+import net.minecraft.client.Minecraft;
 import net.minecraft.client.multiplayer.ClientLevel;
+import net.minecraft.client.renderer.chunk.SectionRenderDispatcher.CompiledSection;
 import net.minecraft.client.renderer.chunk.SectionRenderDispatcher.RenderSection;
 import net.minecraft.client.renderer.culling.Frustum;
 import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
 import net.minecraft.core.SectionPos;
-import net.minecraft.world.phys.AABB;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
 import net.minecraft.world.phys.Vec3;
+import org.jetbrains.annotations.Nullable;
+import org.joml.Matrix4f;
 import qouteall.imm_ptl.core.ClientWorldLoader;
 import qouteall.imm_ptl.core.IPCGlobal;
+import qouteall.imm_ptl.core.IPGlobal;
 import qouteall.imm_ptl.core.chunk_loading.PerformanceLevel;
-import qouteall.imm_ptl.core.ducks.IERenderSection;
+import qouteall.imm_ptl.core.ducks.IEFrustum;
 import qouteall.imm_ptl.core.miscellaneous.ClientPerformanceMonitor;
 import qouteall.imm_ptl.core.portal.Portal;
+import qouteall.imm_ptl.core.portal.animation.UnilateralPortalState;
 import qouteall.imm_ptl.core.portal.nether_portal.BlockTraverse;
+import qouteall.imm_ptl.core.portal.shape.PortalShape;
 import qouteall.imm_ptl.core.render.context_management.PortalRendering;
 import qouteall.imm_ptl.core.render.context_management.WorldRenderInfo;
+import qouteall.q_misc_util.Helper;
+import qouteall.q_misc_util.my_util.Plane;
 
-import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Stack;
+import java.util.UUID;
 
 /**
  * Discover visible sections by breadth-first traverse, for portal rendering.
- * Probably faster than vanilla (because no cave culling and garbage object allocation).
+ * Probably faster than vanilla (because no garbage object allocation).
  * No multi-threading because portal rendering camera views are very dynamic which is not suitable for that.
- * No cave culling because vanilla has a multithreaded cave culling that's hard to integrate with portal rendering.
- * The cave culling is conditionally enabled with Sodium: {@link PortalRendering#shouldEnableSodiumCaveCulling()}
+ * <br>
+ * It does cave culling with the compiled sections' visibility when the camera is not in an opaque block.
+ * In a portal view, the sections that are not fully in front of the clipping plane are not used for culling,
+ * because what's behind the portal destination is not rendered.
+ * The cave culling with Sodium is conditionally enabled: {@link PortalRendering#shouldEnableSodiumCaveCulling()}
+ * <br>
+ * The result of each rendering context is reused in the next frame
+ * if the camera, the frustum and the portal are unchanged and no section is recompiled.
+ * The portal's inner frustum culling of {@link FrustumCuller} applies through the vanilla frustum.
  */
 @Environment(EnvType.CLIENT)
 public class VisibleSectionDiscovery {
     
-    private static ImmPtlViewArea builtChunks;
-    private static Frustum vanillaFrustum;
-    private static ObjectArrayList<RenderSection> resultHolder;
-    private static final ArrayDeque<RenderSection> tempQueue = new ArrayDeque<>();
-    private static SectionPos cameraSectionPos;
-    private static long timeMark;
-    private static int viewDistance;
+    private static final Direction[] DIRECTIONS = Direction.values();
+    
+    private record ContextKey(
+        ResourceKey<Level> dimension, List<UUID> renderingDescription
+    ) {}
+    
+    // everything that affects the frustum test and the culling
+    private record FrameKey(
+        ImmPtlViewArea viewArea,
+        Vec3 cameraPos,
+        Matrix4f frustumMatrix,
+        int viewDistance,
+        @Nullable UnilateralPortalState portalThisSideState,
+        @Nullable UnilateralPortalState portalOtherSideState,
+        @Nullable PortalShape portalShape,
+        @Nullable Plane clippingPlane,
+        boolean occlusionCulling,
+        boolean advancedFrustumCulling
+    ) {}
+    
+    private static final VisibleSectionSearcher<RenderSection> searcher = new VisibleSectionSearcher<>();
+    private static final ViewAreaGrid grid = new ViewAreaGrid();
+    private static final HashMap<ContextKey, VisibleSectionSearcher.FrameCache<RenderSection>> frameCaches =
+        new HashMap<>();
+    
+    private static class ViewAreaGrid implements VisibleSectionSearcher.SectionGrid<RenderSection> {
+        private ImmPtlViewArea viewArea;
+        private Frustum frustum;
+        private long timeMark;
+        private @Nullable Plane clippingPlane;
+        
+        @Override
+        public @Nullable RenderSection getSection(int cx, int cy, int cz) {
+            return viewArea.rawFetch(cx, cy, cz, timeMark);
+        }
+        
+        // NOTE the vanilla frustum culling code may wrongly cull the first section
+        @Override
+        public boolean isInFrustum(RenderSection section, int cx, int cy, int cz) {
+            return frustum.isVisible(section.getBoundingBox());
+        }
+        
+        @Override
+        public boolean canSeeThrough(RenderSection section, int cx, int cy, int cz, int fromFace, int toFace) {
+            if (clippingPlane != null && !isFullyInFrontOfClippingPlane(cx, cy, cz)) {
+                return true;
+            }
+            
+            CompiledSection compiled = section.getCompiled();
+            if (compiled == CompiledSection.UNCOMPILED) {
+                return true;
+            }
+            return compiled.facesCanSeeEachother(DIRECTIONS[fromFace], DIRECTIONS[toFace]);
+        }
+        
+        @Override
+        public Object getVersion(RenderSection section) {
+            return section.getCompiled();
+        }
+        
+        private boolean isFullyInFrontOfClippingPlane(int cx, int cy, int cz) {
+            Vec3 normal = clippingPlane.normal();
+            Vec3 pos = clippingPlane.pos();
+            // the box vertex that's the most behind
+            double x = (cx << 4) + (normal.x > 0 ? 0 : 16);
+            double y = (cy << 4) + (normal.y > 0 ? 0 : 16);
+            double z = (cz << 4) + (normal.z > 0 ? 0 : 16);
+            return (x - pos.x) * normal.x + (y - pos.y) * normal.y + (z - pos.z) * normal.z > 0;
+        }
+        
+        private void clear() {
+            viewArea = null;
+            frustum = null;
+            clippingPlane = null;
+        }
+    }
     
     public static void discoverVisibleSections(
         ClientLevel world,
-        ImmPtlViewArea builtChunks_,
+        ImmPtlViewArea builtChunks,
         Camera camera,
-        Frustum vanillaFrustum_,
-        ObjectArrayList<RenderSection> resultHolder_
+        Frustum vanillaFrustum,
+        ObjectArrayList<RenderSection> resultHolder
     ) {
-        builtChunks = builtChunks_;
-        vanillaFrustum = vanillaFrustum_;
-        resultHolder = resultHolder_;
-        
-        resultHolder.clear();
-        tempQueue.clear();
+        int viewDistance = getViewDistance();
         
-        updateViewDistance();
-        
-        timeMark = System.nanoTime();
+        long timeMark = System.nanoTime();
         
         Vec3 cameraPos = camera.getPosition();
         vanillaFrustum.prepare(cameraPos.x, cameraPos.y, cameraPos.z);
-        cameraSectionPos = SectionPos.of(BlockPos.containing(cameraPos));
+        SectionPos cameraSectionPos = SectionPos.of(BlockPos.containing(cameraPos));
         
+        Portal renderingPortal = null;
         SectionPos modifiedVisibleSectionIterationOrigin = null;
+        Plane clippingPlane = null;
         if (PortalRendering.isRendering()) {
-            Portal renderingPortal = PortalRendering.getRenderingPortal();
+            renderingPortal = PortalRendering.getRenderingPortal();
             modifiedVisibleSectionIterationOrigin = renderingPortal.getPortalShape()
                 .getModifiedVisibleSectionIterationOrigin(renderingPortal, cameraPos);
+            clippingPlane = PortalRendering.getActiveClippingPlane();
         }
         
+        boolean occlusionCulling = shouldDoOcclusionCulling(
+            world, cameraPos, renderingPortal, modifiedVisibleSectionIterationOrigin, clippingPlane
+        );
+        
+        grid.viewArea = builtChunks;
+        grid.frustum = vanillaFrustum;
+        grid.timeMark = timeMark;
+        grid.clippingPlane = occlusionCulling ? clippingPlane : null;
+        
+        VisibleSectionSearcher.FrameCache<RenderSection> frameCache = null;
+        FrameKey frameKey = null;
+        if (IPGlobal.reuseVisibleSections) {
+            frameCache = frameCaches.computeIfAbsent(
+                new ContextKey(world.dimension(), WorldRenderInfo.getRenderingDescription()),
+                k -> new VisibleSectionSearcher.FrameCache<>()
+            );
+            frameCache.lastUseTime = timeMark;
+            
+            frameKey = new FrameKey(
+                builtChunks,
+                cameraPos,
+                new Matrix4f(((IEFrustum) vanillaFrustum).ip_getMatrix()),
+                viewDistance,
+                renderingPortal == null ? null : renderingPortal.getThisSideState(),
+                renderingPortal == null ? null : renderingPortal.getOtherSideState(),
+                renderingPortal == null ? null : renderingPortal.getPortalShape(),
+                clippingPlane,
+                occlusionCulling,
+                IPCGlobal.doUseAdvancedFrustumCulling
+            );
+            
+            if (frameCache.tryReuse(frameKey, grid, resultHolder)) {
+                grid.clear();
+                return;
+            }
+        }
+        
+        searcher.begin(
+            grid,
+            cameraSectionPos.x(), cameraSectionPos.y(), cameraSectionPos.z(),
+            viewDistance,
+            builtChunks.minSectionY, builtChunks.endSectionY,
+            occlusionCulling,
+            resultHolder
+        );
+        
         if (modifiedVisibleSectionIterationOrigin != null) {
-            checkSection(
+            searcher.addSeed(
                 modifiedVisibleSectionIterationOrigin.getX(),
                 modifiedVisibleSectionIterationOrigin.getY(),
                 modifiedVisibleSectionIterationOrigin.getZ(),
@@ -80,13 +211,13 @@ public class VisibleSectionDiscovery {
             );
         }
         else if (cameraPos.y < world.getMinBuildHeight()) {
-            discoverBottomOrTopLayerVisibleChunks(builtChunks.minSectionY);
+            addBottomOrTopLayerSeeds(cameraSectionPos, viewDistance, builtChunks.minSectionY);
         }
         else if (cameraPos.y > world.getMaxBuildHeight()) {
-            discoverBottomOrTopLayerVisibleChunks(builtChunks.endSectionY - 1);
+            addBottomOrTopLayerSeeds(cameraSectionPos, viewDistance, builtChunks.endSectionY - 1);
         }
         else {
-            checkSection(
+            searcher.addSeed(
                 cameraSectionPos.x(),
                 cameraSectionPos.y(),
                 cameraSectionPos.z(),
@@ -94,77 +225,56 @@ public class VisibleSectionDiscovery {
             );
         }
         
-        // breadth-first searching
-        while (!tempQueue.isEmpty()) {
-            RenderSection curr = tempQueue.poll();
-            int cx = SectionPos.blockToSectionCoord(curr.getOrigin().getX());
-            int cy = SectionPos.blockToSectionCoord(curr.getOrigin().getY());
-            int cz = SectionPos.blockToSectionCoord(curr.getOrigin().getZ());
-            
-            checkSection(cx + 1, cy, cz, false);
-            checkSection(cx - 1, cy, cz, false);
-            checkSection(cx, cy + 1, cz, false);
-            checkSection(cx, cy - 1, cz, false);
-            checkSection(cx, cy, cz + 1, false);
-            checkSection(cx, cy, cz - 1, false);
-        }
+        searcher.finish(frameCache, frameKey);
         
         // avoid memory leak
-        resultHolder = null;
-        builtChunks = null;
-        vanillaFrustum = null;
+        grid.clear();
     }
     
-    private static void updateViewDistance() {
+    private static int getViewDistance() {
         int distance = WorldRenderInfo.getRenderDistance();
-        viewDistance = PerformanceLevel.getPortalRenderingDistance(
+        return PerformanceLevel.getPortalRenderingDistance(
             ClientPerformanceMonitor.level, distance
         );
     }
     
-    // NOTE the vanilla frustum culling code may wrongly cull the first section
-    private static boolean isVisible(RenderSection builtChunk) {
-        AABB box = builtChunk.getBoundingBox();
-        return vanillaFrustum.isVisible(box);
+    private static boolean shouldDoOcclusionCulling(
+        ClientLevel world, Vec3 cameraPos,
+        @Nullable Portal renderingPortal,
+        @Nullable SectionPos modifiedVisibleSectionIterationOrigin,
+        @Nullable Plane clippingPlane
+    ) {
+        if (!IPGlobal.visibleSectionOcclusionCulling) {
+            return false;
+        }
+        
+        if (!Minecraft.getInstance().smartCull) {
+            return false;
+        }
+        
+        if (renderingPortal != null) {
+            // without the clipping plane, the things between the camera and the portal destination
+            // may wrongly occlude the portal view
+            return modifiedVisibleSectionIterationOrigin == null && clippingPlane != null;
+        }
+        
+        // like vanilla, don't cull when the camera is in an opaque block
+        BlockPos cameraBlockPos = BlockPos.containing(cameraPos);
+        return !world.getBlockState(cameraBlockPos).isSolidRender(world, cameraBlockPos);
     }
     
-    private static void discoverBottomOrTopLayerVisibleChunks(int cy) {
+    private static void addBottomOrTopLayerSeeds(SectionPos cameraSectionPos, int viewDistance, int cy) {
         BlockTraverse.<Object>searchOnPlane(
             cameraSectionPos.x(),
             cameraSectionPos.z(),
             viewDistance - 1,
             (cx, cz) -> {
-                checkSection(cx, cy, cz, false);
+                searcher.addSeed(cx, cy, cz, false);
                 return null;
             }
         );
     }
     
-    private static void checkSection(int cx, int cy, int cz, boolean skipFrustumTest) {
-        if (Math.abs(cx - cameraSectionPos.x()) > viewDistance) {
-            return;
-        }
-        if (Math.abs(cy - cameraSectionPos.y()) > viewDistance) {
-            return;
-        }
-        if (Math.abs(cz - cameraSectionPos.z()) > viewDistance) {
-            return;
-        }
-        
-        RenderSection builtChunk =
-            builtChunks.rawFetch(cx, cy, cz, timeMark);
-        if (builtChunk != null) {
-            IERenderSection ieRenderSection = (IERenderSection) builtChunk;
-            if (ieRenderSection.portal_getMark() != timeMark) {
-                ieRenderSection.portal_setMark(timeMark);// mark it checked
-                if (skipFrustumTest || isVisible(builtChunk)) {
-                    tempQueue.add(builtChunk);
-                    resultHolder.add(builtChunk);
-                }
-            }
-        }
-    }
-    
     private static final Stack<ObjectArrayList<RenderSection>> listCaches = new Stack<>();
     
     public static ObjectArrayList<RenderSection> takeList() {
@@ -187,13 +297,23 @@ public class VisibleSectionDiscovery {
         ClientWorldLoader.CLIENT_DIMENSION_DYNAMIC_REMOVE_EVENT.register((dim) -> {
             cleanUp();
         });
+        
+        IPGlobal.POST_CLIENT_TICK_EVENT.register(VisibleSectionDiscovery::purgeFrameCaches);
+    }
+    
+    // the caches of the portals that are no longer rendered hold the sections
+    private static void purgeFrameCaches() {
+        long currentTime = System.nanoTime();
+        long timeThreshold = Helper.secondToNano(5);
+        frameCaches.values().removeIf(
+            frameCache -> currentTime - frameCache.lastUseTime > timeThreshold
+        );
     }
     
     private static void cleanUp() {
         listCaches.clear();
-        resultHolder = null;
-        builtChunks = null;
-        vanillaFrustum = null;
+        frameCaches.clear();
+        grid.clear();
     }
     
 }
@@ -0,0 +1,293 @@
+package qouteall.imm_ptl.core.render;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import net.minecraft.core.SectionPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * The breadth-first section traverse of {@link VisibleSectionDiscovery}, without depending on the client classes.
+ * <br>
+ * With occlusion culling, it works like vanilla's section occlusion graph:
+ * it only goes from a section to a neighbor if a face that it entered through can see the face towards the neighbor,
+ * and a path never goes in the opposite of a direction that it already went.
+ * <br>
+ * All states are in the instance. Different instances can run concurrently.
+ */
+public final class VisibleSectionSearcher<S> {
+    // in the order of Direction.values(): down, up, north, south, west, east
+    private static final int[] FACE_DX = {0, 0, 0, 0, -1, 1};
+    private static final int[] FACE_DY = {-1, 1, 0, 0, 0, 0};
+    private static final int[] FACE_DZ = {0, 0, -1, 1, 0, 0};
+    
+    public interface SectionGrid<S> {
+        @Nullable
+        S getSection(int cx, int cy, int cz);
+        
+        boolean isInFrustum(S section, int cx, int cy, int cz);
+        
+        /**
+         * @param fromFace the face that the line of sight enters through, as a Direction ordinal
+         * @param toFace   the face that the line of sight leaves through, as a Direction ordinal
+         * @return true if it can see through, or if it's unknown
+         */
+        boolean canSeeThrough(S section, int cx, int cy, int cz, int fromFace, int toFace);
+        
+        /**
+         * @return an object that's replaced when the result of {@link #canSeeThrough} changes
+         */
+        Object getVersion(S section);
+    }
+    
+    /**
+     * The result of the last search of a rendering context.
+     * It's reused when the frame key is equal, and the sections and their versions are unchanged.
+     * The frame key should contain everything that affects the frustum test.
+     */
+    public static final class FrameCache<S> {
+        private @Nullable Object key;
+        private final ObjectArrayList<S> sections = new ObjectArrayList<>();
+        private final ObjectArrayList<Object> versions = new ObjectArrayList<>();
+        private final LongArrayList sectionPositions = new LongArrayList();
+        
+        public long lastUseTime = 0;
+        private long hitNum = 0;
+        private long missNum = 0;
+        
+        public boolean tryReuse(Object key, SectionGrid<S> grid, ObjectArrayList<S> result) {
+            if (this.key == null || !this.key.equals(key)) {
+                missNum++;
+                return false;
+            }
+            
+            for (int i = 0; i < sections.size(); i++) {
+                long sectionPos = sectionPositions.getLong(i);
+                S section = grid.getSection(
+                    SectionPos.x(sectionPos), SectionPos.y(sectionPos), SectionPos.z(sectionPos)
+                );
+                if (section != sections.get(i) || grid.getVersion(section) != versions.get(i)) {
+                    clear();
+                    missNum++;
+                    return false;
+                }
+            }
+            
+            result.clear();
+            result.addAll(sections);
+            hitNum++;
+            return true;
+        }
+        
+        public void clear() {
+            key = null;
+            sections.clear();
+            versions.clear();
+            sectionPositions.clear();
+        }
+        
+        public long getHitNum() {
+            return hitNum;
+        }
+        
+        public long getMissNum() {
+            return missNum;
+        }
+    }
+    
+    private @Nullable SectionGrid<S> grid;
+    private @Nullable ObjectArrayList<S> result;
+    private boolean occlusionCulling;
+    
+    private int baseX;
+    private int baseY;
+    private int baseZ;
+    private int sizeX;
+    private int sizeY;
+    private int sizeZ;
+    
+    // indexed by the local index. the visit stamps avoid clearing the arrays for each search
+    private int[] visitStamps = new int[0];
+    private byte[] entryFaces = new byte[0];
+    private byte[] stepFaces = new byte[0];
+    private int currentStamp = 0;
+    
+    // the local indices of the sections in the result, which is also the queue
+    private final IntArrayList queue = new IntArrayList();
+    
+    /**
+     * Only the sections within the radius from the center section are discovered.
+     * Then add seeds by {@link #addSeed} and finish by {@link #finish}.
+     */
+    public void begin(
+        SectionGrid<S> grid,
+        int centerX, int centerY, int centerZ, int radius,
+        int minSectionY, int endSectionY,
+        boolean occlusionCulling,
+        ObjectArrayList<S> result
+    ) {
+        this.grid = grid;
+        this.result = result;
+        this.occlusionCulling = occlusionCulling;
+        
+        result.clear();
+        queue.clear();
+        
+        baseX = centerX - radius;
+        baseZ = centerZ - radius;
+        baseY = Math.max(minSectionY, centerY - radius);
+        sizeX = radius * 2 + 1;
+        sizeZ = radius * 2 + 1;
+        sizeY = Math.max(0, Math.min(endSectionY, centerY + radius + 1) - baseY);
+        
+        int volume = sizeX * sizeY * sizeZ;
+        if (visitStamps.length < volume) {
+            visitStamps = new int[volume];
+            entryFaces = new byte[volume];
+            stepFaces = new byte[volume];
+            currentStamp = 0;
+        }
+        
+        if (currentStamp == Integer.MAX_VALUE) {
+            Arrays.fill(visitStamps, 0);
+            currentStamp = 0;
+        }
+        currentStamp++;
+    }
+    
+    /**
+     * A seed can go in all directions.
+     */
+    public void addSeed(int cx, int cy, int cz, boolean skipFrustumTest) {
+        int index = getLocalIndex(cx, cy, cz);
+        if (index == -1 || visitStamps[index] == currentStamp) {
+            return;
+        }
+        visitStamps[index] = currentStamp;
+        
+        S section = grid.getSection(cx, cy, cz);
+        if (section == null) {
+            return;
+        }
+        if (!skipFrustumTest && !grid.isInFrustum(section, cx, cy, cz)) {
+            return;
+        }
+        
+        entryFaces[index] = 0;
+        stepFaces[index] = 0;
+        result.add(section);
+        queue.add(index);
+    }
+    
+    /**
+     * @param frameCache if not null, the result is saved into it with the frame key
+     */
+    public void finish(@Nullable FrameCache<S> frameCache, @Nullable Object frameKey) {
+        SectionGrid<S> grid = this.grid;
+        ObjectArrayList<S> result = this.result;
+        
+        for (int i = 0; i < queue.size(); i++) {
+            int index = queue.getInt(i);
+            S section = result.get(i);
+            
+            int ly = index % sizeY;
+            int lz = (index / sizeY) % sizeZ;
+            int lx = index / sizeY / sizeZ;
+            int cx = lx + baseX;
+            int cy = ly + baseY;
+            int cz = lz + baseZ;
+            
+            int entry = entryFaces[index];
+            int steps = stepFaces[index];
+            
+            for (int face = 0; face < 6; face++) {
+                int nx = cx + FACE_DX[face];
+                int ny = cy + FACE_DY[face];
+                int nz = cz + FACE_DZ[face];
+                int neighborIndex = getLocalIndex(nx, ny, nz);
+                if (neighborIndex == -1) {
+                    continue;
+                }
+                
+                // the neighbor is entered through the opposite face
+                int neighborEntryFace = face ^ 1;
+                
+                if (occlusionCulling) {
+                    if ((steps & (1 << neighborEntryFace)) != 0) {
+                        continue;
+                    }
+                    if (!canLeave(grid, section, cx, cy, cz, entry, face)) {
+                        continue;
+                    }
+                    if (visitStamps[neighborIndex] == currentStamp) {
+                        entryFaces[neighborIndex] |= (byte) (1 << neighborEntryFace);
+                        continue;
+                    }
+                }
+                else if (visitStamps[neighborIndex] == currentStamp) {
+                    continue;
+                }
+                visitStamps[neighborIndex] = currentStamp;
+                
+                S neighbor = grid.getSection(nx, ny, nz);
+                if (neighbor == null || !grid.isInFrustum(neighbor, nx, ny, nz)) {
+                    continue;
+                }
+                
+                entryFaces[neighborIndex] = (byte) (1 << neighborEntryFace);
+                stepFaces[neighborIndex] = (byte) (steps | (1 << face));
+                result.add(neighbor);
+                queue.add(neighborIndex);
+            }
+        }
+        
+        if (frameCache != null && frameKey != null) {
+            frameCache.clear();
+            frameCache.key = frameKey;
+            frameCache.sections.addAll(result);
+            for (int i = 0; i < queue.size(); i++) {
+                int index = queue.getInt(i);
+                frameCache.versions.add(grid.getVersion(result.get(i)));
+                frameCache.sectionPositions.add(SectionPos.asLong(
+                    index / sizeY / sizeZ + baseX,
+                    index % sizeY + baseY,
+                    (index / sizeY) % sizeZ + baseZ
+                ));
+            }
+        }
+        
+        // avoid memory leak
+        this.grid = null;
+        this.result = null;
+    }
+    
+    private static <S> boolean canLeave(
+        SectionGrid<S> grid, S section, int cx, int cy, int cz, int entry, int face
+    ) {
+        // a seed has no entry face
+        if (entry == 0) {
+            return true;
+        }
+        
+        for (int entryFace = 0; entryFace < 6; entryFace++) {
+            if ((entry & (1 << entryFace)) != 0) {
+                if (grid.canSeeThrough(section, cx, cy, cz, entryFace, face)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private int getLocalIndex(int cx, int cy, int cz) {
+        int lx = cx - baseX;
+        int ly = cy - baseY;
+        int lz = cz - baseZ;
+        if (lx < 0 || lx >= sizeX || ly < 0 || ly >= sizeY || lz < 0 || lz >= sizeZ) {
+            return -1;
+        }
+        return (lx * sizeZ + lz) * sizeY + ly;
+    }
+}
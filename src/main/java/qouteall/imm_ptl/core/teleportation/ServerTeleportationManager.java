@@ -1,6 +1,9 @@
 package qouteall.imm_ptl.core.teleportation;
 
 import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
@@ -26,6 +29,7 @@ import qouteall.imm_ptl.core.IPPerServerInfo;
 import qouteall.imm_ptl.core.McHelper;
 import qouteall.imm_ptl.core.ScaleUtils;
 import qouteall.imm_ptl.core.chunk_loading.ImmPtlChunkTracking;
+import qouteall.imm_ptl.core.collision.CollisionHelper;
 import qouteall.imm_ptl.core.collision.PortalCollisionHandler;
 import qouteall.imm_ptl.core.compat.GravityChangerInterface;
 import qouteall.imm_ptl.core.ducks.IEEntity;
@@ -44,6 +48,7 @@ import qouteall.q_misc_util.my_util.WithDim;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.WeakHashMap;
@@ -58,6 +63,11 @@ public class ServerTeleportationManager {
     public boolean isFiringMyChangeDimensionEvent = false;
     public final WeakHashMap<ServerPlayer, WithDim<Vec3>> lastPosition = new WeakHashMap<>();
     
+    // the non-player entities that recently collided with a global portal, per dimension
+    private final Object2ObjectOpenHashMap<ResourceKey<Level>, ReferenceOpenHashSet<Entity>>
+        globalPortalCollidingEntities = new Object2ObjectOpenHashMap<>();
+    private int globalPortalCheckedEntityNum = 0;
+    
     public static ServerTeleportationManager of(MinecraftServer server) {
         return IPPerServerInfo.of(server).teleportationManager;
     }
@@ -79,6 +89,10 @@ public class ServerTeleportationManager {
         DimensionAPI.SERVER_PRE_REMOVE_DIMENSION_EVENT.register(
             world -> of(world.getServer()).evacuatePlayersFromDimension(world)
         );
+        
+        DimensionAPI.SERVER_PRE_REMOVE_DIMENSION_EVENT.register(
+            world -> of(world.getServer()).globalPortalCollidingEntities.remove(world.dimension())
+        );
     }
     
     public ServerTeleportationManager() {
@@ -484,20 +498,67 @@ public class ServerTeleportationManager {
         ((IEServerPlayerEntity) player).portal_worldChanged(fromWorld, oldPos);
     }
     
+    /**
+     * Called by {@link CollisionHelper#updateCollidingPortalForWorld} when a non-player entity
+     * collides with a global portal.
+     * Only these entities are checked for global portal teleportation.
+     */
+    public void onEntityCollidingWithGlobalPortal(Entity entity) {
+        if (entity instanceof ServerPlayer) {
+            return;
+        }
+        
+        globalPortalCollidingEntities
+            .computeIfAbsent(entity.level().dimension(), k -> new ReferenceOpenHashSet<>())
+            .add(entity);
+    }
+    
+    /**
+     * The number of entities checked for global portal teleportation in the last tick.
+     * It was the number of all entities in all dimensions before.
+     */
+    public int getGlobalPortalCheckedEntityNum() {
+        return globalPortalCheckedEntityNum;
+    }
+    
     private void manageGlobalPortalTeleportation() {
-        for (ServerLevel world : MiscHelper.getServer().getAllLevels()) {
-            for (Entity entity : world.getAllEntities()) {
-                if (!(entity instanceof ServerPlayer)) {
-                    Portal collidingPortal = ((IEEntity) entity).ip_getCollidingPortal();
-                    
-                    if (collidingPortal != null && collidingPortal.getIsGlobal()) {
-                        if (shouldEntityTeleport(collidingPortal, entity)) {
-                            startTeleportingRegularEntity(collidingPortal, entity);
-                        }
-                    }
+        int checkedEntityNum = 0;
+        
+        for (ObjectIterator<Map.Entry<ResourceKey<Level>, ReferenceOpenHashSet<Entity>>> iterator =
+             globalPortalCollidingEntities.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<ResourceKey<Level>, ReferenceOpenHashSet<Entity>> entry = iterator.next();
+            ResourceKey<Level> dimension = entry.getKey();
+            ReferenceOpenHashSet<Entity> entities = entry.getValue();
+            
+            for (ObjectIterator<Entity> entityIterator = entities.iterator(); entityIterator.hasNext(); ) {
+                Entity entity = entityIterator.next();
+                checkedEntityNum++;
+                
+                if (entity.isRemoved() || entity.level().dimension() != dimension) {
+                    entityIterator.remove();
+                    continue;
+                }
+                
+                Portal collidingPortal = ((IEEntity) entity).ip_getCollidingPortal();
+                
+                // if it still collides with the global portal,
+                // it will be added again in the next colliding portal update
+                if (collidingPortal == null || !collidingPortal.getIsGlobal()) {
+                    entityIterator.remove();
+                    continue;
+                }
+                
+                if (shouldEntityTeleport(collidingPortal, entity)) {
+                    startTeleportingRegularEntity(collidingPortal, entity);
                 }
             }
+            
+            if (entities.isEmpty()) {
+                iterator.remove();
+            }
         }
+        
+        globalPortalCheckedEntityNum = checkedEntityNum;
     }
     
     public boolean isTeleporting(Entity entity) {
@@ -724,6 +785,17 @@ public class ServerTeleportationManager {
         return currGameTime - lastTeleportGameTime < valveTickTime;
     }
     
+    /**
+     * Long.MAX_VALUE if the entity has not teleported through a portal.
+     */
+    public long getTicksSinceLastTeleport(Entity entity) {
+        Long lastTeleportGameTime = this.lastTeleportGameTime.get(entity);
+        if (lastTeleportGameTime == null) {
+            return Long.MAX_VALUE;
+        }
+        return McHelper.getServerGameTime() - lastTeleportGameTime;
+    }
+    
     public static Entity teleportEntityGeneral(Entity entity, Vec3 targetPos, ServerLevel targetWorld) {
         if (entity instanceof ServerPlayer serverPlayer) {
             of(serverPlayer.server).forceTeleportPlayer(
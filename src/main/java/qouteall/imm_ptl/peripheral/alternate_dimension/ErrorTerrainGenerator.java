@@ -71,6 +71,10 @@ public class ErrorTerrainGenerator extends DelegatedChunkGenerator {
     
     private final LoadingCache<ChunkPos, RegionErrorTerrainGenerator> cache;
     
+    // the chunks are generated on the worker threads
+    private static final ThreadLocal<RegionErrorTerrainGenerator.SectionBuffer> sectionBuffer =
+        ThreadLocal.withInitial(RegionErrorTerrainGenerator.SectionBuffer::new);
+    
     
     public ErrorTerrainGenerator(
         BiomeSource biomeSource, ChunkGenerator delegate
@@ -133,9 +137,18 @@ public class ErrorTerrainGenerator extends DelegatedChunkGenerator {
             cache.get(new ChunkPos(regionX, regionZ))
         );
         
+        RegionErrorTerrainGenerator.SectionBuffer buffer = sectionBuffer.get();
+        
         for (int sectionY = 0; sectionY < 16; sectionY++) {
+            // all air above maxY
+            if (sectionY * 16 >= maxY) {
+                break;
+            }
+            
             LevelChunkSection section = protoChunk.getSection(sectionY);
             
+            generator.calcSection(pos.x * 16, sectionY * 16, pos.z * 16, buffer);
+            
             for (int localX = 0; localX < 16; localX++) {
                 for (int localZ = 0; localZ < 16; localZ++) {
                     for (int localY = 0; localY < 16; localY++) {
@@ -144,7 +157,8 @@ public class ErrorTerrainGenerator extends DelegatedChunkGenerator {
                         int worldZ = pos.z * 16 + localZ;
                         
                         BlockState currBlockState = generator.getBlockComposition(
-                            worldX, worldY, worldZ
+                            worldX, worldY, worldZ,
+                            buffer.result[RegionErrorTerrainGenerator.getIndexInSection(localX, localY, localZ)]
                         );
                         
                         if (currBlockState != air) {
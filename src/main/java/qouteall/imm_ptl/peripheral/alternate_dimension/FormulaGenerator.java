@@ -3,6 +3,7 @@ package qouteall.imm_ptl.peripheral.alternate_dimension;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
 
 import java.util.Random;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
 public class FormulaGenerator {
@@ -49,8 +50,22 @@ public class FormulaGenerator {
         }
     }
     
-    private static RandomSelector<Function<Random, UniNumFunction>> uniFuncSelector;
-    private static RandomSelector<TriNumFunction> triFuncSelector;
+    // each entry has the operation in FormulaProgram, to generate the lambda tree and the program together
+    private static record UniFuncEntry(int op, Function<Random, UniFuncInstance> factory) {}
+    
+    private static record UniFuncInstance(UniNumFunction function, double arg) {}
+    
+    private static record TriFuncEntry(int op, TriNumFunction function) {}
+    
+    private static record ShuffleFuncEntry(int op, TriToTriFuncCPS function) {}
+    
+    /**
+     * The lambda tree and the equivalent flat program of a formula.
+     */
+    public static record Formula(TriNumFunction tree, FormulaProgram program) {}
+    
+    private static RandomSelector<UniFuncEntry> uniFuncSelector;
+    private static RandomSelector<TriFuncEntry> triFuncSelector;
     
     public static void init() {
         initUniFuncSelector();
@@ -58,35 +73,38 @@ public class FormulaGenerator {
     }
     
     private static void initUniFuncSelector() {
-        RandomSelector.Builder<Function<Random, UniNumFunction>> builder = new RandomSelector.Builder<>();
+        RandomSelector.Builder<UniFuncEntry> builder = new RandomSelector.Builder<>();
         
-        Function<Function<Double, UniNumFunction>, Function<Random, UniNumFunction>> applyRandomArg =
-            arged -> random -> arged.apply(random.nextDouble());
-        Function<UniNumFunction, Function<Random, UniNumFunction>> noRandomArg =
-            func -> random -> func;
+        BiFunction<Integer, Function<Double, UniNumFunction>, UniFuncEntry> applyRandomArg =
+            (op, arged) -> new UniFuncEntry(op, random -> {
+                double arg = random.nextDouble();
+                return new UniFuncInstance(arged.apply(arg), arg);
+            });
+        BiFunction<Integer, UniNumFunction, UniFuncEntry> noRandomArg =
+            (op, func) -> new UniFuncEntry(op, random -> new UniFuncInstance(func, 0));
         
-        builder.add(30, noRandomArg.apply(x -> x));
-        builder.add(30, noRandomArg.apply(x -> -x));
-        builder.add(30, noRandomArg.apply(x -> x * x));
-        builder.add(30, noRandomArg.apply(x -> x * x * x));
-        builder.add(10, noRandomArg.apply(x -> Math.max(x, 0)));
-        builder.add(7, noRandomArg.apply(x -> Math.sin(x * 3)));
-        builder.add(7, noRandomArg.apply(x -> Math.cos(x * 7)));
-        builder.add(10, noRandomArg.apply(x -> Math.exp(x * 3)));
-        builder.add(10, noRandomArg.apply(x -> Math.log(Math.abs(x) + 1)));
-        builder.add(5, noRandomArg.apply(x -> Math.cosh(x)));
-        builder.add(10, noRandomArg.apply(x -> Math.abs(x)));
-        builder.add(5, noRandomArg.apply(x -> Math.round(x)));
-        builder.add(10, noRandomArg.apply(x -> Math.sqrt(Math.abs(x))));
-        builder.add(10, noRandomArg.apply(x -> weirdSwap(x)));
-        builder.add(30, applyRandomArg.apply(arg -> x -> x * arg));
-        builder.add(30, applyRandomArg.apply(arg -> x -> x / Math.max(arg, 0.1)));
-        builder.add(10, applyRandomArg.apply(arg -> x -> Math.max(x, arg)));
-        builder.add(10, applyRandomArg.apply(arg -> x -> x + arg));
-        builder.add(7, applyRandomArg.apply(arg -> x -> Math.floor(x * arg * 23)));
-        builder.add(7, applyRandomArg.apply(arg -> x -> Math.floor(x * arg)));
-        builder.add(10, applyRandomArg.apply(arg -> x -> weirdAnd(arg, x)));
-        builder.add(10, applyRandomArg.apply(arg -> x -> weirdXor(arg, x)));
+        builder.add(30, noRandomArg.apply(FormulaProgram.UNI_IDENTITY, x -> x));
+        builder.add(30, noRandomArg.apply(FormulaProgram.UNI_NEGATE, x -> -x));
+        builder.add(30, noRandomArg.apply(FormulaProgram.UNI_SQUARE, x -> x * x));
+        builder.add(30, noRandomArg.apply(FormulaProgram.UNI_CUBE, x -> x * x * x));
+        builder.add(10, noRandomArg.apply(FormulaProgram.UNI_RELU, x -> Math.max(x, 0)));
+        builder.add(7, noRandomArg.apply(FormulaProgram.UNI_SIN_3X, x -> Math.sin(x * 3)));
+        builder.add(7, noRandomArg.apply(FormulaProgram.UNI_COS_7X, x -> Math.cos(x * 7)));
+        builder.add(10, noRandomArg.apply(FormulaProgram.UNI_EXP_3X, x -> Math.exp(x * 3)));
+        builder.add(10, noRandomArg.apply(FormulaProgram.UNI_LOG_ABS, x -> Math.log(Math.abs(x) + 1)));
+        builder.add(5, noRandomArg.apply(FormulaProgram.UNI_COSH, x -> Math.cosh(x)));
+        builder.add(10, noRandomArg.apply(FormulaProgram.UNI_ABS, x -> Math.abs(x)));
+        builder.add(5, noRandomArg.apply(FormulaProgram.UNI_ROUND, x -> Math.round(x)));
+        builder.add(10, noRandomArg.apply(FormulaProgram.UNI_SQRT_ABS, x -> Math.sqrt(Math.abs(x))));
+        builder.add(10, noRandomArg.apply(FormulaProgram.UNI_WEIRD_SWAP, x -> weirdSwap(x)));
+        builder.add(30, applyRandomArg.apply(FormulaProgram.UNI_MUL_ARG, arg -> x -> x * arg));
+        builder.add(30, applyRandomArg.apply(FormulaProgram.UNI_DIV_ARG, arg -> x -> x / Math.max(arg, 0.1)));
+        builder.add(10, applyRandomArg.apply(FormulaProgram.UNI_MAX_ARG, arg -> x -> Math.max(x, arg)));
+        builder.add(10, applyRandomArg.apply(FormulaProgram.UNI_ADD_ARG, arg -> x -> x + arg));
+        builder.add(7, applyRandomArg.apply(FormulaProgram.UNI_FLOOR_MUL_ARG_23, arg -> x -> Math.floor(x * arg * 23)));
+        builder.add(7, applyRandomArg.apply(FormulaProgram.UNI_FLOOR_MUL_ARG, arg -> x -> Math.floor(x * arg)));
+        builder.add(10, applyRandomArg.apply(FormulaProgram.UNI_WEIRD_AND_ARG, arg -> x -> weirdAnd(arg, x)));
+        builder.add(10, applyRandomArg.apply(FormulaProgram.UNI_WEIRD_XOR_ARG, arg -> x -> weirdXor(arg, x)));
         
         uniFuncSelector = builder.build();
     }
@@ -99,15 +117,15 @@ public class FormulaGenerator {
         return (double) (((double) d - 256) / 256);
     }
     
-    private static double weirdAnd(double a, double b) {
+    static double weirdAnd(double a, double b) {
         return fromInt(toInt(a) & toInt(b));
     }
     
-    private static double weirdXor(double a, double b) {
+    static double weirdXor(double a, double b) {
         return fromInt(toInt(a) ^ toInt(b));
     }
     
-    private static double weirdSwap(double a) {
+    static double weirdSwap(double a) {
         int i = toInt(a);
         
         int r = ((i & 0x0F) << 4) | ((i & 0xF0) >> 4);
@@ -116,76 +134,116 @@ public class FormulaGenerator {
     }
     
     private static void initTriFuncSelector() {
-        RandomSelector.Builder<TriNumFunction> builder = new RandomSelector.Builder<>();
+        RandomSelector.Builder<TriFuncEntry> builder = new RandomSelector.Builder<>();
         
-        builder.add(50, (x, y, z) -> x + y + z);
-        builder.add(50, (x, y, z) -> x * y * z);
-        builder.add(10, (x, y, z) -> x * y + z);
-        builder.add(10, (x, y, z) -> x + y * z);
-        builder.add(10, (x, y, z) -> x * z + y);
-        builder.add(10, (x, y, z) -> x + y + z);
-        builder.add(10, (x, y, z) -> x * x + y * y + z * z);
-        builder.add(10, (x, y, z) -> x + y * y + z * z);
-        builder.add(10, (x, y, z) -> x * x + y + z * z);
-        builder.add(10, (x, y, z) -> x * x + y * y + z);
-        builder.add(10, (x, y, z) -> -x * x + y * y + z * z);
-        builder.add(10, (x, y, z) -> x * x - y * y + z * z);
-        builder.add(10, (x, y, z) -> x * x + y * y - z * z);
-        builder.add(10, (x, y, z) -> (x + y + z) * (x + y + z));
-        builder.add(10, (x, y, z) -> (x + y + z) * (x + y - z));
-        builder.add(10, (x, y, z) -> x * x * x * y * z);
-        builder.add(5, (x, y, z) -> Math.pow(y, x + z));
-        builder.add(5, (x, y, z) -> Math.pow(y, x - z));
-        builder.add(5, (x, y, z) -> Math.pow(x * z, y));
-        builder.add(10, (x, y, z) -> Math.log(Math.abs(x + y + z) + 0.5));
-        builder.add(10, (x, y, z) -> Math.log(Math.abs(x - y * z) + 0.5));
+        builder.add(50, new TriFuncEntry(FormulaProgram.TRI_SUM, (x, y, z) -> x + y + z));
+        builder.add(50, new TriFuncEntry(FormulaProgram.TRI_PRODUCT, (x, y, z) -> x * y * z));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_XY_PLUS_Z, (x, y, z) -> x * y + z));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_X_PLUS_YZ, (x, y, z) -> x + y * z));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_XZ_PLUS_Y, (x, y, z) -> x * z + y));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_SUM, (x, y, z) -> x + y + z));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_SQUARE_SUM, (x, y, z) -> x * x + y * y + z * z));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_X_PLUS_YY_PLUS_ZZ, (x, y, z) -> x + y * y + z * z));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_XX_PLUS_Y_PLUS_ZZ, (x, y, z) -> x * x + y + z * z));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_XX_PLUS_YY_PLUS_Z, (x, y, z) -> x * x + y * y + z));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_NEG_XX_PLUS_YY_PLUS_ZZ, (x, y, z) -> -x * x + y * y + z * z));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_XX_MINUS_YY_PLUS_ZZ, (x, y, z) -> x * x - y * y + z * z));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_XX_PLUS_YY_MINUS_ZZ, (x, y, z) -> x * x + y * y - z * z));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_SUM_SQUARE, (x, y, z) -> (x + y + z) * (x + y + z)));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_SUM_TIMES_XY_MINUS_Z, (x, y, z) -> (x + y + z) * (x + y - z)));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_XXXYZ, (x, y, z) -> x * x * x * y * z));
+        builder.add(5, new TriFuncEntry(FormulaProgram.TRI_POW_Y_X_PLUS_Z, (x, y, z) -> Math.pow(y, x + z)));
+        builder.add(5, new TriFuncEntry(FormulaProgram.TRI_POW_Y_X_MINUS_Z, (x, y, z) -> Math.pow(y, x - z)));
+        builder.add(5, new TriFuncEntry(FormulaProgram.TRI_POW_XZ_Y, (x, y, z) -> Math.pow(x * z, y)));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_LOG_ABS_SUM, (x, y, z) -> Math.log(Math.abs(x + y + z) + 0.5)));
+        builder.add(10, new TriFuncEntry(FormulaProgram.TRI_LOG_ABS_X_MINUS_YZ, (x, y, z) -> Math.log(Math.abs(x - y * z) + 0.5)));
         
         triFuncSelector = builder.build();
     }
     
+    /**
+     * Generates the lambda tree and the program from the same random choices.
+     */
+    public static Formula newRandomFormula(Random random, int nestLayer) {
+        FormulaProgram.Builder programBuilder = new FormulaProgram.Builder();
+        TriNumFunction tree = newGetRandomTriCompositeExpression(random, nestLayer, programBuilder);
+        return new Formula(tree, programBuilder.build());
+    }
+    
     public static TriNumFunction newGetRandomTriCompositeExpression(Random random, int nestLayer) {
+        return newGetRandomTriCompositeExpression(random, nestLayer, new FormulaProgram.Builder());
+    }
+    
+    private static TriNumFunction newGetRandomTriCompositeExpression(
+        Random random, int nestLayer, FormulaProgram.Builder programBuilder
+    ) {
         if (nestLayer == 0) {
-            return shuffleFunSelector.select(random).finish(triFuncSelector.select(random));
+            ShuffleFuncEntry shuffle = shuffleFunSelector.select(random);
+            TriFuncEntry triFunc = triFuncSelector.select(random);
+            programBuilder.addShuffle(shuffle.op());
+            programBuilder.addResult(triFunc.op());
+            return shuffle.function().finish(triFunc.function());
         }
         else {
-            TriToTriFuncCPS curr = newGetComplexTriNumFunc2(random);
+            TriToTriFuncCPS curr = newGetComplexTriNumFunc2(random, programBuilder);
             
-            curr = curr.then(newGetComplexTriNumFunc1(random));
+            curr = curr.then(newGetComplexTriNumFunc1(random, programBuilder));
             
             return curr.finish(
-                newGetRandomTriCompositeExpression(random, nestLayer - 1)
+                newGetRandomTriCompositeExpression(random, nestLayer - 1, programBuilder)
             );
         }
     }
     
-    public static TriToTriFuncCPS newGetComplexTriNumFunc1(Random random) {
-        TriNumFunction f1 = triFuncSelector.select(random);
-        TriNumFunction f2 = triFuncSelector.select(random);
-        TriNumFunction f3 = triFuncSelector.select(random);
+    public static TriToTriFuncCPS newGetComplexTriNumFunc1(
+        Random random, FormulaProgram.Builder programBuilder
+    ) {
+        TriFuncEntry e1 = triFuncSelector.select(random);
+        TriFuncEntry e2 = triFuncSelector.select(random);
+        TriFuncEntry e3 = triFuncSelector.select(random);
+        programBuilder.addTri(e1.op());
+        programBuilder.addTri(e2.op());
+        programBuilder.addTri(e3.op());
+        
+        TriNumFunction f1 = e1.function();
+        TriNumFunction f2 = e2.function();
+        TriNumFunction f3 = e3.function();
         
         return (x, y, z, c) -> c.eval(
             f1.eval(x, y, z), f2.eval(x, y, z), f3.eval(x, y, z)
         );
     }
     
-    public static TriToTriFuncCPS newGetComplexTriNumFunc2(Random random) {
-        UniNumFunction f1 = uniFuncSelector.select(random).apply(random);
-        UniNumFunction f2 = uniFuncSelector.select(random).apply(random);
-        UniNumFunction f3 = uniFuncSelector.select(random).apply(random);
+    public static TriToTriFuncCPS newGetComplexTriNumFunc2(
+        Random random, FormulaProgram.Builder programBuilder
+    ) {
+        UniFuncEntry e1 = uniFuncSelector.select(random);
+        UniFuncInstance i1 = e1.factory().apply(random);
+        UniFuncEntry e2 = uniFuncSelector.select(random);
+        UniFuncInstance i2 = e2.factory().apply(random);
+        UniFuncEntry e3 = uniFuncSelector.select(random);
+        UniFuncInstance i3 = e3.factory().apply(random);
+        programBuilder.addUni(e1.op(), i1.arg());
+        programBuilder.addUni(e2.op(), i2.arg());
+        programBuilder.addUni(e3.op(), i3.arg());
+        
+        UniNumFunction f1 = i1.function();
+        UniNumFunction f2 = i2.function();
+        UniNumFunction f3 = i3.function();
         
         return (x, y, z, c) -> c.eval(
             f1.eval(x), f2.eval(y), f3.eval(z)
         );
     }
     
-    private static final RandomSelector<TriToTriFuncCPS> shuffleFunSelector =
-        new RandomSelector.Builder<TriToTriFuncCPS>()
-            .add(1, (x, y, z, c) -> (c.eval(x, y, z)))
-            .add(1, (x, y, z, c) -> (c.eval(x, z, y)))
-            .add(1, (x, y, z, c) -> (c.eval(y, z, x)))
-            .add(1, (x, y, z, c) -> (c.eval(y, x, z)))
-            .add(1, (x, y, z, c) -> (c.eval(z, x, y)))
-            .add(1, (x, y, z, c) -> (c.eval(z, y, x)))
+    private static final RandomSelector<ShuffleFuncEntry> shuffleFunSelector =
+        new RandomSelector.Builder<ShuffleFuncEntry>()
+            .add(1, new ShuffleFuncEntry(FormulaProgram.SHUFFLE_XYZ, (x, y, z, c) -> (c.eval(x, y, z))))
+            .add(1, new ShuffleFuncEntry(FormulaProgram.SHUFFLE_XZY, (x, y, z, c) -> (c.eval(x, z, y))))
+            .add(1, new ShuffleFuncEntry(FormulaProgram.SHUFFLE_YZX, (x, y, z, c) -> (c.eval(y, z, x))))
+            .add(1, new ShuffleFuncEntry(FormulaProgram.SHUFFLE_YXZ, (x, y, z, c) -> (c.eval(y, x, z))))
+            .add(1, new ShuffleFuncEntry(FormulaProgram.SHUFFLE_ZXY, (x, y, z, c) -> (c.eval(z, x, y))))
+            .add(1, new ShuffleFuncEntry(FormulaProgram.SHUFFLE_ZYX, (x, y, z, c) -> (c.eval(z, y, x))))
             .build();
     
     
@@ -0,0 +1,372 @@
+package qouteall.imm_ptl.peripheral.alternate_dimension;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * The flat form of a formula generated by {@link FormulaGenerator}.
+ * It's a linear program over 3 registers (x, y, z), so the evaluation has no lambda calls
+ * and no closure allocation.
+ * The result is bit-identical to the lambda tree, as every operation is evaluated
+ * with the same expression in the same order.
+ * <p>
+ * The batch evaluation runs one instruction over all points before the next,
+ * so the operation switch is only per instruction and per point, and the loops are simple.
+ */
+public final class FormulaProgram {
+    // (x, y, z) = (uni1(x), uni2(y), uni3(z))
+    public static final int INSTR_UNI3 = 0;
+    // (x, y, z) = (tri1(x, y, z), tri2(x, y, z), tri3(x, y, z))
+    public static final int INSTR_TRI3 = 1;
+    // (x, y, z) = permutation of (x, y, z)
+    public static final int INSTR_SHUFFLE = 2;
+    // result = tri1(x, y, z)
+    public static final int INSTR_RESULT = 3;
+    
+    public static final int UNI_IDENTITY = 0;
+    public static final int UNI_NEGATE = 1;
+    public static final int UNI_SQUARE = 2;
+    public static final int UNI_CUBE = 3;
+    public static final int UNI_RELU = 4;
+    public static final int UNI_SIN_3X = 5;
+    public static final int UNI_COS_7X = 6;
+    public static final int UNI_EXP_3X = 7;
+    public static final int UNI_LOG_ABS = 8;
+    public static final int UNI_COSH = 9;
+    public static final int UNI_ABS = 10;
+    public static final int UNI_ROUND = 11;
+    public static final int UNI_SQRT_ABS = 12;
+    public static final int UNI_WEIRD_SWAP = 13;
+    public static final int UNI_MUL_ARG = 14;
+    public static final int UNI_DIV_ARG = 15;
+    public static final int UNI_MAX_ARG = 16;
+    public static final int UNI_ADD_ARG = 17;
+    public static final int UNI_FLOOR_MUL_ARG_23 = 18;
+    public static final int UNI_FLOOR_MUL_ARG = 19;
+    public static final int UNI_WEIRD_AND_ARG = 20;
+    public static final int UNI_WEIRD_XOR_ARG = 21;
+    
+    public static final int TRI_SUM = 0;
+    public static final int TRI_PRODUCT = 1;
+    public static final int TRI_XY_PLUS_Z = 2;
+    public static final int TRI_X_PLUS_YZ = 3;
+    public static final int TRI_XZ_PLUS_Y = 4;
+    public static final int TRI_SQUARE_SUM = 5;
+    public static final int TRI_X_PLUS_YY_PLUS_ZZ = 6;
+    public static final int TRI_XX_PLUS_Y_PLUS_ZZ = 7;
+    public static final int TRI_XX_PLUS_YY_PLUS_Z = 8;
+    public static final int TRI_NEG_XX_PLUS_YY_PLUS_ZZ = 9;
+    public static final int TRI_XX_MINUS_YY_PLUS_ZZ = 10;
+    public static final int TRI_XX_PLUS_YY_MINUS_ZZ = 11;
+    public static final int TRI_SUM_SQUARE = 12;
+    public static final int TRI_SUM_TIMES_XY_MINUS_Z = 13;
+    public static final int TRI_XXXYZ = 14;
+    public static final int TRI_POW_Y_X_PLUS_Z = 15;
+    public static final int TRI_POW_Y_X_MINUS_Z = 16;
+    public static final int TRI_POW_XZ_Y = 17;
+    public static final int TRI_LOG_ABS_SUM = 18;
+    public static final int TRI_LOG_ABS_X_MINUS_YZ = 19;
+    
+    public static final int SHUFFLE_XYZ = 0;
+    public static final int SHUFFLE_XZY = 1;
+    public static final int SHUFFLE_YZX = 2;
+    public static final int SHUFFLE_YXZ = 3;
+    public static final int SHUFFLE_ZXY = 4;
+    public static final int SHUFFLE_ZYX = 5;
+    
+    private final int[] instructions;
+    // 3 operations per instruction
+    private final int[] operations;
+    // 3 arguments per instruction
+    private final double[] arguments;
+    
+    private FormulaProgram(int[] instructions, int[] operations, double[] arguments) {
+        this.instructions = instructions;
+        this.operations = operations;
+        this.arguments = arguments;
+    }
+    
+    public int getInstructionNum() {
+        return instructions.length;
+    }
+    
+    public double eval(double x, double y, double z) {
+        for (int i = 0; i < instructions.length; i++) {
+            int op1 = operations[i * 3];
+            int op2 = operations[i * 3 + 1];
+            int op3 = operations[i * 3 + 2];
+            switch (instructions[i]) {
+                case INSTR_UNI3 -> {
+                    x = evalUni(op1, arguments[i * 3], x);
+                    y = evalUni(op2, arguments[i * 3 + 1], y);
+                    z = evalUni(op3, arguments[i * 3 + 2], z);
+                }
+                case INSTR_TRI3 -> {
+                    double nx = evalTri(op1, x, y, z);
+                    double ny = evalTri(op2, x, y, z);
+                    double nz = evalTri(op3, x, y, z);
+                    x = nx;
+                    y = ny;
+                    z = nz;
+                }
+                case INSTR_SHUFFLE -> {
+                    double ox = x;
+                    double oy = y;
+                    double oz = z;
+                    x = shuffleFirst(op1, ox, oy, oz);
+                    y = shuffleSecond(op1, ox, oy, oz);
+                    z = shuffleThird(op1, ox, oy, oz);
+                }
+                case INSTR_RESULT -> {
+                    return evalTri(op1, x, y, z);
+                }
+                default -> throw new IllegalStateException("Invalid instruction " + instructions[i]);
+            }
+        }
+        throw new IllegalStateException("The program has no result");
+    }
+    
+    /**
+     * Evaluates the points (xs[i], ys[i], zs[i]) for i in [0, num).
+     * The input arrays are used as registers so their content will be changed.
+     */
+    public void evalBatch(double[] xs, double[] ys, double[] zs, double[] result, int num) {
+        for (int i = 0; i < instructions.length; i++) {
+            int op1 = operations[i * 3];
+            int op2 = operations[i * 3 + 1];
+            int op3 = operations[i * 3 + 2];
+            switch (instructions[i]) {
+                case INSTR_UNI3 -> {
+                    evalUniBatch(op1, arguments[i * 3], xs, num);
+                    evalUniBatch(op2, arguments[i * 3 + 1], ys, num);
+                    evalUniBatch(op3, arguments[i * 3 + 2], zs, num);
+                }
+                case INSTR_TRI3 -> {
+                    for (int j = 0; j < num; j++) {
+                        double x = xs[j];
+                        double y = ys[j];
+                        double z = zs[j];
+                        xs[j] = evalTri(op1, x, y, z);
+                        ys[j] = evalTri(op2, x, y, z);
+                        zs[j] = evalTri(op3, x, y, z);
+                    }
+                }
+                case INSTR_SHUFFLE -> {
+                    for (int j = 0; j < num; j++) {
+                        double x = xs[j];
+                        double y = ys[j];
+                        double z = zs[j];
+                        xs[j] = shuffleFirst(op1, x, y, z);
+                        ys[j] = shuffleSecond(op1, x, y, z);
+                        zs[j] = shuffleThird(op1, x, y, z);
+                    }
+                }
+                case INSTR_RESULT -> {
+                    for (int j = 0; j < num; j++) {
+                        result[j] = evalTri(op1, xs[j], ys[j], zs[j]);
+                    }
+                    return;
+                }
+                default -> throw new IllegalStateException("Invalid instruction " + instructions[i]);
+            }
+        }
+        throw new IllegalStateException("The program has no result");
+    }
+    
+    private static void evalUniBatch(int op, double arg, double[] values, int num) {
+        // the common simple operations have their own loops, which can be vectorized
+        switch (op) {
+            case UNI_IDENTITY -> {}
+            case UNI_NEGATE -> {
+                for (int j = 0; j < num; j++) {
+                    values[j] = -values[j];
+                }
+            }
+            case UNI_SQUARE -> {
+                for (int j = 0; j < num; j++) {
+                    double x = values[j];
+                    values[j] = x * x;
+                }
+            }
+            case UNI_CUBE -> {
+                for (int j = 0; j < num; j++) {
+                    double x = values[j];
+                    values[j] = x * x * x;
+                }
+            }
+            case UNI_MUL_ARG -> {
+                for (int j = 0; j < num; j++) {
+                    values[j] = values[j] * arg;
+                }
+            }
+            case UNI_DIV_ARG -> {
+                double divisor = Math.max(arg, 0.1);
+                for (int j = 0; j < num; j++) {
+                    values[j] = values[j] / divisor;
+                }
+            }
+            case UNI_ADD_ARG -> {
+                for (int j = 0; j < num; j++) {
+                    values[j] = values[j] + arg;
+                }
+            }
+            default -> {
+                for (int j = 0; j < num; j++) {
+                    values[j] = evalUni(op, arg, values[j]);
+                }
+            }
+        }
+    }
+    
+    // the expressions must be the same as in FormulaGenerator
+    static double evalUni(int op, double arg, double x) {
+        return switch (op) {
+            case UNI_IDENTITY -> x;
+            case UNI_NEGATE -> -x;
+            case UNI_SQUARE -> x * x;
+            case UNI_CUBE -> x * x * x;
+            case UNI_RELU -> Math.max(x, 0);
+            case UNI_SIN_3X -> Math.sin(x * 3);
+            case UNI_COS_7X -> Math.cos(x * 7);
+            case UNI_EXP_3X -> Math.exp(x * 3);
+            case UNI_LOG_ABS -> Math.log(Math.abs(x) + 1);
+            case UNI_COSH -> Math.cosh(x);
+            case UNI_ABS -> Math.abs(x);
+            case UNI_ROUND -> Math.round(x);
+            case UNI_SQRT_ABS -> Math.sqrt(Math.abs(x));
+            case UNI_WEIRD_SWAP -> FormulaGenerator.weirdSwap(x);
+            case UNI_MUL_ARG -> x * arg;
+            case UNI_DIV_ARG -> x / Math.max(arg, 0.1);
+            case UNI_MAX_ARG -> Math.max(x, arg);
+            case UNI_ADD_ARG -> x + arg;
+            case UNI_FLOOR_MUL_ARG_23 -> Math.floor(x * arg * 23);
+            case UNI_FLOOR_MUL_ARG -> Math.floor(x * arg);
+            case UNI_WEIRD_AND_ARG -> FormulaGenerator.weirdAnd(arg, x);
+            case UNI_WEIRD_XOR_ARG -> FormulaGenerator.weirdXor(arg, x);
+            default -> throw new IllegalStateException("Invalid operation " + op);
+        };
+    }
+    
+    // the expressions must be the same as in FormulaGenerator
+    static double evalTri(int op, double x, double y, double z) {
+        return switch (op) {
+            case TRI_SUM -> x + y + z;
+            case TRI_PRODUCT -> x * y * z;
+            case TRI_XY_PLUS_Z -> x * y + z;
+            case TRI_X_PLUS_YZ -> x + y * z;
+            case TRI_XZ_PLUS_Y -> x * z + y;
+            case TRI_SQUARE_SUM -> x * x + y * y + z * z;
+            case TRI_X_PLUS_YY_PLUS_ZZ -> x + y * y + z * z;
+            case TRI_XX_PLUS_Y_PLUS_ZZ -> x * x + y + z * z;
+            case TRI_XX_PLUS_YY_PLUS_Z -> x * x + y * y + z;
+            case TRI_NEG_XX_PLUS_YY_PLUS_ZZ -> -x * x + y * y + z * z;
+            case TRI_XX_MINUS_YY_PLUS_ZZ -> x * x - y * y + z * z;
+            case TRI_XX_PLUS_YY_MINUS_ZZ -> x * x + y * y - z * z;
+            case TRI_SUM_SQUARE -> (x + y + z) * (x + y + z);
+            case TRI_SUM_TIMES_XY_MINUS_Z -> (x + y + z) * (x + y - z);
+            case TRI_XXXYZ -> x * x * x * y * z;
+            case TRI_POW_Y_X_PLUS_Z -> Math.pow(y, x + z);
+            case TRI_POW_Y_X_MINUS_Z -> Math.pow(y, x - z);
+            case TRI_POW_XZ_Y -> Math.pow(x * z, y);
+            case TRI_LOG_ABS_SUM -> Math.log(Math.abs(x + y + z) + 0.5);
+            case TRI_LOG_ABS_X_MINUS_YZ -> Math.log(Math.abs(x - y * z) + 0.5);
+            default -> throw new IllegalStateException("Invalid operation " + op);
+        };
+    }
+    
+    private static double shuffleFirst(int op, double x, double y, double z) {
+        return switch (op) {
+            case SHUFFLE_XYZ, SHUFFLE_XZY -> x;
+            case SHUFFLE_YZX, SHUFFLE_YXZ -> y;
+            default -> z;
+        };
+    }
+    
+    private static double shuffleSecond(int op, double x, double y, double z) {
+        return switch (op) {
+            case SHUFFLE_YXZ, SHUFFLE_ZXY -> x;
+            case SHUFFLE_XYZ, SHUFFLE_ZYX -> y;
+            default -> z;
+        };
+    }
+    
+    private static double shuffleThird(int op, double x, double y, double z) {
+        return switch (op) {
+            case SHUFFLE_YZX, SHUFFLE_ZYX -> x;
+            case SHUFFLE_XZY, SHUFFLE_ZXY -> y;
+            default -> z;
+        };
+    }
+    
+    /**
+     * The instructions are added in evaluation order.
+     */
+    public static final class Builder {
+        private final IntArrayList instructions = new IntArrayList();
+        private final IntArrayList operations = new IntArrayList();
+        private final DoubleArrayList arguments = new DoubleArrayList();
+        
+        private int currentUniNum = 0;
+        private int currentTriNum = 0;
+        
+        /**
+         * Called 3 times for one UNI3 instruction, for x, y and z.
+         */
+        public void addUni(int op, double arg) {
+            if (currentUniNum == 0) {
+                addInstruction(INSTR_UNI3);
+            }
+            operations.add(op);
+            arguments.add(arg);
+            currentUniNum = (currentUniNum + 1) % 3;
+        }
+        
+        /**
+         * Called 3 times for one TRI3 instruction, for x, y and z.
+         */
+        public void addTri(int op) {
+            if (currentTriNum == 0) {
+                addInstruction(INSTR_TRI3);
+            }
+            operations.add(op);
+            arguments.add(0);
+            currentTriNum = (currentTriNum + 1) % 3;
+        }
+        
+        public void addShuffle(int op) {
+            addInstruction(INSTR_SHUFFLE);
+            operations.add(op);
+            operations.add(0);
+            operations.add(0);
+            arguments.add(0);
+            arguments.add(0);
+            arguments.add(0);
+        }
+        
+        public void addResult(int op) {
+            addInstruction(INSTR_RESULT);
+            operations.add(op);
+            operations.add(0);
+            operations.add(0);
+            arguments.add(0);
+            arguments.add(0);
+            arguments.add(0);
+        }
+        
+        private void addInstruction(int instruction) {
+            if (currentUniNum != 0 || currentTriNum != 0) {
+                throw new IllegalStateException("The previous instruction is incomplete");
+            }
+            instructions.add(instruction);
+        }
+        
+        public FormulaProgram build() {
+            if (instructions.isEmpty() || instructions.getInt(instructions.size() - 1) != INSTR_RESULT) {
+                throw new IllegalStateException("The program must end with a result");
+            }
+            return new FormulaProgram(
+                instructions.toIntArray(), operations.toIntArray(), arguments.toDoubleArray()
+            );
+        }
+    }
+}
@@ -21,7 +21,7 @@ public class RegionErrorTerrainGenerator {
     
     private int regionX;
     private int regionZ;
-    private FormulaGenerator.TriNumFunction expression;
+    private FormulaProgram expression;
     private double middle;
     private double upMiddle;
     private double downMiddle;
@@ -49,7 +49,7 @@ public class RegionErrorTerrainGenerator {
             )
         );
         Random random = new Random(realSeed);
-        expression = FormulaGenerator.newGetRandomTriCompositeExpression(random, 3);
+        expression = FormulaGenerator.newRandomFormula(random, 3).program();
         
         composition = ErrorTerrainComposition.selector.select(random);
     }
@@ -83,6 +83,36 @@ public class RegionErrorTerrainGenerator {
         );
     }
     
+    /**
+     * Evaluates the formula for a 16x16x16 section, the same as {@link #calc(int, int, int)}.
+     * The result index is {@link #getIndexInSection(int, int, int)}.
+     */
+    public void calcSection(
+        int sectionStartX, int sectionStartY, int sectionStartZ,
+        SectionBuffer buffer
+    ) {
+        int a = ErrorTerrainGenerator.regionChunkNum * 16;
+        
+        int regionStartX = regionX * a;
+        int regionStartZ = regionZ * a;
+        for (int localY = 0; localY < 16; localY++) {
+            for (int localZ = 0; localZ < 16; localZ++) {
+                for (int localX = 0; localX < 16; localX++) {
+                    int index = getIndexInSection(localX, localY, localZ);
+                    buffer.xs[index] = (sectionStartX + localX - regionStartX) / ((double) a);
+                    buffer.ys[index] = (sectionStartY + localY) / ((double) ErrorTerrainGenerator.maxY);
+                    buffer.zs[index] = (sectionStartZ + localZ - regionStartZ) / ((double) a);
+                }
+            }
+        }
+        
+        expression.evalBatch(buffer.xs, buffer.ys, buffer.zs, buffer.result, SectionBuffer.SIZE);
+    }
+    
+    public static int getIndexInSection(int localX, int localY, int localZ) {
+        return (localY << 8) | (localZ << 4) | localX;
+    }
+    
     public BlockState getBlockComposition(
         int worldX,
         int worldY,
@@ -94,11 +124,39 @@ public class RegionErrorTerrainGenerator {
         
         double currValue = calc(worldX, worldY, worldZ);
         
+        return getBlockComposition(worldX, worldY, worldZ, currValue);
+    }
+    
+    /**
+     * @param funcValue the value from {@link #calcSection(int, int, int, SectionBuffer)}
+     */
+    public BlockState getBlockComposition(
+        int worldX,
+        int worldY,
+        int worldZ,
+        double funcValue
+    ) {
+        if (worldY >= ErrorTerrainGenerator.maxY) {
+            return ErrorTerrainComposition.air;
+        }
+        
         return composition.generate(
-            worldY, currValue,
+            worldY, funcValue,
             middle, upMiddle, downMiddle,
             worldX, worldZ
         );
     }
     
+    /**
+     * The per-thread buffers for evaluating a section.
+     */
+    public static final class SectionBuffer {
+        public static final int SIZE = 16 * 16 * 16;
+        
+        private final double[] xs = new double[SIZE];
+        private final double[] ys = new double[SIZE];
+        private final double[] zs = new double[SIZE];
+        public final double[] result = new double[SIZE];
+    }
+    
 }
@@ -28,6 +28,7 @@ import qouteall.imm_ptl.core.portal.PortalState;
 import qouteall.imm_ptl.core.portal.animation.UnilateralPortalState;
 import qouteall.imm_ptl.core.portal.util.PortalLocalXYNormalized;
 import qouteall.imm_ptl.peripheral.CommandStickItem;
+import qouteall.q_misc_util.api.McRemoteProcedureCall;
 import qouteall.q_misc_util.my_util.DQuaternion;
 import qouteall.q_misc_util.my_util.Plane;
 import qouteall.q_misc_util.my_util.Range;
@@ -314,6 +315,11 @@ public class PortalWandInteraction {
     }
     
     public static void init() {
+        // sent every tick when dragging
+        McRemoteProcedureCall.registerMethodPath(
+            "qouteall.imm_ptl.peripheral.wand.PortalWandInteraction.RemoteCallables.requestApplyDrag"
+        );
+        
         ServerTickEvents.END_SERVER_TICK.register((server) -> {
             of(server).draggingSessionMap.entrySet().removeIf(
                 e -> {
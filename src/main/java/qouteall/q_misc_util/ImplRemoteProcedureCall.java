@@ -8,6 +8,8 @@ import com.google.gson.reflect.TypeToken;
 import com.mojang.logging.LogUtils;
 import com.mojang.serialization.Codec;
 import com.mojang.serialization.JsonOps;
+import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
@@ -23,6 +25,7 @@ import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.network.RegistryFriendlyByteBuf;
 import net.minecraft.network.chat.Component;
 import net.minecraft.network.chat.ComponentSerialization;
+import net.minecraft.network.codec.ByteBufCodecs;
 import net.minecraft.network.codec.StreamCodec;
 import net.minecraft.network.protocol.Packet;
 import net.minecraft.network.protocol.common.ClientCommonPacketListener;
@@ -46,6 +49,9 @@ import qouteall.imm_ptl.core.McHelper;
 import qouteall.q_misc_util.my_util.CountDownInt;
 import qouteall.q_misc_util.my_util.DQuaternion;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
@@ -66,11 +72,31 @@ public class ImplRemoteProcedureCall {
     
     public static final Gson gson = MiscHelper.gson;
     
-    private static final ConcurrentHashMap<String, Method> methodCache = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, RemoteMethod> methodCache = new ConcurrentHashMap<>();
     
     private static final ImmutableMap<Class, BiConsumer<RegistryFriendlyByteBuf, Object>> serializerMap;
     private static final ImmutableMap<Type, Function<RegistryFriendlyByteBuf, Object>> deserializerMap;
     
+    // used by the calls by id. they override the above
+    private static final ImmutableMap<Class, BiConsumer<RegistryFriendlyByteBuf, Object>> binarySerializerMap;
+    private static final ImmutableMap<Type, Function<RegistryFriendlyByteBuf, Object>> binaryDeserializerMap;
+    
+    private static final ConcurrentHashMap<Class<?>, BiConsumer<RegistryFriendlyByteBuf, Object>>
+        serializerCache = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Class<?>, BiConsumer<RegistryFriendlyByteBuf, Object>>
+        binarySerializerCache = new ConcurrentHashMap<>();
+    
+    // the method paths that can be called by id
+    private static final List<String> registeredMethodPaths = new ArrayList<>();
+    // the server's table. it's frozen when it's firstly sent to client
+    private static volatile @Nullable MethodTable localMethodTable = null;
+    
+    // used on client. null if the server does not support calling by id
+    private static volatile @Nullable MethodTable serverMethodTable = null;
+    
+    private static final byte NUMBER_TAG_INTEGER = 0;
+    private static final byte NUMBER_TAG_FLOATING = 1;
+    
     static {
         serializerMap = ImmutableMap.<Class, BiConsumer<RegistryFriendlyByteBuf, Object>>builder()
             .put(ResourceLocation.class, (buf, o) -> buf.writeResourceLocation(((ResourceLocation) o)))
@@ -133,6 +159,49 @@ public class ImplRemoteProcedureCall {
             )
             .put(byte[].class, buf -> buf.readByteArray())
             .build();
+        
+        StreamCodec<RegistryFriendlyByteBuf, Block> blockCodec = ByteBufCodecs.registry(Registries.BLOCK);
+        StreamCodec<RegistryFriendlyByteBuf, Item> itemCodec = ByteBufCodecs.registry(Registries.ITEM);
+        StreamCodec<ByteBuf, BlockState> blockStateCodec = ByteBufCodecs.idMapper(Block.BLOCK_STATE_REGISTRY);
+        
+        binarySerializerMap = ImmutableMap.<Class, BiConsumer<RegistryFriendlyByteBuf, Object>>builder()
+            .put(Block.class, (buf, o) -> blockCodec.encode(buf, ((Block) o)))
+            .put(Item.class, (buf, o) -> itemCodec.encode(buf, ((Item) o)))
+            .put(BlockState.class, (buf, o) -> blockStateCodec.encode(buf, ((BlockState) o)))
+            .put(ItemStack.class, (buf, o) -> ItemStack.OPTIONAL_STREAM_CODEC.encode(buf, ((ItemStack) o)))
+            .put(Integer.class, (buf, o) -> writeIntegerNumber(buf, ((Integer) o)))
+            .put(Long.class, (buf, o) -> writeIntegerNumber(buf, ((Long) o)))
+            .put(Short.class, (buf, o) -> writeIntegerNumber(buf, ((Short) o)))
+            .put(Byte.class, (buf, o) -> writeIntegerNumber(buf, ((Byte) o)))
+            .put(Double.class, (buf, o) -> writeFloatingNumber(buf, ((Double) o)))
+            .put(Float.class, (buf, o) -> writeFloatingNumber(buf, ((Float) o)))
+            .put(Boolean.class, (buf, o) -> buf.writeBoolean(((Boolean) o)))
+            .put(String.class, (buf, o) -> buf.writeUtf(((String) o)))
+            .build();
+        
+        // the numbers are tagged so that the argument type can mismatch the parameter type
+        // like when using JSON
+        binaryDeserializerMap = ImmutableMap.<Type, Function<RegistryFriendlyByteBuf, Object>>builder()
+            .put(Block.class, blockCodec::decode)
+            .put(Item.class, itemCodec::decode)
+            .put(BlockState.class, blockStateCodec::decode)
+            .put(ItemStack.class, ItemStack.OPTIONAL_STREAM_CODEC::decode)
+            .put(int.class, buf -> readNumber(buf).intValue())
+            .put(Integer.class, buf -> readNumber(buf).intValue())
+            .put(long.class, buf -> readNumber(buf).longValue())
+            .put(Long.class, buf -> readNumber(buf).longValue())
+            .put(short.class, buf -> readNumber(buf).shortValue())
+            .put(Short.class, buf -> readNumber(buf).shortValue())
+            .put(byte.class, buf -> readNumber(buf).byteValue())
+            .put(Byte.class, buf -> readNumber(buf).byteValue())
+            .put(double.class, buf -> readNumber(buf).doubleValue())
+            .put(Double.class, buf -> readNumber(buf).doubleValue())
+            .put(float.class, buf -> readNumber(buf).floatValue())
+            .put(Float.class, buf -> readNumber(buf).floatValue())
+            .put(boolean.class, buf -> buf.readBoolean())
+            .put(Boolean.class, buf -> buf.readBoolean())
+            .put(String.class, buf -> buf.readUtf())
+            .build();
     }
     
     public static record C2SRPCPayload(
@@ -140,8 +209,10 @@ public class ImplRemoteProcedureCall {
         boolean deserializeSuccess,
         @Nullable String methodPath,
         // only used in receiver side
-        @Nullable Method method,
-        @Nullable List<Object> args
+        @Nullable RemoteMethod method,
+        @Nullable List<Object> args,
+        // -1 means sending the method path. otherwise it's the id in the server's method table
+        int methodId
     ) implements CustomPacketPayload {
         
         public static final CustomPacketPayload.Type<C2SRPCPayload> TYPE =
@@ -149,37 +220,45 @@ public class ImplRemoteProcedureCall {
                 McHelper.newResourceLocation("iportal:remote_c2s")
             );
         
+        public static final CustomPacketPayload.Type<C2SRPCPayload> ID_TYPE =
+            new CustomPacketPayload.Type<>(
+                McHelper.newResourceLocation("iportal:remote_c2s_id")
+            );
+        
         public static final StreamCodec<RegistryFriendlyByteBuf, C2SRPCPayload> CODEC = StreamCodec.of(
-            (b, p) -> p.write(b), C2SRPCPayload::read
+            (b, p) -> p.write(b), b -> read(b, false)
         );
         
-        public static C2SRPCPayload read(RegistryFriendlyByteBuf buf) {
+        public static final StreamCodec<RegistryFriendlyByteBuf, C2SRPCPayload> ID_CODEC = StreamCodec.of(
+            (b, p) -> p.write(b), b -> read(b, true)
+        );
+        
+        public static C2SRPCPayload read(RegistryFriendlyByteBuf buf, boolean byId) {
             String methodPath = null;
+            int methodId = -1;
             
             try {
-                methodPath = buf.readUtf();
-                
-                Method method = getMethodByPath(methodPath);
-                
-                java.lang.reflect.Type[] genericParameterTypes = method.getGenericParameterTypes();
+                if (byId) {
+                    methodId = buf.readVarInt();
+                    methodPath = getLocalMethodPath(methodId);
+                }
+                else {
+                    methodPath = buf.readUtf();
+                }
                 
-                List<Object> args = new ArrayList<>();
+                RemoteMethod method = getMethodByPath(methodPath);
                 
                 //the first argument is the player
-                for (int i = 1; i < genericParameterTypes.length; i++) {
-                    java.lang.reflect.Type parameterType = genericParameterTypes[i];
-                    Object obj = deserializeArgument(buf, parameterType);
-                    args.add(obj);
-                }
+                List<Object> args = method.readArguments(buf, byId, 1);
                 
-                return new C2SRPCPayload(true, methodPath, method, args);
+                return new C2SRPCPayload(true, methodPath, method, args, methodId);
             }
             catch (Exception e) {
                 if (LOGGING_LIMIT.tryDecrement()) {
-                    LOGGER.error("Failed to parse remote procedure call {}", methodPath, e);
+                    LOGGER.error("Failed to parse remote procedure call {} {}", methodPath, methodId, e);
                 }
                 return new C2SRPCPayload(
-                    false, methodPath, null, null
+                    false, methodPath, null, null, methodId
                 );
             }
         }
@@ -187,10 +266,7 @@ public class ImplRemoteProcedureCall {
         public void write(RegistryFriendlyByteBuf buf) {
             Validate.notNull(args, "args must not be null");
             Validate.notNull(methodPath, "methodPath must not be null");
-            buf.writeUtf(methodPath);
-            for (Object arg : args) {
-                serializeArgument(buf, arg);
-            }
+            writeCall(buf, methodPath, methodId, args);
         }
         
         public void handle(ServerPlayNetworking.Context c) {
@@ -202,19 +278,22 @@ public class ImplRemoteProcedureCall {
             }
             
             Validate.notNull(args, "args must not be null");
-            Validate.notNull(method, "method must not be null");
+            Validate.notNull(methodPath, "methodPath must not be null");
             
             ServerPlayer player = c.player();
             
             try {
+                // not decoded in in-memory connection
+                RemoteMethod method = this.method != null ? this.method : getMethodByPath(methodPath);
+                
                 Object[] argArray = new Object[args.size() + 1];
                 argArray[0] = player;
                 for (int i = 0; i < args.size(); i++) {
                     argArray[i + 1] = args.get(i);
                 }
-                method.invoke(null, argArray);
+                method.invoke(argArray);
             }
-            catch (Exception e) {
+            catch (Throwable e) {
                 if (LOGGING_LIMIT.tryDecrement()) {
                     LOGGER.error(
                         "Failed to invoke remote procedure call {} {}", methodPath, player, e
@@ -226,7 +305,7 @@ public class ImplRemoteProcedureCall {
         
         @Override
         public @NotNull Type<? extends CustomPacketPayload> type() {
-            return TYPE;
+            return methodId == -1 ? TYPE : ID_TYPE;
         }
     }
     
@@ -235,8 +314,10 @@ public class ImplRemoteProcedureCall {
         boolean deserializeSuccess,
         @Nullable String methodPath,
         // only used in receiver side
-        @Nullable Method method,
-        @Nullable List<Object> args
+        @Nullable RemoteMethod method,
+        @Nullable List<Object> args,
+        // -1 means sending the method path. otherwise it's the id in the server's method table
+        int methodId
     ) implements CustomPacketPayload {
         
         public static final CustomPacketPayload.Type<S2CRPCPayload> TYPE =
@@ -244,34 +325,43 @@ public class ImplRemoteProcedureCall {
                 McHelper.newResourceLocation("iportal:remote_s2c")
             );
         
+        public static final CustomPacketPayload.Type<S2CRPCPayload> ID_TYPE =
+            new CustomPacketPayload.Type<>(
+                McHelper.newResourceLocation("iportal:remote_s2c_id")
+            );
+        
         public static final StreamCodec<RegistryFriendlyByteBuf, S2CRPCPayload> CODEC = StreamCodec.of(
-            (b, p) -> p.write(b), S2CRPCPayload::read
+            (b, p) -> p.write(b), b -> read(b, false)
+        );
+        
+        public static final StreamCodec<RegistryFriendlyByteBuf, S2CRPCPayload> ID_CODEC = StreamCodec.of(
+            (b, p) -> p.write(b), b -> read(b, true)
         );
         
-        public static S2CRPCPayload read(RegistryFriendlyByteBuf buf) {
+        public static S2CRPCPayload read(RegistryFriendlyByteBuf buf, boolean byId) {
             String methodPath = null;
+            int methodId = -1;
             try {
-                methodPath = buf.readUtf();
-                
-                Method method = getMethodByPath(methodPath);
-                
-                java.lang.reflect.Type[] genericParameterTypes = method.getGenericParameterTypes();
+                if (byId) {
+                    methodId = buf.readVarInt();
+                    methodPath = getServerMethodPath(methodId);
+                }
+                else {
+                    methodPath = buf.readUtf();
+                }
                 
-                List<Object> args = new ArrayList<>();
+                RemoteMethod method = getMethodByPath(methodPath);
                 
-                for (java.lang.reflect.Type parameterType : genericParameterTypes) {
-                    Object obj = deserializeArgument(buf, parameterType);
-                    args.add(obj);
-                }
+                List<Object> args = method.readArguments(buf, byId, 0);
                 
-                return new S2CRPCPayload(true, methodPath, method, args);
+                return new S2CRPCPayload(true, methodPath, method, args, methodId);
             }
             catch (Exception e) {
                 if (LOGGING_LIMIT.tryDecrement()) {
-                    LOGGER.error("Failed to parse remote procedure call {}", methodPath, e);
+                    LOGGER.error("Failed to parse remote procedure call {} {}", methodPath, methodId, e);
                 }
                 return new S2CRPCPayload(
-                    false, methodPath, null, null
+                    false, methodPath, null, null, methodId
                 );
             }
         }
@@ -279,10 +369,7 @@ public class ImplRemoteProcedureCall {
         public void write(RegistryFriendlyByteBuf buf) {
             Validate.notNull(args, "args must not be null");
             Validate.notNull(methodPath, "methodPath must not be null");
-            buf.writeUtf(methodPath);
-            for (Object arg : args) {
-                serializeArgument(buf, arg);
-            }
+            writeCall(buf, methodPath, methodId, args);
         }
         
         @Environment(EnvType.CLIENT)
@@ -295,12 +382,15 @@ public class ImplRemoteProcedureCall {
             }
             
             Validate.notNull(args, "args must not be null");
-            Validate.notNull(method, "method must not be null");
+            Validate.notNull(methodPath, "methodPath must not be null");
             try {
+                // not decoded in in-memory connection
+                RemoteMethod method = this.method != null ? this.method : getMethodByPath(methodPath);
+                
                 Object[] argArray = args.toArray(new Object[0]);
-                method.invoke(null, argArray);
+                method.invoke(argArray);
             }
-            catch (Exception e) {
+            catch (Throwable e) {
                 if (LOGGING_LIMIT.tryDecrement()) {
                     LOGGER.error("Failed to invoke remote procedure call {}", methodPath, e);
                     clientTellFailure();
@@ -310,7 +400,90 @@ public class ImplRemoteProcedureCall {
         
         @Override
         public @NotNull Type<? extends CustomPacketPayload> type() {
-            return TYPE;
+            return methodId == -1 ? TYPE : ID_TYPE;
+        }
+    }
+    
+    /**
+     * The resolved remote method.
+     * It's invoked via {@link MethodHandle} and the argument deserializers are resolved once.
+     */
+    public static final class RemoteMethod {
+        public final String methodPath;
+        public final Method method;
+        // (Object[])void
+        private final MethodHandle invoker;
+        private final List<Function<RegistryFriendlyByteBuf, Object>> deserializers;
+        private final List<Function<RegistryFriendlyByteBuf, Object>> binaryDeserializers;
+        
+        private RemoteMethod(String methodPath, Method method) throws IllegalAccessException {
+            this.methodPath = methodPath;
+            this.method = method;
+            
+            int parameterCount = method.getParameterCount();
+            invoker = MethodHandles.dropReturn(MethodHandles.publicLookup().unreflect(method))
+                .asType(MethodType.genericMethodType(parameterCount).changeReturnType(void.class))
+                .asSpreader(Object[].class, parameterCount);
+            
+            Type[] genericParameterTypes = method.getGenericParameterTypes();
+            deserializers = Arrays.stream(genericParameterTypes)
+                .map(t -> getDeserializer(t, false)).toList();
+            binaryDeserializers = Arrays.stream(genericParameterTypes)
+                .map(t -> getDeserializer(t, true)).toList();
+        }
+        
+        /**
+         * @param skippedNum The number of the leading arguments that are not sent.
+         *                   For C2S calls, the first argument is the player.
+         */
+        public List<Object> readArguments(RegistryFriendlyByteBuf buf, boolean binary, int skippedNum) {
+            List<Function<RegistryFriendlyByteBuf, Object>> list = binary ? binaryDeserializers : deserializers;
+            List<Object> args = new ArrayList<>(list.size() - skippedNum);
+            for (int i = skippedNum; i < list.size(); i++) {
+                args.add(list.get(i).apply(buf));
+            }
+            return args;
+        }
+        
+        public void invoke(Object[] args) throws Throwable {
+            invoker.invokeExact(args);
+        }
+    }
+    
+    /**
+     * The method table maps the method paths to the ids.
+     * The server's table is sent to the client in the configuration phase,
+     * then both sides use the ids in the server's table for the registered methods.
+     */
+    public static final class MethodTable {
+        private final List<String> methodPaths;
+        private final Object2IntOpenHashMap<String> pathToId;
+        
+        public MethodTable(List<String> methodPaths) {
+            this.methodPaths = List.copyOf(methodPaths);
+            pathToId = new Object2IntOpenHashMap<>();
+            pathToId.defaultReturnValue(-1);
+            for (int i = 0; i < this.methodPaths.size(); i++) {
+                pathToId.put(this.methodPaths.get(i), i);
+            }
+        }
+        
+        public List<String> getMethodPaths() {
+            return methodPaths;
+        }
+        
+        /**
+         * @return -1 if not in table
+         */
+        public int getId(String methodPath) {
+            return pathToId.getInt(methodPath);
+        }
+        
+        public String getPath(int id) {
+            if (id < 0 || id >= methodPaths.size()) {
+                throw new IllegalArgumentException("Invalid remote method id " + id);
+            }
+            return methodPaths.get(id);
         }
     }
     
@@ -323,10 +496,22 @@ public class ImplRemoteProcedureCall {
             S2CRPCPayload.TYPE, S2CRPCPayload.CODEC
         );
         
+        PayloadTypeRegistry.playC2S().register(
+            C2SRPCPayload.ID_TYPE, C2SRPCPayload.ID_CODEC
+        );
+        
+        PayloadTypeRegistry.playS2C().register(
+            S2CRPCPayload.ID_TYPE, S2CRPCPayload.ID_CODEC
+        );
+        
         ServerPlayNetworking.registerGlobalReceiver(
             C2SRPCPayload.TYPE, C2SRPCPayload::handle
         );
         
+        ServerPlayNetworking.registerGlobalReceiver(
+            C2SRPCPayload.ID_TYPE, C2SRPCPayload::handle
+        );
+        
     }
     
     @Environment(EnvType.CLIENT)
@@ -334,6 +519,91 @@ public class ImplRemoteProcedureCall {
         ClientPlayNetworking.registerGlobalReceiver(
             S2CRPCPayload.TYPE, S2CRPCPayload::handle
         );
+        
+        ClientPlayNetworking.registerGlobalReceiver(
+            S2CRPCPayload.ID_TYPE, S2CRPCPayload::handle
+        );
+    }
+    
+    /**
+     * Registers a method path to the method table, so that it's sent as an id.
+     * Should be called during initialization, before the table gets sent.
+     */
+    public static synchronized void registerMethodPath(String methodPath) {
+        if (localMethodTable != null) {
+            LOGGER.warn("Registering remote method after the method table is sent {}", methodPath);
+            return;
+        }
+        if (!registeredMethodPaths.contains(methodPath)) {
+            registeredMethodPaths.add(methodPath);
+        }
+    }
+    
+    /**
+     * Called on server when sending the table to client. The table will not change after that.
+     */
+    public static synchronized MethodTable freezeMethodTable() {
+        if (localMethodTable == null) {
+            localMethodTable = new MethodTable(registeredMethodPaths);
+        }
+        return localMethodTable;
+    }
+    
+    /**
+     * Called on client when receiving the server's method table, or null when connecting to a server.
+     */
+    public static void setServerMethodTable(@Nullable MethodTable table) {
+        serverMethodTable = table;
+    }
+    
+    private static String getLocalMethodPath(int methodId) {
+        MethodTable table = localMethodTable;
+        if (table == null) {
+            throw new IllegalStateException("The method table is not sent");
+        }
+        return table.getPath(methodId);
+    }
+    
+    private static String getServerMethodPath(int methodId) {
+        MethodTable table = serverMethodTable;
+        if (table == null) {
+            throw new IllegalStateException("Missing the server's method table");
+        }
+        return table.getPath(methodId);
+    }
+    
+    private static void writeCall(
+        RegistryFriendlyByteBuf buf, String methodPath, int methodId, List<Object> args
+    ) {
+        boolean byId = methodId != -1;
+        if (byId) {
+            buf.writeVarInt(methodId);
+        }
+        else {
+            buf.writeUtf(methodPath);
+        }
+        for (Object arg : args) {
+            getSerializer(arg.getClass(), byId).accept(buf, arg);
+        }
+    }
+    
+    private static void writeIntegerNumber(RegistryFriendlyByteBuf buf, long value) {
+        buf.writeByte(NUMBER_TAG_INTEGER);
+        buf.writeVarLong(value);
+    }
+    
+    private static void writeFloatingNumber(RegistryFriendlyByteBuf buf, double value) {
+        buf.writeByte(NUMBER_TAG_FLOATING);
+        buf.writeDouble(value);
+    }
+    
+    private static Number readNumber(RegistryFriendlyByteBuf buf) {
+        byte tag = buf.readByte();
+        return switch (tag) {
+            case NUMBER_TAG_INTEGER -> buf.readVarLong();
+            case NUMBER_TAG_FLOATING -> buf.readDouble();
+            default -> throw new IllegalArgumentException("Invalid number tag " + tag);
+        };
     }
     
     @SuppressWarnings({"rawtypes", "unchecked"})
@@ -344,34 +614,69 @@ public class ImplRemoteProcedureCall {
         return codec.parse(JsonOps.INSTANCE, jsonElement).getOrThrow();
     }
     
-    private static Object deserializeArgument(RegistryFriendlyByteBuf buf, Type type) {
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static Function<RegistryFriendlyByteBuf, Object> getDeserializer(Type type, boolean binary) {
+        if (binary) {
+            Function<RegistryFriendlyByteBuf, Object> deserializer = binaryDeserializerMap.get(type);
+            if (deserializer != null) {
+                return deserializer;
+            }
+        }
+        
         Function<RegistryFriendlyByteBuf, Object> deserializer = deserializerMap.get(type);
-        if (deserializer == null) {
+        if (deserializer != null) {
+            return deserializer;
+        }
+        
+        if (binary && type instanceof Class clazz && Enum.class.isAssignableFrom(clazz)) {
+            return buf -> Enum.valueOf(clazz, buf.readUtf());
+        }
+        
+        return buf -> {
             String json = buf.readUtf();
             return gson.fromJson(json, type);
+        };
+    }
+    
+    private static BiConsumer<RegistryFriendlyByteBuf, Object> getSerializer(Class<?> clazz, boolean binary) {
+        ConcurrentHashMap<Class<?>, BiConsumer<RegistryFriendlyByteBuf, Object>> cache =
+            binary ? binarySerializerCache : serializerCache;
+        BiConsumer<RegistryFriendlyByteBuf, Object> result = cache.get(clazz);
+        if (result != null) {
+            return result;
         }
         
-        return deserializer.apply(buf);
+        result = findSerializer(clazz, binary);
+        cache.put(clazz, result);
+        return result;
     }
     
     @SuppressWarnings("unchecked")
-    private static void serializeArgument(RegistryFriendlyByteBuf buf, Object object) {
-        BiConsumer<RegistryFriendlyByteBuf, Object> serializer = serializerMap.get(object.getClass());
+    private static BiConsumer<RegistryFriendlyByteBuf, Object> findSerializer(Class<?> clazz, boolean binary) {
+        List<ImmutableMap<Class, BiConsumer<RegistryFriendlyByteBuf, Object>>> maps =
+            binary ? List.of(binarySerializerMap, serializerMap) : List.of(serializerMap);
         
-        if (serializer == null) {
-            // TODO optimize it
-            serializer = serializerMap.entrySet().stream().filter(
-                e -> e.getKey().isAssignableFrom(object.getClass())
-            ).findFirst().map(Map.Entry::getValue).orElse(null);
+        for (ImmutableMap<Class, BiConsumer<RegistryFriendlyByteBuf, Object>> map : maps) {
+            BiConsumer<RegistryFriendlyByteBuf, Object> serializer = map.get(clazz);
+            if (serializer != null) {
+                return serializer;
+            }
         }
         
-        if (serializer == null) {
-            String json = gson.toJson(object);
-            buf.writeUtf(json);
-            return;
+        for (ImmutableMap<Class, BiConsumer<RegistryFriendlyByteBuf, Object>> map : maps) {
+            for (Map.Entry<Class, BiConsumer<RegistryFriendlyByteBuf, Object>> e : map.entrySet()) {
+                if (e.getKey().isAssignableFrom(clazz)) {
+                    return e.getValue();
+                }
+            }
         }
         
-        serializer.accept(buf, object);
+        // the enum constants with a body are subclasses of the enum class
+        if (binary && Enum.class.isAssignableFrom(clazz)) {
+            return (buf, o) -> buf.writeUtf(((Enum<?>) o).name());
+        }
+        
+        return (buf, o) -> buf.writeUtf(gson.toJson(o));
     }
     
     @SuppressWarnings({"rawtypes", "unchecked"})
@@ -387,20 +692,51 @@ public class ImplRemoteProcedureCall {
         String methodPath,
         Object... arguments
     ) {
+        int methodId = -1;
+        MethodTable table = serverMethodTable;
+        if (table != null && ClientPlayNetworking.canSend(C2SRPCPayload.ID_TYPE)) {
+            methodId = table.getId(methodPath);
+        }
+        
         return ClientPlayNetworking.createC2SPacket(
             new C2SRPCPayload(
-                true, methodPath, null, List.of(arguments)
+                true, methodPath, null, List.of(arguments), methodId
             )
         );
     }
     
+    /**
+     * The packet may be sent to any client, so it uses the method path.
+     */
     public static Packet<ClientCommonPacketListener> createS2CPacket(
         String methodPath,
         Object... arguments
     ) {
         return ServerPlayNetworking.createS2CPacket(
             new S2CRPCPayload(
-                true, methodPath, null, List.of(arguments)
+                true, methodPath, null, List.of(arguments), -1
+            )
+        );
+    }
+    
+    /**
+     * The packet will only be sent to that player.
+     * If the client received the method table, the registered method is sent as id.
+     */
+    public static Packet<ClientCommonPacketListener> createS2CPacket(
+        ServerPlayer player,
+        String methodPath,
+        Object... arguments
+    ) {
+        int methodId = -1;
+        MethodTable table = localMethodTable;
+        if (table != null && ServerPlayNetworking.canSend(player, S2CRPCPayload.ID_TYPE)) {
+            methodId = table.getId(methodPath);
+        }
+        
+        return ServerPlayNetworking.createS2CPacket(
+            new S2CRPCPayload(
+                true, methodPath, null, List.of(arguments), methodId
             )
         );
     }
@@ -418,8 +754,8 @@ public class ImplRemoteProcedureCall {
         ).withStyle(ChatFormatting.RED));
     }
     
-    private static Method getMethodByPath(String methodPath) {
-        Method result = methodCache.get(methodPath);
+    public static RemoteMethod getMethodByPath(String methodPath) {
+        RemoteMethod result = methodCache.get(methodPath);
         if (result != null) {
             return result;
         }
@@ -428,8 +764,15 @@ public class ImplRemoteProcedureCall {
         Method method = findMethodByPath(methodPath);
         Validate.notNull(method);
         
-        methodCache.put(methodPath, method);
-        return method;
+        try {
+            result = new RemoteMethod(methodPath, method);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException("Cannot access method " + methodPath, e);
+        }
+        
+        methodCache.put(methodPath, result);
+        return result;
     }
     
     private static Method findMethodByPath(String methodPath) {
@@ -77,6 +77,7 @@ import qouteall.q_misc_util.ImplRemoteProcedureCall;
  * <p>
  *     If you are sending the packets thousands of times every second, then performance issues may arise.
  *     In this case it's not recommended to use this.
+ *     For the frequently called methods, use {@link #registerMethodPath(String)} to make the packets smaller.
  * </p>
  */
 public class McRemoteProcedureCall {
@@ -106,12 +107,13 @@ public class McRemoteProcedureCall {
     public static void tellClientToInvoke(
         ServerPlayer player, String methodPath, Object... arguments
     ) {
-        var packet = createPacketToSendToClient(methodPath, arguments);
+        var packet = createPacketToSendToClient(player, methodPath, arguments);
         player.connection.send(packet);
     }
     
     /**
      * Same as the above, but only creates packet and does not send.
+     * The packet can be sent to any player.
      */
     public static Packet<ClientCommonPacketListener> createPacketToSendToClient(
         String methodPath, Object... arguments
@@ -119,6 +121,26 @@ public class McRemoteProcedureCall {
         return ImplRemoteProcedureCall.createS2CPacket(methodPath, arguments);
     }
     
+    /**
+     * Same as the above, but the packet should only be sent to that player.
+     * It's smaller if the method is registered by {@link #registerMethodPath(String)}.
+     */
+    public static Packet<ClientCommonPacketListener> createPacketToSendToClient(
+        ServerPlayer player, String methodPath, Object... arguments
+    ) {
+        return ImplRemoteProcedureCall.createS2CPacket(player, methodPath, arguments);
+    }
+    
+    /**
+     * Registers a frequently called method. Then it's called by an integer id instead of
+     * the method path, and the arguments use binary encoding instead of JSON.
+     * The table is negotiated in configuration phase, so it must be called during mod initialization.
+     * The unregistered methods can still be called.
+     */
+    public static void registerMethodPath(String methodPath) {
+        ImplRemoteProcedureCall.registerMethodPath(methodPath);
+    }
+    
     /**
      * For example:
      * <pre>
@@ -0,0 +1,180 @@
+package qouteall.q_misc_util.my_util;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import org.apache.commons.lang3.Validate;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A long-keyed open addressing hash map that one thread writes and any thread reads without locking.
+ * <br>
+ * Each slot holds an immutable entry, so a reader always sees a whole key-value pair.
+ * Removing turns the entry into a tombstone, so that the probe chains of other keys stay intact.
+ * When the table is too full (counting tombstones), the writer builds a new table and publishes it.
+ * A reader that is still probing the old table sees the map before that write.
+ * <br>
+ * Reading never allocates. The iteration is weakly consistent, like {@link java.util.concurrent.ConcurrentHashMap}.
+ */
+public final class SingleWriterLong2ObjectMap<V> {
+    private static final int MIN_CAPACITY = 16;
+    private static final float MAX_LOAD_FACTOR = 0.75f;
+    
+    private static final class Entry<V> {
+        final long key;
+        final V value;
+        
+        Entry(long key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+    
+    private static final Entry<?> TOMBSTONE = new Entry<>(0, null);
+    
+    private volatile AtomicReferenceArray<Entry<V>> table = new AtomicReferenceArray<>(MIN_CAPACITY);
+    private volatile int size = 0;
+    
+    // the live entries and the tombstones. only accessed by the writer
+    private int usedSlotNum = 0;
+    
+    private static int getSlot(long key, int mask) {
+        return (int) HashCommon.mix(key) & mask;
+    }
+    
+    public @Nullable V get(long key) {
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        int mask = table.length() - 1;
+        // the table always has empty slots, so the probing ends
+        for (int slot = getSlot(key, mask); ; slot = (slot + 1) & mask) {
+            Entry<V> entry = table.get(slot);
+            if (entry == null) {
+                return null;
+            }
+            if (entry != TOMBSTONE && entry.key == key) {
+                return entry.value;
+            }
+        }
+    }
+    
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Only the writer thread can call this.
+     *
+     * @param value not null
+     * @return the old value
+     */
+    public @Nullable V put(long key, V value) {
+        Validate.isTrue(value != null);
+        
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        int mask = table.length() - 1;
+        int firstTombstone = -1;
+        int slot = getSlot(key, mask);
+        for (; ; slot = (slot + 1) & mask) {
+            Entry<V> entry = table.get(slot);
+            if (entry == null) {
+                break;
+            }
+            if (entry == TOMBSTONE) {
+                if (firstTombstone == -1) {
+                    firstTombstone = slot;
+                }
+            }
+            else if (entry.key == key) {
+                table.set(slot, new Entry<>(key, value));
+                return entry.value;
+            }
+        }
+        
+        if (firstTombstone != -1) {
+            table.set(firstTombstone, new Entry<>(key, value));
+            size = size + 1;
+            return null;
+        }
+        
+        if (usedSlotNum + 1 > table.length() * MAX_LOAD_FACTOR) {
+            rehash(size + 1);
+            return put(key, value);
+        }
+        
+        table.set(slot, new Entry<>(key, value));
+        usedSlotNum++;
+        size = size + 1;
+        return null;
+    }
+    
+    /**
+     * Only the writer thread can call this.
+     *
+     * @return the removed value
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V remove(long key) {
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        int mask = table.length() - 1;
+        for (int slot = getSlot(key, mask); ; slot = (slot + 1) & mask) {
+            Entry<V> entry = table.get(slot);
+            if (entry == null) {
+                return null;
+            }
+            if (entry != TOMBSTONE && entry.key == key) {
+                table.set(slot, (Entry<V>) TOMBSTONE);
+                size = size - 1;
+                return entry.value;
+            }
+        }
+    }
+    
+    /**
+     * Only the writer thread can call this.
+     */
+    public void clear() {
+        table = new AtomicReferenceArray<>(MIN_CAPACITY);
+        usedSlotNum = 0;
+        size = 0;
+    }
+    
+    public List<V> getValueList() {
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        ArrayList<V> result = new ArrayList<>(size);
+        for (int i = 0; i < table.length(); i++) {
+            Entry<V> entry = table.get(i);
+            if (entry != null && entry != TOMBSTONE) {
+                result.add(entry.value);
+            }
+        }
+        return result;
+    }
+    
+    // the tombstones are dropped. after rehashing the table is at most half full
+    private void rehash(int expectedSize) {
+        int capacity = Math.max(MIN_CAPACITY, HashCommon.nextPowerOfTwo(expectedSize * 2));
+        AtomicReferenceArray<Entry<V>> oldTable = this.table;
+        AtomicReferenceArray<Entry<V>> newTable = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        int num = 0;
+        for (int i = 0; i < oldTable.length(); i++) {
+            Entry<V> entry = oldTable.get(i);
+            if (entry != null && entry != TOMBSTONE) {
+                int slot = getSlot(entry.key, mask);
+                while (newTable.get(slot) != null) {
+                    slot = (slot + 1) & mask;
+                }
+                newTable.set(slot, entry);
+                num++;
+            }
+        }
+        usedSlotNum = num;
+        this.table = newTable;
+    }
+}
@@ -0,0 +1,223 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+
+import java.util.List;
+import java.util.Random;
+
+@Testable
+public class ChunkLoaderDeltaTest {
+    private static final ResourceKey<Level> DIM = ResourceKey.create(
+        Registries.DIMENSION, ResourceLocation.withDefaultNamespace("test")
+    );
+    
+    private static ObjectOpenHashSet<ChunkLoader> createLoaders(Random random, int num) {
+        ObjectOpenHashSet<ChunkLoader> result = new ObjectOpenHashSet<>();
+        while (result.size() < num) {
+            result.add(new ChunkLoader(
+                DIM, random.nextInt(-64, 64), random.nextInt(-64, 64), random.nextInt(2, 9)
+            ));
+        }
+        return result;
+    }
+    
+    // the same as the full mode: for each chunk the covering loader number, the minimum distance,
+    // and whether it's on the boundary of all the covering loaders
+    private static final class ExpectedRecords {
+        final Long2IntOpenHashMap loaderNum = new Long2IntOpenHashMap();
+        final Long2IntOpenHashMap distances = new Long2IntOpenHashMap();
+        final LongOpenHashSet nonBoundaryChunks = new LongOpenHashSet();
+        
+        ExpectedRecords(Iterable<ChunkLoader> loaders) {
+            distances.defaultReturnValue(Integer.MAX_VALUE);
+            for (ChunkLoader loader : loaders) {
+                loader.foreachChunkPos((dim, x, z, dist) -> {
+                    long pos = ChunkPos.asLong(x, z);
+                    loaderNum.addTo(pos, 1);
+                    distances.put(pos, Math.min(distances.get(pos), dist));
+                    if (dist != loader.radius()) {
+                        nonBoundaryChunks.add(pos);
+                    }
+                });
+            }
+        }
+    }
+    
+    private static void update(
+        WatchRecordStore store, PlayerChunkLoading playerInfo,
+        ObjectOpenHashSet<ChunkLoader> loaders, int generation
+    ) {
+        playerInfo.chunkLoaderDelta.update(
+            new ObjectOpenHashSet<>(loaders),
+            loader -> ImmPtlChunkTracking.onChunkLoaderEnter(store, playerInfo, loader, generation),
+            loader -> ImmPtlChunkTracking.onChunkLoaderLeave(store, playerInfo, loader, generation)
+        );
+    }
+    
+    private static void checkRecords(
+        WatchRecordStore store, PlayerChunkLoading playerInfo,
+        ObjectOpenHashSet<ChunkLoader> loaders, LongOpenHashSet everCoveredChunks
+    ) {
+        ExpectedRecords expected = new ExpectedRecords(loaders);
+        
+        Validate.isTrue(playerInfo.loadedChunks == expected.loaderNum.size());
+        
+        for (long pos : everCoveredChunks) {
+            int slot = store.findSlot(pos, playerInfo.playerIndex);
+            Validate.isTrue(slot != -1);
+            
+            int loaderNum = expected.loaderNum.get(pos);
+            Validate.isTrue(store.getWatchingLoaderNum(slot) == loaderNum, "loader num at %d", pos);
+            if (loaderNum != 0) {
+                Validate.isTrue(
+                    store.getDistanceToSource(slot) == expected.distances.get(pos), "distance at %d", pos
+                );
+                Validate.isTrue(
+                    store.isBoundary(slot) == !expected.nonBoundaryChunks.contains(pos), "boundary at %d", pos
+                );
+            }
+        }
+    }
+    
+    /**
+     * Drives the incremental mode's enter and leave handling and compares the watch records with the full mode.
+     */
+    @Test
+    public void testIncrementalMatchesFull() {
+        Random random = new Random(1234);
+        ObjectOpenHashSet<ChunkLoader> loaders = createLoaders(random, 20);
+        
+        WatchRecordStore store = new WatchRecordStore(0);
+        PlayerChunkLoading playerInfo = new PlayerChunkLoading(0, false);
+        LongOpenHashSet everCoveredChunks = new LongOpenHashSet();
+        
+        for (int step = 0; step < 50; step++) {
+            // move or resize a few loaders, like a player walking near some portals
+            ObjectOpenHashSet<ChunkLoader> newLoaders = new ObjectOpenHashSet<>(loaders);
+            for (ChunkLoader loader : loaders) {
+                int r = random.nextInt(8);
+                if (r == 0) {
+                    newLoaders.remove(loader);
+                    newLoaders.add(new ChunkLoader(
+                        DIM, loader.x() + random.nextInt(-1, 2), loader.z(), loader.radius()
+                    ));
+                }
+                else if (r == 1) {
+                    newLoaders.remove(loader);
+                    newLoaders.add(new ChunkLoader(
+                        DIM, loader.x(), loader.z(), Math.max(1, loader.radius() + random.nextInt(-1, 2))
+                    ));
+                }
+            }
+            loaders = newLoaders;
+            
+            update(store, playerInfo, loaders, step);
+            
+            for (ChunkLoader loader : loaders) {
+                loader.foreachChunkPos((dim, x, z, dist) -> everCoveredChunks.add(ChunkPos.asLong(x, z)));
+            }
+            checkRecords(store, playerInfo, loaders, everCoveredChunks);
+        }
+        
+        update(store, playerInfo, new ObjectOpenHashSet<>(), 50);
+        checkRecords(store, playerInfo, new ObjectOpenHashSet<>(), everCoveredChunks);
+    }
+    
+    /**
+     * When a loader leaves a chunk that is still covered, the distance and the boundary status
+     * are only recomputed if the leaving loader may have decided them.
+     */
+    @Test
+    public void testLeavingLoaderRecompute() {
+        WatchRecordStore store = new WatchRecordStore(0);
+        PlayerChunkLoading playerInfo = new PlayerChunkLoading(0, false);
+        
+        ChunkLoader big = new ChunkLoader(DIM, 0, 0, 4);
+        ChunkLoader near = new ChunkLoader(DIM, 3, 0, 1);
+        ChunkLoader far = new ChunkLoader(DIM, 10, 0, 7);
+        LongOpenHashSet everCoveredChunks = new LongOpenHashSet();
+        for (ChunkLoader loader : new ChunkLoader[]{big, near, far}) {
+            loader.foreachChunkPos((dim, x, z, dist) -> everCoveredChunks.add(ChunkPos.asLong(x, z)));
+        }
+        
+        ObjectOpenHashSet<ChunkLoader> loaders = new ObjectOpenHashSet<>(List.of(big, near, far));
+        update(store, playerInfo, loaders, 0);
+        checkRecords(store, playerInfo, loaders, everCoveredChunks);
+        
+        // the chunk (3, 0) is at distance 0 of the near loader. it goes back to the distance 3 of the big loader
+        loaders.remove(near);
+        update(store, playerInfo, loaders, 1);
+        checkRecords(store, playerInfo, loaders, everCoveredChunks);
+        Validate.isTrue(store.getDistanceToSource(store.findSlot(ChunkPos.asLong(3, 0), 0)) == 3);
+        
+        // the chunk (4, 0) is on the boundary of the big loader and not of the far loader.
+        // the far loader doesn't decide its distance, but it decides its boundary status
+        Validate.isTrue(store.getDistanceToSource(store.findSlot(ChunkPos.asLong(4, 0), 0)) == 4);
+        Validate.isTrue(!store.isBoundary(store.findSlot(ChunkPos.asLong(4, 0), 0)));
+        loaders.remove(far);
+        update(store, playerInfo, loaders, 2);
+        checkRecords(store, playerInfo, loaders, everCoveredChunks);
+        Validate.isTrue(store.isBoundary(store.findSlot(ChunkPos.asLong(4, 0), 0)));
+        
+        // the chunks only covered by the far loader start the delayed unloading countdown
+        int slot = store.findSlot(ChunkPos.asLong(12, 0), 0);
+        Validate.isTrue(store.getWatchingLoaderNum(slot) == 0);
+        Validate.isTrue(store.getLastWatchGeneration(slot) == 2);
+    }
+    
+    /**
+     * When the player direct loader moves by one chunk, the incremental mode only visits the chunks
+     * of the moved loader (once for leaving and once for entering),
+     * while the full mode visits the chunks of all loaders.
+     * With only a few small loaders the two visits of the moved loader can be more than the full mode,
+     * so this uses the loader numbers where the incremental mode is meant to help.
+     */
+    @Test
+    public void testIncrementalVisitsFewerThanFull() {
+        for (int loaderNum : new int[]{20, 50}) {
+            Random random = new Random(loaderNum);
+            ObjectOpenHashSet<ChunkLoader> loaders = createLoaders(random, loaderNum - 1);
+            // the moving loader is far from the others so that it never coincides with them
+            ChunkLoader moving = new ChunkLoader(DIM, 0, 1000, 8);
+            loaders.add(moving);
+            
+            ChunkLoaderDelta delta = new ChunkLoaderDelta();
+            delta.update(new ObjectOpenHashSet<>(loaders), l -> {}, l -> {});
+            
+            for (int i = 0; i < 10; i++) {
+                ObjectOpenHashSet<ChunkLoader> newLoaders = new ObjectOpenHashSet<>(delta.getCurrentLoaders());
+                newLoaders.remove(moving);
+                moving = new ChunkLoader(DIM, moving.x() + 1, moving.z(), moving.radius());
+                newLoaders.add(moving);
+                
+                long[] fullVisits = {0};
+                for (ChunkLoader loader : newLoaders) {
+                    loader.foreachChunkPos((dim, x, z, dist) -> fullVisits[0]++);
+                }
+                
+                long[] incrementalVisits = {0};
+                delta.update(
+                    newLoaders,
+                    l -> l.foreachChunkPos((dim, x, z, dist) -> incrementalVisits[0]++),
+                    l -> l.foreachChunkPos((dim, x, z, dist) -> incrementalVisits[0]++)
+                );
+                
+                Validate.isTrue(incrementalVisits[0] == moving.getChunkNum() * 2L);
+                Validate.isTrue(
+                    incrementalVisits[0] < fullVisits[0],
+                    "%d loaders: incremental %d full %d", loaderNum, incrementalVisits[0], fullVisits[0]
+                );
+            }
+        }
+    }
+}
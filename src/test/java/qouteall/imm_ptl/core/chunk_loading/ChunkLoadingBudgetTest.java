@@ -0,0 +1,252 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import com.mojang.logging.LogUtils;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@Testable
+public class ChunkLoadingBudgetTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    @Test
+    public void testAllocate() {
+        List<ChunkLoadingBudget.Entry> entries = new ArrayList<>();
+        // saturated and using little
+        entries.add(new ChunkLoadingBudget.Entry(1, 1, 10, 1));
+        // not saturated
+        entries.add(new ChunkLoadingBudget.Entry(1, 1, 500, 0.5));
+        entries.add(new ChunkLoadingBudget.Entry(2, 1, 500, 0.5));
+        
+        ChunkLoadingBudget.allocate(310, entries);
+        
+        Validate.isTrue(entries.get(0).allocation == 10);
+        Validate.isTrue(Math.abs(entries.get(1).allocation - 100) < 1e-9);
+        Validate.isTrue(Math.abs(entries.get(2).allocation - 200) < 1e-9);
+        
+        double sum = 0;
+        for (ChunkLoadingBudget.Entry entry : entries) {
+            sum += entry.allocation;
+        }
+        Validate.isTrue(Math.abs(sum - 310) < 1e-9);
+    }
+    
+    @Test
+    public void testScaleIsCappedByClientLevel() {
+        double scale = 1;
+        for (int i = 0; i < 20; i++) {
+            scale = ChunkLoadingBudget.getUpdatedScale(
+                scale, PerformanceLevel.getLoadingScaleCap(PerformanceLevel.medium), 1000, 10
+            );
+        }
+        Validate.isTrue(
+            ChunkLoadingBudget.getVisiblePortalRangeChunks(scale) ==
+                PerformanceLevel.getVisiblePortalRangeChunks(PerformanceLevel.medium)
+        );
+        
+        Validate.isTrue(
+            ChunkLoadingBudget.getVisiblePortalRangeChunks(1) ==
+                PerformanceLevel.getVisiblePortalRangeChunks(PerformanceLevel.good)
+        );
+        Validate.isTrue(
+            ChunkLoadingBudget.getIndirectLoadingRadiusCap(1) ==
+                PerformanceLevel.getIndirectLoadingRadiusCap(PerformanceLevel.good)
+        );
+        Validate.isTrue(
+            ChunkLoadingBudget.getVisiblePortalRangeChunks(0) ==
+                PerformanceLevel.getVisiblePortalRangeChunks(PerformanceLevel.bad)
+        );
+        Validate.isTrue(
+            ChunkLoadingBudget.getIndirectLoadingRadiusCap(0) ==
+                PerformanceLevel.getIndirectLoadingRadiusCap(PerformanceLevel.bad)
+        );
+    }
+    
+    @Test
+    public void testUnlimitedScaleIsCap() {
+        List<ChunkLoadingBudget.Entry> entries = new ArrayList<>();
+        entries.add(new ChunkLoadingBudget.Entry(1, 1, 500, 0));
+        entries.add(new ChunkLoadingBudget.Entry(1, 2.0 / 7, 0, ChunkLoadingBudget.NEW_ENTRY_SCALE));
+        
+        ChunkLoadingBudget budget = new ChunkLoadingBudget(ChunkLoadingBudget.MIN_BUDGET_PER_PLAYER);
+        budget.update(FeedbackChunkLoadingBudgetPolicy.INSTANCE, 2, false, entries);
+        
+        Validate.isTrue(entries.get(0).scale == 1);
+        Validate.isTrue(entries.get(1).scale == 2.0 / 7);
+    }
+    
+    @Test
+    public void testNewEntrySeeding() {
+        List<ChunkLoadingBudget.Entry> entries = new ArrayList<>();
+        entries.add(new ChunkLoadingBudget.Entry(1, 1, 0, ChunkLoadingBudget.NEW_ENTRY_SCALE));
+        ChunkLoadingBudget.seedNewEntries(entries);
+        // the first player starts at its cap
+        Validate.isTrue(entries.get(0).scale == 1);
+        
+        entries.clear();
+        entries.add(new ChunkLoadingBudget.Entry(1, 1, 100, 0.4));
+        entries.add(new ChunkLoadingBudget.Entry(1, 1, 100, 0.6));
+        entries.add(new ChunkLoadingBudget.Entry(1, 1, 0, ChunkLoadingBudget.NEW_ENTRY_SCALE));
+        entries.add(new ChunkLoadingBudget.Entry(1, 0.2, 0, ChunkLoadingBudget.NEW_ENTRY_SCALE));
+        ChunkLoadingBudget.seedNewEntries(entries);
+        // the others start at the average, limited by their cap
+        Validate.isTrue(Math.abs(entries.get(2).scale - 0.5) < 1e-9);
+        Validate.isTrue(entries.get(3).scale == 0.2);
+        Validate.isTrue(entries.get(0).scale == 0.4 && entries.get(1).scale == 0.6);
+    }
+    
+    private static final int PLAYER_NUM = 100;
+    private static final int SECONDS = 600;
+    private static final int WARM_UP_SECONDS = 120;
+    
+    /**
+     * A server where the tick time grows with the chunks loaded through portals.
+     * The loading at full scale makes the server lag.
+     */
+    private static final class SimulatedServer {
+        final int[] portalNums = new int[PLAYER_NUM];
+        final ArrayDeque<Double> recentTickTimeRatios = new ArrayDeque<>();
+        
+        SimulatedServer(long seed) {
+            Random random = new Random(seed);
+            for (int i = 0; i < PLAYER_NUM; i++) {
+                portalNums[i] = random.nextInt(0, 4);
+            }
+        }
+        
+        double getUsage(int player, double scale) {
+            int radius = ChunkLoadingBudget.getIndirectLoadingRadiusCap(scale) / 3;
+            return portalNums[player] * (2 * radius + 1) * (2 * radius + 1);
+        }
+        
+        // like MinecraftServer.getAverageTickTimeNanos, the average of 5 seconds
+        double updateTickTimeRatio(double totalUsage) {
+            recentTickTimeRatios.addLast(0.3 + totalUsage / 30000.0);
+            if (recentTickTimeRatios.size() > 5) {
+                recentTickTimeRatios.removeFirst();
+            }
+            return recentTickTimeRatios.stream().mapToDouble(d -> d).average().orElse(0);
+        }
+    }
+    
+    private record SimulationResult(
+        double minTickTimeRatio, double maxTickTimeRatio, int maxRangeJump, int collapses
+    ) {}
+    
+    private static SimulationResult simulateBudget(long seed) {
+        SimulatedServer server = new SimulatedServer(seed);
+        ChunkLoadingBudget budget = new ChunkLoadingBudget(ChunkLoadingBudget.MIN_BUDGET_PER_PLAYER);
+        double[] scales = new double[PLAYER_NUM];
+        double[] usages = new double[PLAYER_NUM];
+        
+        double minRatio = Double.MAX_VALUE;
+        double maxRatio = 0;
+        int maxRangeJump = 0;
+        int collapses = 0;
+        for (int second = 0; second < SECONDS; second++) {
+            double totalUsage = 0;
+            for (int i = 0; i < PLAYER_NUM; i++) {
+                usages[i] = server.getUsage(i, scales[i]);
+                totalUsage += usages[i];
+            }
+            double ratio = server.updateTickTimeRatio(totalUsage);
+            
+            List<ChunkLoadingBudget.Entry> entries = new ArrayList<>();
+            for (int i = 0; i < PLAYER_NUM; i++) {
+                entries.add(new ChunkLoadingBudget.Entry(
+                    FeedbackChunkLoadingBudgetPolicy.INSTANCE.getPlayerWeight(
+                        PerformanceLevel.good, Long.MAX_VALUE
+                    ),
+                    1, usages[i], scales[i]
+                ));
+            }
+            budget.update(FeedbackChunkLoadingBudgetPolicy.INSTANCE, ratio, true, entries);
+            
+            boolean allCollapsed = true;
+            for (int i = 0; i < PLAYER_NUM; i++) {
+                double newScale = entries.get(i).scale;
+                int oldRange = ChunkLoadingBudget.getVisiblePortalRangeChunks(scales[i]);
+                int newRange = ChunkLoadingBudget.getVisiblePortalRangeChunks(newScale);
+                if (second >= WARM_UP_SECONDS) {
+                    maxRangeJump = Math.max(maxRangeJump, Math.abs(newRange - oldRange));
+                }
+                if (newRange > 1) {
+                    allCollapsed = false;
+                }
+                scales[i] = newScale;
+            }
+            
+            if (second >= WARM_UP_SECONDS) {
+                minRatio = Math.min(minRatio, ratio);
+                maxRatio = Math.max(maxRatio, ratio);
+                if (allCollapsed) {
+                    collapses++;
+                }
+            }
+        }
+        return new SimulationResult(minRatio, maxRatio, maxRangeJump, collapses);
+    }
+    
+    // the old behavior: the server level is sampled every 20 seconds and all players snap to it
+    private static SimulationResult simulateLevels(long seed) {
+        SimulatedServer server = new SimulatedServer(seed);
+        PerformanceLevel level = PerformanceLevel.bad;
+        
+        double minRatio = Double.MAX_VALUE;
+        double maxRatio = 0;
+        int maxRangeJump = 0;
+        int collapses = 0;
+        for (int second = 0; second < SECONDS; second++) {
+            double scale = PerformanceLevel.getLoadingScaleCap(level);
+            double totalUsage = 0;
+            for (int i = 0; i < PLAYER_NUM; i++) {
+                totalUsage += server.getUsage(i, scale);
+            }
+            double ratio = server.updateTickTimeRatio(totalUsage);
+            
+            if (second % 20 == 0) {
+                PerformanceLevel newLevel = ratio < 0.8 ? PerformanceLevel.good :
+                    (ratio < 1 ? PerformanceLevel.medium : PerformanceLevel.bad);
+                if (second >= WARM_UP_SECONDS) {
+                    maxRangeJump = Math.max(maxRangeJump, Math.abs(
+                        PerformanceLevel.getVisiblePortalRangeChunks(newLevel) -
+                            PerformanceLevel.getVisiblePortalRangeChunks(level)
+                    ));
+                }
+                level = newLevel;
+            }
+            
+            if (second >= WARM_UP_SECONDS) {
+                minRatio = Math.min(minRatio, ratio);
+                maxRatio = Math.max(maxRatio, ratio);
+                if (level == PerformanceLevel.bad) {
+                    collapses++;
+                }
+            }
+        }
+        return new SimulationResult(minRatio, maxRatio, maxRangeJump, collapses);
+    }
+    
+    @Test
+    public void testNoOscillation() {
+        for (int seed = 0; seed < 5; seed++) {
+            SimulationResult budgetResult = simulateBudget(seed);
+            SimulationResult levelResult = simulateLevels(seed);
+            
+            LOGGER.info("Seed {}: budget {}, levels {}", seed, budgetResult, levelResult);
+            
+            Validate.isTrue(budgetResult.collapses() == 0);
+            Validate.isTrue(budgetResult.maxTickTimeRatio() < 1.0);
+            Validate.isTrue(budgetResult.maxTickTimeRatio() - budgetResult.minTickTimeRatio() < 0.2);
+            // the range changes gradually instead of snapping between levels
+            Validate.isTrue(budgetResult.maxRangeJump() <= 1);
+            Validate.isTrue(budgetResult.maxRangeJump() < levelResult.maxRangeJump());
+        }
+    }
+}
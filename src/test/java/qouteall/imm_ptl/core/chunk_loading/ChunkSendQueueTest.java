@@ -0,0 +1,230 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.world.level.ChunkPos;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@Testable
+public class ChunkSendQueueTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static final int OVERWORLD_ID = 0;
+    private static final int NETHER_ID = 1;
+    
+    private record Entry(int dimensionId, long chunkPos, int distance) {}
+    
+    // the old per-distance lists: ascending distance, then insertion order
+    private static List<Entry> getBucketOrder(List<Entry> entries) {
+        List<List<Entry>> buckets = new ArrayList<>();
+        for (Entry entry : entries) {
+            while (buckets.size() <= entry.distance()) {
+                buckets.add(new ArrayList<>());
+            }
+            buckets.get(entry.distance()).add(entry);
+        }
+        List<Entry> result = new ArrayList<>();
+        for (List<Entry> bucket : buckets) {
+            result.addAll(bucket);
+        }
+        return result;
+    }
+    
+    private static void add(ChunkSendQueue queue, Entry entry) {
+        queue.add(
+            entry.dimensionId(), entry.chunkPos(), entry.distance(),
+            ChunkSendPriorityPolicy.DISTANCE.getPriority(
+                null, entry.dimensionId(), entry.chunkPos(), entry.distance(), false
+            )
+        );
+    }
+    
+    @Test
+    public void testDistancePolicyKeepsBucketOrder() {
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            List<Entry> entries = new ArrayList<>();
+            ChunkSendQueue queue = new ChunkSendQueue();
+            for (int i = 0; i < 500; i++) {
+                Entry entry = new Entry(
+                    random.nextInt(3), ChunkPos.asLong(random.nextInt(-20, 20), random.nextInt(-20, 20)),
+                    random.nextInt(0, 32)
+                );
+                entries.add(entry);
+                add(queue, entry);
+            }
+            
+            List<Entry> expected = getBucketOrder(entries);
+            
+            // skipping some entries then restoring them should not change the order
+            List<Entry> skipped = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                skipped.add(new Entry(
+                    queue.getTopDimensionId(), queue.getTopChunkPos(), queue.getTopDistanceToSource()
+                ));
+                queue.skipTop();
+            }
+            Validate.isTrue(skipped.equals(expected.subList(0, 50)));
+            queue.restoreSkipped();
+            
+            List<Entry> actual = new ArrayList<>();
+            while (!queue.isEmpty()) {
+                actual.add(new Entry(
+                    queue.getTopDimensionId(), queue.getTopChunkPos(), queue.getTopDistanceToSource()
+                ));
+                queue.removeTop();
+            }
+            
+            Validate.isTrue(actual.equals(expected), "order mismatch at seed %d", seed);
+        }
+    }
+    
+    @Test
+    public void testRescore() {
+        ChunkSendQueue queue = new ChunkSendQueue();
+        for (int i = 0; i < 100; i++) {
+            queue.add(OVERWORLD_ID, ChunkPos.asLong(i, 0), i, i);
+        }
+        
+        // reverse the order
+        queue.rescore((dimensionId, chunkPos, distanceToSource) -> -distanceToSource);
+        
+        for (int i = 99; i >= 0; i--) {
+            Validate.isTrue(queue.getTopDistanceToSource() == i);
+            Validate.isTrue(queue.getTopPriority() == -i);
+            queue.removeTop();
+        }
+        Validate.isTrue(queue.isEmpty());
+    }
+    
+    private static final int LOAD_DISTANCE = 8;
+    private static final int PORTAL_LOAD_DISTANCE = 4;
+    private static final int SENDS_PER_TICK = 9;
+    
+    /**
+     * The player is at the origin looking at +x.
+     * One portal is in front of the player. Five other portals are to the side or behind.
+     * Each portal loads a nether area around its destination.
+     * Returns the ticks until all chunks seen through the visible portal are sent.
+     */
+    private static int simulate(ChunkSendPriorityPolicy policy, long seed) {
+        Random random = new Random(seed);
+        
+        List<ChunkSendView.PortalTarget> portals = new ArrayList<>();
+        // the visible one, 24 blocks ahead
+        portals.add(new ChunkSendView.PortalTarget(NETHER_ID, 0, 0, 1, 24));
+        // the others, nearer or equally near, to the side or behind
+        portals.add(new ChunkSendView.PortalTarget(NETHER_ID, 40, 0, 0, 8));
+        portals.add(new ChunkSendView.PortalTarget(NETHER_ID, -40, 0, -1, 10));
+        portals.add(new ChunkSendView.PortalTarget(NETHER_ID, 0, 40, 0, 16));
+        portals.add(new ChunkSendView.PortalTarget(NETHER_ID, 0, -40, -0.5, 20));
+        portals.add(new ChunkSendView.PortalTarget(NETHER_ID, 40, 40, -0.7, 24));
+        
+        ChunkSendView view = new ChunkSendView(
+            OVERWORLD_ID, 8, 64, 8, 1, 0, 0, portals
+        );
+        
+        ChunkSendQueue queue = new ChunkSendQueue();
+        LongOpenHashSet visiblePortalChunks = new LongOpenHashSet();
+        List<Entry> entries = new ArrayList<>();
+        
+        for (int x = -LOAD_DISTANCE; x <= LOAD_DISTANCE; x++) {
+            for (int z = -LOAD_DISTANCE; z <= LOAD_DISTANCE; z++) {
+                entries.add(new Entry(
+                    OVERWORLD_ID, ChunkPos.asLong(x, z), Math.max(Math.abs(x), Math.abs(z))
+                ));
+            }
+        }
+        for (int i = 0; i < portals.size(); i++) {
+            ChunkSendView.PortalTarget portal = portals.get(i);
+            // the farther portal has smaller loading distance, like ChunkVisibility
+            int portalDistanceChunks = (int) (portal.distance() / 16);
+            for (int dx = -PORTAL_LOAD_DISTANCE; dx <= PORTAL_LOAD_DISTANCE; dx++) {
+                for (int dz = -PORTAL_LOAD_DISTANCE; dz <= PORTAL_LOAD_DISTANCE; dz++) {
+                    long chunkPos = ChunkPos.asLong(portal.destChunkX() + dx, portal.destChunkZ() + dz);
+                    entries.add(new Entry(
+                        NETHER_ID, chunkPos,
+                        portalDistanceChunks + Math.max(Math.abs(dx), Math.abs(dz))
+                    ));
+                    if (i == 0) {
+                        visiblePortalChunks.add(chunkPos);
+                    }
+                }
+            }
+        }
+        
+        // the chunks get generated at random time
+        LongOpenHashSet readyChunks = new LongOpenHashSet();
+        List<int[]> readyTicks = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            readyTicks.add(new int[]{i, random.nextInt(0, 20)});
+        }
+        
+        for (Entry entry : entries) {
+            queue.add(
+                entry.dimensionId(), entry.chunkPos(), entry.distance(),
+                policy.getPriority(
+                    view, entry.dimensionId(), entry.chunkPos(), entry.distance(),
+                    entry.distance() == LOAD_DISTANCE
+                )
+            );
+        }
+        
+        int remainingVisible = visiblePortalChunks.size();
+        for (int tick = 0; tick < 10000; tick++) {
+            for (int[] readyTick : readyTicks) {
+                if (readyTick[1] == tick) {
+                    Entry entry = entries.get(readyTick[0]);
+                    readyChunks.add(entry.chunkPos() * 31 + entry.dimensionId());
+                }
+            }
+            
+            int sent = 0;
+            while (sent < SENDS_PER_TICK && !queue.isEmpty()) {
+                long key = queue.getTopChunkPos() * 31 + queue.getTopDimensionId();
+                if (!readyChunks.contains(key)) {
+                    queue.skipTop();
+                    continue;
+                }
+                if (queue.getTopDimensionId() == NETHER_ID &&
+                    visiblePortalChunks.remove(queue.getTopChunkPos())
+                ) {
+                    remainingVisible--;
+                }
+                queue.removeTop();
+                sent++;
+            }
+            queue.restoreSkipped();
+            
+            if (remainingVisible == 0) {
+                return tick + 1;
+            }
+        }
+        throw new AssertionError();
+    }
+    
+    @Test
+    public void testVisiblePortalLoadingTime() {
+        int distanceTicks = 0;
+        int viewAwareTicks = 0;
+        int roundNum = 20;
+        for (int seed = 0; seed < roundNum; seed++) {
+            distanceTicks += simulate(ChunkSendPriorityPolicy.DISTANCE, seed);
+            viewAwareTicks += simulate(ViewAwareChunkSendPolicy.INSTANCE, seed);
+        }
+        
+        LOGGER.info(
+            "Ticks until the visible portal's view is loaded: distance policy {}, view-aware policy {}",
+            (double) distanceTicks / roundNum, (double) viewAwareTicks / roundNum
+        );
+        
+        Validate.isTrue(viewAwareTicks < distanceTicks);
+    }
+}
@@ -0,0 +1,137 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import com.mojang.logging.LogUtils;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+
+@Testable
+public class ChunkTicketThrottleTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static final long TICK_NANOS = 50_000_000L;
+    
+    @Test
+    public void testLatencyPercentile() {
+        ChunkTicketThrottle throttle = new ChunkTicketThrottle();
+        Validate.isTrue(throttle.getLatencyPercentileNanos(50) == -1);
+        
+        for (int i = 1; i <= 100; i++) {
+            throttle.onCompleted(i, 0, false);
+        }
+        Validate.isTrue(throttle.getLatencyPercentileNanos(50) == 50);
+        Validate.isTrue(throttle.getLatencyPercentileNanos(90) == 90);
+        Validate.isTrue(throttle.getLatencyPercentileNanos(100) == 100);
+        Validate.isTrue(throttle.getCompletedNum() == 100);
+    }
+    
+    @Test
+    public void testLimitOnlyGrowsWhenWindowFull() {
+        ChunkTicketThrottle throttle = new ChunkTicketThrottle();
+        for (int i = 0; i < 1000; i++) {
+            throttle.onCompleted(1000, 0, false);
+        }
+        Validate.isTrue(throttle.getLimit(true) == ChunkTicketThrottle.FIXED_LIMIT);
+        
+        for (int i = 0; i < 1000; i++) {
+            throttle.onCompleted(1000, 0, true);
+        }
+        Validate.isTrue(throttle.getLimit(true) > ChunkTicketThrottle.FIXED_LIMIT);
+        Validate.isTrue(throttle.getLimit(false) == ChunkTicketThrottle.FIXED_LIMIT);
+    }
+    
+    @Test
+    public void testSlowTickHalvesOncePerCongestion() {
+        ChunkTicketThrottle throttle = new ChunkTicketThrottle();
+        for (int i = 0; i < 10000; i++) {
+            throttle.onCompleted(1000, 0, true);
+        }
+        int limit = throttle.getLimit(true);
+        
+        long time = 1_000_000_000_000L;
+        throttle.onTick(1.5, time);
+        Validate.isTrue(throttle.getLimit(true) == limit / 2);
+        throttle.onTick(1.5, time + TICK_NANOS);
+        Validate.isTrue(throttle.getLimit(true) == limit / 2);
+        throttle.onTick(1.5, time + ChunkTicketThrottle.DEFAULT_LATENCY_TARGET_NANOS + TICK_NANOS);
+        Validate.isTrue(throttle.getLimit(true) == limit / 4);
+    }
+    
+    private record SimulationResult(
+        int loadedNum, long p90LatencyNanos, int finalLimit
+    ) {}
+    
+    /**
+     * The chunk system has a number of workers that take the tickets in order.
+     * Each ticket needs a fixed amount of work from one worker.
+     * Like in ImmPtlChunkTickets, the completion is only observed in the next flush.
+     */
+    private static SimulationResult simulate(
+        int workerNum, long workNanos, boolean adaptive, int seconds
+    ) {
+        ChunkTicketThrottle throttle = new ChunkTicketThrottle();
+        
+        long[] workerFreeTimes = new long[workerNum];
+        // each is {issue time, finish time}
+        ArrayDeque<long[]> waiting = new ArrayDeque<>();
+        int loadedNum = 0;
+        
+        long endTime = seconds * 1_000_000_000L;
+        for (long time = 0; time < endTime; time += TICK_NANOS) {
+            // the flush. the tickets finish in order
+            while (!waiting.isEmpty() && waiting.peek()[1] <= time) {
+                long[] ticket = waiting.poll();
+                // there are always more chunks to load, so the window is full
+                throttle.onCompleted(time - ticket[0], time, true);
+                loadedNum++;
+            }
+            throttle.onTick(0.5, time);
+            
+            int limit = throttle.getLimit(adaptive);
+            while (waiting.size() < limit) {
+                int worker = 0;
+                for (int i = 1; i < workerNum; i++) {
+                    if (workerFreeTimes[i] < workerFreeTimes[worker]) {
+                        worker = i;
+                    }
+                }
+                long finishTime = Math.max(workerFreeTimes[worker], time) + workNanos;
+                workerFreeTimes[worker] = finishTime;
+                waiting.add(new long[]{time, finishTime});
+                throttle.onIssued();
+            }
+        }
+        
+        return new SimulationResult(
+            loadedNum, throttle.getLatencyPercentileNanos(90), throttle.getLimit(adaptive)
+        );
+    }
+    
+    @Test
+    public void testIdleChunkSystem() {
+        // many cores, fast loading
+        SimulationResult fixed = simulate(32, 200_000_000L, false, 120);
+        SimulationResult adaptive = simulate(32, 200_000_000L, true, 120);
+        
+        LOGGER.info("Idle chunk system: fixed {} adaptive {}", fixed, adaptive);
+        
+        Validate.isTrue(adaptive.loadedNum() > fixed.loadedNum() * 4);
+        Validate.isTrue(adaptive.p90LatencyNanos() <= ChunkTicketThrottle.DEFAULT_LATENCY_TARGET_NANOS);
+    }
+    
+    @Test
+    public void testBusyChunkSystem() {
+        // a few cores, slow loading
+        SimulationResult fixed = simulate(1, 1_000_000_000L, false, 300);
+        SimulationResult adaptive = simulate(1, 1_000_000_000L, true, 300);
+        
+        LOGGER.info("Busy chunk system: fixed {} adaptive {}", fixed, adaptive);
+        
+        Validate.isTrue(adaptive.finalLimit() <= ChunkTicketThrottle.FIXED_LIMIT);
+        Validate.isTrue(adaptive.loadedNum() >= fixed.loadedNum() * 0.9);
+        Validate.isTrue(adaptive.p90LatencyNanos() <= fixed.p90LatencyNanos());
+    }
+}
@@ -0,0 +1,173 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@Testable
+public class ChunkTrackingWorkersTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static final ResourceKey<Level> OVERWORLD = ResourceKey.create(
+        Registries.DIMENSION, ResourceLocation.withDefaultNamespace("overworld")
+    );
+    private static final ResourceKey<Level> NETHER = ResourceKey.create(
+        Registries.DIMENSION, ResourceLocation.withDefaultNamespace("the_nether")
+    );
+    
+    private record SimPortal(int x, int z, int destX, int destZ) {}
+    
+    private record SimPlayer(int id, int chunkX, int chunkZ, int loadDistance) {}
+    
+    // a simplified ChunkVisibility.foreachBaseChunkLoaders. it only reads the portals
+    private static ObjectOpenHashSet<ChunkLoader> collect(SimPlayer player, List<SimPortal> portals) {
+        ObjectOpenHashSet<ChunkLoader> result = new ObjectOpenHashSet<>();
+        result.add(new ChunkLoader(OVERWORLD, player.chunkX(), player.chunkZ(), player.loadDistance()));
+        for (SimPortal portal : portals) {
+            int distance = Math.max(
+                Math.abs(portal.x() - player.chunkX()), Math.abs(portal.z() - player.chunkZ())
+            );
+            if (distance <= 8) {
+                result.add(new ChunkLoader(
+                    NETHER, portal.destX(), portal.destZ(),
+                    Math.max(2, player.loadDistance() - distance)
+                ));
+            }
+        }
+        return result;
+    }
+    
+    // like the full-mode apply: the minimum distance of each chunk, and the order of first watching
+    private static void apply(
+        SimPlayer player, ObjectOpenHashSet<ChunkLoader> loaders,
+        Long2IntOpenHashMap distances, List<Long> watchOrder
+    ) {
+        for (ChunkLoader loader : loaders) {
+            loader.foreachChunkPos((dim, x, z, dist) -> {
+                long key = ChunkPos.asLong(x, z) * 31 + dim.hashCode() * 7L + player.id();
+                if (!distances.containsKey(key)) {
+                    watchOrder.add(key);
+                    distances.put(key, dist);
+                }
+                else {
+                    distances.put(key, Math.min(distances.get(key), dist));
+                }
+            });
+        }
+    }
+    
+    private static List<SimPlayer> createPlayers(Random random, int num) {
+        List<SimPlayer> result = new ArrayList<>();
+        for (int i = 0; i < num; i++) {
+            result.add(new SimPlayer(
+                i, random.nextInt(-100, 100), random.nextInt(-100, 100), random.nextInt(4, 12)
+            ));
+        }
+        return result;
+    }
+    
+    private static List<SimPortal> createPortals(Random random, int num) {
+        List<SimPortal> result = new ArrayList<>();
+        for (int i = 0; i < num; i++) {
+            int x = random.nextInt(-100, 100);
+            int z = random.nextInt(-100, 100);
+            result.add(new SimPortal(x, z, x / 8, z / 8));
+        }
+        return result;
+    }
+    
+    @Test
+    public void testParallelMatchesSerial() {
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            List<SimPlayer> players = createPlayers(random, random.nextInt(1, 40));
+            List<SimPortal> portals = createPortals(random, 200);
+            
+            List<ObjectOpenHashSet<ChunkLoader>> serialResults = ChunkTrackingWorkers.computeInOrder(
+                players, p -> collect(p, portals), false
+            );
+            List<ObjectOpenHashSet<ChunkLoader>> parallelResults = ChunkTrackingWorkers.computeInOrder(
+                players, p -> collect(p, portals), true
+            );
+            Validate.isTrue(serialResults.equals(parallelResults), "loader mismatch at seed %d", seed);
+            
+            Long2IntOpenHashMap serialDistances = new Long2IntOpenHashMap();
+            List<Long> serialOrder = new ArrayList<>();
+            Long2IntOpenHashMap parallelDistances = new Long2IntOpenHashMap();
+            List<Long> parallelOrder = new ArrayList<>();
+            for (int i = 0; i < players.size(); i++) {
+                apply(players.get(i), serialResults.get(i), serialDistances, serialOrder);
+                apply(players.get(i), parallelResults.get(i), parallelDistances, parallelOrder);
+            }
+            
+            Validate.isTrue(serialDistances.equals(parallelDistances), "distance mismatch at seed %d", seed);
+            Validate.isTrue(serialOrder.equals(parallelOrder), "apply order mismatch at seed %d", seed);
+        }
+    }
+    
+    @Test
+    public void testExceptionIsRethrown() {
+        List<Integer> inputs = List.of(1, 2, 3, 4, 5, 6);
+        try {
+            ChunkTrackingWorkers.computeInOrder(
+                inputs,
+                i -> {
+                    if (i == 4) {
+                        throw new IllegalStateException("test");
+                    }
+                    return i;
+                },
+                true
+            );
+            throw new AssertionError();
+        }
+        catch (IllegalStateException e) {
+            Validate.isTrue(e.getMessage().equals("test"));
+        }
+    }
+    
+    @Test
+    public void benchmark() {
+        Random random = new Random(11);
+        List<SimPlayer> players = createPlayers(random, 64);
+        List<SimPortal> portals = createPortals(random, 2000);
+        
+        int rounds = 200;
+        long sink = 0;
+        for (int round = 0; round < rounds; round++) {
+            sink += ChunkTrackingWorkers.computeInOrder(players, p -> collect(p, portals), false).size();
+            sink += ChunkTrackingWorkers.computeInOrder(players, p -> collect(p, portals), true).size();
+        }
+        
+        long serialStart = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            sink += ChunkTrackingWorkers.computeInOrder(players, p -> collect(p, portals), false).size();
+        }
+        long serialTime = System.nanoTime() - serialStart;
+        
+        long parallelStart = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            sink += ChunkTrackingWorkers.computeInOrder(players, p -> collect(p, portals), true).size();
+        }
+        long parallelTime = System.nanoTime() - parallelStart;
+        
+        LOGGER.info(
+            "{} players, {} portals: serial {} us, parallel {} us ({})",
+            players.size(), portals.size(),
+            serialTime / rounds / 1000, parallelTime / rounds / 1000, sink
+        );
+    }
+}
@@ -0,0 +1,178 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import com.mojang.logging.LogUtils;
+import io.netty.buffer.Unpooled;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.protocol.BundlerInfo;
+import net.minecraft.network.protocol.game.ClientboundMoveEntityPacket;
+import net.minecraft.network.protocol.game.VecDeltaCodec;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.util.Mth;
+import net.minecraft.world.phys.Vec3;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+import qouteall.imm_ptl.core.IPGlobal;
+import qouteall.imm_ptl.core.network.PacketRedirection;
+
+import java.util.Random;
+
+/**
+ * Models the per-tick work of {@link EntitySync#tick} for 10k moving mobs:
+ * computing the position delta and the move packet like ServerEntity.sendChanges(),
+ * then redirecting and encoding it for each viewer.
+ */
+@Testable
+public class EntitySyncBenchmarkTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static final int MOB_NUM = 10000;
+    private static final int TICKS = 100;
+    
+    private static final class Mob {
+        final int id;
+        final VecDeltaCodec positionCodec = new VecDeltaCodec();
+        Vec3 position;
+        float yRot;
+        float xRot;
+        
+        Mob(int id, Vec3 position) {
+            this.id = id;
+            this.position = position;
+            positionCodec.setBase(position);
+        }
+    }
+    
+    private static Mob[] createMobs(long seed) {
+        Random random = new Random(seed);
+        Mob[] mobs = new Mob[MOB_NUM];
+        for (int i = 0; i < MOB_NUM; i++) {
+            mobs[i] = new Mob(i, new Vec3(
+                random.nextDouble() * 1000, 64, random.nextDouble() * 1000
+            ));
+        }
+        return mobs;
+    }
+    
+    private static void moveMobs(Mob[] mobs, Random random) {
+        for (Mob mob : mobs) {
+            mob.position = mob.position.add(
+                random.nextDouble() * 0.2 - 0.1, 0, random.nextDouble() * 0.2 - 0.1
+            );
+            mob.yRot += random.nextFloat() * 10 - 5;
+        }
+    }
+    
+    // the position part of ServerEntity.sendChanges()
+    private static ClientboundMoveEntityPacket computeChanges(Mob mob) {
+        long dx = mob.positionCodec.encodeX(mob.position);
+        long dy = mob.positionCodec.encodeY(mob.position);
+        long dz = mob.positionCodec.encodeZ(mob.position);
+        mob.positionCodec.setBase(mob.position);
+        return new ClientboundMoveEntityPacket.PosRot(
+            mob.id, (short) dx, (short) dy, (short) dz,
+            Mth.packDegrees(mob.yRot), Mth.packDegrees(mob.xRot), true
+        );
+    }
+    
+    private record Result(long nanosPerTick, long sendsPerTick, long bytes) {}
+    
+    /**
+     * @param skipUnwatched the fast path of {@link IPGlobal#skipUnwatchedEntityChanges}
+     * @param bundle        {@link IPGlobal#bundleEntityChangePackets}.
+     *                      The packets of a connection are sent as one bundle per {@link BundlerInfo#BUNDLE_SIZE_LIMIT}
+     */
+    private static Result run(int viewerNum, boolean skipUnwatched, boolean bundle) {
+        Mob[] mobs = createMobs(42);
+        Random random = new Random(42);
+        RegistryFriendlyByteBuf[] connections = new RegistryFriendlyByteBuf[viewerNum];
+        for (int i = 0; i < viewerNum; i++) {
+            connections[i] = new RegistryFriendlyByteBuf(Unpooled.buffer(), RegistryAccess.EMPTY);
+        }
+        
+        long totalNanos = 0;
+        long sends = 0;
+        long bytes = 0;
+        long sink = 0;
+        for (int tick = 0; tick < TICKS; tick++) {
+            moveMobs(mobs, random);
+            
+            long start = System.nanoTime();
+            int packetNum = 0;
+            for (Mob mob : mobs) {
+                if (skipUnwatched && viewerNum == 0) {
+                    // the last sent state is brought up to date when a player starts tracking
+                    continue;
+                }
+                
+                ClientboundMoveEntityPacket packet = computeChanges(mob);
+                sink += packet.isOnGround() ? 1 : 0;
+                if (viewerNum == 0) {
+                    continue;
+                }
+                
+                packetNum++;
+                PacketRedirection.Payload payload = new PacketRedirection.Payload(0, packet);
+                for (int i = 0; i < viewerNum; i++) {
+                    payload.sharedEncoding().retain();
+                }
+                for (RegistryFriendlyByteBuf connection : connections) {
+                    payload.write(connection);
+                }
+            }
+            totalNanos += System.nanoTime() - start;
+            
+            int sendsPerConnection = bundle ?
+                Mth.positiveCeilDiv(packetNum, BundlerInfo.BUNDLE_SIZE_LIMIT) : packetNum;
+            sends += (long) sendsPerConnection * viewerNum;
+            
+            for (RegistryFriendlyByteBuf connection : connections) {
+                bytes += connection.readableBytes();
+                connection.clear();
+            }
+        }
+        
+        for (RegistryFriendlyByteBuf connection : connections) {
+            connection.release();
+        }
+        
+        LOGGER.debug("sink {}", sink);
+        return new Result(totalNanos / TICKS, sends / TICKS, bytes / TICKS);
+    }
+    
+    @Test
+    public void benchmark() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            run(1, false, false);
+            run(0, true, false);
+        }
+        
+        for (int viewerNum : new int[]{0, 1, 20}) {
+            Result always = run(viewerNum, false, false);
+            Result skip = run(viewerNum, true, false);
+            Result bundled = run(viewerNum, true, true);
+            
+            LOGGER.info(
+                "{} mobs, {} viewers: always send changes {} us/tick, skip unwatched {} us/tick, connection sends/tick {} -> {} bundled, {} bytes/tick",
+                MOB_NUM, viewerNum,
+                always.nanosPerTick() / 1000, skip.nanosPerTick() / 1000,
+                skip.sendsPerTick(), bundled.sendsPerTick(), skip.bytes()
+            );
+            
+            if (viewerNum == 0) {
+                Validate.isTrue(skip.nanosPerTick() < always.nanosPerTick());
+            }
+            else {
+                Validate.isTrue(skip.bytes() == always.bytes());
+                Validate.isTrue(bundled.sendsPerTick() < skip.sendsPerTick());
+            }
+        }
+    }
+}
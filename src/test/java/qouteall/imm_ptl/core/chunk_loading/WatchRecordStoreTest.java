@@ -0,0 +1,105 @@
+package qouteall.imm_ptl.core.chunk_loading;
+
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+
+import java.util.HashMap;
+import java.util.Random;
+
+@Testable
+public class WatchRecordStoreTest {
+    private record Key(long chunkPos, int playerIndex) {}
+    
+    private static final class Value {
+        int distance;
+        boolean loaded;
+        boolean boundary;
+        int generation;
+        
+        Value(int distance, boolean boundary, int generation) {
+            this.distance = distance;
+            this.boundary = boundary;
+            this.generation = generation;
+        }
+    }
+    
+    @Test
+    public void testAgainstReference() {
+        Random random = new Random(42);
+        WatchRecordStore store = new WatchRecordStore(0);
+        HashMap<Key, Value> reference = new HashMap<>();
+        
+        for (int generation = 0; generation < 30; generation++) {
+            for (int i = 0; i < 2000; i++) {
+                long chunkPos = random.nextInt(64);
+                int playerIndex = random.nextInt(8);
+                int distance = random.nextInt(20);
+                boolean boundary = random.nextBoolean();
+                
+                int slot = store.findSlot(chunkPos, playerIndex);
+                Value value = reference.get(new Key(chunkPos, playerIndex));
+                Validate.isTrue((slot == -1) == (value == null));
+                
+                if (slot == -1) {
+                    store.addRecord(chunkPos, playerIndex, generation, distance, boundary);
+                    reference.put(new Key(chunkPos, playerIndex), new Value(distance, boundary, generation));
+                }
+                else {
+                    Validate.isTrue(store.getDistanceToSource(slot) == value.distance);
+                    Validate.isTrue(store.isBoundary(slot) == value.boundary);
+                    Validate.isTrue(store.isLoadedToPlayer(slot) == value.loaded);
+                    Validate.isTrue(store.getLastWatchGeneration(slot) == value.generation);
+                    
+                    store.setDistanceToSource(slot, distance);
+                    store.setBoundary(slot, boundary);
+                    store.setLastWatchGeneration(slot, generation);
+                    value.distance = distance;
+                    value.boundary = boundary;
+                    value.generation = generation;
+                    if (random.nextBoolean()) {
+                        store.setLoadedToPlayer(slot, true);
+                        value.loaded = true;
+                    }
+                }
+            }
+            
+            int currGeneration = generation;
+            store.removeIf(slot -> currGeneration - store.getLastWatchGeneration(slot) > 2);
+            reference.values().removeIf(v -> currGeneration - v.generation > 2);
+            
+            Validate.isTrue(store.getRecordNum() == reference.size());
+            long chunkNum = reference.keySet().stream().mapToLong(Key::chunkPos).distinct().count();
+            Validate.isTrue(store.getChunkNum() == chunkNum);
+        }
+    }
+    
+    @Test
+    public void testChangedChunks() {
+        WatchRecordStore store = new WatchRecordStore(0);
+        
+        // the records not loaded to player don't change entity tracking
+        int slot1 = store.addRecord(1, 0, 0, 3, false);
+        int slot2 = store.addRecord(2, 0, 0, 3, false);
+        store.setDistanceToSource(slot1, 2);
+        store.setDistanceToSource(slot2, 1);
+        Validate.isTrue(store.getChangedChunks().isEmpty());
+        
+        store.setLoadedToPlayer(slot1, true);
+        store.setLoadedToPlayer(slot1, true);
+        Validate.isTrue(store.getChangedChunks().size() == 1);
+        Validate.isTrue(store.getChangedChunks().contains(1));
+        store.clearChangedChunks();
+        
+        store.setDistanceToSource(slot1, 2);
+        Validate.isTrue(store.getChangedChunks().isEmpty());
+        store.setDistanceToSource(slot1, 1);
+        Validate.isTrue(store.getChangedChunks().contains(1));
+        store.clearChangedChunks();
+        
+        store.removeIf(slot -> true);
+        Validate.isTrue(store.getChangedChunks().size() == 1);
+        Validate.isTrue(store.getChangedChunks().contains(1));
+        Validate.isTrue(!store.getChangedChunks().contains(2));
+    }
+}
@@ -0,0 +1,182 @@
+package qouteall.imm_ptl.core.collision;
+
+import com.mojang.logging.LogUtils;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.Random;
+
+@Testable
+public class GlobalPortalBroadPhaseTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static final int ENTITY_NUM = 10000;
+    
+    // 4 outer and 2 inner world wrapping walls, and the vertical connecting floor and ceiling
+    private static double[] createGlobalPortalBoxes() {
+        double thickness = 0.01;
+        double huge = 3.0e7;
+        return new double[]{
+            -1000 - thickness, -64, -1000, -1000 + thickness, 320, 1000,
+            1000 - thickness, -64, -1000, 1000 + thickness, 320, 1000,
+            -1000, -64, -1000 - thickness, 1000, 320, -1000 + thickness,
+            -1000, -64, 1000 - thickness, 1000, 320, 1000 + thickness,
+            -500 - thickness, -64, -500, -500 + thickness, 320, 500,
+            500 - thickness, -64, -500, 500 + thickness, 320, 500,
+            -huge, -64 - thickness, -huge, huge, -64 + thickness, huge,
+            -huge, 320 - thickness, -huge, huge, 320 + thickness, huge,
+        };
+    }
+    
+    private static double[] createEntityBoxes(Random random) {
+        double[] result = new double[ENTITY_NUM * 6];
+        for (int i = 0; i < ENTITY_NUM; i++) {
+            double x = random.nextDouble(-1100, 1100);
+            double y = random.nextDouble(-70, 330);
+            double z = random.nextDouble(-1100, 1100);
+            double halfWidth = random.nextDouble(0.1, 2);
+            double height = random.nextDouble(0.2, 4);
+            result[i * 6] = x - halfWidth;
+            result[i * 6 + 1] = y;
+            result[i * 6 + 2] = z - halfWidth;
+            result[i * 6 + 3] = x + halfWidth;
+            result[i * 6 + 4] = y + height;
+            result[i * 6 + 5] = z + halfWidth;
+        }
+        return result;
+    }
+    
+    // test every entity box against every global portal box
+    private static int queryNaive(double[] portalBoxes, double[] entityBoxes, int entity, int[] result) {
+        int e = entity * 6;
+        int resultNum = 0;
+        for (int p = 0; p < portalBoxes.length / 6; p++) {
+            int o = p * 6;
+            if (entityBoxes[e] < portalBoxes[o + 3] && entityBoxes[e + 3] > portalBoxes[o] &&
+                entityBoxes[e + 1] < portalBoxes[o + 4] && entityBoxes[e + 4] > portalBoxes[o + 1] &&
+                entityBoxes[e + 2] < portalBoxes[o + 5] && entityBoxes[e + 5] > portalBoxes[o + 2]
+            ) {
+                result[resultNum++] = p;
+            }
+        }
+        return resultNum;
+    }
+    
+    private static int queryBroadPhase(
+        GlobalPortalBroadPhase broadPhase, double[] entityBoxes, int entity, int[] result
+    ) {
+        int o = entity * 6;
+        return broadPhase.query(
+            entityBoxes[o], entityBoxes[o + 1], entityBoxes[o + 2],
+            entityBoxes[o + 3], entityBoxes[o + 4], entityBoxes[o + 5],
+            result
+        );
+    }
+    
+    @Test
+    public void testMatchesNaive() {
+        Random random = new Random(7);
+        double[] portalBoxes = createGlobalPortalBoxes();
+        GlobalPortalBroadPhase broadPhase = new GlobalPortalBroadPhase(portalBoxes);
+        
+        // also include entities that are exactly on the portals
+        double[] entityBoxes = createEntityBoxes(random);
+        for (int i = 0; i < 100; i++) {
+            int o = i * 6;
+            entityBoxes[o] = 999.5;
+            entityBoxes[o + 3] = 1000.5;
+            entityBoxes[o + 1] = 319;
+            entityBoxes[o + 4] = 321;
+        }
+        
+        int[] expected = new int[broadPhase.getBoxNum()];
+        int[] actual = new int[broadPhase.getBoxNum()];
+        int hitNum = 0;
+        for (int i = 0; i < ENTITY_NUM; i++) {
+            int expectedNum = queryNaive(portalBoxes, entityBoxes, i, expected);
+            int actualNum = queryBroadPhase(broadPhase, entityBoxes, i, actual);
+            Validate.isTrue(expectedNum == actualNum, "mismatch at %d", i);
+            for (int j = 0; j < expectedNum; j++) {
+                Validate.isTrue(expected[j] == actual[j], "order mismatch at %d", i);
+            }
+            hitNum += actualNum;
+        }
+        Validate.isTrue(hitNum > 0);
+    }
+    
+    // many thin walls, half along x and half along z
+    private static double[] createManyGlobalPortalBoxes(int num) {
+        double thickness = 0.01;
+        double[] result = new double[num * 6];
+        for (int i = 0; i < num; i++) {
+            double pos = -1000 + 2000.0 * (i / 2) / (num / 2);
+            int o = i * 6;
+            if (i % 2 == 0) {
+                double[] box = {pos - thickness, -64, -1000, pos + thickness, 320, 1000};
+                System.arraycopy(box, 0, result, o, 6);
+            }
+            else {
+                double[] box = {-1000, -64, pos - thickness, 1000, 320, pos + thickness};
+                System.arraycopy(box, 0, result, o, 6);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * 10k entities and 8 global portals, like one tick of the colliding portal update.
+     * Also with more global portals to show the scaling.
+     * The broad phase is used from {@link GlobalPortalBroadPhase#MIN_BOX_NUM} portals.
+     */
+    @Test
+    public void benchmark() {
+        Random random = new Random(8);
+        double[] entityBoxes = createEntityBoxes(random);
+        
+        benchmark("4 global portals", createManyGlobalPortalBoxes(4), entityBoxes);
+        benchmark("6 global portals", createManyGlobalPortalBoxes(6), entityBoxes);
+        benchmark("8 global portals", createGlobalPortalBoxes(), entityBoxes);
+        benchmark("64 global portals", createManyGlobalPortalBoxes(64), entityBoxes);
+    }
+    
+    private static void benchmark(String name, double[] portalBoxes, double[] entityBoxes) {
+        int[] result = new int[portalBoxes.length / 6];
+        
+        int rounds = 500;
+        long sink = 0;
+        
+        // it's cached and only rebuilt when the global portals change
+        GlobalPortalBroadPhase broadPhase = new GlobalPortalBroadPhase(portalBoxes);
+        
+        // warm up
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < ENTITY_NUM; i++) {
+                sink += queryNaive(portalBoxes, entityBoxes, i, result);
+                sink += queryBroadPhase(broadPhase, entityBoxes, i, result);
+            }
+        }
+        
+        long naiveStart = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < ENTITY_NUM; i++) {
+                sink += queryNaive(portalBoxes, entityBoxes, i, result);
+            }
+        }
+        long naiveTime = System.nanoTime() - naiveStart;
+        
+        long broadPhaseStart = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < ENTITY_NUM; i++) {
+                sink += queryBroadPhase(broadPhase, entityBoxes, i, result);
+            }
+        }
+        long broadPhaseTime = System.nanoTime() - broadPhaseStart;
+        
+        LOGGER.info(
+            "{} entities, {}: naive {} us/tick, broad phase {} us/tick ({})",
+            ENTITY_NUM, name, naiveTime / rounds / 1000, broadPhaseTime / rounds / 1000, sink
+        );
+    }
+}
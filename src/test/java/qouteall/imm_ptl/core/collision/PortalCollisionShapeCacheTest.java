@@ -0,0 +1,210 @@
+package qouteall.imm_ptl.core.collision;
+
+import com.mojang.logging.LogUtils;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.phys.AABB;
+import net.minecraft.world.phys.shapes.BooleanOp;
+import net.minecraft.world.phys.shapes.Shapes;
+import net.minecraft.world.phys.shapes.VoxelShape;
+import org.apache.commons.lang3.Validate;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * The portal is the plane x = 0.5, in the middle of a column of blocks.
+ * The entities stand on the floor and are pressed against the portal, like in a mob farm.
+ */
+@Testable
+public class PortalCollisionShapeCacheTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static final int ENTITY_NUM = 500;
+    private static final int TICKS = 20;
+    // the normal collision, the stepping, the vertical step and the moving down after stepping
+    private static final int COLLISION_PASSES_PER_TICK = 4;
+    
+    private static final VoxelShape FULL_BLOCK = Shapes.block();
+    private static final VoxelShape SLAB = Shapes.box(0, 0, 0, 1, 0.5, 1);
+    private static final VoxelShape FENCE_POST = Shapes.box(0.375, 0, 0.375, 0.625, 1.5, 0.625);
+    
+    // the inner clipping of the other side, keeping the part in front of the plane
+    private static final UnaryOperator<VoxelShape> CLIPPING = shape -> {
+        AABB bounds = shape.bounds();
+        if (bounds.maxX <= 0.5) {
+            return null;
+        }
+        if (bounds.minX >= 0.5) {
+            return shape;
+        }
+        return Shapes.joinUnoptimized(
+            shape,
+            Shapes.create(new AABB(0.5, bounds.minY, bounds.minZ, bounds.maxX, bounds.maxY, bounds.maxZ)),
+            BooleanOp.AND
+        );
+    };
+    
+    // the collision exclusion of this side, which is the portal area behind the portal
+    private static final VoxelShape EXCLUSION = Shapes.create(new AABB(0.5, -64, -50, 2, 320, 50));
+    private static final UnaryOperator<VoxelShape> EXCLUDING = shape -> {
+        if (!shape.bounds().intersects(EXCLUSION.bounds())) {
+            return shape;
+        }
+        return Shapes.joinUnoptimized(shape, EXCLUSION, BooleanOp.ONLY_FIRST);
+    };
+    
+    private static @Nullable VoxelShape getBlockShape(int x, int y, int z) {
+        if (y == -1) {
+            return FULL_BLOCK;
+        }
+        if (x == -1 && y == 0) {
+            return FULL_BLOCK;
+        }
+        if (x == 0 && y == 0 && Math.floorMod(z, 3) == 0) {
+            return SLAB;
+        }
+        if (x == 1 && y == 0 && Math.floorMod(z, 4) == 0) {
+            return FENCE_POST;
+        }
+        return null;
+    }
+    
+    private static double getEntityZ(int entity) {
+        // 50 lanes along the portal, with 10 entities crowded in each lane
+        return (entity % 50) * 0.6 - 15 + (entity / 50) * 0.01;
+    }
+    
+    private interface ShapeConsumer {
+        void accept(BlockPos blockPos, VoxelShape sourceShape, VoxelShape shape);
+    }
+    
+    // like BlockCollisions, the shapes are moved to the block positions for each query
+    private static void forEachBlockCollision(int entity, ShapeConsumer consumer) {
+        double z = getEntityZ(entity);
+        for (int bx = -1; bx <= 1; bx++) {
+            for (int by = -1; by <= 1; by++) {
+                for (int bz = (int) Math.floor(z - 0.3) - 1; bz <= (int) Math.floor(z + 0.3) + 1; bz++) {
+                    VoxelShape sourceShape = getBlockShape(bx, by, bz);
+                    if (sourceShape != null) {
+                        consumer.accept(new BlockPos(bx, by, bz), sourceShape, sourceShape.move(bx, by, bz));
+                    }
+                }
+            }
+        }
+    }
+    
+    private static boolean isSameShape(@Nullable VoxelShape a, @Nullable VoxelShape b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return !Shapes.joinIsNotEmpty(a, b, BooleanOp.NOT_SAME);
+    }
+    
+    @Test
+    public void testSameResult() {
+        for (UnaryOperator<VoxelShape> op : List.of(CLIPPING, EXCLUDING)) {
+            PortalCollisionShapeCache cache = new PortalCollisionShapeCache();
+            PortalCollisionShapeCache.LevelIndex levelIndex = new PortalCollisionShapeCache.LevelIndex();
+            
+            for (int pass = 0; pass < 2; pass++) {
+                for (int entity = 0; entity < ENTITY_NUM; entity++) {
+                    forEachBlockCollision(entity, (blockPos, sourceShape, shape) -> {
+                        VoxelShape expected = op.apply(shape);
+                        VoxelShape cached = cache.getOrCompute(levelIndex, blockPos, sourceShape, shape, op);
+                        Validate.isTrue(isSameShape(expected, cached));
+                    });
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testInvalidation() {
+        PortalCollisionShapeCache cache = new PortalCollisionShapeCache();
+        PortalCollisionShapeCache.LevelIndex levelIndex = new PortalCollisionShapeCache.LevelIndex();
+        
+        BlockPos pos1 = new BlockPos(0, 0, 0);
+        BlockPos pos2 = new BlockPos(0, 0, 3);
+        BlockPos pos3 = new BlockPos(0, 0, 20);
+        cache.getOrCompute(levelIndex, pos1, SLAB, SLAB.move(0, 0, 0), EXCLUDING);
+        cache.getOrCompute(levelIndex, pos2, SLAB, SLAB.move(0, 0, 3), EXCLUDING);
+        cache.getOrCompute(levelIndex, pos3, SLAB, SLAB.move(0, 0, 20), EXCLUDING);
+        Validate.isTrue(cache.getEntryNum() == 3);
+        
+        long hitNum = PortalCollisionShapeCache.getHitNum();
+        cache.getOrCompute(levelIndex, pos1, SLAB, SLAB.move(0, 0, 0), EXCLUDING);
+        Validate.isTrue(PortalCollisionShapeCache.getHitNum() == hitNum + 1);
+        
+        // the block is replaced. the key has a different source shape so the old result is not used
+        VoxelShape replaced = cache.getOrCompute(levelIndex, pos1, FULL_BLOCK, FULL_BLOCK.move(0, 0, 0), EXCLUDING);
+        Validate.isTrue(isSameShape(replaced, EXCLUDING.apply(FULL_BLOCK)));
+        Validate.isTrue(cache.getEntryNum() == 4);
+        
+        // the block update drops the entries of the section
+        levelIndex.onBlockChanged(new BlockPos(5, 5, 5));
+        Validate.isTrue(cache.getEntryNum() == 1);
+        
+        long missNum = PortalCollisionShapeCache.getMissNum();
+        cache.getOrCompute(levelIndex, pos1, SLAB, SLAB.move(0, 0, 0), EXCLUDING);
+        Validate.isTrue(PortalCollisionShapeCache.getMissNum() == missNum + 1);
+        
+        cache.clear();
+        Validate.isTrue(cache.getEntryNum() == 0);
+        // the cleared cache is no longer in the index
+        levelIndex.onBlockChanged(pos1);
+        Validate.isTrue(cache.getEntryNum() == 0);
+    }
+    
+    private static long runTicks(@Nullable PortalCollisionShapeCache cache, UnaryOperator<VoxelShape> op) {
+        PortalCollisionShapeCache.LevelIndex levelIndex = new PortalCollisionShapeCache.LevelIndex();
+        long[] sink = new long[1];
+        long start = System.nanoTime();
+        for (int tick = 0; tick < TICKS; tick++) {
+            for (int entity = 0; entity < ENTITY_NUM; entity++) {
+                for (int pass = 0; pass < COLLISION_PASSES_PER_TICK; pass++) {
+                    forEachBlockCollision(entity, (blockPos, sourceShape, shape) -> {
+                        VoxelShape result = cache == null ? op.apply(shape) :
+                            cache.getOrCompute(levelIndex, blockPos, sourceShape, shape, op);
+                        if (result != null) {
+                            sink[0]++;
+                        }
+                    });
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        LOGGER.debug("sink {}", sink[0]);
+        return nanos;
+    }
+    
+    @Test
+    public void benchmark() {
+        for (UnaryOperator<VoxelShape> op : List.of(CLIPPING, EXCLUDING)) {
+            // warm up
+            runTicks(null, op);
+            runTicks(new PortalCollisionShapeCache(), op);
+            
+            long uncachedNanos = runTicks(null, op);
+            
+            long hitNum = PortalCollisionShapeCache.getHitNum();
+            long missNum = PortalCollisionShapeCache.getMissNum();
+            long cachedNanos = runTicks(new PortalCollisionShapeCache(), op);
+            long hits = PortalCollisionShapeCache.getHitNum() - hitNum;
+            long misses = PortalCollisionShapeCache.getMissNum() - missNum;
+            
+            LOGGER.info(
+                "{}: {} entities, uncached {} ms/tick, cached {} ms/tick, hit rate {}%",
+                op == CLIPPING ? "Clipping" : "Excluding", ENTITY_NUM,
+                String.format("%.3f", uncachedNanos / 1e6 / TICKS),
+                String.format("%.3f", cachedNanos / 1e6 / TICKS),
+                String.format("%.2f", hits * 100.0 / (hits + misses))
+            );
+            
+            Validate.isTrue(cachedNanos < uncachedNanos);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package qouteall.imm_ptl.core.network;
+
+import com.mojang.logging.LogUtils;
+import io.netty.buffer.Unpooled;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.DoubleTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.world.phys.Vec3;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.Random;
+
+@Testable
+public class PortalSyncDeltaTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    // the same layout as Portal.addAdditionalSaveData()
+    private static CompoundTag createPortalData(Random random, boolean withMesh) {
+        CompoundTag tag = new CompoundTag();
+        tag.putDouble("width", 4);
+        tag.putDouble("height", 5);
+        tag.putDouble("thickness", 0);
+        putVec(tag, "axisW", new Vec3(1, 0, 0));
+        putVec(tag, "axisH", new Vec3(0, 1, 0));
+        tag.putString("dimensionTo", "minecraft:the_nether");
+        putVec(tag, "destination", new Vec3(random.nextDouble() * 1000, 64, random.nextDouble() * 1000));
+        
+        CompoundTag shapeTag = new CompoundTag();
+        if (withMesh) {
+            shapeTag.putString("type", "imm_ptl:special_flat");
+            ListTag points = new ListTag();
+            for (int i = 0; i < 600; i++) {
+                points.add(DoubleTag.valueOf(random.nextDouble()));
+            }
+            shapeTag.put("points", points);
+        }
+        else {
+            shapeTag.putString("type", "imm_ptl:rectangular");
+        }
+        tag.put("portalShape", shapeTag);
+        
+        tag.putBoolean("teleportable", true);
+        tag.putDouble("rotationA", 1);
+        tag.putDouble("rotationB", 0);
+        tag.putDouble("rotationC", 0);
+        tag.putDouble("rotationD", 0);
+        tag.putBoolean("interactable", true);
+        tag.putDouble("scale", 1);
+        tag.putBoolean("teleportChangesScale", false);
+        tag.putBoolean("teleportChangesGravity", false);
+        tag.putBoolean("fuseView", false);
+        tag.putBoolean("renderingMergable", false);
+        tag.putBoolean("hasCrossPortalCollision", true);
+        tag.putBoolean("doRenderPlayer", true);
+        tag.putBoolean("isVisible", true);
+        
+        CompoundTag animationTag = new CompoundTag();
+        animationTag.putInt("durationTicks", 0);
+        tag.put("animation", animationTag);
+        
+        return tag;
+    }
+    
+    private static void putVec(CompoundTag tag, String name, Vec3 vec) {
+        tag.putDouble(name + "X", vec.x);
+        tag.putDouble(name + "Y", vec.y);
+        tag.putDouble(name + "Z", vec.z);
+    }
+    
+    private static PortalSyncDelta roundTrip(PortalSyncDelta delta) {
+        FriendlyByteBuf buf = new FriendlyByteBuf(Unpooled.buffer());
+        delta.write(buf);
+        PortalSyncDelta result = PortalSyncDelta.read(buf);
+        Validate.isTrue(buf.readableBytes() == 0);
+        return result;
+    }
+    
+    private static int getDeltaBytes(PortalSyncDelta delta) {
+        FriendlyByteBuf buf = new FriendlyByteBuf(Unpooled.buffer());
+        delta.write(buf);
+        return buf.readableBytes();
+    }
+    
+    // the portal data part of PortalSyncPacket: the position and the NBT
+    private static int getFullBytes(CompoundTag data) {
+        FriendlyByteBuf buf = new FriendlyByteBuf(Unpooled.buffer());
+        buf.writeDouble(0);
+        buf.writeDouble(0);
+        buf.writeDouble(0);
+        buf.writeNbt(data);
+        return buf.readableBytes();
+    }
+    
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(3);
+        
+        for (int i = 0; i < 200; i++) {
+            CompoundTag oldData = createPortalData(random, random.nextBoolean());
+            Vec3 oldPos = new Vec3(random.nextDouble(), random.nextDouble(), random.nextDouble());
+            
+            CompoundTag newData = oldData.copy();
+            Vec3 newPos = random.nextBoolean() ? oldPos : oldPos.add(0, 1, 0);
+            if (random.nextBoolean()) {
+                putVec(newData, "destination", new Vec3(random.nextDouble(), 70, random.nextDouble()));
+            }
+            if (random.nextBoolean()) {
+                // the rotation becomes null
+                newData.remove("rotationA");
+                newData.remove("rotationB");
+                newData.remove("rotationC");
+                newData.remove("rotationD");
+            }
+            if (random.nextBoolean()) {
+                newData.putString("portalTag", "tag" + random.nextInt());
+            }
+            if (random.nextBoolean()) {
+                // a state key that is not a double tag falls back to NBT
+                newData.putFloat("scale", 2);
+            }
+            if (random.nextBoolean()) {
+                newData.getCompound("animation").putInt("durationTicks", random.nextInt(10));
+            }
+            
+            PortalSyncDelta delta = roundTrip(PortalSyncDelta.diff(oldData, oldPos, newData, newPos));
+            
+            Validate.isTrue(delta.apply(oldData).equals(newData), "data mismatch %s", delta);
+            Validate.isTrue(delta.applyPos(oldPos).equals(newPos), "pos mismatch %s", delta);
+        }
+    }
+    
+    @Test
+    public void testUnchanged() {
+        CompoundTag data = createPortalData(new Random(4), true);
+        PortalSyncDelta delta = PortalSyncDelta.diff(data, Vec3.ZERO, data.copy(), Vec3.ZERO);
+        Validate.isTrue(delta.isEmpty());
+        Validate.isTrue(roundTrip(delta).apply(data).equals(data));
+    }
+    
+    /**
+     * Typical re-syncs: a moving animated portal, a rotating portal with a mesh shape,
+     * and a cluster rectification that changes nothing.
+     */
+    @Test
+    public void reportByteCount() {
+        Random random = new Random(5);
+        
+        CompoundTag rectangular = createPortalData(random, false);
+        CompoundTag moved = rectangular.copy();
+        putVec(moved, "destination", new Vec3(10, 65, 10));
+        PortalSyncDelta movedDelta = PortalSyncDelta.diff(
+            rectangular, Vec3.ZERO, moved, new Vec3(0, 0.1, 0)
+        );
+        LOGGER.info(
+            "Animated rectangular portal: full {} bytes, delta {} bytes",
+            getFullBytes(moved), getDeltaBytes(movedDelta)
+        );
+        
+        CompoundTag mesh = createPortalData(random, true);
+        CompoundTag rotated = mesh.copy();
+        rotated.putDouble("rotationA", Math.cos(0.1));
+        rotated.putDouble("rotationC", Math.sin(0.1));
+        PortalSyncDelta rotatedDelta = PortalSyncDelta.diff(mesh, Vec3.ZERO, rotated, Vec3.ZERO);
+        LOGGER.info(
+            "Rotating mesh portal: full {} bytes, delta {} bytes",
+            getFullBytes(rotated), getDeltaBytes(rotatedDelta)
+        );
+        
+        PortalSyncDelta unchangedDelta = PortalSyncDelta.diff(mesh, Vec3.ZERO, mesh.copy(), Vec3.ZERO);
+        LOGGER.info(
+            "Unchanged mesh portal: full {} bytes, delta {} bytes",
+            getFullBytes(mesh), getDeltaBytes(unchangedDelta)
+        );
+        
+        Validate.isTrue(getDeltaBytes(movedDelta) < getFullBytes(moved));
+        Validate.isTrue(getDeltaBytes(rotatedDelta) < getFullBytes(rotated));
+    }
+}
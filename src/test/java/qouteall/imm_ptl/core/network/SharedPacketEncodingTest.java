@@ -0,0 +1,193 @@
+package qouteall.imm_ptl.core.network;
+
+import com.mojang.logging.LogUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.protocol.game.ClientboundMoveEntityPacket;
+import net.minecraft.server.Bootstrap;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Testable
+public class SharedPacketEncodingTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static final byte[] DATA = {1, 2, 3, 4, 5};
+    
+    @Test
+    public void testSharedWrites() {
+        SharedPacketEncoding encoding = new SharedPacketEncoding();
+        int recipientNum = 10;
+        for (int i = 0; i < recipientNum; i++) {
+            encoding.retain();
+        }
+        
+        for (int i = 0; i < recipientNum; i++) {
+            ByteBuf target = Unpooled.buffer();
+            target.writeByte(42);
+            encoding.writeTo(target, b -> b.writeBytes(DATA));
+            
+            Validate.isTrue(target.readableBytes() == DATA.length + 1);
+            Validate.isTrue(target.getByte(0) == 42);
+            for (int j = 0; j < DATA.length; j++) {
+                Validate.isTrue(target.getByte(j + 1) == DATA[j]);
+            }
+            target.release();
+            
+            boolean isLast = i == recipientNum - 1;
+            Validate.isTrue(encoding.isEncodedBufferRetained() == !isLast);
+        }
+        
+        Validate.isTrue(encoding.getEncodeNum() == 1);
+        Validate.isTrue(encoding.getReferenceNum() == 0);
+    }
+    
+    @Test
+    public void testSingleWriteDoesNotCopy() {
+        SharedPacketEncoding encoding = new SharedPacketEncoding();
+        encoding.retain();
+        
+        ByteBuf target = Unpooled.buffer();
+        List<ByteBuf> encodedInto = new ArrayList<>();
+        encoding.writeTo(target, b -> {
+            encodedInto.add(b);
+            b.writeBytes(DATA);
+        });
+        
+        Validate.isTrue(encodedInto.get(0) == target);
+        Validate.isTrue(!encoding.isEncodedBufferRetained());
+        target.release();
+    }
+    
+    @Test
+    public void testReEncodeAfterRelease() {
+        SharedPacketEncoding encoding = new SharedPacketEncoding();
+        encoding.retain();
+        encoding.retain();
+        
+        ByteBuf target = Unpooled.buffer();
+        encoding.writeTo(target, b -> b.writeBytes(DATA));
+        encoding.writeTo(target, b -> b.writeBytes(DATA));
+        Validate.isTrue(!encoding.isEncodedBufferRetained());
+        
+        // retained again after the buffer was released
+        encoding.retain();
+        encoding.writeTo(target, b -> b.writeBytes(DATA));
+        
+        Validate.isTrue(encoding.getEncodeNum() == 2);
+        Validate.isTrue(target.readableBytes() == DATA.length * 3);
+        target.release();
+    }
+    
+    @Test
+    public void testEncoderFailureReleasesBuffer() {
+        SharedPacketEncoding encoding = new SharedPacketEncoding();
+        encoding.retain();
+        encoding.retain();
+        
+        ByteBuf target = Unpooled.buffer();
+        try {
+            encoding.writeTo(target, b -> {
+                throw new IllegalStateException("test");
+            });
+            throw new AssertionError();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        Validate.isTrue(!encoding.isEncodedBufferRetained());
+        
+        encoding.writeTo(target, b -> b.writeBytes(DATA));
+        Validate.isTrue(target.readableBytes() == DATA.length);
+        target.release();
+    }
+    
+    /**
+     * Encodes a redirected entity move packet for 1, 10 and 100 recipients,
+     * each recipient encoding it separately vs. sharing one encoding.
+     */
+    @Test
+    public void benchmark() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        
+        ClientboundMoveEntityPacket.Pos packet =
+            new ClientboundMoveEntityPacket.Pos(1234, (short) 100, (short) -20, (short) 300, true);
+        
+        for (int recipientNum : new int[]{1, 10, 100}) {
+            benchmark(packet, recipientNum);
+        }
+    }
+    
+    private static void benchmark(ClientboundMoveEntityPacket.Pos packet, int recipientNum) {
+        int rounds = 20000;
+        RegistryFriendlyByteBuf target = new RegistryFriendlyByteBuf(
+            Unpooled.buffer(), RegistryAccess.EMPTY
+        );
+        long sink = 0;
+        
+        // warm up
+        for (int round = 0; round < rounds; round++) {
+            sink += encodeSeparately(packet, recipientNum, target);
+            sink += encodeShared(packet, recipientNum, target);
+        }
+        
+        long separateStart = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            sink += encodeSeparately(packet, recipientNum, target);
+        }
+        long separateTime = System.nanoTime() - separateStart;
+        
+        long sharedStart = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            sink += encodeShared(packet, recipientNum, target);
+        }
+        long sharedTime = System.nanoTime() - sharedStart;
+        
+        LOGGER.info(
+            "{} recipients: separate {} ns/broadcast, shared {} ns/broadcast ({})",
+            recipientNum, separateTime / rounds, sharedTime / rounds, sink
+        );
+        
+        target.release();
+    }
+    
+    // the old way: every connection encodes its own payload
+    private static int encodeSeparately(
+        ClientboundMoveEntityPacket.Pos packet, int recipientNum, RegistryFriendlyByteBuf target
+    ) {
+        int bytes = 0;
+        for (int i = 0; i < recipientNum; i++) {
+            target.clear();
+            new PacketRedirection.Payload(0, packet).write(target);
+            bytes += target.readableBytes();
+        }
+        return bytes;
+    }
+    
+    private static int encodeShared(
+        ClientboundMoveEntityPacket.Pos packet, int recipientNum, RegistryFriendlyByteBuf target
+    ) {
+        PacketRedirection.Payload payload = new PacketRedirection.Payload(0, packet);
+        for (int i = 0; i < recipientNum; i++) {
+            payload.sharedEncoding().retain();
+        }
+        
+        int bytes = 0;
+        for (int i = 0; i < recipientNum; i++) {
+            target.clear();
+            payload.write(target);
+            bytes += target.readableBytes();
+        }
+        Validate.isTrue(!payload.sharedEncoding().isEncodedBufferRetained());
+        return bytes;
+    }
+}
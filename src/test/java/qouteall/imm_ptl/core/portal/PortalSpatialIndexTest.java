@@ -0,0 +1,138 @@
+package qouteall.imm_ptl.core.portal;
+
+import net.minecraft.SharedConstants;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.Registry;
+import net.minecraft.core.SectionPos;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.phys.AABB;
+import net.minecraft.world.phys.Vec3;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The cached candidates must give the same results as a fresh lookup
+ * when the portals move or resize within their sections.
+ */
+@Testable
+public class PortalSpatialIndexTest {
+    private static final double MAX_PORTAL_RADIUS = 16;
+    
+    private static boolean bootstrapped = false;
+    
+    private static void bootstrap() {
+        if (bootstrapped) {
+            return;
+        }
+        bootstrapped = true;
+        
+        SharedConstants.tryDetectVersion();
+        // the entity type must be registered before the registries are frozen
+        Registry.register(
+            BuiltInRegistries.ENTITY_TYPE,
+            ResourceLocation.fromNamespaceAndPath("immersive_portals", "portal"),
+            Portal.ENTITY_TYPE
+        );
+        Bootstrap.bootStrap();
+    }
+    
+    private static Portal createPortal(Vec3 pos, double width, double height) {
+        Portal portal = new Portal(Portal.ENTITY_TYPE, null);
+        portal.setOriginPos(pos);
+        portal.setDestination(pos.add(0, 100, 0));
+        portal.setOrientationAndSize(new Vec3(1, 0, 0), new Vec3(0, 1, 0), width, height);
+        return portal;
+    }
+    
+    private static void checkSameAsFreshLookup(
+        PortalSpatialIndex index, List<Portal> candidates, AABB box
+    ) {
+        List<Portal> filtered = index.filterPortalsByBox(candidates, box, MAX_PORTAL_RADIUS, p -> true);
+        List<Portal> fresh = index.findPortalsByBox(box, MAX_PORTAL_RADIUS, p -> true);
+        Validate.isTrue(
+            new HashSet<>(filtered).equals(new HashSet<>(fresh)),
+            "filtered %s fresh %s", filtered, fresh
+        );
+    }
+    
+    @Test
+    public void testMovingAndResizingWithinSection() {
+        bootstrap();
+        
+        PortalSpatialIndex index = new PortalSpatialIndex();
+        
+        // both in the section (0, 0, 0), away from the entity box
+        Portal movingPortal = createPortal(new Vec3(12, 8, 2), 1, 1);
+        Portal growingPortal = createPortal(new Vec3(2, 8, 6.5), 1, 1);
+        index.add(movingPortal);
+        index.add(growingPortal);
+        
+        AABB box = new AABB(6, 7, 6, 7, 9, 7);
+        AABB envelope = box.inflate(2);
+        List<Portal> candidates = index.findPortalsInSectionRangeOfBox(envelope, MAX_PORTAL_RADIUS);
+        int modificationCount = index.getModificationCount();
+        
+        Validate.isTrue(index.findPortalsByBox(envelope, MAX_PORTAL_RADIUS, p -> true).isEmpty());
+        Validate.isTrue(candidates.contains(movingPortal) && candidates.contains(growingPortal));
+        checkSameAsFreshLookup(index, candidates, box);
+        
+        // an animated portal moves into the box without leaving its section
+        movingPortal.setOriginPos(new Vec3(6.5, 8, 6.5));
+        index.onPortalMoved(movingPortal);
+        Validate.isTrue(index.getModificationCount() == modificationCount);
+        Validate.isTrue(movingPortal.getBoundingBox().intersects(box));
+        checkSameAsFreshLookup(index, candidates, box);
+        
+        // a portal grows into the box without moving
+        growingPortal.setWidth(20);
+        Validate.isTrue(index.getModificationCount() == modificationCount);
+        Validate.isTrue(growingPortal.getBoundingBox().intersects(box));
+        checkSameAsFreshLookup(index, candidates, box);
+        
+        Validate.isTrue(
+            index.filterPortalsByBox(candidates, box, MAX_PORTAL_RADIUS, p -> true).size() == 2
+        );
+    }
+    
+    @Test
+    public void testHiddenSections() {
+        bootstrap();
+        
+        // like the loaded but non-ticking chunks
+        LongOpenHashSet hiddenSections = new LongOpenHashSet();
+        PortalSpatialIndex index = new PortalSpatialIndex(sectionPos -> !hiddenSections.contains(sectionPos));
+        
+        Portal visiblePortal = createPortal(new Vec3(8, 8, 8), 1, 1);
+        Portal hiddenPortal = createPortal(new Vec3(24, 8, 8), 1, 1);
+        index.add(visiblePortal);
+        index.add(hiddenPortal);
+        
+        AABB box = new AABB(0, 0, 0, 32, 16, 16);
+        List<Portal> candidates = index.findPortalsInSectionRangeOfBox(box, MAX_PORTAL_RADIUS);
+        Validate.isTrue(candidates.size() == 2);
+        
+        hiddenSections.add(SectionPos.asLong(1, 0, 0));
+        
+        Validate.isTrue(index.findPortalsByBox(box, MAX_PORTAL_RADIUS, p -> true).equals(List.of(visiblePortal)));
+        Validate.isTrue(index.findPortalsRough(new Vec3(16, 8, 8), 1, p -> true).equals(List.of(visiblePortal)));
+        List<Portal> allPortals = new ArrayList<>();
+        index.foreachPortal(allPortals::add);
+        Validate.isTrue(allPortals.equals(List.of(visiblePortal)));
+        // the cached candidates still contain the hidden portal, but it's filtered out
+        checkSameAsFreshLookup(index, candidates, box);
+        
+        // the chunk becomes ticking again without changing the index
+        int modificationCount = index.getModificationCount();
+        hiddenSections.clear();
+        Validate.isTrue(index.getModificationCount() == modificationCount);
+        checkSameAsFreshLookup(index, candidates, box);
+        Validate.isTrue(index.findPortalsByBox(box, MAX_PORTAL_RADIUS, p -> true).size() == 2);
+    }
+}
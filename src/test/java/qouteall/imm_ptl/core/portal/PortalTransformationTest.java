@@ -0,0 +1,262 @@
+package qouteall.imm_ptl.core.portal;
+
+import com.mojang.logging.LogUtils;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Registry;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.phys.Vec3;
+import org.apache.commons.lang3.Validate;
+import org.joml.Vector3d;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+import qouteall.imm_ptl.core.portal.animation.UnilateralPortalState;
+import qouteall.q_misc_util.my_util.DQuaternion;
+
+import java.util.Random;
+
+/**
+ * Compares the cached transformation with the quaternion-based transformation that it replaces.
+ */
+@Testable
+public class PortalTransformationTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static final double EPSILON = 1e-9;
+    
+    private static boolean bootstrapped = false;
+    
+    private static void register(String path, EntityType<?> entityType) {
+        ResourceLocation id = ResourceLocation.fromNamespaceAndPath("immersive_portals", path);
+        Registry.register(BuiltInRegistries.ENTITY_TYPE, id, entityType);
+    }
+    
+    private static void bootstrap() {
+        if (bootstrapped) {
+            return;
+        }
+        bootstrapped = true;
+        
+        SharedConstants.tryDetectVersion();
+        // the entity types must be registered before the registries are frozen
+        register("portal", Portal.ENTITY_TYPE);
+        register("mirror", Mirror.ENTITY_TYPE);
+        Bootstrap.bootStrap();
+    }
+    
+    private static Vec3 randomVec(Random random, double range) {
+        return new Vec3(
+            random.nextDouble(-range, range), random.nextDouble(-range, range), random.nextDouble(-range, range)
+        );
+    }
+    
+    private static Portal createPortal(Random random, boolean mirror) {
+        Portal portal = mirror ?
+            new Mirror(Mirror.ENTITY_TYPE, null) : new Portal(Portal.ENTITY_TYPE, null);
+        
+        portal.setOriginPos(randomVec(random, 10000));
+        Vec3 axisW = randomVec(random, 1).normalize();
+        Vec3 axisH = axisW.cross(randomVec(random, 1)).normalize();
+        portal.setOrientationAndSize(axisW, axisH, random.nextDouble(1, 10), random.nextDouble(1, 10));
+        if (mirror) {
+            portal.setDestination(portal.getOriginPos());
+        }
+        else {
+            portal.setDestination(randomVec(random, 10000));
+            if (random.nextBoolean()) {
+                portal.setRotation(DQuaternion.rotationByDegrees(
+                    randomVec(random, 1).normalize(), random.nextDouble(-180, 180)
+                ));
+            }
+            if (random.nextBoolean()) {
+                portal.setScaleTransformation(random.nextDouble(0.1, 10));
+            }
+        }
+        return portal;
+    }
+    
+    // the old implementation of Portal.transformPoint
+    private static Vec3 referenceTransformPoint(Portal portal, Vec3 pos) {
+        return portal.transformLocalVec(pos.subtract(portal.getOriginPos())).add(portal.getDestPos());
+    }
+    
+    // the old implementation of Portal.inverseTransformPoint
+    private static Vec3 referenceInverseTransformPoint(Portal portal, Vec3 pos) {
+        return portal.getOriginPos().add(portal.inverseTransformLocalVec(pos.subtract(portal.getDestPos())));
+    }
+    
+    private static void checkClose(Vec3 expected, double x, double y, double z) {
+        Validate.isTrue(
+            Math.abs(expected.x - x) < EPSILON &&
+                Math.abs(expected.y - y) < EPSILON &&
+                Math.abs(expected.z - z) < EPSILON,
+            "expected %s got %s %s %s", expected, x, y, z
+        );
+    }
+    
+    private static void checkClose(Vec3 expected, Vec3 actual) {
+        checkClose(expected, actual.x, actual.y, actual.z);
+    }
+    
+    @Test
+    public void testEquivalence() {
+        bootstrap();
+        
+        Random random = new Random(42);
+        double[] buffer = new double[3];
+        for (int portalIndex = 0; portalIndex < 200; portalIndex++) {
+            Portal portal = createPortal(random, portalIndex % 4 == 0);
+            PortalTransformation transformation = portal.getTransformation();
+            
+            for (int i = 0; i < 100; i++) {
+                Vec3 pos = portal.getOriginPos().add(randomVec(random, 100));
+                Vec3 expected = referenceTransformPoint(portal, pos);
+                
+                checkClose(expected, portal.transformPoint(pos));
+                checkClose(
+                    expected,
+                    transformation.transformPointX(pos.x, pos.y, pos.z),
+                    transformation.transformPointY(pos.x, pos.y, pos.z),
+                    transformation.transformPointZ(pos.x, pos.y, pos.z)
+                );
+                transformation.transformPoint(pos.x, pos.y, pos.z, buffer, 0);
+                checkClose(expected, buffer[0], buffer[1], buffer[2]);
+                Vector3d vec = transformation.transformPoint(new Vector3d(pos.x, pos.y, pos.z));
+                checkClose(expected, vec.x, vec.y, vec.z);
+                
+                Vec3 localVec = randomVec(random, 100);
+                Vec3 expectedLocalVec = portal.transformLocalVec(localVec);
+                checkClose(expectedLocalVec, transformation.transformLocalVec(localVec));
+                transformation.transformLocalVec(localVec.x, localVec.y, localVec.z, buffer, 0);
+                checkClose(expectedLocalVec, buffer[0], buffer[1], buffer[2]);
+                
+                Vec3 otherSidePos = portal.getDestPos().add(randomVec(random, 100));
+                Vec3 expectedInverse = referenceInverseTransformPoint(portal, otherSidePos);
+                checkClose(expectedInverse, portal.inverseTransformPoint(otherSidePos));
+                transformation.inverseTransformPoint(otherSidePos.x, otherSidePos.y, otherSidePos.z, buffer, 0);
+                checkClose(expectedInverse, buffer[0], buffer[1], buffer[2]);
+                checkClose(
+                    portal.inverseTransformLocalVec(localVec),
+                    transformation.inverseTransformLocalVec(localVec)
+                );
+                
+                UnilateralPortalState state = portal.getThisSideState();
+                Vec3 expectedLocal = state.transformGlobalToLocal(pos);
+                checkClose(
+                    expectedLocal,
+                    state.transformGlobalToLocalX(pos.x, pos.y, pos.z),
+                    state.transformGlobalToLocalY(pos.x, pos.y, pos.z),
+                    state.transformGlobalToLocalZ(pos.x, pos.y, pos.z)
+                );
+                state.transformLocalToGlobal(localVec.x, localVec.y, localVec.z, buffer, 0);
+                checkClose(state.transformLocalToGlobal(localVec), buffer[0], buffer[1], buffer[2]);
+            }
+        }
+    }
+    
+    @Test
+    public void testBulkAndInvalidation() {
+        bootstrap();
+        
+        Random random = new Random(1);
+        Portal portal = createPortal(random, false);
+        
+        int pointNum = 64;
+        double[] points = new double[pointNum * 3];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextDouble(-1000, 1000);
+        }
+        
+        // transform in place, then transform back
+        double[] buffer = points.clone();
+        portal.getTransformation().transformPoints(buffer, 0, buffer, 0, pointNum);
+        for (int i = 0; i < pointNum; i++) {
+            Vec3 pos = new Vec3(points[i * 3], points[i * 3 + 1], points[i * 3 + 2]);
+            checkClose(referenceTransformPoint(portal, pos), buffer[i * 3], buffer[i * 3 + 1], buffer[i * 3 + 2]);
+        }
+        portal.getTransformation().inverseTransformPoints(buffer, 0, buffer, 0, pointNum);
+        for (int i = 0; i < points.length; i++) {
+            // the errors scale with the coordinates
+            Validate.isTrue(Math.abs(buffer[i] - points[i]) < EPSILON * 1000);
+        }
+        
+        // changing the portal drops the cached transformation
+        Vec3 pos = new Vec3(1, 2, 3);
+        PortalTransformation oldTransformation = portal.getTransformation();
+        
+        portal.setOriginPos(portal.getOriginPos().add(5, 0, 0));
+        Validate.isTrue(portal.getTransformation() != oldTransformation);
+        checkClose(referenceTransformPoint(portal, pos), portal.transformPoint(pos));
+        
+        portal.setScaleTransformation(portal.getScaling() * 2);
+        checkClose(referenceTransformPoint(portal, pos), portal.transformPoint(pos));
+        
+        portal.setRotation(DQuaternion.rotationByDegrees(new Vec3(0, 1, 0), 45));
+        checkClose(referenceTransformPoint(portal, pos), portal.transformPoint(pos));
+        
+        portal.setDestination(new Vec3(-7, 8, 9));
+        checkClose(referenceTransformPoint(portal, pos), portal.transformPoint(pos));
+    }
+    
+    @Test
+    public void benchmark() {
+        bootstrap();
+        
+        Random random = new Random(42);
+        Portal portal = createPortal(random, false);
+        portal.setRotation(DQuaternion.rotationByDegrees(new Vec3(0, 1, 0), 30));
+        portal.setScaleTransformation(2);
+        
+        int pointNum = 1024;
+        Vec3[] points = new Vec3[pointNum];
+        double[] coords = new double[pointNum * 3];
+        for (int i = 0; i < pointNum; i++) {
+            points[i] = portal.getOriginPos().add(randomVec(random, 100));
+            coords[i * 3] = points[i].x;
+            coords[i * 3 + 1] = points[i].y;
+            coords[i * 3 + 2] = points[i].z;
+        }
+        double[] result = new double[pointNum * 3];
+        
+        int rounds = 2000;
+        double sink = 0;
+        for (int warmUp = 0; warmUp < 2; warmUp++) {
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                for (Vec3 point : points) {
+                    sink += referenceTransformPoint(portal, point).x;
+                }
+            }
+            long quaternionNanos = System.nanoTime() - start;
+            
+            start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                for (Vec3 point : points) {
+                    sink += portal.transformPoint(point).x;
+                }
+            }
+            long cachedNanos = System.nanoTime() - start;
+            
+            start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                portal.getTransformation().transformPoints(coords, 0, result, 0, pointNum);
+                sink += result[0];
+            }
+            long bulkNanos = System.nanoTime() - start;
+            
+            if (warmUp == 1) {
+                long transformNum = (long) rounds * pointNum;
+                LOGGER.info(
+                    "quaternion {} ns/point, cached matrix {} ns/point, bulk {} ns/point",
+                    String.format("%.2f", quaternionNanos / (double) transformNum),
+                    String.format("%.2f", cachedNanos / (double) transformNum),
+                    String.format("%.2f", bulkNanos / (double) transformNum)
+                );
+            }
+        }
+        LOGGER.debug("sink {}", sink);
+    }
+}
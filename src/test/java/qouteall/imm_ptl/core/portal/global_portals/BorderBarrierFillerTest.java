@@ -0,0 +1,46 @@
+package qouteall.imm_ptl.core.portal.global_portals;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import net.minecraft.world.level.ChunkPos;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+
+import java.util.BitSet;
+
+@Testable
+public class BorderBarrierFillerTest {
+    @Test
+    public void testColumnsByChunk() {
+        int minX = -20;
+        int minZ = 5;
+        int maxX = 40;
+        int maxZ = 70;
+        
+        Long2ObjectLinkedOpenHashMap<BitSet> columnsByChunk =
+            BorderBarrierFiller.getColumnsByChunk(minX, minZ, maxX, maxZ);
+        
+        int columnNum = 0;
+        for (BitSet columns : columnsByChunk.values()) {
+            columnNum += columns.cardinality();
+        }
+        // the corners are only counted once
+        int sizeX = maxX - minX + 1;
+        int sizeZ = maxZ - minZ + 1;
+        Validate.isTrue(columnNum == sizeX * 2 + sizeZ * 2 - 4);
+        
+        for (int x = minX - 1; x <= maxX + 1; x++) {
+            for (int z = minZ - 1; z <= maxZ + 1; z++) {
+                boolean onBorder = (x == minX || x == maxX) && z >= minZ && z <= maxZ ||
+                    (z == minZ || z == maxZ) && x >= minX && x <= maxX;
+                
+                BitSet columns = columnsByChunk.get(ChunkPos.asLong(x >> 4, z >> 4));
+                boolean marked = columns != null && columns.get(((z & 15) << 4) | (x & 15));
+                Validate.isTrue(marked == onBorder);
+            }
+        }
+        
+        // the chunks inside the ring are not loaded
+        Validate.isTrue(!columnsByChunk.containsKey(ChunkPos.asLong(1, 2)));
+    }
+}
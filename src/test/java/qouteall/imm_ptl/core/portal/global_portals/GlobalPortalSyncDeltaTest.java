@@ -0,0 +1,223 @@
+package qouteall.imm_ptl.core.portal.global_portals;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import net.minecraft.nbt.CompoundTag;
+import org.apache.commons.lang3.Validate;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Syncs the global portal tags from a simulated server to a simulated client,
+ * in the same way as {@link GlobalPortalStorage}.
+ */
+@Testable
+public class GlobalPortalSyncDeltaTest {
+    private static class ServerSide {
+        final Object2ObjectLinkedOpenHashMap<UUID, CompoundTag> portals = new Object2ObjectLinkedOpenHashMap<>();
+        Object2ObjectOpenHashMap<UUID, CompoundTag> lastSyncedTags = new Object2ObjectOpenHashMap<>();
+        int syncSequence = 0;
+        
+        void put(UUID uuid, double width) {
+            portals.put(uuid, createPortalTag(uuid, width));
+        }
+        
+        // the delta is sent as NBT
+        @Nullable
+        CompoundTag syncDelta() {
+            Object2ObjectOpenHashMap<UUID, CompoundTag> currentTags = new Object2ObjectOpenHashMap<>();
+            portals.forEach((uuid, tag) -> currentTags.put(uuid, tag.copy()));
+            
+            GlobalPortalSyncDelta delta = GlobalPortalSyncDelta.diff(
+                syncSequence + 1, lastSyncedTags, new ArrayList<>(portals.keySet()), currentTags
+            );
+            lastSyncedTags = currentTags;
+            if (delta == null) {
+                return null;
+            }
+            syncSequence = delta.syncSequence;
+            return delta.toTag();
+        }
+    }
+    
+    private static class ClientSide {
+        Object2ObjectLinkedOpenHashMap<UUID, CompoundTag> portals = new Object2ObjectLinkedOpenHashMap<>();
+        int syncSequence = -1;
+        int fullSyncRequestNum = 0;
+        
+        void receiveFullSync(ServerSide server) {
+            portals = new Object2ObjectLinkedOpenHashMap<>();
+            server.portals.forEach((uuid, tag) -> portals.put(uuid, tag.copy()));
+            syncSequence = server.syncSequence;
+        }
+        
+        boolean receiveDelta(CompoundTag deltaTag) {
+            GlobalPortalSyncDelta delta = GlobalPortalSyncDelta.fromTag(deltaTag);
+            if (!delta.canApplyOn(syncSequence, portals)) {
+                fullSyncRequestNum++;
+                return false;
+            }
+            
+            Object2ObjectOpenHashMap<UUID, CompoundTag> oldPortals = new Object2ObjectOpenHashMap<>(portals);
+            List<CompoundTag> newPortals = delta.apply(oldPortals, (oldPortal, portalTag) -> portalTag);
+            
+            portals = new Object2ObjectLinkedOpenHashMap<>();
+            for (CompoundTag portalTag : newPortals) {
+                portals.put(portalTag.getUUID("UUID"), portalTag);
+            }
+            syncSequence = delta.syncSequence;
+            return true;
+        }
+    }
+    
+    private static CompoundTag createPortalTag(UUID uuid, double width) {
+        CompoundTag tag = new CompoundTag();
+        tag.putUUID("UUID", uuid);
+        tag.putString("entity_type", "immersive_portals:portal");
+        tag.putDouble("width", width);
+        return tag;
+    }
+    
+    private static void checkSame(ServerSide server, ClientSide client) {
+        Validate.isTrue(
+            new ArrayList<>(server.portals.keySet()).equals(new ArrayList<>(client.portals.keySet())),
+            "server %s client %s", server.portals.keySet(), client.portals.keySet()
+        );
+        server.portals.forEach((uuid, tag) -> Validate.isTrue(tag.equals(client.portals.get(uuid))));
+        Validate.isTrue(server.syncSequence == client.syncSequence);
+    }
+    
+    @Test
+    public void testAddRemoveModify() {
+        UUID a = new UUID(0, 1);
+        UUID b = new UUID(0, 2);
+        UUID c = new UUID(0, 3);
+        
+        ServerSide server = new ServerSide();
+        server.put(a, 1);
+        server.put(b, 2);
+        server.syncDelta();
+        
+        ClientSide client = new ClientSide();
+        client.receiveFullSync(server);
+        checkSame(server, client);
+        
+        Validate.isTrue(server.syncDelta() == null);
+        
+        // add and modify
+        server.put(c, 3);
+        server.put(a, 10);
+        CompoundTag deltaTag = server.syncDelta();
+        Validate.notNull(deltaTag);
+        GlobalPortalSyncDelta delta = GlobalPortalSyncDelta.fromTag(deltaTag);
+        Validate.isTrue(delta.upserts.keySet().equals(Set.of(a, c)));
+        
+        CompoundTag unchangedTag = client.portals.get(b);
+        Validate.isTrue(client.receiveDelta(deltaTag));
+        checkSame(server, client);
+        // the unchanged portal is not recreated
+        Validate.isTrue(client.portals.get(b) == unchangedTag);
+        
+        // remove
+        server.portals.remove(b);
+        deltaTag = server.syncDelta();
+        Validate.notNull(deltaTag);
+        Validate.isTrue(GlobalPortalSyncDelta.fromTag(deltaTag).upserts.isEmpty());
+        Validate.isTrue(client.receiveDelta(deltaTag));
+        checkSame(server, client);
+        
+        // remove and add in one delta
+        server.portals.remove(a);
+        server.put(b, 5);
+        Validate.isTrue(client.receiveDelta(server.syncDelta()));
+        checkSame(server, client);
+        
+        Validate.isTrue(client.fullSyncRequestNum == 0);
+    }
+    
+    @Test
+    public void testMissedDelta() {
+        UUID a = new UUID(0, 1);
+        UUID b = new UUID(0, 2);
+        
+        ServerSide server = new ServerSide();
+        server.put(a, 1);
+        server.syncDelta();
+        
+        ClientSide client = new ClientSide();
+        client.receiveFullSync(server);
+        
+        // the delta that adds b is missed
+        server.put(b, 2);
+        Validate.notNull(server.syncDelta());
+        
+        // the next delta only modifies a, so b would be missing on the client
+        server.put(a, 3);
+        CompoundTag deltaTag = server.syncDelta();
+        Validate.isTrue(!client.receiveDelta(deltaTag));
+        Validate.isTrue(client.fullSyncRequestNum == 1);
+        Validate.isTrue(client.portals.get(a).getDouble("width") == 1);
+        
+        client.receiveFullSync(server);
+        checkSame(server, client);
+        
+        server.put(b, 4);
+        Validate.isTrue(client.receiveDelta(server.syncDelta()));
+        checkSame(server, client);
+    }
+    
+    @Test
+    public void testOutOfOrderDelta() {
+        UUID a = new UUID(0, 1);
+        UUID b = new UUID(0, 2);
+        
+        ServerSide server = new ServerSide();
+        server.put(a, 1);
+        server.put(b, 2);
+        server.syncDelta();
+        
+        ClientSide client = new ClientSide();
+        client.receiveFullSync(server);
+        
+        server.put(a, 3);
+        CompoundTag firstDelta = server.syncDelta();
+        server.put(b, 4);
+        CompoundTag secondDelta = server.syncDelta();
+        
+        // the second delta doesn't refer to a missing portal, but it must not skip the first one
+        Validate.isTrue(!client.receiveDelta(secondDelta));
+        Validate.isTrue(client.receiveDelta(firstDelta));
+        Validate.isTrue(client.portals.get(a).getDouble("width") == 3);
+        Validate.isTrue(client.portals.get(b).getDouble("width") == 2);
+        
+        // an old delta is not applied again
+        Validate.isTrue(!client.receiveDelta(firstDelta));
+        
+        Validate.isTrue(client.receiveDelta(secondDelta));
+        checkSame(server, client);
+    }
+    
+    @Test
+    public void testDeltaWithoutFullSync() {
+        UUID a = new UUID(0, 1);
+        
+        ServerSide server = new ServerSide();
+        server.put(a, 1);
+        server.syncDelta();
+        
+        // the client didn't get the full data, for example because there was no global portal when it logged in
+        ClientSide client = new ClientSide();
+        server.put(a, 2);
+        Validate.isTrue(!client.receiveDelta(server.syncDelta()));
+        Validate.isTrue(client.portals.isEmpty());
+        
+        client.receiveFullSync(server);
+        checkSame(server, client);
+    }
+}
@@ -0,0 +1,263 @@
+package qouteall.imm_ptl.core.portal.nether_portal;
+
+import com.mojang.logging.LogUtils;
+import net.minecraft.core.BlockPos;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+import qouteall.q_misc_util.my_util.IntBox;
+
+import java.util.Random;
+
+@Testable
+public class AirCubeGridTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static final int SIZE_X = 80;
+    private static final int SIZE_Y = 256;
+    private static final int SIZE_Z = 80;
+    
+    /**
+     * Solid stone with many carved caves, a lava-like non-solid layer at the bottom,
+     * and open sky above the surface.
+     */
+    private static int[][][] createCaveTerrain(long seed) {
+        Random random = new Random(seed);
+        int[][][] blocks = new int[SIZE_X][SIZE_Y][SIZE_Z];
+        for (int x = 0; x < SIZE_X; x++) {
+            for (int z = 0; z < SIZE_Z; z++) {
+                int surface = 150 + (int) (8 * Math.sin(x * 0.1) * Math.cos(z * 0.13));
+                for (int y = 0; y < surface; y++) {
+                    blocks[x][y][z] = y < 10 ?
+                        AirCubeGrid.FLAG_NON_AIR : AirCubeGrid.FLAG_NON_AIR | AirCubeGrid.FLAG_SOLID;
+                }
+            }
+        }
+        
+        for (int i = 0; i < 300; i++) {
+            int cx = random.nextInt(SIZE_X);
+            int cy = random.nextInt(10, 150);
+            int cz = random.nextInt(SIZE_Z);
+            int radius = random.nextInt(2, 9);
+            for (int x = Math.max(0, cx - radius); x < Math.min(SIZE_X, cx + radius + 1); x++) {
+                for (int y = Math.max(0, cy - radius); y < Math.min(SIZE_Y, cy + radius + 1); y++) {
+                    for (int z = Math.max(0, cz - radius); z < Math.min(SIZE_Z, cz + radius + 1); z++) {
+                        int dx = x - cx;
+                        int dy = y - cy;
+                        int dz = z - cz;
+                        if (dx * dx + dy * dy + dz * dz <= radius * radius) {
+                            blocks[x][y][z] = 0;
+                        }
+                    }
+                }
+            }
+        }
+        return blocks;
+    }
+    
+    private static AirCubeGrid buildGrid(int[][][] blocks, AirCubeGrid.ColumnPredicate isColumnKnown) {
+        return AirCubeGrid.build(
+            0, 0, 0, SIZE_X, SIZE_Y, SIZE_Z,
+            isColumnKnown,
+            (x, y, z) -> blocks[x][y][z]
+        );
+    }
+    
+    private static int bruteForceCount(
+        int[][][] blocks, int flag, int x0, int y0, int z0, int x1, int y1, int z1
+    ) {
+        int count = 0;
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                for (int z = z0; z <= z1; z++) {
+                    if ((blocks[x][y][z] & flag) != 0) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+    
+    // the old approach: test the eight vertices, then every block
+    private static boolean bruteForceIsAllAir(
+        int[][][] blocks, int x0, int y0, int z0, int x1, int y1, int z1
+    ) {
+        if (blocks[x0][y0][z0] != 0 || blocks[x0][y0][z1] != 0 ||
+            blocks[x0][y1][z0] != 0 || blocks[x0][y1][z1] != 0 ||
+            blocks[x1][y0][z0] != 0 || blocks[x1][y0][z1] != 0 ||
+            blocks[x1][y1][z0] != 0 || blocks[x1][y1][z1] != 0
+        ) {
+            return false;
+        }
+        return bruteForceCount(blocks, AirCubeGrid.FLAG_NON_AIR, x0, y0, z0, x1, y1, z1) == 0;
+    }
+    
+    @Test
+    public void testCountMatchesBruteForce() {
+        int[][][] blocks = createCaveTerrain(0);
+        AirCubeGrid grid = buildGrid(blocks, (x, z) -> true);
+        
+        Random random = new Random(1);
+        for (int i = 0; i < 3000; i++) {
+            int x0 = random.nextInt(SIZE_X);
+            int y0 = random.nextInt(SIZE_Y);
+            int z0 = random.nextInt(SIZE_Z);
+            int x1 = Math.min(SIZE_X - 1, x0 + random.nextInt(12));
+            int y1 = Math.min(SIZE_Y - 1, y0 + random.nextInt(40));
+            int z1 = Math.min(SIZE_Z - 1, z0 + random.nextInt(12));
+            
+            Validate.isTrue(grid.covers(x0, y0, z0, x1, y1, z1));
+            Validate.isTrue(
+                grid.countNonAir(x0, y0, z0, x1, y1, z1) ==
+                    bruteForceCount(blocks, AirCubeGrid.FLAG_NON_AIR, x0, y0, z0, x1, y1, z1)
+            );
+            Validate.isTrue(
+                grid.countSolid(x0, y0, z0, x1, y1, z1) ==
+                    bruteForceCount(blocks, AirCubeGrid.FLAG_SOLID, x0, y0, z0, x1, y1, z1)
+            );
+        }
+    }
+    
+    @Test
+    public void testCoverage() {
+        int[][][] blocks = createCaveTerrain(2);
+        // the columns in [32, 48) x [16, 32) are unknown, like an unloaded chunk
+        AirCubeGrid grid = buildGrid(
+            blocks, (x, z) -> !(x >= 32 && x < 48 && z >= 16 && z < 32)
+        );
+        
+        Validate.isTrue(grid.covers(0, 0, 0, SIZE_X - 1, SIZE_Y - 1, 15));
+        Validate.isTrue(grid.covers(0, 0, 0, 31, SIZE_Y - 1, SIZE_Z - 1));
+        Validate.isTrue(!grid.covers(30, 100, 10, 32, 110, 16));
+        Validate.isTrue(!grid.covers(47, 0, 31, 47, 0, 31));
+        Validate.isTrue(!grid.covers(-1, 0, 0, 3, 3, 3));
+        Validate.isTrue(!grid.covers(0, 0, 0, 3, SIZE_Y, 3));
+        
+        // the known part is still exact
+        Validate.isTrue(
+            grid.countNonAir(48, 0, 0, SIZE_X - 1, SIZE_Y - 1, SIZE_Z - 1) ==
+                bruteForceCount(
+                    blocks, AirCubeGrid.FLAG_NON_AIR, 48, 0, 0, SIZE_X - 1, SIZE_Y - 1, SIZE_Z - 1
+                )
+        );
+    }
+    
+    // the grid path of hasAirOnSolidGround must agree with testing every block
+    private static void checkAirOnSolidGround(NetherPortalMatcher.SearchRegion region, IntBox layer) {
+        Validate.isTrue(
+            region.hasAirOnSolidGround(layer) ==
+                BlockTraverse.boxAllMatch(layer, region::isAirOnSolidGround),
+            "%s", layer
+        );
+    }
+    
+    @Test
+    public void testAirOnSolidGround() {
+        // air, with a solid floor at y = 4 for x < 4
+        int[][][] blocks = new int[16][16][16];
+        for (int x = 0; x < 4; x++) {
+            for (int z = 0; z < 16; z++) {
+                blocks[x][4][z] = AirCubeGrid.FLAG_NON_AIR | AirCubeGrid.FLAG_SOLID;
+            }
+        }
+        AirCubeGrid grid = AirCubeGrid.build(
+            0, 0, 0, 16, 16, 16,
+            (x, z) -> true,
+            (x, y, z) -> blocks[x][y][z]
+        );
+        // the world is not read when the grid covers the queries
+        NetherPortalMatcher.SearchRegion region = new NetherPortalMatcher.SearchRegion(null, grid);
+        
+        IntBox onFloor = new IntBox(new BlockPos(0, 5, 0), new BlockPos(3, 5, 3));
+        Validate.isTrue(region.hasAirOnSolidGround(onFloor));
+        checkAirOnSolidGround(region, onFloor);
+        
+        // half of the floor is air, like overhanging a cliff
+        IntBox overhanging = new IntBox(new BlockPos(2, 5, 0), new BlockPos(5, 5, 3));
+        Validate.isTrue(!region.hasAirOnSolidGround(overhanging));
+        checkAirOnSolidGround(region, overhanging);
+        
+        // the layer itself is not air
+        IntBox inFloor = new IntBox(new BlockPos(0, 4, 0), new BlockPos(3, 4, 3));
+        Validate.isTrue(!region.hasAirOnSolidGround(inFloor));
+        checkAirOnSolidGround(region, inFloor);
+        
+        int[][][] caveBlocks = createCaveTerrain(4);
+        NetherPortalMatcher.SearchRegion caveRegion = new NetherPortalMatcher.SearchRegion(
+            null, buildGrid(caveBlocks, (x, z) -> true)
+        );
+        Random random = new Random(5);
+        for (int i = 0; i < 3000; i++) {
+            int x0 = random.nextInt(SIZE_X - 6);
+            int y = random.nextInt(1, SIZE_Y);
+            int z0 = random.nextInt(SIZE_Z - 6);
+            checkAirOnSolidGround(caveRegion, new IntBox(
+                new BlockPos(x0, y, z0),
+                new BlockPos(x0 + random.nextInt(6), y, z0 + random.nextInt(6))
+            ));
+        }
+    }
+    
+    /**
+     * Tests the air cube of every candidate position on the cave terrain.
+     * The brute force reads a plain array, which is much cheaper than reading the world.
+     */
+    @Test
+    public void benchmark() {
+        int[][][] blocks = createCaveTerrain(3);
+        int boxX = 4;
+        int boxY = 12;
+        int boxZ = 4;
+        
+        long bruteForceTime = 0;
+        long gridTime = 0;
+        int found1 = 0;
+        int found2 = 0;
+        for (int round = 0; round < 6; round++) {
+            // the first rounds are warm up
+            boolean measure = round >= 3;
+            
+            found1 = 0;
+            long start = System.nanoTime();
+            for (int x = 0; x + boxX <= SIZE_X; x++) {
+                for (int z = 0; z + boxZ <= SIZE_Z; z++) {
+                    for (int y = 1; y + boxY < SIZE_Y; y++) {
+                        if (bruteForceIsAllAir(blocks, x, y, z, x + boxX - 1, y + boxY - 1, z + boxZ - 1)) {
+                            found1++;
+                        }
+                    }
+                }
+            }
+            long time1 = System.nanoTime() - start;
+            
+            found2 = 0;
+            start = System.nanoTime();
+            // building the grid is included
+            AirCubeGrid grid = buildGrid(blocks, (x, z) -> true);
+            for (int x = 0; x + boxX <= SIZE_X; x++) {
+                for (int z = 0; z + boxZ <= SIZE_Z; z++) {
+                    for (int y = 1; y + boxY < SIZE_Y; y++) {
+                        if (grid.countNonAir(x, y, z, x + boxX - 1, y + boxY - 1, z + boxZ - 1) == 0) {
+                            found2++;
+                        }
+                    }
+                }
+            }
+            long time2 = System.nanoTime() - start;
+            
+            Validate.isTrue(found1 == found2);
+            if (measure) {
+                bruteForceTime += time1;
+                gridTime += time2;
+            }
+        }
+        
+        LOGGER.info(
+            "Testing all {}x{}x{} boxes in {}x{}x{} cave terrain ({} found): brute force {} ms, grid {} ms",
+            boxX, boxY, boxZ, SIZE_X, SIZE_Y, SIZE_Z, found1,
+            bruteForceTime / 3 / 1000000, gridTime / 3 / 1000000
+        );
+    }
+}
@@ -0,0 +1,157 @@
+package qouteall.imm_ptl.core.portal.nether_portal;
+
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+@Testable
+public class FrameSearchingWorkersTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static IntArrayList randomRingEnds(Random random, int candidateNum) {
+        IntArrayList ringEnds = new IntArrayList();
+        int end = 0;
+        while (end < candidateNum) {
+            end = Math.min(candidateNum, end + random.nextInt(0, 40));
+            ringEnds.add(end);
+        }
+        if (ringEnds.isEmpty()) {
+            ringEnds.add(0);
+        }
+        return ringEnds;
+    }
+    
+    @Test
+    public void testParallelMatchesSerial() {
+        for (int seed = 0; seed < 500; seed++) {
+            Random random = new Random(seed);
+            int candidateNum = random.nextInt(0, 300);
+            boolean[] matches = new boolean[candidateNum];
+            int matchNum = random.nextInt(0, 5);
+            for (int i = 0; i < matchNum && candidateNum > 0; i++) {
+                matches[random.nextInt(candidateNum)] = true;
+            }
+            IntArrayList ringEnds = randomRingEnds(random, candidateNum);
+            
+            IntFunction<Integer> search = i -> matches[i] ? i : null;
+            
+            Integer serial = FrameSearchingWorkers.searchInOrder(ringEnds, search, false);
+            Integer parallel = FrameSearchingWorkers.searchInOrder(ringEnds, search, true);
+            
+            Integer expected = null;
+            for (int i = 0; i < candidateNum; i++) {
+                if (matches[i]) {
+                    expected = i;
+                    break;
+                }
+            }
+            
+            Validate.isTrue(
+                Objects.equals(serial, expected), "serial mismatch at seed %d", seed
+            );
+            Validate.isTrue(
+                Objects.equals(parallel, expected), "parallel mismatch at seed %d", seed
+            );
+        }
+    }
+    
+    @Test
+    public void testNearestWinsWhenFartherIsFaster() {
+        // in one ring, the later candidate finishes first, but the earlier one must win
+        IntArrayList ringEnds = IntArrayList.of(64);
+        IntFunction<Integer> search = i -> {
+            if (i == 3) {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return i;
+            }
+            return i == 60 ? i : null;
+        };
+        
+        for (int round = 0; round < 5; round++) {
+            Integer result = FrameSearchingWorkers.searchInOrder(ringEnds, search, true);
+            Validate.isTrue(result != null && result == 3);
+        }
+    }
+    
+    @Test
+    public void testExceptionIsThrown() {
+        IntArrayList ringEnds = IntArrayList.of(100);
+        boolean thrown = false;
+        try {
+            FrameSearchingWorkers.searchInOrder(ringEnds, i -> {
+                if (i == 42) {
+                    throw new IllegalStateException("test");
+                }
+                return null;
+            }, true);
+        }
+        catch (RuntimeException e) {
+            thrown = true;
+        }
+        Validate.isTrue(thrown);
+    }
+    
+    @Test
+    public void benchmark() {
+        // each candidate is a section scan: 4096 predicate tests
+        int candidateNum = 2000;
+        int[] blocks = new int[4096];
+        Random random = new Random(0);
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = random.nextInt(1000);
+        }
+        IntArrayList ringEnds = new IntArrayList();
+        for (int end = 100; end <= candidateNum; end += 100) {
+            ringEnds.add(end);
+        }
+        
+        IntFunction<Integer> search = i -> {
+            int sum = 0;
+            for (int round = 0; round < 20; round++) {
+                for (int block : blocks) {
+                    if (block == i) {
+                        sum++;
+                    }
+                }
+            }
+            // only the last candidate matches, so every candidate is scanned
+            return (i == candidateNum - 1 && sum >= 0) ? i : null;
+        };
+        
+        long serialTime = 0;
+        long parallelTime = 0;
+        for (int round = 0; round < 4; round++) {
+            // the first rounds are warm up
+            long start = System.nanoTime();
+            Integer serial = FrameSearchingWorkers.searchInOrder(ringEnds, search, false);
+            long time1 = System.nanoTime() - start;
+            
+            start = System.nanoTime();
+            Integer parallel = FrameSearchingWorkers.searchInOrder(ringEnds, search, true);
+            long time2 = System.nanoTime() - start;
+            
+            Validate.isTrue(serial != null && serial.equals(parallel));
+            if (round >= 2) {
+                serialTime += time1;
+                parallelTime += time2;
+            }
+        }
+        
+        LOGGER.info(
+            "Searching {} sections: serial {} ms, parallel {} ms",
+            candidateNum, serialTime / 2 / 1000000, parallelTime / 2 / 1000000
+        );
+    }
+}
@@ -0,0 +1,280 @@
+package qouteall.imm_ptl.core.render;
+
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.lang3.Validate;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Benchmarks {@link VisibleSectionSearcher} over synthetic section grids, without the client.
+ * The search without occlusion culling is the same as the old {@link VisibleSectionDiscovery}.
+ */
+@Testable
+public class VisibleSectionSearcherTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static final int RADIUS = 16;
+    private static final int MIN_SECTION_Y = -4;
+    private static final int END_SECTION_Y = 20;
+    private static final int ITERATIONS = 200;
+    
+    private static final long SEE_NOTHING = 0;
+    private static final long SEE_ALL = (1L << 36) - 1;
+    
+    private static final class Section {
+        final int x;
+        final int y;
+        final int z;
+        // bit (fromFace * 6 + toFace)
+        long visibility;
+        Object version = new Object();
+        
+        Section(int x, int y, int z, long visibility) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.visibility = visibility;
+        }
+    }
+    
+    /**
+     * The camera is at the center of section (0, cameraY, 0).
+     * The frustum is a cone along +X.
+     */
+    private static final class SyntheticGrid implements VisibleSectionSearcher.SectionGrid<Section> {
+        final int cameraY;
+        final double cosHalfAngle = Math.cos(Math.toRadians(55));
+        final Section[] sections;
+        
+        SyntheticGrid(int cameraY, VisibilityFunc func) {
+            this.cameraY = cameraY;
+            int size = RADIUS * 2 + 1;
+            sections = new Section[size * size * (END_SECTION_Y - MIN_SECTION_Y)];
+            for (int x = -RADIUS; x <= RADIUS; x++) {
+                for (int z = -RADIUS; z <= RADIUS; z++) {
+                    for (int y = MIN_SECTION_Y; y < END_SECTION_Y; y++) {
+                        sections[getIndex(x, y, z)] = new Section(x, y, z, func.get(x, y, z));
+                    }
+                }
+            }
+        }
+        
+        private static int getIndex(int x, int y, int z) {
+            int size = RADIUS * 2 + 1;
+            return ((x + RADIUS) * size + (z + RADIUS)) * (END_SECTION_Y - MIN_SECTION_Y) + (y - MIN_SECTION_Y);
+        }
+        
+        @Override
+        public @Nullable Section getSection(int cx, int cy, int cz) {
+            if (Math.abs(cx) > RADIUS || Math.abs(cz) > RADIUS || cy < MIN_SECTION_Y || cy >= END_SECTION_Y) {
+                return null;
+            }
+            return sections[getIndex(cx, cy, cz)];
+        }
+        
+        @Override
+        public boolean isInFrustum(Section section, int cx, int cy, int cz) {
+            double dx = cx;
+            double dy = cy - cameraY;
+            double dz = cz;
+            double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            // the half diagonal of a section is about 0.87 sections
+            return dx + 0.87 >= (length - 0.87) * cosHalfAngle;
+        }
+        
+        @Override
+        public boolean canSeeThrough(Section section, int cx, int cy, int cz, int fromFace, int toFace) {
+            return (section.visibility & (1L << (fromFace * 6 + toFace))) != 0;
+        }
+        
+        @Override
+        public Object getVersion(Section section) {
+            return section.version;
+        }
+    }
+    
+    private interface VisibilityFunc {
+        long get(int x, int y, int z);
+    }
+    
+    // solid ground below y 4, with random caves
+    private static SyntheticGrid createSurfaceGrid() {
+        Random random = new Random(42);
+        return new SyntheticGrid(5, (x, y, z) -> {
+            if (y >= 4) {
+                return SEE_ALL;
+            }
+            return random.nextDouble() < 0.1 ? SEE_ALL : SEE_NOTHING;
+        });
+    }
+    
+    // the camera is in a tunnel along +X, in mostly solid rock
+    private static SyntheticGrid createCaveGrid() {
+        Random random = new Random(42);
+        return new SyntheticGrid(0, (x, y, z) -> {
+            if (y == 0 && z == 0 && x >= 0) {
+                return SEE_ALL;
+            }
+            return random.nextDouble() < 0.15 ? SEE_ALL : SEE_NOTHING;
+        });
+    }
+    
+    private static void search(
+        VisibleSectionSearcher<Section> searcher, SyntheticGrid grid, boolean occlusionCulling,
+        ObjectArrayList<Section> result,
+        @Nullable VisibleSectionSearcher.FrameCache<Section> frameCache, @Nullable Object frameKey
+    ) {
+        searcher.begin(
+            grid, 0, grid.cameraY, 0, RADIUS, MIN_SECTION_Y, END_SECTION_Y, occlusionCulling, result
+        );
+        searcher.addSeed(0, grid.cameraY, 0, true);
+        searcher.finish(frameCache, frameKey);
+    }
+    
+    private record Timing(double plainMicros, double occlusionMicros, double reuseMicros) {}
+    
+    private static Timing benchmark(SyntheticGrid grid) {
+        VisibleSectionSearcher<Section> searcher = new VisibleSectionSearcher<>();
+        VisibleSectionSearcher.FrameCache<Section> frameCache = new VisibleSectionSearcher.FrameCache<>();
+        ObjectArrayList<Section> result = new ObjectArrayList<>();
+        
+        // warm up
+        for (int i = 0; i < ITERATIONS; i++) {
+            search(searcher, grid, false, result, null, null);
+            search(searcher, grid, true, result, frameCache, "key");
+            frameCache.tryReuse("key", grid, result);
+        }
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            search(searcher, grid, false, result, null, null);
+        }
+        long plainNanos = System.nanoTime() - start;
+        
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            search(searcher, grid, true, result, null, null);
+        }
+        long occlusionNanos = System.nanoTime() - start;
+        
+        search(searcher, grid, true, result, frameCache, "key");
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Validate.isTrue(frameCache.tryReuse("key", grid, result));
+        }
+        long reuseNanos = System.nanoTime() - start;
+        
+        return new Timing(
+            plainNanos / 1000.0 / ITERATIONS,
+            occlusionNanos / 1000.0 / ITERATIONS,
+            reuseNanos / 1000.0 / ITERATIONS
+        );
+    }
+    
+    @Test
+    public void testOcclusionCulling() {
+        for (SyntheticGrid grid : new SyntheticGrid[]{createSurfaceGrid(), createCaveGrid()}) {
+            VisibleSectionSearcher<Section> searcher = new VisibleSectionSearcher<>();
+            ObjectArrayList<Section> plain = new ObjectArrayList<>();
+            ObjectArrayList<Section> culled = new ObjectArrayList<>();
+            search(searcher, grid, false, plain, null, null);
+            search(searcher, grid, true, culled, null, null);
+            
+            HashSet<Section> plainSet = new HashSet<>(plain);
+            Validate.isTrue(plainSet.size() == plain.size());
+            Validate.isTrue(new HashSet<>(culled).size() == culled.size());
+            Validate.isTrue(plainSet.containsAll(culled));
+            Validate.isTrue(culled.size() < plain.size());
+        }
+        
+        // the sections in open air are not culled
+        SyntheticGrid surface = createSurfaceGrid();
+        ObjectArrayList<Section> culled = new ObjectArrayList<>();
+        ObjectArrayList<Section> plain = new ObjectArrayList<>();
+        search(new VisibleSectionSearcher<>(), surface, true, culled, null, null);
+        search(new VisibleSectionSearcher<>(), surface, false, plain, null, null);
+        HashSet<Section> culledSet = new HashSet<>(culled);
+        for (Section section : plain) {
+            if (section.y >= 4) {
+                Validate.isTrue(culledSet.contains(section));
+            }
+        }
+        
+        // the tunnel is not culled
+        SyntheticGrid cave = createCaveGrid();
+        culled.clear();
+        search(new VisibleSectionSearcher<>(), cave, true, culled, null, null);
+        culledSet = new HashSet<>(culled);
+        for (int x = 0; x <= RADIUS; x++) {
+            Validate.isTrue(culledSet.contains(cave.getSection(x, 0, 0)));
+        }
+    }
+    
+    @Test
+    public void testFrameCache() {
+        SyntheticGrid grid = createCaveGrid();
+        VisibleSectionSearcher<Section> searcher = new VisibleSectionSearcher<>();
+        VisibleSectionSearcher.FrameCache<Section> frameCache = new VisibleSectionSearcher.FrameCache<>();
+        ObjectArrayList<Section> result = new ObjectArrayList<>();
+        
+        Validate.isTrue(!frameCache.tryReuse("key", grid, result));
+        search(searcher, grid, true, result, frameCache, "key");
+        ObjectArrayList<Section> expected = new ObjectArrayList<>(result);
+        
+        result.clear();
+        Validate.isTrue(frameCache.tryReuse("key", grid, result));
+        Validate.isTrue(result.equals(expected));
+        
+        // the view changed
+        Validate.isTrue(!frameCache.tryReuse("another key", grid, result));
+        
+        // a section is recompiled
+        search(searcher, grid, true, result, frameCache, "key");
+        Section tunnelEnd = grid.getSection(RADIUS, 0, 0);
+        tunnelEnd.visibility = SEE_NOTHING;
+        tunnelEnd.version = new Object();
+        Validate.isTrue(!frameCache.tryReuse("key", grid, result));
+        Validate.isTrue(frameCache.getHitNum() == 1);
+        Validate.isTrue(frameCache.getMissNum() == 3);
+    }
+    
+    @Test
+    public void testConcurrentSearchers() {
+        SyntheticGrid grid = createSurfaceGrid();
+        ObjectArrayList<Section> expected = new ObjectArrayList<>();
+        search(new VisibleSectionSearcher<>(), grid, true, expected, null, null);
+        
+        CompletableFuture<?>[] futures = new CompletableFuture[4];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = CompletableFuture.runAsync(() -> {
+                VisibleSectionSearcher<Section> searcher = new VisibleSectionSearcher<>();
+                ObjectArrayList<Section> result = new ObjectArrayList<>();
+                for (int j = 0; j < 50; j++) {
+                    search(searcher, grid, true, result, null, null);
+                    Validate.isTrue(result.equals(expected));
+                }
+            });
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+    
+    @Test
+    public void benchmark() {
+        Timing surface = benchmark(createSurfaceGrid());
+        Timing cave = benchmark(createCaveGrid());
+        
+        LOGGER.info("Surface: {}", surface);
+        LOGGER.info("Cave: {}", cave);
+        
+        Validate.isTrue(cave.occlusionMicros() < cave.plainMicros());
+        Validate.isTrue(surface.reuseMicros() < surface.occlusionMicros());
+        Validate.isTrue(cave.reuseMicros() < cave.occlusionMicros());
+    }
+}
@@ -0,0 +1,98 @@
+package qouteall.imm_ptl.peripheral.alternate_dimension;
+
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+
+import java.util.Random;
+
+@Testable
+public class FormulaProgramTest {
+    private static final double[] SPECIAL_VALUES = {
+        0, -0.0, 1, -1, 0.5, 0.2, 0.8, 1e-9, -1e-9, 1e9, -1e9,
+        Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+    };
+    
+    private static boolean isIdentical(double a, double b) {
+        // NaN payloads are not compared
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+    
+    @Test
+    public void testProgramMatchesTree() {
+        FormulaGenerator.init();
+        
+        for (int seed = 0; seed < 2000; seed++) {
+            Random random = new Random(seed);
+            FormulaGenerator.Formula formula = FormulaGenerator.newRandomFormula(random, seed % 5);
+            
+            Random pointRandom = new Random(seed);
+            for (int i = 0; i < 200; i++) {
+                double x = i < 50 ? SPECIAL_VALUES[i % SPECIAL_VALUES.length] : pointRandom.nextDouble();
+                double y = pointRandom.nextDouble() * 2 - 0.5;
+                double z = i % 7 == 0 ? SPECIAL_VALUES[i % SPECIAL_VALUES.length] : pointRandom.nextDouble();
+                
+                double expected = formula.tree().eval(x, y, z);
+                double actual = formula.program().eval(x, y, z);
+                Validate.isTrue(
+                    isIdentical(expected, actual),
+                    "mismatch at seed %d (%s %s %s): %s %s", seed, x, y, z, expected, actual
+                );
+            }
+        }
+    }
+    
+    @Test
+    public void testBatchMatchesTree() {
+        FormulaGenerator.init();
+        
+        int num = 16 * 16 * 16;
+        double[] xs = new double[num];
+        double[] ys = new double[num];
+        double[] zs = new double[num];
+        double[] result = new double[num];
+        
+        for (int seed = 0; seed < 500; seed++) {
+            Random random = new Random(seed);
+            FormulaGenerator.Formula formula = FormulaGenerator.newRandomFormula(random, 3);
+            
+            double[] inputXs = new double[num];
+            double[] inputYs = new double[num];
+            double[] inputZs = new double[num];
+            for (int i = 0; i < num; i++) {
+                inputXs[i] = random.nextInt(64) / 64.0;
+                inputYs[i] = random.nextInt(128) / 128.0;
+                inputZs[i] = random.nextInt(64) / 64.0;
+            }
+            
+            System.arraycopy(inputXs, 0, xs, 0, num);
+            System.arraycopy(inputYs, 0, ys, 0, num);
+            System.arraycopy(inputZs, 0, zs, 0, num);
+            formula.program().evalBatch(xs, ys, zs, result, num);
+            
+            for (int i = 0; i < num; i++) {
+                double expected = formula.tree().eval(inputXs[i], inputYs[i], inputZs[i]);
+                Validate.isTrue(
+                    isIdentical(expected, result[i]),
+                    "mismatch at seed %d index %d: %s %s", seed, i, expected, result[i]
+                );
+            }
+        }
+    }
+    
+    @Test
+    public void testGeneratingIsUnchanged() {
+        FormulaGenerator.init();
+        
+        // the old API must consume the random the same way
+        for (int seed = 0; seed < 100; seed++) {
+            FormulaGenerator.TriNumFunction tree =
+                FormulaGenerator.newGetRandomTriCompositeExpression(new Random(seed), 3);
+            FormulaGenerator.Formula formula = FormulaGenerator.newRandomFormula(new Random(seed), 3);
+            for (int i = 0; i < 10; i++) {
+                double x = i / 10.0;
+                Validate.isTrue(isIdentical(tree.eval(x, 0.3, 1 - x), formula.program().eval(x, 0.3, 1 - x)));
+            }
+        }
+    }
+}
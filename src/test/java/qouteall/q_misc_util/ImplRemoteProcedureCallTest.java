@@ -0,0 +1,230 @@
+package qouteall.q_misc_util;
+
+import com.mojang.logging.LogUtils;
+import io.netty.buffer.Unpooled;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.phys.Vec3;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.UUID;
+
+@Testable
+public class ImplRemoteProcedureCallTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private static final String METHOD_PATH =
+        "qouteall.q_misc_util.ImplRemoteProcedureCallTest.RemoteCallables.accept";
+    
+    private static final String ENUM_METHOD_PATH =
+        "qouteall.q_misc_util.ImplRemoteProcedureCallTest.RemoteCallables.acceptEnum";
+    
+    public static enum TestEnum {
+        PLAIN,
+        // the class of this constant is a subclass of the enum class
+        WITH_BODY {
+            @Override
+            public String toString() {
+                return "with body";
+            }
+        }
+    }
+    
+    public static class RemoteCallables {
+        public static int callNum = 0;
+        public static Object[] lastArgs;
+        
+        public static void accept(
+            BlockPos pos, Vec3 vec, int num, double d, UUID uuid, String str, Block block
+        ) {
+            callNum++;
+            lastArgs = new Object[]{pos, vec, num, d, uuid, str, block};
+        }
+        
+        public static void acceptEnum(TestEnum e1, TestEnum e2) {
+            callNum++;
+            lastArgs = new Object[]{e1, e2};
+        }
+    }
+    
+    private static final List<Object> ARGS = List.of(
+        new BlockPos(1, -2, 3), new Vec3(0.5, 64, -7.25), 42, 3.5,
+        new UUID(123, 456), "test", Blocks.STONE
+    );
+    
+    private static RegistryFriendlyByteBuf createBuf() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        
+        return new RegistryFriendlyByteBuf(
+            Unpooled.buffer(), RegistryAccess.fromRegistryOfRegistries(BuiltInRegistries.REGISTRY)
+        );
+    }
+    
+    private static ImplRemoteProcedureCall.S2CRPCPayload roundTrip(
+        RegistryFriendlyByteBuf buf, List<Object> args, boolean byId
+    ) {
+        buf.clear();
+        new ImplRemoteProcedureCall.S2CRPCPayload(true, METHOD_PATH, null, args, byId ? 0 : -1)
+            .write(buf);
+        return ImplRemoteProcedureCall.S2CRPCPayload.read(buf, byId);
+    }
+    
+    @Test
+    public void testRoundTrip() throws Throwable {
+        RegistryFriendlyByteBuf buf = createBuf();
+        ImplRemoteProcedureCall.setServerMethodTable(
+            new ImplRemoteProcedureCall.MethodTable(List.of(METHOD_PATH))
+        );
+        
+        for (boolean byId : new boolean[]{false, true}) {
+            ImplRemoteProcedureCall.S2CRPCPayload payload = roundTrip(buf, ARGS, byId);
+            Validate.isTrue(payload.deserializeSuccess());
+            Validate.isTrue(payload.methodPath().equals(METHOD_PATH));
+            Validate.isTrue(payload.args().equals(ARGS), "mismatch %s", payload.args());
+            
+            int callNum = RemoteCallables.callNum;
+            payload.method().invoke(payload.args().toArray());
+            Validate.isTrue(RemoteCallables.callNum == callNum + 1);
+            Validate.isTrue(List.of(RemoteCallables.lastArgs).equals(ARGS));
+        }
+        
+        buf.clear();
+        new ImplRemoteProcedureCall.S2CRPCPayload(true, METHOD_PATH, null, ARGS, -1).write(buf);
+        int pathSize = buf.readableBytes();
+        buf.clear();
+        new ImplRemoteProcedureCall.S2CRPCPayload(true, METHOD_PATH, null, ARGS, 0).write(buf);
+        int idSize = buf.readableBytes();
+        LOGGER.info("Encoded size: by path {} bytes, by id {} bytes", pathSize, idSize);
+        Validate.isTrue(idSize < pathSize);
+    }
+    
+    @Test
+    public void testNumberTypeMismatch() {
+        RegistryFriendlyByteBuf buf = createBuf();
+        ImplRemoteProcedureCall.setServerMethodTable(
+            new ImplRemoteProcedureCall.MethodTable(List.of(METHOD_PATH))
+        );
+        
+        // like JSON, an integer argument can be used for a double parameter, and a long for an int
+        List<Object> args = List.of(
+            BlockPos.ZERO, Vec3.ZERO, 7L, 2, new UUID(1, 2), "", Blocks.AIR
+        );
+        ImplRemoteProcedureCall.S2CRPCPayload payload = roundTrip(buf, args, true);
+        Validate.isTrue(payload.deserializeSuccess());
+        Validate.isTrue(payload.args().get(2).equals(7));
+        Validate.isTrue(payload.args().get(3).equals(2.0));
+    }
+    
+    @Test
+    public void testEnumWithBody() throws Throwable {
+        RegistryFriendlyByteBuf buf = createBuf();
+        ImplRemoteProcedureCall.setServerMethodTable(
+            new ImplRemoteProcedureCall.MethodTable(List.of(METHOD_PATH, ENUM_METHOD_PATH))
+        );
+        
+        List<Object> args = List.of(TestEnum.PLAIN, TestEnum.WITH_BODY);
+        Validate.isTrue(TestEnum.WITH_BODY.getClass() != TestEnum.class);
+        
+        buf.clear();
+        new ImplRemoteProcedureCall.S2CRPCPayload(true, ENUM_METHOD_PATH, null, args, 1).write(buf);
+        ImplRemoteProcedureCall.S2CRPCPayload payload = ImplRemoteProcedureCall.S2CRPCPayload.read(buf, true);
+        Validate.isTrue(payload.deserializeSuccess());
+        Validate.isTrue(payload.args().equals(args), "mismatch %s", payload.args());
+        
+        payload.method().invoke(payload.args().toArray());
+        Validate.isTrue(List.of(RemoteCallables.lastArgs).equals(args));
+    }
+    
+    @Test
+    public void testInvalidId() {
+        RegistryFriendlyByteBuf buf = createBuf();
+        ImplRemoteProcedureCall.setServerMethodTable(
+            new ImplRemoteProcedureCall.MethodTable(List.of(METHOD_PATH))
+        );
+        
+        buf.clear();
+        buf.writeVarInt(5);
+        Validate.isTrue(!ImplRemoteProcedureCall.S2CRPCPayload.read(buf, true).deserializeSuccess());
+        
+        ImplRemoteProcedureCall.setServerMethodTable(null);
+        buf.clear();
+        buf.writeVarInt(0);
+        Validate.isTrue(!ImplRemoteProcedureCall.S2CRPCPayload.read(buf, true).deserializeSuccess());
+    }
+    
+    @Test
+    public void benchmark() throws Throwable {
+        RegistryFriendlyByteBuf buf = createBuf();
+        ImplRemoteProcedureCall.setServerMethodTable(
+            new ImplRemoteProcedureCall.MethodTable(List.of(METHOD_PATH))
+        );
+        
+        int iterations = 100000;
+        
+        for (boolean byId : new boolean[]{false, true}) {
+            ImplRemoteProcedureCall.S2CRPCPayload payload =
+                new ImplRemoteProcedureCall.S2CRPCPayload(true, METHOD_PATH, null, ARGS, byId ? 0 : -1);
+            
+            long encodeTime = 0;
+            long decodeTime = 0;
+            for (int round = 0; round < 2; round++) {
+                // the first round is warm up
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    buf.clear();
+                    payload.write(buf);
+                }
+                encodeTime = System.nanoTime() - start;
+                
+                int writerIndex = buf.writerIndex();
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    buf.readerIndex(0);
+                    buf.writerIndex(writerIndex);
+                    ImplRemoteProcedureCall.S2CRPCPayload.read(buf, byId);
+                }
+                decodeTime = System.nanoTime() - start;
+            }
+            
+            LOGGER.info(
+                "{}: encode {} ns/call, decode {} ns/call",
+                byId ? "By id" : "By path",
+                encodeTime / iterations, decodeTime / iterations
+            );
+        }
+        
+        ImplRemoteProcedureCall.RemoteMethod method = ImplRemoteProcedureCall.getMethodByPath(METHOD_PATH);
+        Object[] argArray = ARGS.toArray();
+        long reflectionTime = 0;
+        long handleTime = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                method.method.invoke(null, argArray);
+            }
+            reflectionTime = System.nanoTime() - start;
+            
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                method.invoke(argArray);
+            }
+            handleTime = System.nanoTime() - start;
+        }
+        
+        LOGGER.info(
+            "Dispatch: reflection {} ns/call, method handle {} ns/call ({})",
+            reflectionTime / iterations, handleTime / iterations, RemoteCallables.callNum
+        );
+    }
+}
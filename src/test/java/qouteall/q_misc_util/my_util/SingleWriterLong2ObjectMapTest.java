@@ -0,0 +1,217 @@
+package qouteall.q_misc_util.my_util;
+
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.apache.commons.lang3.Validate;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.commons.annotation.Testable;
+import org.slf4j.Logger;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Testable
+public class SingleWriterLong2ObjectMapTest {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    
+    private record Chunk(long pos) {}
+    
+    @Test
+    public void testAgainstHashMap() {
+        Random random = new Random(42);
+        SingleWriterLong2ObjectMap<Chunk> map = new SingleWriterLong2ObjectMap<>();
+        HashMap<Long, Chunk> expected = new HashMap<>();
+        
+        for (int i = 0; i < 200000; i++) {
+            // a small key range, so there are many removes and tombstones
+            long key = random.nextInt(-2000, 2000);
+            if (random.nextInt(3) == 0) {
+                Validate.isTrue(map.remove(key) == expected.remove(key));
+            }
+            else {
+                Chunk chunk = new Chunk(key);
+                Validate.isTrue(map.put(key, chunk) == expected.put(key, chunk));
+            }
+            
+            long probe = random.nextInt(-2000, 2000);
+            Validate.isTrue(map.get(probe) == expected.get(probe));
+            Validate.isTrue(map.size() == expected.size());
+        }
+        
+        Validate.isTrue(new HashSet<>(map.getValueList()).equals(new HashSet<>(expected.values())));
+        
+        map.clear();
+        Validate.isTrue(map.size() == 0);
+        Validate.isTrue(map.get(0) == null);
+    }
+    
+    /**
+     * The keys below stableKeyNum are never removed,
+     * so the readers must always find them, while the writer keeps loading and unloading other chunks.
+     */
+    @Test
+    public void testConcurrentReadsDuringRehash() throws InterruptedException {
+        int stableKeyNum = 1000;
+        SingleWriterLong2ObjectMap<Chunk> map = new SingleWriterLong2ObjectMap<>();
+        for (long key = 0; key < stableKeyNum; key++) {
+            map.put(key, new Chunk(key));
+        }
+        
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong errors = new AtomicLong();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            int seed = i;
+            readers[i] = new Thread(() -> {
+                Random random = new Random(seed);
+                while (!stop.get()) {
+                    long key = random.nextInt(stableKeyNum);
+                    Chunk chunk = map.get(key);
+                    if (chunk == null || chunk.pos() != key) {
+                        errors.incrementAndGet();
+                    }
+                    long otherKey = stableKeyNum + random.nextInt(100000);
+                    Chunk other = map.get(otherKey);
+                    if (other != null && other.pos() != otherKey) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            readers[i].start();
+        }
+        
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            // grow and shrink, which rehashes and creates tombstones
+            for (int i = 0; i < 2000; i++) {
+                long key = stableKeyNum + random.nextInt(100000);
+                map.put(key, new Chunk(key));
+            }
+            for (int i = 0; i < 2000; i++) {
+                map.remove(stableKeyNum + random.nextInt(100000));
+            }
+        }
+        
+        stop.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        
+        Validate.isTrue(errors.get() == 0);
+    }
+    
+    private interface ChunkReader {
+        Chunk get(long key);
+    }
+    
+    /**
+     * The readers look up loaded chunks, like chunk meshing workers,
+     * while the main thread loads and unloads a chunk every 50 microseconds.
+     *
+     * @return the reads per second of all readers
+     */
+    private static double measureReadThroughput(
+        int readerNum, ChunkReader reader, Runnable writeOneChunk
+    ) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong totalReads = new AtomicLong();
+        AtomicLong sink = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(readerNum);
+        
+        Thread[] readers = new Thread[readerNum];
+        for (int i = 0; i < readerNum; i++) {
+            int seed = i;
+            readers[i] = new Thread(() -> {
+                Random random = new Random(seed);
+                long reads = 0;
+                long found = 0;
+                started.countDown();
+                while (!stop.get()) {
+                    for (int j = 0; j < 1000; j++) {
+                        int x = random.nextInt(-16, 16);
+                        int z = random.nextInt(-16, 16);
+                        if (reader.get(((long) x << 32) | (z & 0xFFFFFFFFL)) != null) {
+                            found++;
+                        }
+                    }
+                    reads += 1000;
+                }
+                totalReads.addAndGet(reads);
+                sink.addAndGet(found);
+            });
+            readers[i].start();
+        }
+        started.await();
+        
+        long durationNanos = 300_000_000L;
+        long start = System.nanoTime();
+        long nextWrite = start;
+        while (System.nanoTime() - start < durationNanos) {
+            if (System.nanoTime() >= nextWrite) {
+                writeOneChunk.run();
+                nextWrite += 50_000;
+            }
+            Thread.onSpinWait();
+        }
+        stop.set(true);
+        for (Thread thread : readers) {
+            thread.join();
+        }
+        
+        LOGGER.debug("sink {}", sink.get());
+        return totalReads.get() / (durationNanos / 1e9);
+    }
+    
+    @Test
+    public void benchmark() throws InterruptedException {
+        for (int readerNum : new int[]{1, 4, 16}) {
+            // the old way: other threads read a Long2ObjectOpenHashMap under synchronization
+            Long2ObjectOpenHashMap<Chunk> lockedMap = new Long2ObjectOpenHashMap<>();
+            SingleWriterLong2ObjectMap<Chunk> lockFreeMap = new SingleWriterLong2ObjectMap<>();
+            for (int x = -12; x < 12; x++) {
+                for (int z = -12; z < 12; z++) {
+                    long key = ((long) x << 32) | (z & 0xFFFFFFFFL);
+                    lockedMap.put(key, new Chunk(key));
+                    lockFreeMap.put(key, new Chunk(key));
+                }
+            }
+            
+            Random lockedRandom = new Random(42);
+            double locked = measureReadThroughput(
+                readerNum,
+                key -> {
+                    synchronized (lockedMap) {
+                        return lockedMap.get(key);
+                    }
+                },
+                () -> {
+                    long key = lockedRandom.nextLong();
+                    synchronized (lockedMap) {
+                        lockedMap.put(key, new Chunk(key));
+                        lockedMap.remove(key);
+                    }
+                }
+            );
+            
+            Random lockFreeRandom = new Random(42);
+            double lockFree = measureReadThroughput(
+                readerNum,
+                lockFreeMap::get,
+                () -> {
+                    long key = lockFreeRandom.nextLong();
+                    lockFreeMap.put(key, new Chunk(key));
+                    lockFreeMap.remove(key);
+                }
+            );
+            
+            LOGGER.info(
+                "{} reader threads: synchronized {} M reads/s, lock-free {} M reads/s",
+                readerNum, String.format("%.1f", locked / 1e6), String.format("%.1f", lockFree / 1e6)
+            );
+        }
+    }
+}